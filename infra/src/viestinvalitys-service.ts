@@ -2,6 +2,7 @@ import * as cdk from "aws-cdk-lib";
 import * as constructs from "constructs";
 import * as ec2 from "aws-cdk-lib/aws-ec2";
 import * as ecs from "aws-cdk-lib/aws-ecs";
+import * as iam from "aws-cdk-lib/aws-iam";
 import * as rds from "aws-cdk-lib/aws-rds";
 import * as elasticloadbalancingv2 from "aws-cdk-lib/aws-elasticloadbalancingv2";
 import * as route53 from "aws-cdk-lib/aws-route53";
@@ -129,6 +130,15 @@ export class ViestinvalitysServiceStack extends cdk.Stack {
       props.attachmentsBucket.grantRead(taskDefinition.taskRole);
     }
 
+    // the send path reads the account's send rate (viestinvalitys.lahetys.nopeus.hae-ses-quota). GetSendQuota has no
+    // resource-level permissions.
+    taskDefinition.addToTaskRolePolicy(
+      new iam.PolicyStatement({
+        actions: ["ses:GetSendQuota"],
+        resources: ["*"],
+      }),
+    );
+
     const alb = new elasticloadbalancingv2.ApplicationLoadBalancer(
       this,
       "LoadBalancer",
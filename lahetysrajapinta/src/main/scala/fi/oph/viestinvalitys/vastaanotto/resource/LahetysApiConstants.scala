@@ -17,6 +17,7 @@ object LahetysAPIConstants {
   final val GET_LAHETYS_PATH                  = LAHETYKSET_PATH + "/" + LAHETYSTUNNISTE_PARAM_PLACEHOLDER
 
   final val GET_VASTAANOTTAJAT_PATH           = GET_LAHETYS_PATH + "/vastaanottajat"
+  final val LUO_VIESTIT_PATH                  = GET_LAHETYS_PATH + "/viestit"
   final val ALKAEN_PARAM_NAME                 = "alkaen"
   final val ENINTAAN_PARAM_NAME               = "enintaan"
 
@@ -74,6 +75,7 @@ object LahetysAPIConstants {
   final val LAHETYSTUNNISTE_INVALID           = "Lahetystunniste ei ole muodoltaan validi uuid"
   final val VIRHEELLINEN_LAHETYS_JSON_VIRHE   = "Lähetyksen json-deserialisointi epäonnistui"
   final val VIRHEELLINEN_VIESTI_JSON_VIRHE    = "Viestin json-deserialisointi epäonnistui"
+  final val RIVIN_LAHETYSTUNNISTE_VIRHE       = "lahetysTunniste: Rivin lähetystunniste ei vastaa polun lähetystunnistetta"
 
   final val LIITE_VIRHE_LIITE_PUUTTUU         = "Pyynnöstä puuttuu liite-niminen multipart-osio"
 
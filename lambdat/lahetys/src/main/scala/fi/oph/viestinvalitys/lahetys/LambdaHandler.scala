@@ -38,6 +38,7 @@ object LambdaHandler {
   val fromEmailAddress = sys.env.getOrElse("FROM_EMAIL_ADDRESS", s"noreply@${ConfigurationUtil.opintopolkuDomain}")
   val namespace = sys.env.getOrElse("METRIC_DATA_NAMESPACE", s"${ConfigurationUtil.environment}-viestinvalitys")
   val mode = ConfigurationUtil.getMode()
+  val VARAAJA = "lahetys-lambda/" + sys.env.getOrElse("AWS_LAMBDA_LOG_STREAM_NAME", "")
 
   val mapper = {
     val mapper = new ObjectMapper()
@@ -75,7 +76,7 @@ class LambdaHandler extends RequestHandler[SQSEvent, Void], Resource {
       vastaanottaja.tunniste.toString
 
   def laheta(maara: Int): Unit =
-    val vastaanottajaTunnisteet = LambdaHandler.kantaOperaatiot.getLahetettavatVastaanottajat(maara)
+    val vastaanottajaTunnisteet = LambdaHandler.kantaOperaatiot.getLahetettavatVastaanottajat(maara, LambdaHandler.VARAAJA)
     if(!vastaanottajaTunnisteet.isEmpty)
       val viestit = new scala.collection.mutable.HashMap[UUID, Viesti]()
       val liitteet = new scala.collection.mutable.HashMap[UUID, Seq[(Liite, Array[Byte])]]()
@@ -194,6 +195,7 @@ class LambdaHandler extends RequestHandler[SQSEvent, Void], Resource {
           LambdaHandler.LOG.info("Ajetaan lähetys: " + viestiTimestamp)
           laheta(ConfigurationUtil.AJASTUS_POLLING_INTERVAL_SECONDS * ConfigurationUtil.AJASTUS_SENDING_QUOTA_PER_SECOND)
       })
+      AuditLog.flush()
       null
     })
   }
@@ -204,6 +206,7 @@ class LambdaHandler extends RequestHandler[SQSEvent, Void], Resource {
     AwsUtil.sqsClient
     AwsUtil.sesClient
     laheta(0)
+    AuditLog.flush()
 
   @throws[Exception]
   def afterRestore(context: org.crac.Context[_ <: Resource]): Unit =
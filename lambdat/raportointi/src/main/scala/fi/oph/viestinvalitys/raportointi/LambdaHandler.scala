@@ -6,6 +6,7 @@ import com.amazonaws.services.lambda.runtime.*
 import fi.oph.viestinvalitys.raportointi.LambdaHandler.{handler, opintopolkuDomain, viestinvalitysUrl}
 import fi.oph.viestinvalitys.raportointi.priming.PrimingContext
 import fi.oph.viestinvalitys.raportointi.resource.RaportointiAPIConstants
+import fi.oph.viestinvalitys.security.AuditLog
 import fi.oph.viestinvalitys.util.{ConfigurationUtil, DbUtil, LogContext}
 import org.crac.{Core, Resource}
 import org.slf4j.LoggerFactory
@@ -68,6 +69,8 @@ class LambdaHandler extends RequestHandler[HttpApiV2ProxyRequest, AwsProxyRespon
       }
 
       val response = LambdaHandler.handler.proxy(request, context)
+      // audit-lokientryt on kirjoitettava ennen kuin lambda jäädytetään
+      AuditLog.flush()
       this.convertResponse(response)
       this.logRequestData(request);
       response
@@ -77,6 +80,7 @@ class LambdaHandler extends RequestHandler[HttpApiV2ProxyRequest, AwsProxyRespon
   @throws[Exception]
   def beforeCheckpoint(context: org.crac.Context[_ <: Resource]): Unit = {
     System.out.println("Before checkpoint")
+    AuditLog.flush()
 
     // this force spring boot initialization
     LambdaHandler.handler.toString
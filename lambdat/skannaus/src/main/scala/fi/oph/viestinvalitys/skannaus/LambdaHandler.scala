@@ -56,6 +56,7 @@ class LambdaHandler extends RequestHandler[SQSEvent, SQSBatchResponse], Resource
     LogContext(requestId = context.getAwsRequestId, functionName = context.getFunctionName)(() => {
       LOG.info("Prosessoidaan BucketAV-viestit")
       val failures = event.getRecords.asScala.flatMap(processSingleMessage)
+      AuditLog.flush()
       SQSBatchResponse.builder().withBatchItemFailures(failures.asJava).build()
     })
   }
@@ -101,6 +102,7 @@ class LambdaHandler extends RequestHandler[SQSEvent, SQSBatchResponse], Resource
   @throws[Exception]
   def beforeCheckpoint(context: org.crac.Context[_ <: Resource]): Unit = {
     AwsUtil.sqsClient
+    AuditLog.flush()
   }
 
   @throws[Exception]
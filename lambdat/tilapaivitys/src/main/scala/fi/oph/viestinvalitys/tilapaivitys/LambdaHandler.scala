@@ -14,6 +14,7 @@ import slick.jdbc.JdbcBackend
 import slick.jdbc.PostgresProfile.api.*
 
 import java.util
+import scala.collection.mutable
 import scala.jdk.CollectionConverters.*
 
 object LambdaHandler {
@@ -29,43 +30,64 @@ class LambdaHandler extends RequestHandler[SQSEvent, SQSBatchResponse], Resource
 
   override def handleRequest(event: SQSEvent, context: Context): SQSBatchResponse = {
     LogContext(requestId = context.getAwsRequestId, functionName = context.getFunctionName)(() => {
-      LOG.info("Prosessoidaan SES-viesti")
-      val failures = event.getRecords.asScala.flatMap(processSingleMessage)
+      LOG.info("Prosessoidaan " + event.getRecords.size() + " SES-viestiä")
+      val failures = mutable.ArrayBuffer[SQSBatchResponse.BatchItemFailure]()
+      val siirtymat = mutable.ArrayBuffer[(SQSMessage, (String, VastaanottajanTila, Option[String]))]()
+      event.getRecords.asScala.foreach { sqsMessage =>
+        try
+          jasennaSiirtyma(sqsMessage).foreach(siirtyma => siirtymat.append((sqsMessage, siirtyma)))
+        catch
+          case e: Exception =>
+            LOG.error("Virhe prosessoitaessa SES-viestiä", e)
+            failures.append(failure(sqsMessage))
+      }
+
+      // koko erän siirtymät tallennetaan yhdessä transaktiossa, joten virheen sattuessa kaikki yritetään uudelleen
+      if (siirtymat.nonEmpty)
+        try
+          siirtymat.foreach { case (_, (messageId, vastaanottajanTila, lisatiedot)) =>
+            val changes: Changes = new Changes.Builder()
+              .added("lisatiedot", lisatiedot.getOrElse(""))
+              .added("vastaanottajanTila", vastaanottajanTila.toString)
+              .build()
+            AuditLog.logChanges(AuditLog.getAuditUserForLambda(), Map("sesTunniste" -> messageId), AuditOperation.UpdateVastaanottajanTila, changes)
+            LOG.info("Siirretään viesti " + messageId + " tilaan " + vastaanottajanTila.toString)
+          }
+          kantaOperaatiot.paivitaVastaanotonTilat(siirtymat.map((_, siirtyma) => siirtyma).toSeq)
+        catch
+          case e: Exception =>
+            LOG.error("Virhe päivitettäessä vastaanottajien tiloja", e)
+            failures.appendAll(siirtymat.map((sqsMessage, _) => failure(sqsMessage)))
+      AuditLog.flush()
       SQSBatchResponse.builder().withBatchItemFailures(failures.asJava).build()
     })
   }
 
-  def processSingleMessage(sqsMessage: SQSMessage): Option[SQSBatchResponse.BatchItemFailure] = {
-    try
-      val message = Deserialisoija.deserialisoiSqsViesti(sqsMessage.getBody)
-      if (message.isEmpty)
-        LOG.warn("SES-viesti on tyhjä")
-      else
-        val messageId = message.get.mail.messageId
-        val siirtyma = message.get.asVastaanottajanSiirtyma()
-        if (siirtyma.isDefined)
-          val (vastaanottajanTila, lisatiedot) = siirtyma.get
-          val changes: Changes = new Changes.Builder()
-            .added("lisatiedot", lisatiedot.getOrElse(""))
-            .added("vastaanottajanTila", vastaanottajanTila.toString)
-            .build()
-          AuditLog.logChanges(AuditLog.getAuditUserForLambda(), Map("sesTunniste" -> messageId), AuditOperation.UpdateVastaanottajanTila, changes)
-          LOG.info("Siirretään viesti " + messageId + " tilaan " + vastaanottajanTila.toString)
-          kantaOperaatiot.paivitaVastaanotonTila(messageId, vastaanottajanTila, lisatiedot)
-        else
-          LOG.info("Viestin " + messageId + " tilalle ei ole määritelty siirtymää")
-      None
-    catch
-      case e: Exception =>
-        LOG.error("Virhe prosessoitaessa SES-viestiä", e)
-        Some(SQSBatchResponse.BatchItemFailure.builder()
-          .withItemIdentifier(sqsMessage.getMessageId)
-          .build())
-  }
+  /**
+   * Jäsentää SES-viestin vastaanottajan tilasiirtymäksi (SES-tunniste, uusi tila, lisätiedot). Palauttaa tyhjän jos
+   * viesti on tyhjä tai sen tapahtumalle ei ole määritelty siirtymää.
+   */
+  def jasennaSiirtyma(sqsMessage: SQSMessage): Option[(String, VastaanottajanTila, Option[String])] =
+    val message = Deserialisoija.deserialisoiSqsViesti(sqsMessage.getBody)
+    if (message.isEmpty)
+      LOG.warn("SES-viesti on tyhjä")
+      Option.empty
+    else
+      val messageId = message.get.mail.messageId
+      val siirtyma = message.get.asVastaanottajanSiirtyma()
+      if (siirtyma.isEmpty)
+        LOG.info("Viestin " + messageId + " tilalle ei ole määritelty siirtymää")
+      siirtyma.map((vastaanottajanTila, lisatiedot) => (messageId, vastaanottajanTila, lisatiedot))
+
+  private def failure(sqsMessage: SQSMessage): SQSBatchResponse.BatchItemFailure =
+    SQSBatchResponse.BatchItemFailure.builder()
+      .withItemIdentifier(sqsMessage.getMessageId)
+      .build()
 
   @throws[Exception]
   def beforeCheckpoint(context: org.crac.Context[_ <: Resource]): Unit = {
     System.out.println("Before checkpoint")
+    AuditLog.flush()
     AwsUtil.sqsClient
   }
 
@@ -4,6 +4,7 @@ package fi.oph.viestinvalitys.vastaanotto
 import com.amazonaws.serverless.proxy.model.*
 import com.amazonaws.serverless.proxy.spring.SpringBootLambdaContainerHandler
 import com.amazonaws.services.lambda.runtime.*
+import fi.oph.viestinvalitys.security.AuditLog
 import fi.oph.viestinvalitys.util.{ConfigurationUtil, DbUtil, LogContext}
 import fi.oph.viestinvalitys.vastaanotto.LambdaHandler.{handler, opintopolkuDomain}
 import fi.oph.viestinvalitys.vastaanotto.priming.PrimingContext
@@ -72,6 +73,8 @@ class LambdaHandler extends RequestHandler[HttpApiV2ProxyRequest, AwsProxyRespon
       }
 
       val response = LambdaHandler.handler.proxy(request, context)
+      // audit-lokientryt on kirjoitettava ennen kuin lambda jäädytetään
+      AuditLog.flush()
       this.convertResponse(response)
       this.logRequestData(request);
       response
@@ -81,6 +84,7 @@ class LambdaHandler extends RequestHandler[HttpApiV2ProxyRequest, AwsProxyRespon
   @throws[Exception]
   def beforeCheckpoint(context: org.crac.Context[_ <: Resource]): Unit = {
     System.out.println("Before checkpoint")
+    AuditLog.flush()
 
     // this forces spring boot initialization
     LambdaHandler.handler.toString
@@ -14,6 +14,7 @@ import io.swagger.v3.oas.annotations.media.{Content, Schema}
 import io.swagger.v3.oas.annotations.responses.ApiResponse
 import io.swagger.v3.oas.annotations.tags.Tag
 import io.swagger.v3.oas.annotations.{Hidden, Operation}
+import jakarta.servlet.http.{HttpServletRequest, HttpServletResponse}
 import org.slf4j.LoggerFactory
 import org.springframework.beans.factory.annotation.Autowired
 import org.springframework.http.{HttpStatus, MediaType, ResponseEntity}
@@ -21,8 +22,10 @@ import org.springframework.web.bind.annotation.*
 import org.springframework.web.context.request.{RequestContextHolder, ServletRequestAttributes}
 import software.amazon.awssdk.services.cloudwatch.model.{Dimension, MetricDatum, PutMetricDataRequest, StandardUnit}
 
+import java.io.{BufferedReader, InputStreamReader}
+import java.nio.charset.StandardCharsets
 import java.time.Instant
-import java.util.{Collections, UUID}
+import java.util.{Collections, Optional, UUID}
 import scala.jdk.CollectionConverters.*
 import scala.jdk.OptionConverters.*
 
@@ -112,6 +115,51 @@ class ViestiResource {
             "sisalto", sisalto))
       })
 
+  /**
+   * Tallentaa viestin, tai palauttaa aiemmin samalla idempotency-avaimella tallennetun viestin.
+   */
+  private def tallennaViesti(viesti: ViestiImpl, kantaOperaatiot: KantaOperaatiot, omistaja: String): Viesti =
+    try
+      // tallennetaan viesti
+      val (viestiEntiteetti, vastaanottajaEntiteetit) = kantaOperaatiot.tallennaViesti(
+        otsikko = viesti.otsikko.get,
+        sisalto = viesti.sisalto.get,
+        sisallonTyyppi = SisallonTyyppi.valueOf(viesti.sisallonTyyppi.get.toUpperCase),
+        kielet = viesti.kielet.map(kielet => kielet.asScala.map(kieli => Kieli.valueOf(kieli.toUpperCase)).toSet).orElse(LanguageDetection.tunnistaKieli(viesti.sisalto.get)),
+        maskit = viesti.maskit.map(maskit => maskit.asScala.map(maski => maski.getSalaisuus.get -> maski.getMaski.toScala).toMap).orElse(Map.empty),
+        lahettavanVirkailijanOID = viesti.lahettavanVirkailijanOid.toScala,
+        lahettaja = viesti.lahettaja.map(l => Kontakti(l.getNimi.toScala, l.getSahkopostiOsoite.get)).toScala,
+        replyTo = viesti.replyTo.toScala,
+        vastaanottajat = viesti.vastaanottajat.get.asScala.map(vastaanottaja => Kontakti(vastaanottaja.getNimi.toScala, vastaanottaja.getSahkopostiOsoite.get)).toSeq,
+        liiteTunnisteet = viesti.liitteidenTunnisteet.orElse(Collections.emptyList()).asScala.map(tunniste => UUID.fromString(tunniste)).toSeq,
+        lahettavaPalvelu = viesti.lahettavaPalvelu.toScala,
+        lahetysTunniste = ParametriUtil.asUUID(viesti.lahetysTunniste),
+        prioriteetti = viesti.prioriteetti.map(p => Prioriteetti.valueOf(p.toUpperCase)).toScala,
+        sailytysAika = viesti.sailytysaika.map(s => s.asInstanceOf[Int]).toScala,
+        kayttooikeusRajoitukset = viesti.kayttooikeusRajoitukset.toScala.map(r => r.asScala.toSet)
+          .map(kayttooikeudet => kayttooikeudet.map(kayttooikeus => Kayttooikeus(kayttooikeus.getOikeus.get, kayttooikeus.getOrganisaatio.toScala))).getOrElse(Set.empty),
+        metadata = viesti.metadata.toScala.map(m => m.asScala.map(entry => entry._1 -> entry._2.asScala.toSeq).toMap).getOrElse(Map.empty),
+        omistaja = omistaja,
+        idempotencyKey = viesti.idempotencyKey.toScala
+      )
+
+      // yritetään tallentaa lokit ja metriikat (best effort)
+      try
+        LogContext(viestiTunniste = viestiEntiteetti.tunniste.toString)(() => LOG.info("tallennettiin viesti"))
+        tallennaAuditLoki(viestiEntiteetti, vastaanottajaEntiteetit, viesti.liitteidenTunnisteet.orElse(Collections.emptyList()).asScala.map(tunniste => UUID.fromString(tunniste)).toSeq)
+        tallennaMetriikat(vastaanottajaEntiteetit.size, viestiEntiteetti.prioriteetti)
+      catch
+        case e: Exception => LogContext(viestiTunniste = viestiEntiteetti.tunniste.toString)
+          (() => LOG.error("Lokien ja/tai metriikoiden tallennus epäonnistui!", e))
+
+      viestiEntiteetti
+    catch
+      case e: IdempotencyKeyKaytossaException =>
+        // Viesti on jo tallennettu käyttävän järjestelmän toimesta, palautetaan tallennettu viesti eikä lähetetä uudestaan
+        LogContext(viestiTunniste = e.viesti.tunniste.toString)(() => LOG.info("Löydettiin tallennettu viesti avaimella "
+          + viesti.idempotencyKey))
+        e.viesti
+
   final val ENDPOINT_LISAAVIESTI_DESCRIPTION = "Huomioita:\n" +
     "- Mikäli lähetystunnusta ei ole määritelty, se luodaan automaattisesti ja tunnuksen otsikkona on viestin otsikko\n" +
     "- Käyttöoikeusrajoitukset rajaavat ketkä voivat nähdä viestejä lähetys tai raportointirajapinnan kautta, niiden " +
@@ -144,7 +192,7 @@ class ViestiResource {
       new ApiResponse(responseCode = "403", description=LahetysAPIConstants.LAHETYS_RESPONSE_403_DESCRIPTION, content = Array(new Content(schema = new Schema(implementation = classOf[Void])))),
       new ApiResponse(responseCode = "429", description=LahetysAPIConstants.VIESTI_RATELIMIT_VIRHE, content = Array(new Content(schema = new Schema(implementation = classOf[LuoViestiRateLimitResponseImpl])))),
     ))
-  def lisaaViesti(@RequestBody viestiBytes: Array[Byte], @Hidden @RequestParam(name = "disableRateLimiter", defaultValue = "false") disableRateLimiter: Boolean): ResponseEntity[LuoViestiResponse] =
+  def lisaaViesti(@Hidden @RequestParam(name = "disableRateLimiter", defaultValue = "false") disableRateLimiter: Boolean, request: HttpServletRequest): ResponseEntity[LuoViestiResponse] =
     val securityOperaatiot = new SecurityOperaatiot
     LogContext(path = LUO_VIESTI_PATH, identiteetti = securityOperaatiot.getIdentiteetti())(() =>
       try
@@ -159,9 +207,9 @@ class ViestiResource {
             else
               Right(None))
           .flatMap(_ =>
-            // deserialisoidaan
+            // deserialisoidaan suoraan pyynnön virrasta, jotta runkoa ei pidetä muistissa tavutaulukkona viestin lisäksi
             try
-              Right(mapper.readValue(viestiBytes, classOf[ViestiImpl]))
+              Right(mapper.readValue(request.getInputStream, classOf[ViestiImpl]))
             catch
               case e: Exception =>
                 LOG.warn("viestin deserialisointi epäonnistui")
@@ -170,9 +218,9 @@ class ViestiResource {
             // tarkastetaan rate limit
             if ((mode == Mode.PRODUCTION || !disableRateLimiter) &&
               (viesti.prioriteetti.isPresent && Prioriteetti.KORKEA.toString.equals(viesti.prioriteetti.get.toUpperCase)) &&
-              kantaOperaatiot.getKorkeanPrioriteetinViestienMaaraSince(securityOperaatiot.getIdentiteetti(),
-                LahetysAPIConstants.PRIORITEETTI_KORKEA_RATELIMIT_AIKAIKKUNA_SEKUNTIA) + 1 >
-                LahetysAPIConstants.PRIORITEETTI_KORKEA_RATELIMIT_VIESTEJA_AIKAIKKUNASSA)
+              kantaOperaatiot.varaaKorkeanPrioriteetinKiintio(securityOperaatiot.getIdentiteetti(), 1,
+                LahetysAPIConstants.PRIORITEETTI_KORKEA_RATELIMIT_VIESTEJA_AIKAIKKUNASSA,
+                LahetysAPIConstants.PRIORITEETTI_KORKEA_RATELIMIT_AIKAIKKUNA_SEKUNTIA) == 0)
               LOG.warn("liikaa korkean prioriteetin viestejä")
               Left(ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS).body(LuoViestiRateLimitResponseImpl(java.util.List.of(LahetysAPIConstants.VIESTI_RATELIMIT_VIRHE))))
             else
@@ -185,50 +233,7 @@ class ViestiResource {
               Left(ResponseEntity.status(HttpStatus.BAD_REQUEST).body(LuoViestiFailureResponseImpl(validointiVirheet.asJava)))
             else
               Right(viesti))
-          .map(viesti =>
-            val omistaja = securityOperaatiot.getIdentiteetti()
-
-            val existingViestiEntiteetti = viesti.idempotencyKey.toScala.map(key => kantaOperaatiot.getExistingViesti(omistaja, key)).getOrElse(Option.empty)
-            if(existingViestiEntiteetti.isDefined)
-              // Viesti on jo tallennettu käyttävän järjestelmän toimesta, palautetaan tallennettu viesti eikä lähetetä uudestaan
-              LogContext(viestiTunniste = existingViestiEntiteetti.get.tunniste.toString)(() => LOG.info("Löydettiin tallennettu viesti avaimella "
-                + viesti.idempotencyKey))
-              existingViestiEntiteetti.get
-            else
-              // tallennetaan viesti
-              val (viestiEntiteetti, vastaanottajaEntiteetit) = kantaOperaatiot.tallennaViesti(
-                otsikko = viesti.otsikko.get,
-                sisalto = viesti.sisalto.get,
-                sisallonTyyppi = SisallonTyyppi.valueOf(viesti.sisallonTyyppi.get.toUpperCase),
-                kielet = viesti.kielet.map(kielet => kielet.asScala.map(kieli => Kieli.valueOf(kieli.toUpperCase)).toSet).orElse(LanguageDetection.tunnistaKieli(viesti.sisalto.get)),
-                maskit = viesti.maskit.map(maskit => maskit.asScala.map(maski => maski.getSalaisuus.get -> maski.getMaski.toScala).toMap).orElse(Map.empty),
-                lahettavanVirkailijanOID = viesti.lahettavanVirkailijanOid.toScala,
-                lahettaja = viesti.lahettaja.map(l => Kontakti(l.getNimi.toScala, l.getSahkopostiOsoite.get)).toScala,
-                replyTo = viesti.replyTo.toScala,
-                vastaanottajat = viesti.vastaanottajat.get.asScala.map(vastaanottaja => Kontakti(vastaanottaja.getNimi.toScala, vastaanottaja.getSahkopostiOsoite.get)).toSeq,
-                liiteTunnisteet = viesti.liitteidenTunnisteet.orElse(Collections.emptyList()).asScala.map(tunniste => UUID.fromString(tunniste)).toSeq,
-                lahettavaPalvelu = viesti.lahettavaPalvelu.toScala,
-                lahetysTunniste = ParametriUtil.asUUID(viesti.lahetysTunniste),
-                prioriteetti = viesti.prioriteetti.map(p => Prioriteetti.valueOf(p.toUpperCase)).toScala,
-                sailytysAika = viesti.sailytysaika.map(s => s.asInstanceOf[Int]).toScala,
-                kayttooikeusRajoitukset = viesti.kayttooikeusRajoitukset.toScala.map(r => r.asScala.toSet)
-                  .map(kayttooikeudet => kayttooikeudet.map(kayttooikeus => Kayttooikeus(kayttooikeus.getOikeus.get, kayttooikeus.getOrganisaatio.toScala))).getOrElse(Set.empty),
-                metadata = viesti.metadata.toScala.map(m => m.asScala.map(entry => entry._1 -> entry._2.asScala.toSeq).toMap).getOrElse(Map.empty),
-                omistaja = omistaja,
-                idempotencyKey = viesti.idempotencyKey.toScala
-              )
-
-              // yritetään tallentaa lokit ja metriikat (best effort)
-              try
-                LogContext(viestiTunniste = viestiEntiteetti.tunniste.toString)(() => LOG.info("tallennettiin viesti"))
-                tallennaAuditLoki(viestiEntiteetti, vastaanottajaEntiteetit, viesti.liitteidenTunnisteet.orElse(Collections.emptyList()).asScala.map(tunniste => UUID.fromString(tunniste)).toSeq)
-                tallennaMetriikat(vastaanottajaEntiteetit.size, viestiEntiteetti.prioriteetti)
-              catch
-                case e: Exception => LogContext(viestiTunniste = viestiEntiteetti.tunniste.toString)
-                  (() => LOG.error("Lokien ja/tai metriikoiden tallennus epäonnistui!", e))
-
-              viestiEntiteetti
-          )
+          .map(viesti => tallennaViesti(viesti, kantaOperaatiot, securityOperaatiot.getIdentiteetti()))
           .map(viestiEntiteetti =>
             ResponseEntity.status(HttpStatus.OK).body(LuoViestiSuccessResponseImpl(viestiEntiteetti.tunniste, viestiEntiteetti.lahetysTunniste)))
           .fold(e => e, r => r).asInstanceOf[ResponseEntity[LuoViestiResponse]]
@@ -238,6 +243,101 @@ class ViestiResource {
           ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
             .body(LuoViestiFailureResponseImpl(Seq(LahetysAPIConstants.VIESTIN_LUONTI_EPAONNISTUI).asJava)))
 
+  final val ENDPOINT_LISAAVIESTIT_DESCRIPTION = "Huomioita:\n" +
+    "- Pyynnön runko on rivinvaihdoin eroteltua JSONia (application/x-ndjson), jokaisella rivillä on yksi viesti samassa muodossa " +
+    "kuin yksittäistä viestiä luotaessa, mutta ilman lähetykseltä perittäviä kenttiä\n" +
+    "- Vastaus on rivinvaihdoin eroteltua JSONia: jokaista ei-tyhjää pyyntöriviä kohden yksi tulosrivi samassa järjestyksessä. " +
+    "Tulosrivillä on pyyntörivin numero (rivi) ja joko viestin tunnisteet tai validointivirheet\n" +
+    "- Virheellinen rivi ei estä muiden rivien tallentamista, ts. vastaus on 200 vaikka osa riveistä epäonnistuisi\n" +
+    "- Idempotency-avaimet ja korkean prioriteetin rajoitukset toimivat kuten yksittäisiä viestejä luotaessa"
+  @PostMapping(
+    path = Array(LUO_VIESTIT_PATH),
+    consumes = Array(MediaType.APPLICATION_NDJSON_VALUE),
+    produces = Array(MediaType.APPLICATION_NDJSON_VALUE)
+  )
+  @Operation(
+    summary = "Luo useita viestejä olemassa olevaan lähetykseen",
+    description = ENDPOINT_LISAAVIESTIT_DESCRIPTION,
+    responses = Array(
+      new ApiResponse(responseCode = "200", description="Pyyntö käsitelty, palauttaa jokaiselle riville tallennetun viestin tunnisteet tai validointivirheet"),
+      new ApiResponse(responseCode = "400", description=LahetysAPIConstants.RESPONSE_400_DESCRIPTION, content = Array(new Content(schema = new Schema(implementation = classOf[LuoViestiFailureResponseImpl])))),
+      new ApiResponse(responseCode = "403", description=LahetysAPIConstants.LAHETYS_RESPONSE_403_DESCRIPTION, content = Array(new Content(schema = new Schema(implementation = classOf[Void])))),
+    ))
+  def lisaaViestit(@PathVariable(LAHETYSTUNNISTE_PARAM_NAME) lahetysTunniste: String,
+                   @Hidden @RequestParam(name = "disableRateLimiter", defaultValue = "false") disableRateLimiter: Boolean,
+                   request: HttpServletRequest, response: HttpServletResponse): Unit =
+    val securityOperaatiot = new SecurityOperaatiot
+    LogContext(path = LUO_VIESTIT_PATH, identiteetti = securityOperaatiot.getIdentiteetti(), lahetysTunniste = lahetysTunniste)(() =>
+      val kantaOperaatiot = KantaOperaatiot(DbUtil.database)
+      val omistaja = securityOperaatiot.getIdentiteetti()
+      val lahetysMetadata = ParametriUtil.asUUID(lahetysTunniste)
+        .flatMap(tunniste => kantaOperaatiot.getLahetys(tunniste))
+        .map(lahetys => LahetysMetadata(lahetys.omistaja, lahetys.prioriteetti.equals(Prioriteetti.KORKEA)))
+      val lahetysVirheet = ViestiValidator.validateLahetysTunniste(Optional.of(lahetysTunniste), lahetysMetadata, omistaja)
+
+      if (!securityOperaatiot.onOikeusLahettaa())
+        LOG.warn("lähetysoikeus puuttuu")
+        response.setStatus(HttpStatus.FORBIDDEN.value())
+      else if (!lahetysVirheet.isEmpty)
+        LOG.warn("Lähetystunnisteessa on validointivirheitä: " + lahetysVirheet.mkString(", "))
+        response.setStatus(HttpStatus.BAD_REQUEST.value())
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE)
+        response.getOutputStream.write(mapper.writeValueAsBytes(LuoViestiFailureResponseImpl(lahetysVirheet.toSeq.asJava)))
+      else
+        val rajoitaKorkeaa = (mode == Mode.PRODUCTION || !disableRateLimiter) && lahetysMetadata.get.korkeaPrioriteetti
+        response.setStatus(HttpStatus.OK.value())
+        response.setContentType(MediaType.APPLICATION_NDJSON_VALUE)
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name())
+        val out = response.getOutputStream
+        // lambdan pyynnön koko on rajattu (6 Mt), joten rivit voidaan lukea suoraan
+        val lukija = new BufferedReader(new InputStreamReader(request.getInputStream, StandardCharsets.UTF_8))
+        var rivi = lukija.readLine()
+        var numero = 0
+        while (rivi != null)
+          numero += 1
+          if (!rivi.isBlank)
+            val tulos = lisaaViestiRivi(rivi, lahetysTunniste, lahetysMetadata, kantaOperaatiot, omistaja, rajoitaKorkeaa)
+            tulos.put("rivi", Integer.valueOf(numero))
+            out.write(mapper.writeValueAsBytes(tulos))
+            out.write('\n')
+            out.flush()
+          rivi = lukija.readLine())
+
+  private def lisaaViestiRivi(rivi: String, lahetysTunniste: String, lahetysMetadata: Option[LahetysMetadata],
+                              kantaOperaatiot: KantaOperaatiot, omistaja: String, rajoitaKorkeaa: Boolean): java.util.Map[String, Object] =
+    val tulos = new java.util.LinkedHashMap[String, Object]()
+    val virheet =
+      try
+        val viesti = mapper.readValue(rivi, classOf[ViestiImpl])
+        if (viesti == null)
+          Seq(LahetysAPIConstants.VIRHEELLINEN_VIESTI_JSON_VIRHE)
+        else if (viesti.lahetysTunniste.isPresent && viesti.lahetysTunniste.get != lahetysTunniste)
+          Seq(LahetysAPIConstants.RIVIN_LAHETYSTUNNISTE_VIRHE)
+        else
+          val lahetyksenViesti = viesti.copy(lahetysTunniste = Optional.of(lahetysTunniste))
+          val validointiVirheet = validoiViesti(lahetyksenViesti, kantaOperaatiot)
+          if (!validointiVirheet.isEmpty)
+            validointiVirheet
+          else if (rajoitaKorkeaa && kantaOperaatiot.varaaKorkeanPrioriteetinKiintio(omistaja, 1,
+            LahetysAPIConstants.PRIORITEETTI_KORKEA_RATELIMIT_VIESTEJA_AIKAIKKUNASSA,
+            LahetysAPIConstants.PRIORITEETTI_KORKEA_RATELIMIT_AIKAIKKUNA_SEKUNTIA) == 0)
+            Seq(LahetysAPIConstants.VIESTI_RATELIMIT_VIRHE)
+          else
+            val viestiEntiteetti = tallennaViesti(lahetyksenViesti, kantaOperaatiot, omistaja)
+            tulos.put("viestiTunniste", viestiEntiteetti.tunniste.toString)
+            tulos.put("lahetysTunniste", viestiEntiteetti.lahetysTunniste.toString)
+            Seq.empty
+      catch
+        case e: com.fasterxml.jackson.core.JacksonException =>
+          Seq(LahetysAPIConstants.VIRHEELLINEN_VIESTI_JSON_VIRHE)
+        case e: Exception =>
+          LOG.error("Viestin luonti epäonnistui", e)
+          Seq(LahetysAPIConstants.VIESTIN_LUONTI_EPAONNISTUI)
+    if (!virheet.isEmpty)
+      LOG.warn("Viestirivillä on virheitä: " + virheet.mkString(", "))
+      tulos.put("validointiVirheet", virheet.asJava)
+    tulos
+
   final val ENDPOINT_LUEVIESTI_DESCRIPTION = "Huomioita:\n" +
     "- Palauttaa viestin ja yhteenvedon lähetyksen tilasta\n"
   @GetMapping(
@@ -2,14 +2,59 @@ package fi.oph.viestinvalitys.vastaanotto.util
 
 import com.github.pemistahl.lingua.api.{Language, LanguageDetectorBuilder}
 import fi.oph.viestinvalitys.business.Kieli
+import org.jsoup.Jsoup
 
+import java.nio.charset.StandardCharsets
+import java.security.MessageDigest
+import java.util.{HexFormat, Locale}
 import scala.jdk.CollectionConverters.*
 
+/**
+ * Tunnistaa viestin sisällön kielet. Tunnistuksen kustannus ei riipu sisällön koosta: tunnistus tehdään
+ * näytteestä joka koostuu tasaisesti sisällön eri kohdista otetuista ikkunoista, joista on poistettu HTML-merkkaus.
+ * Näyte luokitellaan ensin sanalohkoittain yleisten sanojen ja å/ä/ö-kirjainten perusteella, ja Linguaa käytetään
+ * vain jos jokin lohko on epäselvä tai lohkot ovat eri kielillä. Tulokset muistetaan näytteen tiivisteellä, joten
+ * massalähetyksen identtiset sisällöt tunnistetaan vain kerran.
+ */
 object LanguageDetection {
 
   private val detector = LanguageDetectorBuilder.fromLanguages(Language.FINNISH, Language.SWEDISH, Language.ENGLISH).build()
 
+  // tunnistus käyttää enintään näin monta merkkiä sisällöstä
+  final val NAYTTEEN_MAX_PITUUS = 20000
+  private final val IKKUNOITA = 4
+
+  private final val LOHKON_SANAT = 150
+  // lohko jossa on tätä vähemmän yleisiä sanoja jätetään Linguan tunnistettavaksi
+  private final val LOHKON_MIN_OSUMAT = 5
+
+  private final val MUISTETTUJA_TULOKSIA = 1000
+
+  private val FI_SANAT = Set("ja", "ei", "että", "tai", "kun", "jos", "sekä", "myös", "mutta", "kanssa", "joka", "jonka",
+    "joiden", "niin", "vain", "voit", "olet", "sinun", "sinulla", "tämä", "tämän", "ovat", "ole", "olla", "tulee",
+    "kaikki", "jälkeen", "aikana", "enintään", "vähintään")
+  private val SV_SANAT = Set("och", "att", "det", "som", "är", "för", "av", "på", "med", "till", "har", "kan", "inte",
+    "den", "ett", "eller", "vid", "från", "även", "du", "din", "ditt", "dina", "de", "om", "får", "ska", "efter", "under")
+  private val EN_SANAT = Set("the", "and", "of", "to", "is", "in", "for", "you", "your", "are", "with", "this", "that",
+    "be", "on", "by", "will", "have", "has", "or", "from", "not", "an", "as", "it", "at", "their", "which", "who")
+
+  private val tulokset = new java.util.LinkedHashMap[String, Set[Kieli]](16, 0.75f, true) {
+    override def removeEldestEntry(eldest: java.util.Map.Entry[String, Set[Kieli]]): Boolean =
+      size() > MUISTETTUJA_TULOKSIA
+  }
+
   def tunnistaKieli(text: String): Set[Kieli] =
+    val ikkunat = nayte(text)
+    val avain = tiiviste(ikkunat)
+    val muistettu = tulokset.synchronized { Option(tulokset.get(avain)) }
+    muistettu.getOrElse({
+      val naytteenTeksti = ikkunat.map(poistaHtml).mkString("\n")
+      val kielet = esiluokittele(naytteenTeksti).map(kieli => Set(kieli)).getOrElse(lingua(naytteenTeksti))
+      tulokset.synchronized { tulokset.put(avain, kielet) }
+      kielet
+    })
+
+  private def lingua(text: String): Set[Kieli] =
     detector.computeLanguageConfidenceValues(text).asScala
       .filter((kieli, luottamus) => luottamus>0.85)
       .map((kieli, luottamus) => kieli match
@@ -17,4 +62,71 @@ object LanguageDetection {
         case Language.SWEDISH => Kieli.SV
         case Language.ENGLISH => Kieli.EN)
       .toSet
+
+  /**
+   * Luokittelee tekstin sanalohkoittain, palauttaa kielen vain jos jokainen lohko on selvästi samalla kielellä.
+   */
+  def esiluokittele(text: String): Option[Kieli] =
+    val sanat = text.toLowerCase(Locale.ROOT).split("[^\\p{L}]+").filter(s => s.nonEmpty)
+    if (sanat.isEmpty)
+      Option.empty
+    else
+      // lyhyt loppu luokitellaan yhdessä edellisen lohkon kanssa
+      val lohkoja = Math.max(1, (sanat.length + LOHKON_SANAT / 2) / LOHKON_SANAT)
+      val lohkojenKielet = (0 until lohkoja).map(i =>
+        val loppu = if (i == lohkoja - 1) sanat.length else (i + 1) * LOHKON_SANAT
+        luokitteleLohko(sanat.slice(i * LOHKON_SANAT, loppu)))
+      if (lohkojenKielet.forall(k => k.isDefined) && lohkojenKielet.distinct.size == 1)
+        lohkojenKielet.head
+      else
+        Option.empty
+
+  private def luokitteleLohko(sanat: Array[String]): Option[Kieli] =
+    val fi = sanat.count(FI_SANAT.contains)
+    val sv = sanat.count(SV_SANAT.contains)
+    val en = sanat.count(EN_SANAT.contains)
+    val kirjaimet = sanat.map(s => s.length).sum.toDouble
+    val aRengasOsuus = sanat.map(s => s.count(c => c == 'å')).sum / kirjaimet
+    val aJaOPisteOsuus = sanat.map(s => s.count(c => c == 'ä' || c == 'ö')).sum / kirjaimet
+
+    // yhdellä kielellä on oltava selvästi eniten yleisiä sanoja, ja kirjainten on sovittava siihen: suomessa on usein
+    // ä ja ö mutta ei å:ta, ruotsissa on å, englannissa ei mitään niistä nimiä lukuunottamatta
+    if (fi >= LOHKON_MIN_OSUMAT && fi >= 3 * Math.max(sv, en) && aJaOPisteOsuus > 0.01 && aRengasOsuus < 0.001)
+      Some(Kieli.FI)
+    else if (sv >= LOHKON_MIN_OSUMAT && sv >= 3 * Math.max(fi, en) && aRengasOsuus > 0)
+      Some(Kieli.SV)
+    else if (en >= LOHKON_MIN_OSUMAT && en >= 3 * Math.max(fi, sv) && aRengasOsuus + aJaOPisteOsuus < 0.015)
+      Some(Kieli.EN)
+    else
+      Option.empty
+
+  /**
+   * Lyhyt sisältö kokonaan, muuten tasaisesti sisällön eri kohdista otetut ikkunat.
+   */
+  def nayte(text: String): Seq[String] =
+    if (text.length <= NAYTTEEN_MAX_PITUUS)
+      Seq(text)
+    else
+      val pituus = NAYTTEEN_MAX_PITUUS / IKKUNOITA
+      (0 until IKKUNOITA).map(i =>
+        var alku = ((text.length - pituus).toLong * i / (IKKUNOITA - 1)).toInt
+        if (alku > 0 && Character.isLowSurrogate(text.charAt(alku)))
+          alku += 1
+        text.substring(alku, Math.min(text.length, alku + pituus)))
+
+  private def poistaHtml(ikkuna: String): String =
+    val tagiAlkaa = ikkuna.indexOf('<')
+    if (tagiAlkaa < 0)
+      ikkuna
+    else
+      // ikkuna voi alkaa kesken tagin
+      val tagiLoppuu = ikkuna.indexOf('>')
+      Jsoup.parse(if (tagiLoppuu >= 0 && tagiLoppuu < tagiAlkaa) ikkuna.substring(tagiLoppuu + 1) else ikkuna).text()
+
+  private def tiiviste(ikkunat: Seq[String]): String =
+    val digest = MessageDigest.getInstance("SHA-256")
+    ikkunat.foreach(ikkuna =>
+      digest.update(ikkuna.getBytes(StandardCharsets.UTF_8))
+      digest.update(0.toByte))
+    HexFormat.of().formatHex(digest.digest())
 }
@@ -64,4 +64,29 @@ class LanguageDetectionTest {
     Assertions.assertEquals(Set(Kieli.EN), LanguageDetection.tunnistaKieli(TEKSTI_EN))
     Assertions.assertEquals(Set(Kieli.FI, Kieli.SV, Kieli.EN), LanguageDetection.tunnistaKieli(TEKSTI_FI + "\n\n" + TEKSTI_SV+ "\n\n" + TEKSTI_EN))
   }
+
+  @Test def testEsiluokittele(): Unit = {
+    Assertions.assertEquals(Some(Kieli.FI), LanguageDetection.esiluokittele(TEKSTI_FI))
+    Assertions.assertEquals(Some(Kieli.SV), LanguageDetection.esiluokittele(TEKSTI_SV))
+    Assertions.assertEquals(Some(Kieli.EN), LanguageDetection.esiluokittele(TEKSTI_EN))
+
+    // sekakieliset ja lyhyet tekstit jätetään Linguan tunnistettaviksi
+    Assertions.assertEquals(None, LanguageDetection.esiluokittele(TEKSTI_FI + " " + TEKSTI_EN))
+    Assertions.assertEquals(None, LanguageDetection.esiluokittele("Hei!"))
+  }
+
+  @Test def testTunnistaKieliHtml(): Unit = {
+    val html = "<html><head><style>p { font-family: the and of to is in; }</style></head><body>" +
+      TEKSTI_SV.replace("\n", "<br>") + "</body></html>"
+    Assertions.assertEquals(Set(Kieli.SV), LanguageDetection.tunnistaKieli(html))
+  }
+
+  @Test def testTunnistaKieliPitkaSisalto(): Unit = {
+    val pitka = (TEKSTI_FI + "\n").repeat(1000)
+
+    val nayte = LanguageDetection.nayte(pitka)
+    Assertions.assertTrue(nayte.map(ikkuna => ikkuna.length).sum <= LanguageDetection.NAYTTEEN_MAX_PITUUS)
+    Assertions.assertTrue(pitka.endsWith(nayte.last))
+    Assertions.assertEquals(Set(Kieli.FI), LanguageDetection.tunnistaKieli(pitka))
+  }
 }
\ No newline at end of file
@@ -0,0 +1,9 @@
+-- lähetyksen varaus: getLahetettavatVastaanottajat asettaa varausajan ja varaajan, ja vanhentuneet
+-- varaukset palautetaan jonoon (ks. LahetysRecoveryService)
+ALTER TABLE vastaanottajat ADD COLUMN varattu timestamp;
+ALTER TABLE vastaanottajat ADD COLUMN varaaja varchar;
+
+-- ennen tätä muutosta jumiin jääneet vastaanottajat palautuvat jonoon ensimmäisen varausajan kuluttua
+UPDATE vastaanottajat SET varattu = now() WHERE tila = 'LAHETYKSESSA';
+
+CREATE INDEX vastaanottajat_varattu_idx ON vastaanottajat (varattu) WHERE tila = 'LAHETYKSESSA';
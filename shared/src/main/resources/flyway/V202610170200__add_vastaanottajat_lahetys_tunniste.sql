@@ -0,0 +1,8 @@
+-- lähetyksen vastaanottajien listaus sivutetaan avaimella (tila, sahkopostiosoite, tunniste). Lähetys denormalisoidaan
+-- vastaanottajalle, jotta sivu luetaan suoraan indeksistä eikä lähetyksen kaikkia vastaanottajia tarvitse järjestää
+-- jokaista sivua varten
+--
+-- vastaanottajat-taulu on suuri, joten sarake täytetään erissä (V202610170210) ja indeksi rakennetaan lukitsematta
+-- taulua (V202610170220). Sarake jätetään tässä vaiheessa tyhjäksi sallivaksi, koska päivityksen aikana vanhan version
+-- instanssit lisäävät vielä vastaanottajia ilman lähetystä. NOT NULL -ehto lisätään vasta V202610170800:ssa.
+ALTER TABLE vastaanottajat ADD COLUMN lahetys_tunniste uuid;
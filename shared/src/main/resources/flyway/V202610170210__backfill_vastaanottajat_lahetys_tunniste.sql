@@ -0,0 +1,21 @@
+-- ajetaan ilman transaktiota (ks. .conf), jotta jokainen erä commitoidaan erikseen eikä koko taulun rivejä lukita
+-- yhdessä transaktiossa
+DO $$
+DECLARE
+  alku uuid := '00000000-0000-0000-0000-000000000000';
+  loppu uuid;
+BEGIN
+  LOOP
+    SELECT max(tunniste) INTO loppu
+    FROM (SELECT tunniste FROM vastaanottajat WHERE tunniste > alku ORDER BY tunniste LIMIT 10000) era;
+    EXIT WHEN loppu IS NULL;
+    UPDATE vastaanottajat SET lahetys_tunniste = viestit.lahetys_tunniste
+    FROM viestit
+    WHERE vastaanottajat.tunniste > alku AND vastaanottajat.tunniste <= loppu
+      AND vastaanottajat.lahetys_tunniste IS NULL
+      AND viestit.tunniste = vastaanottajat.viesti_tunniste;
+    COMMIT;
+    alku := loppu;
+  END LOOP;
+END
+$$;
@@ -0,0 +1,3 @@
+-- osittainen indeksi (V202610170400) korvaa koko taulun ses_tunniste-indeksin. Ajetaan ilman transaktiota (ks. .conf),
+-- jotta poisto ei estä kirjoituksia.
+DROP INDEX CONCURRENTLY IF EXISTS vastaanottajat_ses_tunnisteet_idx;
@@ -0,0 +1,42 @@
+-- lähetysjono sisältää vain lähetystä odottavat vastaanottajat, jotta lähetettävien haku ei käy läpi koko
+-- vastaanottajat-taulua, joka kasvaa säilytysajan verran ja jonka rivejä SES-tilapäivitykset päivittävät jatkuvasti.
+-- Rivi lisätään kun vastaanottaja tulee ODOTTAA-tilaan (tallennus, liitteen skannaus, uudelleenyritys, vanhentunut
+-- varaus) ja poistetaan kun lähetys varaa vastaanottajan.
+CREATE TABLE lahetysjono (
+  vastaanottaja_tunniste uuid PRIMARY KEY,
+  prioriteetti prioriteetti NOT NULL,
+  luotu timestamp NOT NULL,
+  not_before timestamptz NOT NULL DEFAULT now(),
+  CONSTRAINT fk_vastaanottaja_tunniste FOREIGN KEY (vastaanottaja_tunniste) REFERENCES vastaanottajat(tunniste) ON DELETE CASCADE
+);
+CREATE INDEX lahetysjono_jarjestys_idx ON lahetysjono (prioriteetti, luotu);
+
+INSERT INTO lahetysjono (vastaanottaja_tunniste, prioriteetti, luotu)
+SELECT tunniste, prioriteetti, luotu FROM vastaanottajat WHERE tila = 'ODOTTAA';
+
+DROP INDEX vastaanottajat_jono_idx;
+
+-- tallennettaessa vastaanottajat lisätään jonoon lausekohtaisesti, massalähetyksessä yhdellä lisäyksellä
+CREATE FUNCTION lahetysjono_lisaa() RETURNS trigger AS $$
+BEGIN
+  INSERT INTO lahetysjono (vastaanottaja_tunniste, prioriteetti, luotu)
+  SELECT tunniste, prioriteetti, luotu FROM uudet WHERE tila = 'ODOTTAA';
+  RETURN NULL;
+END
+$$ LANGUAGE plpgsql;
+
+-- jonoon palaaminen on harvinaista, joten rivikohtainen triggeri jonka ehto rajaa pois muut tilamuutokset
+-- ilman funktiokutsua
+CREATE FUNCTION lahetysjono_palauta() RETURNS trigger AS $$
+BEGIN
+  INSERT INTO lahetysjono (vastaanottaja_tunniste, prioriteetti, luotu)
+  VALUES (NEW.tunniste, NEW.prioriteetti, NEW.luotu)
+  ON CONFLICT (vastaanottaja_tunniste) DO NOTHING;
+  RETURN NULL;
+END
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER vastaanottajat_lahetysjono_lisays AFTER INSERT ON vastaanottajat
+  REFERENCING NEW TABLE AS uudet FOR EACH STATEMENT EXECUTE FUNCTION lahetysjono_lisaa();
+CREATE TRIGGER vastaanottajat_lahetysjono_palautus AFTER UPDATE OF tila ON vastaanottajat
+  FOR EACH ROW WHEN (NEW.tila = 'ODOTTAA' AND OLD.tila <> 'ODOTTAA') EXECUTE FUNCTION lahetysjono_palauta();
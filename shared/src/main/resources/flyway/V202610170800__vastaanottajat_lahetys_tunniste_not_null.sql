@@ -0,0 +1,31 @@
+-- ajetaan ilman transaktiota (ks. .conf). Migraatio julkaistaan vasta V202610170200:a seuraavassa versiossa, kun
+-- kaikki vastaanottajia lisäävät instanssit asettavat lahetys_tunniste-sarakkeen. Edellisen päivityksen aikana vanhan
+-- version instanssien lisäämät rivit täytetään ensin samaan tapaan kuin V202610170210:ssa.
+DO $$
+DECLARE
+  alku uuid := '00000000-0000-0000-0000-000000000000';
+  loppu uuid;
+BEGIN
+  LOOP
+    SELECT max(tunniste) INTO loppu
+    FROM (SELECT tunniste FROM vastaanottajat WHERE tunniste > alku ORDER BY tunniste LIMIT 10000) era;
+    EXIT WHEN loppu IS NULL;
+    UPDATE vastaanottajat SET lahetys_tunniste = viestit.lahetys_tunniste
+    FROM viestit
+    WHERE vastaanottajat.tunniste > alku AND vastaanottajat.tunniste <= loppu
+      AND vastaanottajat.lahetys_tunniste IS NULL
+      AND viestit.tunniste = vastaanottajat.viesti_tunniste;
+    COMMIT;
+    alku := loppu;
+  END LOOP;
+END
+$$;
+
+-- NOT VALID -tarkistuksen lisääminen ei käy taulua läpi, validointi ei estä kirjoituksia, ja validin tarkistuksen
+-- ansiosta SET NOT NULL ei käy taulua uudelleen läpi
+ALTER TABLE vastaanottajat DROP CONSTRAINT IF EXISTS vastaanottajat_lahetys_tunniste_not_null;
+ALTER TABLE vastaanottajat ADD CONSTRAINT vastaanottajat_lahetys_tunniste_not_null
+  CHECK (lahetys_tunniste IS NOT NULL) NOT VALID;
+ALTER TABLE vastaanottajat VALIDATE CONSTRAINT vastaanottajat_lahetys_tunniste_not_null;
+ALTER TABLE vastaanottajat ALTER COLUMN lahetys_tunniste SET NOT NULL;
+ALTER TABLE vastaanottajat DROP CONSTRAINT vastaanottajat_lahetys_tunniste_not_null;
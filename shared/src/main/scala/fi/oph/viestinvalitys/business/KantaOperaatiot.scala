@@ -18,8 +18,26 @@ implicit val setStringArray: SetParameter[Seq[String]] = mkArraySetParameter[Str
 
 object KantaOperaatiot {
   val executionContext: ExecutionContext = ExecutionContext.fromExecutor(Executors.newFixedThreadPool(8))
+
+  // viestin lisäys ohitettiin koska idempotency-avain on käytössä, perutaan transaktio
+  private class IdempotencyKeyKonflikti extends RuntimeException
+
+  // kanava jolle ilmoitetaan transaktiossa joka asettaa vastaanottajia odottamaan lähetystä, jotta lähetys herää heti
+  // kun vastaanottajat on tallennettu eikä vasta seuraavalla pollauksella
+  final val LAHETYSJONO_KANAVA = "lahetysjono"
+
+  // jonoon palautettu vastaanottaja haetaan uudelleen lähetettäväksi aikaisintaan tämän ajan päästä, jottei kuristettua
+  // vastaanottajaa yritetä heti uudestaan
+  final val JONOON_PALAUTUKSEN_VIIVE_SEKUNTEINA = 10
 }
 
+/**
+ * Viestiä ei tallennettu koska omistajalla on jo viesti samalla idempotency-avaimella
+ *
+ * @param viesti  aiemmin samalla avaimella tallennettu viesti
+ */
+class IdempotencyKeyKaytossaException(val viesti: Viesti) extends RuntimeException("Idempotency-avain on jo käytössä")
+
 /**
  * Lähetykseen liittyvät business-operaatiot
  *
@@ -31,6 +49,7 @@ class KantaOperaatiot(db: JdbcBackend.JdbcDatabaseDef) {
 
   final val DB_TIMEOUT = 30.seconds
   val LOG = LoggerFactory.getLogger(classOf[KantaOperaatiot])
+  val kayttooikeusValimuisti = KayttooikeusValimuisti(db)
 
   def getUUID(): UUID =
     // käytetään aikaperustaisia UUID:tä kahdesta syystä:
@@ -204,7 +223,10 @@ class KantaOperaatiot(db: JdbcBackend.JdbcDatabaseDef) {
               UPDATE vastaanottajat SET tila=${VastaanottajanTila.ODOTTAA.toString}
               FROM muutettavat_vastaanottajat
               WHERE vastaanottajat.tunniste=muutettavat_vastaanottajat.tunniste
-            """
+            """.flatMap(paivitetyt =>
+              // ilmoitus toimitetaan vasta kun transaktio on commitoitu
+              if (paivitetyt > 0) sqlu"""NOTIFY #${KantaOperaatiot.LAHETYSJONO_KANAVA}"""
+              else DBIO.successful(0))
     }
 
     val paivitaLiitteenTilaAction = sqlu"""UPDATE liitteet SET tila=${tila.toString} WHERE tunniste=${tunniste.toString}::uuid"""
@@ -232,7 +254,9 @@ class KantaOperaatiot(db: JdbcBackend.JdbcDatabaseDef) {
       => Liite(UUID.fromString(tunniste), nimi, contentType, koko, omistaja, LiitteenTila.valueOf(tila)))
 
   /**
-   * Tallentaa uuden viestin
+   * Tallentaa uuden viestin. Jos omistajalla on jo viesti samalla idempotency-avaimella, mitään ei tallenneta ja
+   * heitetään [[IdempotencyKeyKaytossaException]]. Tarkistus tehdään lisäyksen yhteydessä uniikki-indeksillä, joten
+   * samanaikaisetkaan uudelleenyritykset eivät luo kahta viestiä.
    *
    * @return  tallennettu viesti
    */
@@ -276,19 +300,10 @@ class KantaOperaatiot(db: JdbcBackend.JdbcDatabaseDef) {
           ${finalPrioriteetti.toString}::prioriteetti, ${omistaja}, ${lahetysLuotu.toString}::timestamptz, ${Instant.now.plusSeconds(60*60*24*sailytysAika.get).toString}::timestamptz)"""
     }
 
-    // luodaan käyttöoikeudet
-    val kayttooikeusCreateActions = {
-      DBIO.sequence(kayttooikeusRajoitukset.map(kayttooikeus => {
-        sql"""
-              WITH lisays AS (
-                INSERT INTO kayttooikeudet (organisaatio, oikeus) VALUES(${kayttooikeus.organisaatio.getOrElse(null)}, ${kayttooikeus.oikeus}) ON CONFLICT DO NOTHING RETURNING tunniste
-              )
-              SELECT tunniste FROM kayttooikeudet WHERE organisaatio IS NOT DISTINCT FROM ${kayttooikeus.organisaatio.getOrElse(null)} AND oikeus=${kayttooikeus.oikeus} UNION SELECT tunniste FROM lisays
-            """.as[Int]
-      })).map(oikeudet => oikeudet.flatten)
-    }
+    // haetaan käyttöoikeuksien tunnisteet välimuistista, puuttuvat luodaan omassa transaktiossaan
+    val oikeudet = kayttooikeusValimuisti.getTunnisteet(kayttooikeusRajoitukset).values.toSeq
 
-    val kayttooikeusRelatedInsertActions = kayttooikeusCreateActions.flatMap(oikeudet => {
+    val kayttooikeusRelatedInsertActions = {
       // poistetaan otsikosta salaisuudet
       val otsikko_sanitized = {
         var o = otsikko
@@ -326,51 +341,60 @@ class KantaOperaatiot(db: JdbcBackend.JdbcDatabaseDef) {
                     ${idempotencyKey.getOrElse(null)},
                     to_tsvector('simple', ${otsikko_sanitized}),
                     to_tsvector('simple', ${sisalto_text}),
-                    ARRAY[#${oikeudet.mkString(",")}]::integer[],
+                    ${oikeudet.toSeq.map(o => o.toString)}::integer[],
                     ARRAY[${vastaanottajat.map(v => v.sahkoposti.toLowerCase)}]::varchar[],
                     ${finalLahettavanVirkailijanOid},
                     ${metadata.map((avain, arvot) => arvot.map(arvo => avain + ":" + arvo)).flatten.toSeq},
                     ${finalLahettavaPalvelu},
                     ARRAY[${kayttooikeusRajoitukset.filter(o => o.organisaatio.isDefined).map(o => o.organisaatio.get).toSeq}]::varchar[])
+             ON CONFLICT (omistaja, idempotency_key) WHERE idempotency_key IS NOT NULL DO NOTHING
           """
 
-      // tallennetaan viestin ja lähetyksen oikeudet
-      val viestiKayttooikeusInsertActions = oikeudet.map(kayttooikeusTunniste => {
-        sqlu"""
-             INSERT INTO viestit_kayttooikeudet (viesti_tunniste, kayttooikeus_tunniste) VALUES(${viestiTunniste.toString}::uuid, ${kayttooikeusTunniste})
-              """
-      })
-      val lahetysKayttooikeusInsertActions = oikeudet.map(kayttooikeusTunniste => {
-        sqlu"""
-             INSERT INTO lahetykset_kayttooikeudet (lahetys_tunniste, kayttooikeus_tunniste)
-             VALUES(${finalLahetysTunniste.toString}::uuid, ${kayttooikeusTunniste})
-             ON CONFLICT DO NOTHING
-              """
-      })
-
-      DBIO.sequence(Seq(viestiInsertAction).concat(viestiKayttooikeusInsertActions).concat(lahetysKayttooikeusInsertActions))
-    })
+      // tallennetaan viestin ja lähetyksen oikeudet. Tästä eteenpäin rivit lisätään taulukohtaisesti yhdellä
+      // unnest-lauseella, jotta tietokantakutsujen määrä ei kasva vastaanottajien, metadatan tai oikeuksien määrän mukana
+      val kayttooikeusInsertActions =
+        if (oikeudet.isEmpty) Seq.empty
+        else Seq(
+          sqlu"""
+               INSERT INTO viestit_kayttooikeudet (viesti_tunniste, kayttooikeus_tunniste)
+               SELECT ${viestiTunniste.toString}::uuid, unnest(${oikeudet.toSeq.map(o => o.toString)}::integer[])
+              """,
+          sqlu"""
+               INSERT INTO lahetykset_kayttooikeudet (lahetys_tunniste, kayttooikeus_tunniste)
+               SELECT ${finalLahetysTunniste.toString}::uuid, unnest(${oikeudet.toSeq.map(o => o.toString)}::integer[])
+               ON CONFLICT DO NOTHING
+              """)
+
+      viestiInsertAction.flatMap(lisatty =>
+        if (lisatty == 0) DBIO.failed(KantaOperaatiot.IdempotencyKeyKonflikti())
+        else DBIO.sequence(kayttooikeusInsertActions))
+    }
 
     // tallennetaan metadata
-    val metadataInsertActions = DBIO.sequence(metadata.map((avain, arvot) => {
-      DBIO.sequence(arvot.map(arvo => {
-        DBIO.sequence(Seq(
-          sqlu"""INSERT INTO metadata_avaimet VALUES(${avain}) ON CONFLICT (avain) DO NOTHING""",
-          sqlu"""
-                 INSERT INTO metadata VALUES(${avain}, ${arvo}, ${viestiTunniste.toString}::uuid)
-              """
-        ))
-      }))
-    }))
+    val metadataParit = metadata.toSeq.flatMap((avain, arvot) => arvot.map(arvo => (avain, arvo)))
+    val metadataInsertActions = DBIO.sequence(
+      if (metadataParit.isEmpty) Seq.empty
+      else Seq(
+        sqlu"""
+             INSERT INTO metadata_avaimet
+             SELECT DISTINCT unnest(${metadataParit.map((avain, _) => avain)}::varchar[])
+             ON CONFLICT (avain) DO NOTHING
+          """,
+        sqlu"""
+             INSERT INTO metadata (avain, arvo, viesti_tunniste)
+             SELECT m.avain, m.arvo, ${viestiTunniste.toString}::uuid
+             FROM unnest(${metadataParit.map((avain, _) => avain)}::varchar[], ${metadataParit.map((_, arvo) => arvo)}::varchar[]) AS m(avain, arvo)
+          """))
 
     // tallennetaan maskit
-    val maskitInsertActions = DBIO.sequence(maskit.map((salaisuus, maski) => {
-      DBIO.sequence(Seq(
+    val maskitInsertActions = DBIO.sequence(
+      if (maskit.isEmpty) Seq.empty
+      else Seq(
         sqlu"""
-           INSERT INTO maskit VALUES(${viestiTunniste.toString}::uuid, ${salaisuus}, ${maski})
-        """
-      ))
-    }))
+             INSERT INTO maskit (viesti_tunniste, salaisuus, maski)
+             SELECT ${viestiTunniste.toString}::uuid, m.salaisuus, m.maski
+             FROM unnest(${maskit.keys.toSeq}::varchar[], ${maskit.keys.toSeq.map(salaisuus => maskit(salaisuus).orNull)}::varchar[]) AS m(salaisuus, maski)
+          """))
 
     // lukitaan viestin liitteet, tämä on pakko tehdä kahdesta syystä:
     //  - viestit_liitteet taulun foreign key liitteet tauluun johtaa siihen että lisättäessä viesteihin liiteitä
@@ -395,11 +419,14 @@ class KantaOperaatiot(db: JdbcBackend.JdbcDatabaseDef) {
     }.as[(String, String)]
     val liiteRelatedInsertActions = lukitseLiitteetAction.flatMap(liitteet => {
       // linkataan viestin liitteet
-      val viestitLiitteetInsertActions = DBIO.sequence(liiteTunnisteet.zip(0 until liiteTunnisteet.size).map((liiteTunniste, index) => {
-        sqlu"""
-               INSERT INTO viestit_liitteet VALUES(${viestiTunniste.toString}::uuid, ${liiteTunniste.toString}::uuid, ${index})
-            """
-      }))
+      val viestitLiitteetInsertActions = DBIO.sequence(
+        if (liiteTunnisteet.isEmpty) Seq.empty
+        else Seq(
+          sqlu"""
+               INSERT INTO viestit_liitteet
+               SELECT ${viestiTunniste.toString}::uuid, l.tunniste, l.indeksi - 1
+               FROM unnest(${liiteTunnisteet.map(t => t.toString)}::uuid[]) WITH ORDINALITY AS l(tunniste, indeksi)
+            """))
 
       val eiPuhtaatLiitteet = liitteet.filter((tunniste, tila) => LiitteenTila.valueOf(tila) != LiitteenTila.PUHDAS)
       val tila = {
@@ -409,26 +436,41 @@ class KantaOperaatiot(db: JdbcBackend.JdbcDatabaseDef) {
 
       // tallennetaan vastaanottajat
       vastaanottajaEntiteetit = vastaanottajat.map(vastaanottaja => Vastaanottaja(this.getUUID(), viestiTunniste, vastaanottaja, tila, finalPrioriteetti, Option.empty))
-      val vastaanottajaInsertActions = DBIO.sequence(vastaanottajaEntiteetit.map(vastaanottaja => {
-        sqlu"""
-               INSERT INTO vastaanottajat
-               VALUES(${vastaanottaja.tunniste.toString}::uuid, ${viestiTunniste.toString}::uuid, ${vastaanottaja.kontakti.nimi},
-                ${vastaanottaja.kontakti.sahkoposti}, ${vastaanottaja.tila.toString}, now(), ${finalPrioriteetti.toString}::prioriteetti)
-            """
-      }))
+      val vastaanottajaTunnisteet = vastaanottajaEntiteetit.map(vastaanottaja => vastaanottaja.tunniste.toString)
+      val vastaanottajaInsertActions = DBIO.sequence(
+        if (vastaanottajaEntiteetit.isEmpty) Seq.empty
+        else Seq(
+          sqlu"""
+               INSERT INTO vastaanottajat (tunniste, viesti_tunniste, lahetys_tunniste, nimi, sahkopostiosoite, tila, luotu, prioriteetti)
+               SELECT v.tunniste, ${viestiTunniste.toString}::uuid, ${finalLahetysTunniste.toString}::uuid, v.nimi, v.sahkopostiosoite, ${tila.toString}, now(),
+                 ${finalPrioriteetti.toString}::prioriteetti
+               FROM unnest(${vastaanottajaTunnisteet}::uuid[],
+                           ${vastaanottajaEntiteetit.map(v => v.kontakti.nimi.orNull)}::varchar[],
+                           ${vastaanottajaEntiteetit.map(v => v.kontakti.sahkoposti)}::varchar[]) AS v(tunniste, nimi, sahkopostiosoite)
+            """))
 
       // tallennetaan vastaanottajien tilasiirtymä
-      val vastaanottajanSiirtymaActions = DBIO.sequence(vastaanottajaEntiteetit.map(vastaanottaja => {
-        sqlu"""
+      val vastaanottajanSiirtymaActions = DBIO.sequence(
+        if (vastaanottajaEntiteetit.isEmpty) Seq.empty
+        else Seq(
+          sqlu"""
                INSERT INTO vastaanottaja_siirtymat
-               VALUES(${vastaanottaja.tunniste.toString}::uuid, now(), ${vastaanottaja.tila.toString}, null)
-            """
-      }))
+               SELECT unnest(${vastaanottajaTunnisteet}::uuid[]), now(), ${tila.toString}, null
+            """))
 
-      DBIO.sequence(Seq(viestitLiitteetInsertActions, vastaanottajaInsertActions, vastaanottajanSiirtymaActions))
+      // herätetään lähetys jos vastaanottajat ovat heti lähetettävissä
+      val heratysActions = DBIO.sequence(
+        if (vastaanottajaEntiteetit.isEmpty || tila != VastaanottajanTila.ODOTTAA) Seq.empty
+        else Seq(sqlu"""NOTIFY #${KantaOperaatiot.LAHETYSJONO_KANAVA}"""))
+
+      DBIO.sequence(Seq(viestitLiitteetInsertActions, vastaanottajaInsertActions, vastaanottajanSiirtymaActions, heratysActions))
     })
 
-    Await.result(db.run(DBIO.sequence(Seq(lahetysInsertAction, kayttooikeusRelatedInsertActions, metadataInsertActions, maskitInsertActions, liiteRelatedInsertActions)).transactionally), DB_TIMEOUT)
+    try
+      Await.result(db.run(DBIO.sequence(Seq(lahetysInsertAction, kayttooikeusRelatedInsertActions, metadataInsertActions, maskitInsertActions, liiteRelatedInsertActions)).transactionally), DB_TIMEOUT)
+    catch
+      case e: KantaOperaatiot.IdempotencyKeyKonflikti =>
+        throw IdempotencyKeyKaytossaException(this.getExistingViesti(omistaja, idempotencyKey.get).get)
     (this.getViestit(Seq(viestiTunniste)).find(v => true).get, vastaanottajaEntiteetit)
   }
 
@@ -450,6 +492,40 @@ class KantaOperaatiot(db: JdbcBackend.JdbcDatabaseDef) {
        """.as[Int]
     Await.result(db.run(maaraAction), DB_TIMEOUT).find(i => true).get
 
+  /**
+   * Myöntää omistajalle enintään pyydetyn määrän korkean prioriteetin viestejä liukuvan aikaikkunan rajoituksen
+   * puitteissa. Aikaikkunassa myönnettyjen viestien aikaleimat pidetään omistajan korkean_prioriteetin_kiintiot
+   * -rivillä, jota päivitetään yhdellä lauseella rivilukon alla, joten rinnakkaiset pyynnöt kaikista instansseista
+   * jakavat saman rajan eikä viestit-taulua tarvitse lukea.
+   *
+   * @param omistaja            käyttäjä jolle viestejä myönnetään
+   * @param maara               pyydettyjen viestien määrä
+   * @param raja                aikaikkunassa sallittujen viestien määrä
+   * @param aikaikkunaSekuntia  aikaikkuna nykyhetkestä taaksepäin
+   * @return                    myönnettyjen viestien määrä
+   */
+  def varaaKorkeanPrioriteetinKiintio(omistaja: String, maara: Int, raja: Int, aikaikkunaSekuntia: Int): Int =
+    val nyt = Instant.now
+    val ikkunanAlku = nyt.minusSeconds(aikaikkunaSekuntia)
+    val varausAction = sql"""
+          WITH rivi AS (
+            SELECT omistaja, ARRAY(SELECT a FROM unnest(aikaleimat) a WHERE a > ${ikkunanAlku.toString}::timestamptz ORDER BY a) AS voimassa
+            FROM korkean_prioriteetin_kiintiot WHERE omistaja = ${omistaja} FOR UPDATE
+          )
+          UPDATE korkean_prioriteetin_kiintiot k
+          SET aikaleimat = rivi.voimassa || array_fill(${nyt.toString}::timestamptz,
+            ARRAY[LEAST(${maara}, GREATEST(0, ${raja} - cardinality(rivi.voimassa)))])
+          FROM rivi WHERE k.omistaja = rivi.omistaja
+          RETURNING cardinality(k.aikaleimat) - cardinality(rivi.voimassa)
+       """.as[Int]
+    val riviAction = sqlu"""INSERT INTO korkean_prioriteetin_kiintiot (omistaja) VALUES (${omistaja}) ON CONFLICT DO NOTHING"""
+    if (maara <= 0) 0
+    else
+      Await.result(db.run(varausAction), DB_TIMEOUT).headOption.getOrElse({
+        // omistajan ensimmäinen pyyntö
+        Await.result(db.run(riviAction.andThen(varausAction)), DB_TIMEOUT).head
+      })
+
   def getVastaanottajat(vastaanottajaTunnisteet: Seq[UUID]): Seq[Vastaanottaja] =
     if(vastaanottajaTunnisteet.isEmpty) return Seq.empty
 
@@ -605,38 +681,41 @@ class KantaOperaatiot(db: JdbcBackend.JdbcDatabaseDef) {
    *
    * @param maara maksimimäärä kerralla lähetettäviä vastaanottajia, tämän avulla on throttlataan lähetettäviä viestijä,
    *              esim. jos kerran kahdessa sekunnissa haetaan mask. 50 viestiä on lähetysnopeus maksimissaan 100 viestiä/s.
+   * @param varaaja lähettäjäinstanssin tunniste, tallennetaan varauksen yhteydessä jotta vanhentuneet varaukset voidaan
+   *                jäljittää
    * @return lähetettävien vastaanottajien tunnisteet
    */
-  def getLahetettavatVastaanottajat(maara: Int): Seq[UUID] =
+  def getLahetettavatVastaanottajat(maara: Int, varaaja: String = null): Seq[UUID] =
     if(maara<=0)
       Seq.empty
     else
       var lahetettavat: Seq[String] = null
       val result =
+        // vastaanottajat varataan poistamalla ne lähetysjonosta, jonorivi jonka vastaanottaja ei ole enää odottaa-tilassa
+        // poistetaan varaamatta vastaanottajaa
         sql"""
-            SELECT tunniste
-            FROM vastaanottajat
-            WHERE tila='#${VastaanottajanTila.ODOTTAA.toString}'
-            ORDER BY prioriteetti, luotu ASC
-            FOR UPDATE SKIP LOCKED
-            LIMIT ${maara}
+            WITH jonosta AS (
+              DELETE FROM lahetysjono WHERE vastaanottaja_tunniste IN (
+                SELECT vastaanottaja_tunniste
+                FROM lahetysjono
+                WHERE not_before<=now()
+                ORDER BY prioriteetti, luotu ASC
+                FOR UPDATE SKIP LOCKED
+                LIMIT ${maara})
+              RETURNING vastaanottaja_tunniste
+            )
+            UPDATE vastaanottajat SET tila='#${VastaanottajanTila.LAHETYKSESSA.toString}', varattu=now(), varaaja=${varaaja}
+            FROM jonosta
+            WHERE vastaanottajat.tunniste=jonosta.vastaanottaja_tunniste
+            AND vastaanottajat.tila='#${VastaanottajanTila.ODOTTAA.toString}'
+            RETURNING vastaanottajat.tunniste
         """.as[String].flatMap(tunnisteet => {
             lahetettavat = tunnisteet
 
-            val paivitaTilaAction = if (tunnisteet.isEmpty)
-              sql"""SELECT 1""".as[Int]
-            else
-              sqlu"""
-                  UPDATE vastaanottajat SET tila='#${VastaanottajanTila.LAHETYKSESSA.toString}'
-                  WHERE tunniste IN (#${tunnisteet.map(tunniste => "'" + tunniste + "'").mkString(",")})
-                """
-
-            val lisaaSiirtymaActions = DBIO.sequence(tunnisteet.map(tunniste =>
+            DBIO.sequence(tunnisteet.map(tunniste =>
               sqlu"""
                     INSERT INTO vastaanottaja_siirtymat VALUES(${tunniste}::uuid, now(), ${VastaanottajanTila.LAHETYKSESSA.toString}, null)
                   """))
-
-            DBIO.sequence(Seq(paivitaTilaAction, lisaaSiirtymaActions))
         }).transactionally
       Await.result(db.run(result), 60.seconds)
       lahetettavat.map(tunniste => UUID.fromString(tunniste))
@@ -677,7 +756,13 @@ class KantaOperaatiot(db: JdbcBackend.JdbcDatabaseDef) {
       sqlu"""
               INSERT INTO vastaanottaja_siirtymat VALUES(${tunniste.toString}::uuid, now(), ${VastaanottajanTila.ODOTTAA.toString}, ${lisatiedot})
        """
-    Await.result(db.run(DBIO.sequence(Seq(paivitaAction, siirtymaAction)).transactionally), DB_TIMEOUT)
+    // jonorivin lisää triggeri samassa transaktiossa, joten mikään haku ei näe sitä ilman viivettä
+    val viiveAction =
+      sqlu"""
+              UPDATE lahetysjono SET not_before=now() + ${KantaOperaatiot.JONOON_PALAUTUKSEN_VIIVE_SEKUNTEINA} * interval '1 second'
+              WHERE vastaanottaja_tunniste=${tunniste.toString}::uuid
+       """
+    Await.result(db.run(DBIO.sequence(Seq(paivitaAction, siirtymaAction, viiveAction)).transactionally), DB_TIMEOUT)
 
   /**
    * Päivittää vastaanottajan tilan
@@ -687,18 +772,40 @@ class KantaOperaatiot(db: JdbcBackend.JdbcDatabaseDef) {
    * @param lisatiedot  tilasiirtymään liittyvät lisätiedot (esim. bouncen syy)
    */
   def paivitaVastaanotonTila(sesTunniste: String, tila: VastaanottajanTila, lisatiedot: Option[String]): Unit =
+    paivitaVastaanotonTilat(Seq((sesTunniste, tila, lisatiedot)))
+
+  /**
+   * Päivittää joukon vastaanottajien tiloja yhdessä transaktiossa yhdellä lauseella. Jos samalle SES-tunnisteelle
+   * on useampi tilasiirtymä, vastaanottaja jää viimeisen tilaan ja kaikki siirtymät tallennetaan annetussa
+   * järjestyksessä.
+   *
+   * @param siirtymat   tilasiirtymät (SES-palvelun tunniste vastaanottajalle, uusi tila, lisätiedot)
+   */
+  def paivitaVastaanotonTilat(siirtymat: Seq[(String, VastaanottajanTila, Option[String])]): Unit =
+    if (siirtymat.isEmpty) return
+    // siirtymien aikaleimat otetaan clock_timestamp():lla järjestyksen mukaan lajittelun jälkeen, jotta saman
+    // vastaanottajan siirtymät säilyttävät järjestyksensä. Ehto ses_tunniste IS NOT NULL sallii osittaisen
+    // vastaanottajat_ses_tunniste_idx-indeksin käytön liitoksessa.
     val paivitaAction =
-      sql"""
-            UPDATE vastaanottajat
-            SET tila='#${tila.toString}'
-            WHERE ses_tunniste='#${sesTunniste}'
-            RETURNING tunniste
-            """.as[String]
-        .flatMap(tunnisteet => {
-          DBIO.sequence(tunnisteet.map(tunniste => {
-              sqlu"""INSERT INTO vastaanottaja_siirtymat VALUES(${tunniste}::uuid, now(), ${tila.toString}, ${lisatiedot.getOrElse(null)})"""
-          }))
-        })
+      sqlu"""
+            WITH siirtymat AS (
+              SELECT s.ses_tunniste, s.tila, s.lisatiedot, s.jarjestys
+              FROM unnest(${siirtymat.map(s => s._1)}::varchar[], ${siirtymat.map(s => s._2.toString)}::varchar[],
+                          ${siirtymat.map(s => s._3.orNull)}::varchar[])
+                WITH ORDINALITY AS s(ses_tunniste, tila, lisatiedot, jarjestys)
+            ), paivitetyt AS (
+              UPDATE vastaanottajat
+              SET tila=viimeiset.tila
+              FROM (SELECT DISTINCT ON (ses_tunniste) ses_tunniste, tila
+                    FROM siirtymat ORDER BY ses_tunniste, jarjestys DESC) viimeiset
+              WHERE vastaanottajat.ses_tunniste=viimeiset.ses_tunniste AND vastaanottajat.ses_tunniste IS NOT NULL
+              RETURNING vastaanottajat.tunniste, vastaanottajat.ses_tunniste
+            )
+            INSERT INTO vastaanottaja_siirtymat
+            SELECT paivitetyt.tunniste, clock_timestamp(), siirtymat.tila, siirtymat.lisatiedot
+            FROM paivitetyt JOIN siirtymat ON siirtymat.ses_tunniste=paivitetyt.ses_tunniste
+            ORDER BY siirtymat.jarjestys
+          """
     Await.result(db.run(paivitaAction.transactionally), DB_TIMEOUT)
 
   def getVastaanottajanSiirtymat(tunniste: UUID): Seq[VastaanottajanSiirtyma] =
@@ -1051,7 +1158,9 @@ class KantaOperaatiot(db: JdbcBackend.JdbcDatabaseDef) {
             Kontakti(Option.apply(lahettajanNimi), lahettajanSahkoposti), Option.apply(replyto), Prioriteetti.valueOf(prioriteetti), Instant.parse(luotu)))
 
   /**
-   * Hakee yhteenvedon lähetyksien vastaanottajien lukumääristä tiloittain
+   * Hakee yhteenvedon lähetyksien vastaanottajien lukumääristä tiloittain. Pääkäyttäjälle yhteenveto luetaan
+   * triggereiden ylläpitämistä tilastoista (lahetys_tilastot_nyt), muille se lasketaan niistä viesteistä joihin käyttäjällä
+   * on oikeus.
    *
    * @param lahetysTunnisteet         lista lähetysten tunnisteita
    * @param kayttooikeusTunnisteet    käyttäjän käyttöoikeuksien tunnisteet (Option.Empty tarkoittaa pääkäyttäjää)
@@ -1061,8 +1170,15 @@ class KantaOperaatiot(db: JdbcBackend.JdbcDatabaseDef) {
     if (lahetysTunnisteet.isEmpty) return Map.empty
     if (kayttooikeusTunnisteet.isDefined && kayttooikeusTunnisteet.get.isEmpty)
       return Map.empty
-    
-    val vastaanottajaTilatQuery = (sql"""
+
+    val vastaanottajaTilatQuery = if (kayttooikeusTunnisteet.isEmpty)
+      sql"""
+       SELECT lahetys_tunniste, tila, lkm
+       FROM lahetys_tilastot_nyt
+       WHERE lahetys_tunniste IN (#${lahetysTunnisteet.map(tunniste => "'" + tunniste + "'").mkString(",")}) AND lkm > 0
+       ORDER BY lahetys_tunniste, tila
+     """.as[(String, String, Int)]
+    else (sql"""
        SELECT viestit.lahetys_tunniste, vastaanottajat.tila, count(*) as vastaanottajia
        FROM vastaanottajat JOIN viestit ON vastaanottajat.viesti_tunniste=viestit.tunniste
        WHERE viestit.lahetys_tunniste IN (#${lahetysTunnisteet.map(tunniste => "'" + tunniste + "'").mkString(",")})
@@ -1109,9 +1225,12 @@ class KantaOperaatiot(db: JdbcBackend.JdbcDatabaseDef) {
    */
   def getLahetyksenViestiLkm(lahetysTunniste: UUID): Int =
     val viestiCount = sql"""
-        SELECT count(1) FROM viestit WHERE lahetys_tunniste=${lahetysTunniste.toString}::uuid
+        -- koottu määrä ja vielä kokoamattomat muutokset
+        SELECT (viesti_lkm + (SELECT coalesce(sum(muutos), 0) FROM lahetys_tilastomuutokset
+                              WHERE lahetys_tunniste=lahetykset.tunniste AND tila IS NULL))::integer
+        FROM lahetykset WHERE tunniste=${lahetysTunniste.toString}::uuid
          """.as[Int]
-    Await.result(db.run(viestiCount), DB_TIMEOUT).find(i => true).get
+    Await.result(db.run(viestiCount), DB_TIMEOUT).headOption.getOrElse(0)
 
   /**
    * Hakee yksittäisen viestin lähetystunnisteella (massaviesti) tai viestitunnisteella
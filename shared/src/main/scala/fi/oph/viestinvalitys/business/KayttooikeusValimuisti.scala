@@ -0,0 +1,109 @@
+package fi.oph.viestinvalitys.business
+
+import org.slf4j.LoggerFactory
+import slick.jdbc.JdbcBackend
+import slick.jdbc.PostgresProfile.api.*
+
+import java.util.concurrent.ConcurrentHashMap
+import scala.collection.concurrent.TrieMap
+import scala.concurrent.Await
+import scala.concurrent.duration.DurationInt
+
+object KayttooikeusValimuisti {
+  private val valimuistit = new ConcurrentHashMap[JdbcBackend.JdbcDatabaseDef, KayttooikeusValimuisti]()
+
+  /**
+   * Palauttaa tietokannan yhteisen välimuistin. Lambdat luovat KantaOperaatiot-instanssin pyynnöittäin, joten
+   * välimuisti ei voi olla instanssikohtainen.
+   */
+  def apply(db: JdbcBackend.JdbcDatabaseDef): KayttooikeusValimuisti =
+    valimuistit.computeIfAbsent(db, d => new KayttooikeusValimuisti(d))
+}
+
+/**
+ * Välimuisti käyttöoikeuksien (organisaatio, oikeus) -> tunniste -mappaukselle viestien tallennusta varten.
+ * Mappaus ladataan kokonaan ensimmäisellä käyttökerralla, ja uudelleen kun haku ei löydä kaikkia käyttöoikeuksia ja
+ * uusin käyttöoikeustunniste on kasvanut edellisestä latauksesta (joku toinen instanssi on lisännyt rivejä).
+ * Tämänkin jälkeen puuttuvat käyttöoikeudet lisätään ja haetaan yhdellä omassa transaktiossaan ajettavalla
+ * lauseella, joten välimuistissa ei koskaan ole tunnistetta jonka kutsujan transaktion rollback poistaisi.
+ * Käyttöoikeusrivejä ei poisteta, joten välimuistin sisältö pysyy voimassa.
+ */
+class KayttooikeusValimuisti(db: JdbcBackend.JdbcDatabaseDef) {
+
+  final val DB_TIMEOUT = 30.seconds
+  final val MAX_YRITYKSET = 3
+  val LOG = LoggerFactory.getLogger(classOf[KayttooikeusValimuisti])
+
+  private val tunnisteet = TrieMap[Kayttooikeus, Int]()
+  @volatile private var uusinTunniste = -1
+
+  /**
+   * Palauttaa käyttöoikeuksien tunnisteet, puuttuvat käyttöoikeudet luodaan.
+   */
+  def getTunnisteet(kayttooikeudet: Set[Kayttooikeus]): Map[Kayttooikeus, Int] =
+    if (uusinTunniste < 0)
+      lataa()
+    var puuttuvat = kayttooikeudet.filter(k => !tunnisteet.contains(k))
+    if (puuttuvat.nonEmpty && getUusinTunniste() > uusinTunniste)
+      lataa()
+      puuttuvat = puuttuvat.filter(k => !tunnisteet.contains(k))
+
+    // saman rivin samanaikainen lisäys voi piilottaa sen yhden lauseen sekä lisäykseltä että haulta, seuraava lause
+    // näkee sen
+    var yritys = 1
+    while (puuttuvat.nonEmpty)
+      if (yritys > MAX_YRITYKSET)
+        throw new IllegalStateException(s"Käyttöoikeuksien tunnisteita ei saatu selvitettyä: ${puuttuvat}")
+      luoJaHae(puuttuvat.toSeq)
+      puuttuvat = puuttuvat.filter(k => !tunnisteet.contains(k))
+      yritys += 1
+    kayttooikeudet.map(k => k -> tunnisteet(k)).toMap
+
+  /**
+   * Tyhjentää välimuistin, testejä varten joissa käyttöoikeustaulu tyhjennetään.
+   */
+  def tyhjenna(): Unit = this.synchronized {
+    tunnisteet.clear()
+    uusinTunniste = -1
+  }
+
+  private def lataa(): Unit = this.synchronized {
+    val uusin = getUusinTunniste()
+    // null-organisaatiolle voi olla aiemmin syntyneitä duplikaatteja, pienin tunniste voittaa
+    val kaikki = sql"""
+        SELECT min(tunniste), organisaatio, oikeus FROM kayttooikeudet GROUP BY organisaatio, oikeus
+      """.as[(Int, Option[String], String)]
+    Await.result(db.run(kaikki), DB_TIMEOUT).foreach((tunniste, organisaatio, oikeus) =>
+      tunnisteet.put(Kayttooikeus(oikeus, organisaatio), tunniste))
+    uusinTunniste = uusin
+    LOG.info(s"Ladattiin ${tunnisteet.size} käyttöoikeutta, uusin tunniste ${uusin}")
+  }
+
+  private def getUusinTunniste(): Int =
+    Await.result(db.run(sql"""SELECT max(tunniste) FROM kayttooikeudet""".as[Option[Int]]), DB_TIMEOUT)
+      .headOption.flatten.getOrElse(0)
+
+  /**
+   * Lisää puuttuvat käyttöoikeudet ja hakee kaikkien tunnisteet. NOT EXISTS -ehto tarvitaan koska uniikki-indeksi
+   * ei estä duplikaatteja kun organisaatio on null.
+   */
+  private def luoJaHae(kayttooikeudet: Seq[Kayttooikeus]): Unit =
+    val action = sql"""
+        WITH pyydetyt AS (
+          SELECT * FROM unnest(${kayttooikeudet.map(k => k.organisaatio.orNull)}::varchar[],
+                               ${kayttooikeudet.map(k => k.oikeus)}::varchar[]) AS p(organisaatio, oikeus)
+        ), lisatyt AS (
+          INSERT INTO kayttooikeudet (organisaatio, oikeus)
+          SELECT p.organisaatio, p.oikeus FROM pyydetyt p WHERE NOT EXISTS (
+            SELECT 1 FROM kayttooikeudet k WHERE k.organisaatio IS NOT DISTINCT FROM p.organisaatio AND k.oikeus = p.oikeus
+          ) ON CONFLICT DO NOTHING RETURNING tunniste, organisaatio, oikeus
+        )
+        SELECT min(tunniste), organisaatio, oikeus FROM (
+          SELECT k.tunniste, k.organisaatio, k.oikeus FROM kayttooikeudet k JOIN pyydetyt p
+            ON k.organisaatio IS NOT DISTINCT FROM p.organisaatio AND k.oikeus = p.oikeus
+          UNION ALL SELECT tunniste, organisaatio, oikeus FROM lisatyt
+        ) t GROUP BY organisaatio, oikeus
+      """.as[(Int, Option[String], String)]
+    Await.result(db.run(action.transactionally), DB_TIMEOUT).foreach((tunniste, organisaatio, oikeus) =>
+      tunnisteet.put(Kayttooikeus(oikeus, organisaatio), tunniste))
+}
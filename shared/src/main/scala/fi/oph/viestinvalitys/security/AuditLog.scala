@@ -13,12 +13,12 @@ import org.ietf.jgss.Oid
 import org.slf4j.LoggerFactory
 import org.springframework.security.core.context.SecurityContextHolder
 import org.springframework.security.core.Authentication
-import software.amazon.awssdk.services.cloudwatchlogs.model.{CreateLogStreamRequest, InputLogEvent, PutLogEventsRequest}
+import software.amazon.awssdk.services.cloudwatch.model.{MetricDatum, PutMetricDataRequest, StandardUnit}
+import software.amazon.awssdk.services.cloudwatchlogs.model.{CreateLogStreamRequest, PutLogEventsRequest}
 import software.amazon.awssdk.services.sqs.model.SendMessageRequest
 
 import java.util.UUID
 import java.net.InetAddress
-import java.util.Collections
 import java.time.Instant
 
 class AuditLog {}
@@ -50,26 +50,49 @@ object AuditLog {
     mapper
   }
 
+  val namespace = sys.env.getOrElse("METRIC_DATA_NAMESPACE", s"${ConfigurationUtil.environment}-viestinvalitys")
+
+  @volatile private var puskuri: AuditLogPuskuri = null
+
   lazy val audit = {
     // Luodaan lokistriimi kerran per uusi lambdainstanssi. Jotta tämä onnistuu on tärkeää ettei
     // audit-lokitusta kutsuta SnapStartin käynnistysvaiheessa (muuten luodaan vain yksi striimi per asennus)
     createAuditLogStream()
 
-    new Audit(entry => {
-      // Kirjoitetaan audit-lokientryt suoraan cloudwatchiin. Puskurointi ja useamman entry kirjoittaminen samalla kutsulla
-      // olisi mahdollista, mutta voi aiheuttaa liian näppärää koodia, koska lambdan eloonjäännistä ei voi olettaa mitään kun
-      // yksittäinen invokaatio loppuu.
-      cloudWatchLogsClient.putLogEvents(PutLogEventsRequest.builder()
-        .logGroupName(auditLogGroupName)
-        .logStreamName(auditLogStreamName)
-        .logEvents(Collections.singletonList(InputLogEvent.builder()
-          .message(entry)
-          .timestamp(Instant.now().toEpochMilli)
-          .build()))
-        .build())
-    }, "viestinvalitys", ApplicationType.VIRKAILIJA)
+    // Entryt kirjoitetaan cloudwatchiin taustasäikeessä erinä, jotta audit-lokitus ei hidasta kutsujaa. Koska lambdan
+    // eloonjäännistä ei voi olettaa mitään kun yksittäinen invokaatio loppuu, lambdat kutsuvat flush-metodia invokaation
+    // lopussa.
+    puskuri = new AuditLogPuskuri(era => cloudWatchLogsClient.putLogEvents(PutLogEventsRequest.builder()
+      .logGroupName(auditLogGroupName)
+      .logStreamName(auditLogStreamName)
+      .logEvents(era)
+      .build()))
+
+    new Audit(entry => puskuri.lisaa(entry), "viestinvalitys", ApplicationType.VIRKAILIJA)
   }
 
+  /**
+   * Kirjoittaa puskuroidut audit-lokientryt ja raportoi puskurin odotukset ja pudotukset metriikoina. Ei tee mitään
+   * jos audit-lokitusta ei ole vielä käytetty (esim. SnapStartin checkpoint ennen ensimmäistä invokaatiota).
+   */
+  def flush(): Unit =
+    val p = puskuri
+    if (p != null)
+      p.flush()
+      val (odotetut, pudotetut) = p.otaTilastot()
+      if (odotetut > 0 || pudotetut > 0)
+        try
+          AwsUtil.cloudWatchClient.putMetricData(PutMetricDataRequest.builder()
+            .namespace(namespace)
+            .metricData(
+              MetricDatum.builder().metricName("AuditLokiOdotukset").value(odotetut.toDouble)
+                .timestamp(Instant.now()).unit(StandardUnit.COUNT).build(),
+              MetricDatum.builder().metricName("AuditLokiPudotukset").value(pudotetut.toDouble)
+                .timestamp(Instant.now()).unit(StandardUnit.COUNT).build())
+            .build())
+        catch
+          case e: Exception => LOG.error(s"Audit-lokipuskurin metriikoiden tallennus epäonnistui (odotukset: ${odotetut}, pudotukset: ${pudotetut})", e)
+
   def logRead(kohde: String, tunniste: String, operaatio: AuditOperation, request: HttpServletRequest): Unit =
     val target = new Target.Builder().setField(kohde, tunniste).build()
     audit.log(getUser(request), operaatio, target, Changes.EMPTY)
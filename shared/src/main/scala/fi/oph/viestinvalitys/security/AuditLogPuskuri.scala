@@ -0,0 +1,112 @@
+package fi.oph.viestinvalitys.security
+
+import org.slf4j.LoggerFactory
+import software.amazon.awssdk.services.cloudwatchlogs.model.InputLogEvent
+
+import java.nio.charset.StandardCharsets
+import java.time.Instant
+import java.util
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.locks.ReentrantLock
+import java.util.concurrent.{ArrayBlockingQueue, TimeUnit}
+
+object AuditLogPuskuri {
+  // PutLogEvents-kutsun rajat: enintään 10 000 tapahtumaa ja 1 048 576 tavua, johon lasketaan jokaisesta tapahtumasta
+  // viestin UTF-8 -koko + 26 tavua
+  val MAX_TAPAHTUMIA_ERASSA = 10000
+  val MAX_TAVUJA_ERASSA = 1048576
+  val TAPAHTUMAN_YLIMAARA_TAVUJA = 26
+
+  def koko(tapahtuma: InputLogEvent): Int =
+    tapahtuma.message().getBytes(StandardCharsets.UTF_8).length + TAPAHTUMAN_YLIMAARA_TAVUJA
+}
+
+/**
+ * Rajattu puskuri audit-lokientryille. Entryt lisätään jonoon kutsujan säikeessä ja taustasäie kirjoittaa ne
+ * PutLogEvents-rajojen mukaisina erinä. Kun jono on täynnä, lisääjä odottaa enintään maxOdotusMs millisekuntia
+ * (back-pressure) ja pudottaa entryn jos tilaa ei vapaudu. Odotukset ja pudotukset lasketaan ja raportoidaan
+ * [[otaTilastot]]-metodin kautta.
+ *
+ * Lambdan jäädyttäminen invokaatioiden välissä pysäyttää myös taustasäikeen, joten lambdojen tulee kutsua [[flush]]-metodia
+ * invokaation lopussa ja ennen SnapStart-checkpointia.
+ *
+ * @param kirjoita      kirjoittaa yhden erän CloudWatchiin
+ * @param kapasiteetti  jonon maksimikoko
+ * @param maxOdotusMs   kuinka kauan lisääjä odottaa tilaa täydessä jonossa
+ * @param kirjoitusValiMs kuinka usein taustasäie kirjoittaa jonossa olevat entryt
+ */
+class AuditLogPuskuri(kirjoita: util.List[InputLogEvent] => Unit, kapasiteetti: Int = 10000, maxOdotusMs: Long = 100,
+                      kirjoitusValiMs: Long = 200) {
+
+  val LOG = LoggerFactory.getLogger(classOf[AuditLogPuskuri])
+
+  private val jono = new ArrayBlockingQueue[InputLogEvent](kapasiteetti)
+  private val kirjoitusLukko = new ReentrantLock()
+  private val odotetut = new AtomicLong()
+  private val pudotetut = new AtomicLong()
+
+  private val kirjoittaja = new Thread(() => {
+    while (!Thread.currentThread().isInterrupted)
+      try
+        Thread.sleep(kirjoitusValiMs)
+        if (!jono.isEmpty)
+          kirjoitaEra()
+      catch
+        case e: InterruptedException => Thread.currentThread().interrupt()
+        case e: Exception => LOG.error("Audit-lokin kirjoitus epäonnistui", e)
+  }, "audit-log-flusher")
+  kirjoittaja.setDaemon(true)
+  kirjoittaja.start()
+
+  def lisaa(entry: String): Unit =
+    val tapahtuma = InputLogEvent.builder().message(entry).timestamp(Instant.now().toEpochMilli).build()
+    if (!jono.offer(tapahtuma))
+      odotetut.incrementAndGet()
+      if (!jono.offer(tapahtuma, maxOdotusMs, TimeUnit.MILLISECONDS))
+        pudotetut.incrementAndGet()
+        LOG.error(s"Audit-lokipuskuri täynnä, entry pudotettiin: ${entry}")
+
+  /**
+   * Kirjoittaa kaikki jonossa olevat entryt kutsujan säikeessä.
+   */
+  def flush(): Unit =
+    // ensimmäinen kierros odottaa myös taustasäikeen kesken olevan erän valmistumisen
+    kirjoitaEra()
+    while (!jono.isEmpty)
+      kirjoitaEra()
+
+  /**
+   * Palauttaa edellisen kutsun jälkeen täyden jonon takia odottaneiden ja pudotettujen entryjen määrät.
+   */
+  def otaTilastot(): (Long, Long) =
+    (odotetut.getAndSet(0), pudotetut.getAndSet(0))
+
+  def sulje(): Unit =
+    kirjoittaja.interrupt()
+    flush()
+
+  private def kirjoitaEra(): Unit =
+    kirjoitusLukko.lock()
+    try
+      val era = new util.ArrayList[InputLogEvent]()
+      var tavut = 0
+      // jonosta ottaa vain lukon haltija, joten peek + poll on turvallinen
+      var seuraava = jono.peek()
+      while (seuraava != null && era.size < AuditLogPuskuri.MAX_TAPAHTUMIA_ERASSA
+        && tavut + AuditLogPuskuri.koko(seuraava) <= AuditLogPuskuri.MAX_TAVUJA_ERASSA)
+        era.add(jono.poll())
+        tavut += AuditLogPuskuri.koko(seuraava)
+        seuraava = jono.peek()
+      if (!era.isEmpty)
+        // PutLogEvents edellyttää aikajärjestystä, rinnakkaiset lisääjät voivat sotkea sen hieman
+        era.sort(util.Comparator.comparingLong[InputLogEvent](t => t.timestamp()))
+        try
+          kirjoita(era)
+        catch
+          case e: Exception =>
+            // ei hukata audit-tietoa: kirjoitetaan erä sovelluslokiin josta se voidaan palauttaa
+            LOG.error(s"Audit-lokierän (${era.size} entryä) kirjoitus epäonnistui", e)
+            era.forEach(t => LOG.error(s"Kirjoittamaton audit-lokientry: ${t.message()}"))
+    finally
+      kirjoitusLukko.unlock()
+}
@@ -6,6 +6,7 @@ import fi.oph.viestinvalitys.business.VastaanottajanTila.DELIVERY
 import org.flywaydb.core.Flyway
 import org.junit.jupiter.api.*
 import org.junit.jupiter.api.TestInstance.Lifecycle
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty
 import org.postgresql.ds.PGSimpleDataSource
 import org.slf4j.LoggerFactory
 import org.testcontainers.containers.GenericContainer
@@ -110,6 +111,7 @@ class KantaOperaatiotTest {
             DROP TABLE RAPORTOINTI_SESSION_ATTRIBUTES;
             DROP TABLE RAPORTOINTI_SESSION;
             DROP TABLE vastaanottaja_siirtymat;
+            DROP TABLE lahetysjono;
             DROP TABLE vastaanottajat;
             DROP TABLE metadata_avaimet;
             DROP TABLE metadata;
@@ -119,11 +121,24 @@ class KantaOperaatiotTest {
             DROP TABLE lahetykset_kayttooikeudet;
             DROP TABLE kayttooikeudet;
             DROP TABLE viestit;
+            DROP VIEW lahetys_tilastot_nyt;
+            DROP TABLE lahetys_tilastot;
+            DROP TABLE lahetys_tilastomuutokset;
             DROP TABLE lahetykset;
             DROP TABLE liitteet;
+            DROP TABLE korkean_prioriteetin_kiintiot;
+            DROP TABLE lahetysbudjetti;
+            DROP FUNCTION lahetys_tilastot_lisaa;
+            DROP FUNCTION lahetys_tilastot_muuta;
+            DROP FUNCTION lahetys_tilastot_poista;
+            DROP FUNCTION lahetys_viesti_lkm_lisaa;
+            DROP FUNCTION lahetys_viesti_lkm_poista;
+            DROP FUNCTION lahetysjono_lisaa;
+            DROP FUNCTION lahetysjono_palauta;
             DROP TYPE prioriteetti;
             DROP TABLE flyway_schema_history;
           """), 5.seconds)
+    kantaOperaatiot.kayttooikeusValimuisti.tyhjenna()
   }
 
   // apumetodi lähetyksen tallennuksen yms. testaamiseen
@@ -348,6 +363,18 @@ class KantaOperaatiotTest {
     val (viesti, vastaanottaja) = tallennaViesti(omistaja = "omistaja1", idempotencyKey = "avain")
     Assertions.assertEquals(viesti, kantaOperaatiot.getExistingViesti("omistaja1", "avain").get)
 
+  /**
+   * Testataan että käytössä olevalla idempotency-avaimella tallennus palauttaa aiemman viestin eikä tallenna mitään
+   */
+  @Test def testTallennaViestiIdempotencyKeyKaytossa(): Unit =
+    val (viesti, _) = tallennaViesti(omistaja = "omistaja1", idempotencyKey = "avain")
+
+    try
+      tallennaViesti(omistaja = "omistaja1", idempotencyKey = "avain")
+      Assertions.fail("omistaja ei saa pystyä tallentamaan kahta viestiä samalla idempotency-avaimella")
+    catch
+      case e: IdempotencyKeyKaytossaException => Assertions.assertEquals(viesti, e.viesti)
+
   /**
    * Testataan korkean prioriteetin viestien määrän lukeminen
    */
@@ -370,6 +397,22 @@ class KantaOperaatiotTest {
     // Omistaja1:llä kaksi korkean prioriteetin viestiä aikaikkunan sisällä
     Assertions.assertEquals(2, kantaOperaatiot.getKorkeanPrioriteetinViestienMaaraSince("omistaja1", 1))
 
+  /**
+   * Testataan korkean prioriteetin kiintiön varaaminen
+   */
+  @Test def testVaraaKorkeanPrioriteetinKiintio(): Unit =
+    // raja täyttyy osittain myönnetyllä varauksella
+    Assertions.assertEquals(3, kantaOperaatiot.varaaKorkeanPrioriteetinKiintio("omistaja1", 3, 5, 1))
+    Assertions.assertEquals(2, kantaOperaatiot.varaaKorkeanPrioriteetinKiintio("omistaja1", 3, 5, 1))
+    Assertions.assertEquals(0, kantaOperaatiot.varaaKorkeanPrioriteetinKiintio("omistaja1", 1, 5, 1))
+
+    // toisen omistajan kiintiö on erillinen
+    Assertions.assertEquals(1, kantaOperaatiot.varaaKorkeanPrioriteetinKiintio("omistaja2", 1, 5, 1))
+
+    // odotetaan jotta myönnetyt viestit menevät pois aikaikkunasta
+    Thread.sleep(1100)
+    Assertions.assertEquals(5, kantaOperaatiot.varaaKorkeanPrioriteetinKiintio("omistaja1", 10, 5, 1))
+
   /**
    * Testataan viestin käyttöoikeudet
    */
@@ -559,6 +602,25 @@ class KantaOperaatiotTest {
       this.assertViimeinenSiirtyma(vastaanottaja.tunniste, VastaanottajanTila.LAHETYKSESSA, Option.empty)
     })
 
+  /**
+   * Testataan että [[KantaOperaatiot.getLahetettavatVastaanottajat()]] palauttaa lähetysjonoon palautetun vastaanottajan
+   * uudelleen palautuksen viiveen jälkeen, mutta ei samaa vastaanottajaa kahdesti ilman palautusta
+   */
+  @Test def testGetLahetettavatViestitPalautettuJonoon(): Unit =
+    val (viesti, vastaanottajat) = tallennaViesti(getVastaanottajat(1))
+
+    val lahetettavat = kantaOperaatiot.getLahetettavatVastaanottajat(5)
+    Assertions.assertEquals(Seq(vastaanottajat.head.tunniste), lahetettavat)
+    Assertions.assertEquals(Seq.empty, kantaOperaatiot.getLahetettavatVastaanottajat(5))
+
+    // esim. SES-kuristuksen jälkeen vastaanottaja palautetaan odottamaan
+    kantaOperaatiot.paivitaVastaanottajaOdottaaTilaan(vastaanottajat.head.tunniste, "kuristus")
+    Assertions.assertEquals(Seq.empty, kantaOperaatiot.getLahetettavatVastaanottajat(5))
+
+    // viiveen jälkeen vastaanottaja haetaan uudelleen
+    Await.result(database.run(sqlu"""UPDATE lahetysjono SET not_before=now()"""), 5.seconds)
+    Assertions.assertEquals(lahetettavat, kantaOperaatiot.getLahetettavatVastaanottajat(5))
+
   /**
    * Testataan että [[KantaOperaatiot.getLahetettavatVastaanottajat()]] palauttaa (saman prioriteetin) vastaanottajia
    * siinä järjestyksessä kun ne on luotu
@@ -712,6 +774,70 @@ class KantaOperaatiotTest {
     Assertions.assertEquals(VastaanottajanTila.BOUNCE, kantaOperaatiot.getVastaanottajat(Seq(vastaanottajanTunniste)).find(v => true).map(v => v.tila).get)
     this.assertViimeinenSiirtyma(vastaanottajanTunniste, VastaanottajanTila.BOUNCE, Some("mailbox full"))
 
+  /**
+   * Testataan että erän tilapäivitykset tallentuvat järjestyksessä
+   */
+  @Test def testPaivitaVastaanotonTilat(): Unit =
+    val (viesti, vastaanottajat) = tallennaViesti(getVastaanottajat(2))
+    val ensimmainen = vastaanottajat.head.tunniste
+    val toinen = vastaanottajat.last.tunniste
+    kantaOperaatiot.paivitaVastaanottajaLahetetyksi(ensimmainen, "ses-tunniste1")
+    kantaOperaatiot.paivitaVastaanottajaLahetetyksi(toinen, "ses-tunniste2")
+
+    // samalle vastaanottajalle kaksi siirtymää, lisäksi tuntematon SES-tunniste joka ohitetaan
+    kantaOperaatiot.paivitaVastaanotonTilat(Seq(
+      ("ses-tunniste1", VastaanottajanTila.DELIVERY, Option.empty),
+      ("ses-tunniste2", VastaanottajanTila.BOUNCE, Some("mailbox full")),
+      ("tuntematon", VastaanottajanTila.DELIVERY, Option.empty),
+      ("ses-tunniste1", VastaanottajanTila.COMPLAINT, Some("abuse"))))
+
+    Assertions.assertEquals(VastaanottajanTila.COMPLAINT, kantaOperaatiot.getVastaanottajat(Seq(ensimmainen)).find(v => true).map(v => v.tila).get)
+    Assertions.assertEquals(Seq(VastaanottajanTila.COMPLAINT, VastaanottajanTila.DELIVERY),
+      kantaOperaatiot.getVastaanottajanSiirtymat(ensimmainen).take(2).map(s => s.tila))
+    Assertions.assertEquals(VastaanottajanTila.BOUNCE, kantaOperaatiot.getVastaanottajat(Seq(toinen)).find(v => true).map(v => v.tila).get)
+    this.assertViimeinenSiirtyma(toinen, VastaanottajanTila.BOUNCE, Some("mailbox full"))
+
+  /**
+   * Mittaa SES-tapahtumien päivitysnopeuden realistisen kokoisessa vastaanottajat-taulussa osittaisella
+   * ses_tunniste-indeksillä ja aiemmalla koko sarakkeen indeksillä. Ajetaan parametrilla -Dbenchmark=true.
+   */
+  @Test
+  @EnabledIfSystemProperty(named = "benchmark", matches = "true")
+  def benchmarkPaivitaVastaanotonTilat(): Unit =
+    val vastaanottajia = 1000000
+    val (viesti, _) = tallennaViesti(getVastaanottajat(1))
+    // 90% vastaanottajista on lähetetty SES:lle, loput odottavat jonossa ilman ses_tunnistetta
+    Await.result(database.run(
+      sqlu"""
+            INSERT INTO vastaanottajat (tunniste, viesti_tunniste, lahetys_tunniste, nimi, sahkopostiosoite, tila, luotu,
+                                        prioriteetti, ses_tunniste)
+            SELECT gen_random_uuid(), ${viesti.tunniste.toString}::uuid, ${viesti.lahetysTunniste.toString}::uuid,
+                   'Vastaanottaja', 'vastaanottaja' || i || '@example.com',
+                   CASE WHEN i % 10 = 0 THEN 'ODOTTAA' ELSE 'LAHETETTY' END, now(), 'NORMAALI',
+                   CASE WHEN i % 10 = 0 THEN NULL ELSE 'ses-' || i END
+            FROM generate_series(1, ${vastaanottajia}) i
+          """.andThen(sqlu"""ANALYZE vastaanottajat""")), 10.minutes)
+
+    def mittaa(indeksi: String): Unit =
+      val koko = Await.result(database.run(
+        sql"""SELECT pg_size_pretty(pg_relation_size('vastaanottajat_ses_tunniste_idx'))""".as[String]), 5.seconds).head
+      // lämmitellään yhteydet ja välimuisti
+      Range(0, 100).foreach(_ => kantaOperaatiot.paivitaVastaanotonTilat(Seq(("ses-" + (rand.nextInt(vastaanottajia / 10) * 10 + 1), DELIVERY, Option.empty))))
+      val erat = 1000
+      val alku = System.nanoTime()
+      Range(0, erat).foreach(_ =>
+        kantaOperaatiot.paivitaVastaanotonTilat(Range(0, 10).map(_ =>
+          ("ses-" + (rand.nextInt(vastaanottajia / 10) * 10 + 1 + rand.nextInt(9)), DELIVERY, Option.empty))))
+      val kesto = (System.nanoTime() - alku) / 1000000000.0
+      LOG.info(s"$indeksi (koko $koko): ${(erat * 10 / kesto).toInt} tapahtumaa/s")
+
+    mittaa("osittainen indeksi")
+    Await.result(database.run(
+      sqlu"""DROP INDEX vastaanottajat_ses_tunniste_idx"""
+        .andThen(sqlu"""CREATE INDEX vastaanottajat_ses_tunniste_idx ON vastaanottajat (ses_tunniste)""")
+        .andThen(sqlu"""ANALYZE vastaanottajat""")), 10.minutes)
+    mittaa("koko sarakkeen indeksi")
+
   /**
    * Testataan että vanhojen lähetysten (ja sitä kautta viestien yms.) siivous toimii
    */
@@ -1369,6 +1495,9 @@ class KantaOperaatiotTest {
     Assertions.assertEquals(1, vastaanottotilat.filter(tila => tila._1.equals(VastaanottajanTila.VIRHE.toString)).head._2)
     Assertions.assertEquals(3, vastaanottotilat.filter(tila => tila._1.equals(VastaanottajanTila.ODOTTAA.toString)).head._2)
     Assertions.assertEquals(Map.empty, kantaOperaatiot.getLahetystenVastaanottotilat(Seq(lahetys1.tunniste), Some(kayttooikeusTunnisteet2)))
+    // pääkäyttäjälle tilat luetaan triggereiden ylläpitämistä tilastoista
+    Assertions.assertEquals(vastaanottotilat.toSet,
+      kantaOperaatiot.getLahetystenVastaanottotilat(Seq(lahetys1.tunniste), Option.empty).get(lahetys1.tunniste).get.toSet)
 
   /**
    * Testataan lähetyksien maskien haku raportointikäyttöliittymälle
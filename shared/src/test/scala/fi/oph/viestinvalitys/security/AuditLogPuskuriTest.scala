@@ -0,0 +1,43 @@
+package fi.oph.viestinvalitys.security
+
+import org.junit.jupiter.api.{Assertions, Test}
+import software.amazon.awssdk.services.cloudwatchlogs.model.InputLogEvent
+
+import java.util
+import java.util.concurrent.{ConcurrentLinkedQueue, CountDownLatch}
+import scala.jdk.CollectionConverters.*
+
+class AuditLogPuskuriTest {
+
+  /**
+   * Testataan että flush kirjoittaa kaikki entryt PutLogEvents-rajojen mukaisina erinä
+   */
+  @Test def testFlushKirjoittaaErinaRajojenMukaan(): Unit =
+    val erat = new ConcurrentLinkedQueue[util.List[InputLogEvent]]()
+    // pitkä kirjoitusväli jotta taustasäie ei ehdi kirjoittaa ennen flushia
+    val puskuri = new AuditLogPuskuri(era => erat.add(new util.ArrayList(era)), kapasiteetti = 30000, kirjoitusValiMs = 60000)
+    val entry = "x" * 100
+    (1 to 25000).foreach(_ => puskuri.lisaa(entry))
+
+    puskuri.flush()
+
+    Assertions.assertEquals(25000, erat.asScala.map(_.size).sum)
+    erat.asScala.foreach(era => {
+      Assertions.assertTrue(era.size <= AuditLogPuskuri.MAX_TAPAHTUMIA_ERASSA)
+      Assertions.assertTrue(era.asScala.map(AuditLogPuskuri.koko).sum <= AuditLogPuskuri.MAX_TAVUJA_ERASSA)
+    })
+
+  /**
+   * Testataan että täysi puskuri pudottaa entryn odotuksen jälkeen ja laskee odotukset ja pudotukset
+   */
+  @Test def testTaysiPuskuriPudottaaEntryn(): Unit =
+    val kirjoitusKesken = new CountDownLatch(1)
+    val puskuri = new AuditLogPuskuri(era => kirjoitusKesken.await(), kapasiteetti = 2, maxOdotusMs = 10, kirjoitusValiMs = 60000)
+    puskuri.lisaa("1")
+    puskuri.lisaa("2")
+    puskuri.lisaa("3")
+
+    Assertions.assertEquals((1L, 1L), puskuri.otaTilastot())
+    Assertions.assertEquals((0L, 0L), puskuri.otaTilastot())
+    kirjoitusKesken.countDown()
+}
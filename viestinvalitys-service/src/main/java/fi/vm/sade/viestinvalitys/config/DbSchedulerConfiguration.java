@@ -5,7 +5,9 @@ import com.github.kagkarlsson.scheduler.task.helper.Tasks;
 import com.github.kagkarlsson.scheduler.task.schedule.Schedule;
 import com.github.kagkarlsson.scheduler.task.schedule.Schedules;
 import fi.vm.sade.viestinvalitys.RequestIdFilter;
+import fi.vm.sade.viestinvalitys.lahetys.service.LahetysRecoveryService;
 import fi.vm.sade.viestinvalitys.lahetys.service.LahetysSendService;
+import fi.vm.sade.viestinvalitys.service.LahetysTilastoService;
 
 import java.time.Duration;
 import java.util.UUID;
@@ -20,11 +22,38 @@ public class DbSchedulerConfiguration {
 
   @Bean
   @ConditionalOnProperty(name = "viestinvalitys.lahetys.enabled", havingValue = "true")
+  // in multi-worker mode every instance sends on its own workers, see LahetysTyontekijat
+  @ConditionalOnProperty(name = "viestinvalitys.lahetys.moniajo.enabled", havingValue = "false", matchIfMissing = true)
   public Task<Void> lahetysTask(LahetysSendService lahetysSendService) {
     return recurring(
             "laheta-task", Schedules.fixedDelay(Duration.ofSeconds(2)), lahetysSendService::laheta);
   }
 
+  @Bean
+  @ConditionalOnProperty(name = "viestinvalitys.lahetys.enabled", havingValue = "true")
+  public Task<Void> varaustenPalautusTask(LahetysRecoveryService lahetysRecoveryService) {
+    return recurring(
+            "palauta-varaukset-task",
+            Schedules.fixedDelay(Duration.ofMinutes(1)),
+            lahetysRecoveryService::palautaVanhentuneetVaraukset);
+  }
+
+  @Bean
+  public Task<Void> tilastojenKokoamisTask(LahetysTilastoService lahetysTilastoService) {
+    return recurring(
+            "kokoa-tilastot-task",
+            Schedules.fixedDelay(Duration.ofMinutes(1)),
+            lahetysTilastoService::kokoaMuutokset);
+  }
+
+  @Bean
+  public Task<Void> tilastojenKorjausTask(LahetysTilastoService lahetysTilastoService) {
+    return recurring(
+            "korjaa-tilastot-task",
+            Schedules.fixedDelay(Duration.ofHours(1)),
+            lahetysTilastoService::korjaaTilastot);
+  }
+
   private Task<Void> recurring(String name, Schedule schedule, Runnable action) {
     return Tasks.recurring(name, schedule)
             .execute(
@@ -9,9 +9,11 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
 import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
 import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.cloudwatch.CloudWatchClient;
 import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.ses.SesAsyncClient;
 import software.amazon.awssdk.services.ses.SesClient;
 
 @Configuration
@@ -23,6 +25,31 @@ public class LahetysAwsConfig {
     return SesClient.builder().region(Region.of(region)).build();
   }
 
+  /**
+   * Non-blocking SES client on the Netty transport for {@code viestinvalitys.lahetys.ses-client=async}.
+   * The connection pool is sized to the in-flight limit of the send stage. {@code aws.ses.endpoint}
+   * points the client at a stub SES, e.g. for throughput tests.
+   */
+  @Bean(destroyMethod = "close")
+  @ConditionalOnProperty(name = "viestinvalitys.lahetys.ses-client", havingValue = "async")
+  public SesAsyncClient sesAsyncClient(
+          @Value("${aws.region:eu-west-1}") String region,
+          @Value("${aws.ses.endpoint:}") String endpoint,
+          @Value("${viestinvalitys.lahetys.async.max-in-flight:64}") int maxInFlight) {
+    var builder =
+            SesAsyncClient.builder()
+                    .region(Region.of(region))
+                    .httpClientBuilder(NettyNioAsyncHttpClient.builder().maxConcurrency(maxInFlight));
+    if (!endpoint.isBlank()) {
+      builder =
+              builder
+                      .endpointOverride(URI.create(endpoint))
+                      .credentialsProvider(
+                              StaticCredentialsProvider.create(AwsBasicCredentials.create("stub", "stub")));
+    }
+    return builder.build();
+  }
+
   @Bean
   public CloudWatchClient cloudWatchClient(@Value("${aws.region:eu-west-1}") String region) {
     return CloudWatchClient.builder().region(Region.of(region)).build();
@@ -0,0 +1,122 @@
+package fi.vm.sade.viestinvalitys.lahetys.attachments;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+/**
+ * Attachment bytes shared across send batches, so that a mass mailing downloads its attachments
+ * from S3 once instead of once per batch. Attachments are immutable once uploaded, so entries never
+ * go stale; they are evicted least recently used first when the cached bytes would exceed
+ * {@code max-bytes}. Concurrent misses for the same attachment share a single download.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "viestinvalitys.lahetys.enabled", havingValue = "true")
+public class AttachmentCache {
+
+  public record Tilastot(long osumat, long hudit, long ladatutTavut, long valimuistinTavut) {
+
+    public boolean isEmpty() {
+      return osumat == 0 && hudit == 0;
+    }
+  }
+
+  private final AttachmentDownloader downloader;
+  private final long maxBytes;
+
+  private final LinkedHashMap<UUID, byte[]> liitteet = new LinkedHashMap<>(16, 0.75f, true);
+  private final Map<UUID, CompletableFuture<byte[]>> lataukset = new ConcurrentHashMap<>();
+  private long tavut;
+
+  private final LongAdder osumat = new LongAdder();
+  private final LongAdder hudit = new LongAdder();
+  private final LongAdder ladatutTavut = new LongAdder();
+
+  public AttachmentCache(
+          AttachmentDownloader downloader,
+          @Value("${viestinvalitys.lahetys.liitteet.cache-max-bytes:134217728}") long maxBytes) {
+    this.downloader = downloader;
+    this.maxBytes = maxBytes;
+  }
+
+  public byte[] get(UUID liiteTunniste) {
+    byte[] bytes = hae(liiteTunniste);
+    if (bytes != null) {
+      osumat.increment();
+      return bytes;
+    }
+    CompletableFuture<byte[]> oma = new CompletableFuture<>();
+    CompletableFuture<byte[]> lataus = lataukset.putIfAbsent(liiteTunniste, oma);
+    if (lataus != null) {
+      osumat.increment();
+      return lataus.join();
+    }
+    try {
+      // another thread may have finished the download between the lookup and putIfAbsent
+      bytes = hae(liiteTunniste);
+      if (bytes != null) {
+        osumat.increment();
+        oma.complete(bytes);
+        return bytes;
+      }
+      hudit.increment();
+      bytes = downloader.download(liiteTunniste);
+      ladatutTavut.add(bytes.length);
+      lisaa(liiteTunniste, bytes);
+      oma.complete(bytes);
+      return bytes;
+    } catch (RuntimeException e) {
+      oma.completeExceptionally(e);
+      throw e;
+    } finally {
+      lataukset.remove(liiteTunniste);
+    }
+  }
+
+  /**
+   * Returns the hit/miss counts and downloaded bytes since the previous call, and the current size
+   * of the cache.
+   */
+  public Tilastot otaTilastot() {
+    long valimuistinTavut;
+    synchronized (liitteet) {
+      valimuistinTavut = tavut;
+    }
+    return new Tilastot(osumat.sumThenReset(), hudit.sumThenReset(), ladatutTavut.sumThenReset(), valimuistinTavut);
+  }
+
+  private byte[] hae(UUID liiteTunniste) {
+    synchronized (liitteet) {
+      return liitteet.get(liiteTunniste);
+    }
+  }
+
+  private void lisaa(UUID liiteTunniste, byte[] bytes) {
+    if (bytes.length > maxBytes) {
+      log.info("Liite {} ({} tavua) on liian suuri välimuistiin", liiteTunniste, bytes.length);
+      return;
+    }
+    synchronized (liitteet) {
+      byte[] edellinen = liitteet.put(liiteTunniste, bytes);
+      tavut += bytes.length - (edellinen == null ? 0 : edellinen.length);
+      var iterator = liitteet.entrySet().iterator();
+      while (tavut > maxBytes && iterator.hasNext()) {
+        Map.Entry<UUID, byte[]> vanhin = iterator.next();
+        if (vanhin.getKey().equals(liiteTunniste)) {
+          continue;
+        }
+        tavut -= vanhin.getValue().length;
+        iterator.remove();
+      }
+    }
+  }
+}
@@ -1,7 +1,7 @@
 package fi.vm.sade.viestinvalitys.lahetys.email;
 
-import java.io.ByteArrayOutputStream;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import fi.vm.sade.viestinvalitys.lahetys.config.Mode;
 import fi.vm.sade.viestinvalitys.lahetys.model.Attachment;
@@ -9,17 +9,18 @@ import fi.vm.sade.viestinvalitys.lahetys.model.Vastaanottaja;
 import fi.vm.sade.viestinvalitys.lahetys.model.Viesti;
 import lombok.extern.slf4j.Slf4j;
 import org.simplejavamail.api.email.ContentTransferEncoding;
-import org.simplejavamail.api.email.Email;
 import org.simplejavamail.api.email.EmailPopulatingBuilder;
-import org.simplejavamail.converter.EmailConverter;
 import org.simplejavamail.email.EmailBuilder;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Component;
 import software.amazon.awssdk.core.SdkBytes;
+import software.amazon.awssdk.services.ses.SesAsyncClient;
 import software.amazon.awssdk.services.ses.SesClient;
 import software.amazon.awssdk.services.ses.model.RawMessage;
 import software.amazon.awssdk.services.ses.model.SendRawEmailRequest;
+import software.amazon.awssdk.services.ses.model.SendRawEmailResponse;
 
 @Slf4j
 @Component
@@ -27,6 +28,7 @@ import software.amazon.awssdk.services.ses.model.SendRawEmailRequest;
 public class EmailSender {
 
   private final SesClient sesClient;
+  private final ObjectProvider<SesAsyncClient> sesAsyncClient;
 
   @Value("${viestinvalitys.ses.configuration-set-name}")
   private String configurationSetName;
@@ -37,11 +39,16 @@ public class EmailSender {
   @Value("${viestinvalitys.mode:PRODUCTION}")
   private Mode mode;
 
-  public EmailSender(SesClient sesClient) {
+  public EmailSender(SesClient sesClient, ObjectProvider<SesAsyncClient> sesAsyncClient) {
     this.sesClient = sesClient;
+    this.sesAsyncClient = sesAsyncClient;
   }
 
-  public String send(Viesti viesti, Vastaanottaja vastaanottaja, List<Attachment> liitteet) {
+  /**
+   * Builds and serializes the message once for all of its recipients. In other than production
+   * mode the sender address is replaced with {@code from-email-address}.
+   */
+  public MimeTemplate render(Viesti viesti, List<Attachment> liitteet) {
     EmailPopulatingBuilder builder =
             EmailBuilder.startingBlank()
                     .withContentTransferEncoding(ContentTransferEncoding.BASE_64)
@@ -59,46 +66,60 @@ public class EmailSender {
       builder = builder.withAttachment(a.nimi(), a.bytes(), a.contentType());
     }
 
-    if (mode == Mode.PRODUCTION) {
-      Email email =
-              builder
-                      .from(viesti.lahettaja().nimi(), viesti.lahettaja().sahkoposti())
-                      .to(vastaanottaja.kontakti().nimi(), vastaanottaja.kontakti().sahkoposti())
-                      .buildEmail();
-      return sendRaw(email);
+    String from = mode == Mode.PRODUCTION ? viesti.lahettaja().sahkoposti() : fromEmailAddress;
+    return MimeTemplate.of(builder.from(viesti.lahettaja().nimi(), from).buildEmail(), from);
+  }
+
+  public String send(MimeTemplate viesti, Vastaanottaja vastaanottaja) {
+    SdkBytes raw = raakaViesti(viesti, vastaanottaja);
+    return raw == null ? vastaanottaja.tunniste().toString() : sesClient.sendRawEmail(request(raw)).messageId();
+  }
+
+  /** The maximum send rate of the SES account, sends per second (SES GetSendQuota). */
+  public double getMaxSendRate() {
+    return sesClient.getSendQuota().maxSendRate();
+  }
+
+  /**
+   * Sends with {@link SesAsyncClient} without blocking the caller. Available when
+   * {@code viestinvalitys.lahetys.ses-client=async}.
+   */
+  public CompletableFuture<String> sendAsync(MimeTemplate viesti, Vastaanottaja vastaanottaja) {
+    SdkBytes raw = raakaViesti(viesti, vastaanottaja);
+    if (raw == null) {
+      return CompletableFuture.completedFuture(vastaanottaja.tunniste().toString());
     }
-    return sendTest(vastaanottaja, builder.from(viesti.lahettaja().nimi(), fromEmailAddress));
+    return sesAsyncClient.getObject().sendRawEmail(request(raw)).thenApply(SendRawEmailResponse::messageId);
   }
 
-  private String sendTest(Vastaanottaja vastaanottaja, EmailPopulatingBuilder builder) {
+  /**
+   * The raw message for the recipient, or null if nothing is sent (test mode without a simulator
+   * address, in which case the message is only logged).
+   */
+  private SdkBytes raakaViesti(MimeTemplate viesti, Vastaanottaja vastaanottaja) {
+    if (mode == Mode.PRODUCTION) {
+      return viesti.render(vastaanottaja.kontakti().nimi(), vastaanottaja.kontakti().sahkoposti());
+    }
     log.info("Lähetetään viestiä testimoodissa");
     String localPart = vastaanottaja.kontakti().sahkoposti().split("@")[0];
     if (localPart.endsWith("+bounce")) {
-      return sendRaw(builder.to("bounce@simulator.amazonses.com").buildEmail());
+      return viesti.render(null, "bounce@simulator.amazonses.com");
     } else if (localPart.endsWith("+complaint")) {
-      return sendRaw(builder.to("complaint@simulator.amazonses.com").buildEmail());
+      return viesti.render(null, "complaint@simulator.amazonses.com");
     } else if (localPart.endsWith("+success")) {
-      return sendRaw(builder.to("success@simulator.amazonses.com").buildEmail());
+      return viesti.render(null, "success@simulator.amazonses.com");
     }
-    log.info(builder.to(vastaanottaja.kontakti().sahkoposti()).buildEmail().toString());
-    return vastaanottaja.tunniste().toString();
+    // the body may hold personal data and attachments, so only the headers and the size are logged
+    if (log.isDebugEnabled()) {
+      log.debug("Viestiä ei lähetetä testimoodissa, {} tavua:\n{}", viesti.size(), viesti.headers());
+    }
+    return null;
   }
 
-  private String sendRaw(Email email) {
-    byte[] raw;
-    try {
-      var stream = new ByteArrayOutputStream();
-      EmailConverter.emailToMimeMessage(email).writeTo(stream);
-      raw = stream.toByteArray();
-    } catch (Exception e) {
-      throw new RuntimeException("MIME serialization failed", e);
-    }
-    return sesClient
-            .sendRawEmail(
-                    SendRawEmailRequest.builder()
-                            .configurationSetName(configurationSetName)
-                            .rawMessage(RawMessage.builder().data(SdkBytes.fromByteArray(raw)).build())
-                            .build())
-            .messageId();
+  private SendRawEmailRequest request(SdkBytes raw) {
+    return SendRawEmailRequest.builder()
+            .configurationSetName(configurationSetName)
+            .rawMessage(RawMessage.builder().data(raw).build())
+            .build();
   }
 }
@@ -0,0 +1,113 @@
+package fi.vm.sade.viestinvalitys.lahetys.email;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.UUID;
+
+import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.MimeUtility;
+import org.simplejavamail.api.email.Email;
+import org.simplejavamail.converter.EmailConverter;
+import software.amazon.awssdk.core.SdkBytes;
+
+/**
+ * A message serialized to MIME once, without recipient. The headers and the (base64-encoded) body
+ * are kept as bytes, and {@link #render} only prepends the per-recipient To and Message-ID headers,
+ * so sending the same message to many recipients does not re-encode its attachments.
+ */
+public final class MimeTemplate {
+
+  private static final byte[] CRLF = {'\r', '\n'};
+  private static final byte[] HEADER_END = {'\r', '\n', '\r', '\n'};
+
+  private final byte[] headers;
+  private final byte[] body;
+  private final String messageIdDomain;
+
+  private MimeTemplate(byte[] headers, byte[] body, String messageIdDomain) {
+    this.headers = headers;
+    this.body = body;
+    this.messageIdDomain = messageIdDomain;
+  }
+
+  /**
+   * Serializes {@code email}, which should have no recipients, and drops its To and Message-ID
+   * headers.
+   */
+  static MimeTemplate of(Email email, String fromAddress) {
+    byte[] raw;
+    try {
+      var stream = new ByteArrayOutputStream();
+      EmailConverter.emailToMimeMessage(email).writeTo(stream);
+      raw = stream.toByteArray();
+    } catch (Exception e) {
+      throw new RuntimeException("MIME serialization failed", e);
+    }
+    int headerEnd = indexOf(raw, HEADER_END);
+    if (headerEnd < 0) {
+      throw new IllegalStateException("MIME message has no header section");
+    }
+    String headerSection = new String(raw, 0, headerEnd, StandardCharsets.US_ASCII);
+    StringBuilder headers = new StringBuilder();
+    boolean skip = false;
+    for (String line : headerSection.split("\r\n")) {
+      boolean continuation = !line.isEmpty() && (line.charAt(0) == ' ' || line.charAt(0) == '\t');
+      if (!continuation) {
+        String name = line.substring(0, Math.max(line.indexOf(':'), 0));
+        skip = name.equalsIgnoreCase("To") || name.equalsIgnoreCase("Message-ID");
+      }
+      if (!skip) {
+        headers.append(line).append("\r\n");
+      }
+    }
+    // the body keeps the blank line separating it from the headers
+    byte[] body = Arrays.copyOfRange(raw, headerEnd + CRLF.length, raw.length);
+    String domain = fromAddress.substring(fromAddress.indexOf('@') + 1);
+    return new MimeTemplate(headers.toString().getBytes(StandardCharsets.US_ASCII), body, domain);
+  }
+
+  /**
+   * The raw message addressed to {@code sahkoposti}, with a new Message-ID.
+   */
+  public SdkBytes render(String nimi, String sahkoposti) {
+    String recipientHeaders;
+    try {
+      recipientHeaders =
+              "Message-ID: <" + UUID.randomUUID() + "@" + messageIdDomain + ">\r\n"
+                      + "To: " + MimeUtility.fold(4, new InternetAddress(sahkoposti, nimi, "UTF-8").toString()) + "\r\n";
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+    byte[] recipient = recipientHeaders.getBytes(StandardCharsets.US_ASCII);
+    byte[] raw = new byte[recipient.length + headers.length + body.length];
+    System.arraycopy(recipient, 0, raw, 0, recipient.length);
+    System.arraycopy(headers, 0, raw, recipient.length, headers.length);
+    System.arraycopy(body, 0, raw, recipient.length + headers.length, body.length);
+    return SdkBytes.fromByteArrayUnsafe(raw);
+  }
+
+  /** The recipient-independent headers, such as From and the encoded Subject. */
+  public String headers() {
+    return new String(headers, StandardCharsets.US_ASCII);
+  }
+
+  /** The size of the message without the recipient headers, in bytes. */
+  public int size() {
+    return headers.length + body.length;
+  }
+
+  private static int indexOf(byte[] bytes, byte[] pattern) {
+    outer:
+    for (int i = 0; i <= bytes.length - pattern.length; i++) {
+      for (int j = 0; j < pattern.length; j++) {
+        if (bytes[i + j] != pattern[j]) {
+          continue outer;
+        }
+      }
+      return i;
+    }
+    return -1;
+  }
+}
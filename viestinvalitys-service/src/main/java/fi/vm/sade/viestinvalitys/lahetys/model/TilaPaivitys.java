@@ -0,0 +1,15 @@
+package fi.vm.sade.viestinvalitys.lahetys.model;
+
+import jakarta.annotation.Nullable;
+
+import java.util.UUID;
+
+/**
+ * Result of a send attempt for one Vastaanottaja, written to the database in batches.
+ */
+public record TilaPaivitys(
+        UUID tunniste,
+        VastaanottajanTila tila,
+        @Nullable String sesTunniste,
+        @Nullable String lisatiedot) {
+}
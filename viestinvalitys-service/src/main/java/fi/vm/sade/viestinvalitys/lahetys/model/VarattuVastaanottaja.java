@@ -0,0 +1,13 @@
+package fi.vm.sade.viestinvalitys.lahetys.model;
+
+import java.util.UUID;
+
+/**
+ * A Vastaanottaja claimed for sending, with how long it waited in the queue.
+ */
+public record VarattuVastaanottaja(
+        UUID tunniste,
+        UUID lahetysTunniste,
+        Prioriteetti prioriteetti,
+        long jonotusMillis) {
+}
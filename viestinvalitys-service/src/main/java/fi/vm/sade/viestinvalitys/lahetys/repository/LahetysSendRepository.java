@@ -1,5 +1,6 @@
 package fi.vm.sade.viestinvalitys.lahetys.repository;
 
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
@@ -10,6 +11,7 @@ import java.util.UUID;
 
 import fi.vm.sade.viestinvalitys.lahetys.model.*;
 import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
 import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
@@ -26,25 +28,133 @@ public class LahetysSendRepository {
   private final JdbcTemplate jdbc;
   private final NamedParameterJdbcTemplate namedJdbc;
 
+  @Value("${viestinvalitys.lahetys.jonoon-palautuksen-viive-seconds:10}")
+  private long palautuksenViiveSeconds;
+
+  /**
+   * Claims up to {@code maara} waiting recipients by removing them from {@code lahetysjono} and moving
+   * them to LAHETYKSESSA. The claim is a lease: it records the claim time and {@code varaaja}, and
+   * {@link #palautaVanhentuneetVaraukset} returns recipients whose lease has expired to the queue.
+   * A queue row whose recipient is no longer ODOTTAA is removed without claiming the recipient.
+   *
+   * <p>Higher priority goes first. Within a priority the lähetykset take turns (weighted
+   * round-robin): the n:th waiting recipient of a lähetys gets turn n / paino, where paino is the
+   * weight of its lahettavapalvelu in {@code palveluidenPainot} (1 if not listed), and the recipients
+   * with the lowest turns are claimed, oldest first. A lähetys of 100 000 recipients thus does not
+   * hold back a small one queued after it. The lähetykset in the queue are found by skipping through
+   * the index from one lähetys to the next, and at most {@code maara} recipients of each are read.
+   *
+   * <p>The candidates are read without locking and only the chosen ones are locked, in turn order
+   * until {@code maara} have been locked. Locking every candidate would hold up to (lähetykset ×
+   * maara) rows until commit, and concurrent claims would skip rows they could have taken.
+   */
   @Transactional
-  public List<UUID> getLahetettavatVastaanottajat(int maara) {
+  public List<VarattuVastaanottaja> getLahetettavatVastaanottajat(
+          int maara, String varaaja, Map<String, Integer> palveluidenPainot) {
     if (maara <= 0) {
       return List.of();
     }
-    List<UUID> tunnisteet =
+    List<String> palvelut = new ArrayList<>();
+    List<String> painot = new ArrayList<>();
+    palveluidenPainot.forEach((palvelu, paino) -> {
+      palvelut.add(palvelu);
+      painot.add(String.valueOf(paino));
+    });
+    List<VarattuVastaanottaja> varatut =
             jdbc.query(
-                    "SELECT tunniste FROM vastaanottajat WHERE tila = 'ODOTTAA' "
-                            + "ORDER BY prioriteetti, luotu ASC FOR UPDATE SKIP LOCKED LIMIT ?",
-                    (rs, i) -> rs.getObject("tunniste", UUID.class),
-                    maara);
-    if (tunnisteet.isEmpty()) {
+                    "WITH RECURSIVE jonossa AS ("
+                            + "  (SELECT prioriteetti, lahetys_tunniste FROM lahetysjono "
+                            + "   ORDER BY prioriteetti, lahetys_tunniste LIMIT 1) "
+                            + "  UNION ALL "
+                            + "  SELECT seuraava.prioriteetti, seuraava.lahetys_tunniste FROM jonossa, LATERAL ("
+                            + "    SELECT prioriteetti, lahetys_tunniste FROM lahetysjono "
+                            + "    WHERE (prioriteetti, lahetys_tunniste) > (jonossa.prioriteetti, jonossa.lahetys_tunniste) "
+                            + "    ORDER BY prioriteetti, lahetys_tunniste LIMIT 1) seuraava), "
+                            + "painot AS (SELECT * FROM unnest(?::varchar[], ?::integer[]) AS p(lahettavapalvelu, paino)), "
+                            + "ehdokkaat AS ("
+                            + "  SELECT ehdokas.vastaanottaja_tunniste, ehdokas.prioriteetti, ehdokas.luotu, "
+                            + "    ehdokas.jarjestys::numeric / coalesce(painot.paino, 1) AS vuoro "
+                            + "  FROM jonossa CROSS JOIN LATERAL ("
+                            + "    SELECT lahetyksen.*, row_number() OVER (ORDER BY lahetyksen.luotu) AS jarjestys FROM ("
+                            + "      SELECT vastaanottaja_tunniste, prioriteetti, luotu, lahettavapalvelu FROM lahetysjono "
+                            + "      WHERE prioriteetti = jonossa.prioriteetti AND lahetys_tunniste = jonossa.lahetys_tunniste "
+                            + "      AND not_before <= now() "
+                            + "      ORDER BY luotu LIMIT ?) lahetyksen) ehdokas "
+                            + "  LEFT JOIN painot ON painot.lahettavapalvelu = ehdokas.lahettavapalvelu), "
+                            + "valitut AS ("
+                            + "  SELECT lahetysjono.vastaanottaja_tunniste FROM lahetysjono "
+                            + "  JOIN ehdokkaat ON ehdokkaat.vastaanottaja_tunniste = lahetysjono.vastaanottaja_tunniste "
+                            + "  ORDER BY ehdokkaat.prioriteetti, ehdokkaat.vuoro, ehdokkaat.luotu LIMIT ? "
+                            + "  FOR UPDATE OF lahetysjono SKIP LOCKED), "
+                            + "jonosta AS ("
+                            + "  DELETE FROM lahetysjono USING valitut "
+                            + "  WHERE lahetysjono.vastaanottaja_tunniste = valitut.vastaanottaja_tunniste "
+                            + "  RETURNING lahetysjono.vastaanottaja_tunniste, lahetysjono.luotu) "
+                            + "UPDATE vastaanottajat SET tila = 'LAHETYKSESSA', varattu = now(), varaaja = ? "
+                            + "FROM jonosta WHERE vastaanottajat.tunniste = jonosta.vastaanottaja_tunniste "
+                            + "AND vastaanottajat.tila = 'ODOTTAA' "
+                            + "RETURNING vastaanottajat.tunniste, vastaanottajat.lahetys_tunniste, vastaanottajat.prioriteetti, "
+                            + "(extract(epoch FROM localtimestamp - jonosta.luotu) * 1000)::bigint AS jonotus_millis",
+                    (rs, i) ->
+                            new VarattuVastaanottaja(
+                                    rs.getObject("tunniste", UUID.class),
+                                    rs.getObject("lahetys_tunniste", UUID.class),
+                                    Prioriteetti.valueOf(rs.getString("prioriteetti")),
+                                    rs.getLong("jonotus_millis")),
+                    palvelut.toArray(String[]::new),
+                    painot.toArray(String[]::new),
+                    maara,
+                    maara,
+                    varaaja);
+    if (varatut.isEmpty()) {
       return List.of();
     }
-    List<Object[]> batch = tunnisteet.stream().map(t -> new Object[]{t}).toList();
-    jdbc.batchUpdate("UPDATE vastaanottajat SET tila = 'LAHETYKSESSA' WHERE tunniste = ?", batch);
+    List<Object[]> batch = varatut.stream().map(v -> new Object[]{v.tunniste()}).toList();
     jdbc.batchUpdate(
             "INSERT INTO vastaanottaja_siirtymat VALUES (?, now(), 'LAHETYKSESSA', null)", batch);
-    return tunnisteet;
+    return varatut;
+  }
+
+  /**
+   * Number of recipients in LAHETYKSESSA whose lease is older than {@code varauksenKesto}.
+   */
+  public int getVanhentuneidenVaraustenMaara(Duration varauksenKesto) {
+    Integer maara =
+            jdbc.queryForObject(
+                    "SELECT count(*) FROM vastaanottajat "
+                            + "WHERE tila = 'LAHETYKSESSA' AND varattu < now() - ? * interval '1 second'",
+                    Integer.class,
+                    varauksenKesto.toSeconds());
+    return maara == null ? 0 : maara;
+  }
+
+  /**
+   * Returns up to {@code maara} recipients whose lease is older than {@code varauksenKesto} to
+   * ODOTTAA and records the transition together with the previous lease holder. Recipients that
+   * already have a ses_tunniste have been accepted by SES and are never re-queued. The returned
+   * recipients can be claimed again after {@code jonoon-palautuksen-viive-seconds}.
+   *
+   * @return the re-queued recipients
+   */
+  @Transactional
+  public List<UUID> palautaVanhentuneetVaraukset(Duration varauksenKesto, int maara) {
+    List<UUID> palautetut = jdbc.query(
+            "WITH vanhentuneet AS ("
+                    + "  SELECT tunniste, varaaja FROM vastaanottajat "
+                    + "  WHERE tila = 'LAHETYKSESSA' AND ses_tunniste IS NULL AND varattu < now() - ? * interval '1 second' "
+                    + "  ORDER BY varattu FOR UPDATE SKIP LOCKED LIMIT ?), "
+                    + "palautetut AS ("
+                    + "  UPDATE vastaanottajat SET tila = 'ODOTTAA', varattu = null, varaaja = null "
+                    + "  FROM vanhentuneet WHERE vastaanottajat.tunniste = vanhentuneet.tunniste "
+                    + "  RETURNING vastaanottajat.tunniste, vanhentuneet.varaaja) "
+                    + "INSERT INTO vastaanottaja_siirtymat (vastaanottaja_tunniste, aika, tila, lisatiedot) "
+                    + "SELECT tunniste, now(), 'ODOTTAA', 'Lähetyksen varaus vanhentui (varaaja ' || coalesce(varaaja, '-') || ')' "
+                    + "FROM palautetut RETURNING vastaanottaja_tunniste",
+            (rs, i) -> rs.getObject("vastaanottaja_tunniste", UUID.class),
+            varauksenKesto.toSeconds(),
+            maara);
+    viivastyta(palautetut.stream().map(UUID::toString).toArray(String[]::new));
+    return palautetut;
   }
 
   public List<Vastaanottaja> getVastaanottajat(List<UUID> tunnisteet) {
@@ -114,6 +224,61 @@ public class LahetysSendRepository {
     return result;
   }
 
+  /**
+   * Records that SES accepted the message for the recipient, without its transition, which is
+   * written later in a batch with {@link #lisaaSiirtymat}. Written right after the SES call, so that
+   * the recipient is never left in LAHETYKSESSA without its ses_tunniste, which would get it
+   * requeued and sent again.
+   */
+  public void merkitseLahetetyksi(UUID tunniste, String sesTunniste) {
+    jdbc.update(
+            "UPDATE vastaanottajat SET tila = 'LAHETETTY', ses_tunniste = ? WHERE tunniste = ?",
+            sesTunniste,
+            tunniste);
+  }
+
+  /** Inserts the transitions of recipients whose state has already been written, with one multi-row INSERT. */
+  public void lisaaSiirtymat(List<TilaPaivitys> paivitykset) {
+    if (paivitykset.isEmpty()) {
+      return;
+    }
+    jdbc.update(
+            "INSERT INTO vastaanottaja_siirtymat (vastaanottaja_tunniste, aika, tila, lisatiedot) "
+                    + "SELECT tunniste, now(), tila, lisatiedot "
+                    + "FROM unnest(?::uuid[], ?::varchar[], ?::varchar[]) AS p(tunniste, tila, lisatiedot)",
+            paivitykset.stream().map(p -> p.tunniste().toString()).toArray(String[]::new),
+            paivitykset.stream().map(p -> p.tila().name()).toArray(String[]::new),
+            paivitykset.stream().map(TilaPaivitys::lisatiedot).toArray(String[]::new));
+  }
+
+  /**
+   * Applies the state transitions of many recipients with one UPDATE and one multi-row INSERT into
+   * {@code vastaanottaja_siirtymat}, in a single transaction. Recipients returned to ODOTTAA can be
+   * claimed again after {@code jonoon-palautuksen-viive-seconds}.
+   */
+  @Transactional
+  public void paivitaVastaanottajienTilat(List<TilaPaivitys> paivitykset) {
+    if (paivitykset.isEmpty()) {
+      return;
+    }
+    String[] tunnisteet = paivitykset.stream().map(p -> p.tunniste().toString()).toArray(String[]::new);
+    String[] tilat = paivitykset.stream().map(p -> p.tila().name()).toArray(String[]::new);
+    String[] sesTunnisteet = paivitykset.stream().map(TilaPaivitys::sesTunniste).toArray(String[]::new);
+    jdbc.update(
+            "UPDATE vastaanottajat SET tila = p.tila, ses_tunniste = coalesce(p.ses_tunniste, vastaanottajat.ses_tunniste) "
+                    + "FROM unnest(?::uuid[], ?::varchar[], ?::varchar[]) AS p(tunniste, tila, ses_tunniste) "
+                    + "WHERE vastaanottajat.tunniste = p.tunniste",
+            tunnisteet,
+            tilat,
+            sesTunnisteet);
+    lisaaSiirtymat(paivitykset);
+    viivastyta(
+            paivitykset.stream()
+                    .filter(p -> p.tila() == VastaanottajanTila.ODOTTAA)
+                    .map(p -> p.tunniste().toString())
+                    .toArray(String[]::new));
+  }
+
   @Transactional
   public void paivitaVastaanottajaLahetetyksi(UUID tunniste, String sesTunniste) {
     jdbc.update(
@@ -135,5 +300,22 @@ public class LahetysSendRepository {
     jdbc.update("UPDATE vastaanottajat SET tila = 'ODOTTAA' WHERE tunniste = ?", tunniste);
     jdbc.update(
             "INSERT INTO vastaanottaja_siirtymat VALUES (?, now(), 'ODOTTAA', ?)", tunniste, lisatiedot);
+    viivastyta(new String[] {tunniste.toString()});
+  }
+
+  /**
+   * Sets the not_before of recipients just returned to the queue, so that a throttled recipient or
+   * one whose sender died is not claimed again right away. The queue row is added by the
+   * lahetysjono_palauta trigger in the same transaction, so no claim sees it without the delay.
+   */
+  private void viivastyta(String[] tunnisteet) {
+    if (tunnisteet.length == 0) {
+      return;
+    }
+    jdbc.update(
+            "UPDATE lahetysjono SET not_before = now() + ? * interval '1 second' "
+                    + "WHERE vastaanottaja_tunniste = ANY(?::uuid[])",
+            palautuksenViiveSeconds,
+            tunnisteet);
   }
 }
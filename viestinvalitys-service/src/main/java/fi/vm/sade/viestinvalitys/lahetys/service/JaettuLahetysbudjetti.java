@@ -0,0 +1,127 @@
+package fi.vm.sade.viestinvalitys.lahetys.service;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+
+/**
+ * Send budget shared by all instances: a token bucket in one row of lahetysbudjetti. Every send
+ * takes a turn from it, whether started by {@code laheta-task}, a {@link LahetysHeratin} wakeup on
+ * any instance or the workers of multi-worker mode. The bucket refills at {@code nopeus} per second
+ * and holds at most one take, a tenth of a second of sends, so the instances together never send
+ * faster than the rate plus that burst, however many of them run.
+ *
+ * <p>The rate is adjusted like {@link LahetysnopeudenSaadin} adjusts the local one, but for all
+ * instances: a throttling response on any instance halves it, at most once per second, and it grows
+ * back by {@code lisaysSekunnissa} per second up to {@code tavoite}, which the instances set from the
+ * SES quota.
+ *
+ * <p>Tokens are taken with a single UPDATE that refills the bucket and grows the rate from the time
+ * elapsed since the previous take and subtracts the taken tokens, so concurrent takes serialize on
+ * the row lock. To keep that to a few statements per second, each take gets up to a tenth of a
+ * second of sends and the instance spends them locally. Tokens left unspent when sending stops are
+ * lost, which only errs on the slow side.
+ */
+@Service
+@ConditionalOnProperty(name = "viestinvalitys.lahetys.enabled", havingValue = "true")
+public class JaettuLahetysbudjetti {
+
+  static final String BUDJETTI = "ses";
+
+  private static final String KULUNUT = "greatest(0, extract(epoch FROM aika.nyt - paivitetty)::float8)";
+  /** Tokens available at the time of the take: the stored ones plus the refill, at most one take. */
+  private static final String SAATAVILLA =
+          "least(greatest(1, nopeus / 10), tokenit + " + KULUNUT + " * nopeus)";
+  private static final String OTETTAVAT = "least(?, floor(" + SAATAVILLA + "))::integer";
+
+  private final JdbcTemplate jdbc;
+  private final double lisaysSekunnissa;
+  /**
+   * Guards the local tokens. A lock rather than synchronized, because a take is a DB round trip
+   * and the send threads are virtual: waiting on a monitor would pin their carriers meanwhile.
+   */
+  private final ReentrantLock lukko = new ReentrantLock();
+
+  /** Tokens taken from the row but not yet spent by this instance. */
+  private int varatut;
+  /** The rate read with the latest take, sizes the next take. */
+  private double nopeus = 1;
+
+  public JaettuLahetysbudjetti(
+          JdbcTemplate jdbc, @Value("${viestinvalitys.lahetys.nopeus.lisays-sekunnissa:1}") double lisaysSekunnissa) {
+    this.jdbc = jdbc;
+    this.lisaysSekunnissa = lisaysSekunnissa;
+  }
+
+  /** Sets the target rate, every instance sets it from the same SES quota. A lower target applies at once. */
+  public void asetaTavoite(double tavoite) {
+    jdbc.update(
+            "UPDATE lahetysbudjetti SET tavoite = ?, nopeus = least(nopeus, ?) WHERE nimi = ?",
+            tavoite,
+            tavoite,
+            BUDJETTI);
+  }
+
+  /**
+   * Records a throttling response from SES and halves the shared rate, unless some instance already
+   * lowered it within the last second. Returns the rate if it was lowered, otherwise null.
+   */
+  public Double kuristettu() {
+    return jdbc.query(
+            "UPDATE lahetysbudjetti SET nopeus = greatest(" + LahetysnopeudenSaadin.MIN_NOPEUS + ", nopeus / 2), "
+                    + "kuristettu = clock_timestamp() "
+                    + "WHERE nimi = ? AND kuristettu < clock_timestamp() - interval '1 second' "
+                    + "RETURNING nopeus",
+            rs -> rs.next() ? rs.getDouble("nopeus") : null,
+            BUDJETTI);
+  }
+
+  /** Blocks until this instance may make one send. */
+  public void acquire() throws InterruptedException {
+    while (true) {
+      long odotusNanos;
+      lukko.lockInterruptibly();
+      try {
+        if (varatut > 0) {
+          varatut--;
+          return;
+        }
+        int kerralla = Math.max(1, (int) (nopeus / 10));
+        Otto otto = ota(kerralla);
+        nopeus = otto.nopeus();
+        if (otto.otetut() > 0) {
+          varatut = otto.otetut() - 1;
+          return;
+        }
+        // until one take's worth has refilled, the other instances compete for the same tokens
+        odotusNanos = (long) (TimeUnit.SECONDS.toNanos(1) * Math.max(1, kerralla - otto.tokenit()) / nopeus);
+      } finally {
+        lukko.unlock();
+      }
+      TimeUnit.NANOSECONDS.sleep(odotusNanos);
+    }
+  }
+
+  private record Otto(int otetut, double tokenit, double nopeus) {}
+
+  private Otto ota(int enintaan) {
+    return jdbc.queryForObject(
+            "UPDATE lahetysbudjetti SET "
+                    + "tokenit = " + SAATAVILLA + " - " + OTETTAVAT + ", "
+                    + "otetut = " + OTETTAVAT + ", "
+                    + "nopeus = least(tavoite, nopeus + ? * " + KULUNUT + "), "
+                    + "paivitetty = greatest(paivitetty, aika.nyt) "
+                    + "FROM (SELECT clock_timestamp() AS nyt) aika "
+                    + "WHERE nimi = ? "
+                    + "RETURNING otetut, tokenit, nopeus",
+            (rs, rowNum) -> new Otto(rs.getInt("otetut"), rs.getDouble("tokenit"), rs.getDouble("nopeus")),
+            enintaan,
+            enintaan,
+            lisaysSekunnissa,
+            BUDJETTI);
+  }
+}
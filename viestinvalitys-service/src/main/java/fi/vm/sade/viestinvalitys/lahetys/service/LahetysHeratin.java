@@ -0,0 +1,152 @@
+package fi.vm.sade.viestinvalitys.lahetys.service;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.UUID;
+
+import fi.vm.sade.viestinvalitys.RequestIdFilter;
+import fi.vm.sade.viestinvalitys.service.LahetysWriteService;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.postgresql.ds.PGSimpleDataSource;
+import org.slf4j.MDC;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.jdbc.autoconfigure.DataSourceProperties;
+import org.springframework.stereotype.Service;
+
+/**
+ * Wakes the sender as soon as recipients are queued instead of at the next {@code laheta-task}
+ * poll. The write paths NOTIFY {@link LahetysWriteService#LAHETYSJONO_KANAVA} in the transaction
+ * that makes recipients ODOTTAA, so a notification arrives only once the recipients are visible.
+ *
+ * <p>Every instance listens and a NOTIFY wakes all of them, not only the one running
+ * {@code laheta-task}. Their sends all take turns from the {@link JaettuLahetysbudjetti}, so together
+ * they stay within the SES quota however many instances are woken.
+ *
+ * <p>LISTEN belongs to a session, so this holds a dedicated connection outside the Hikari pool,
+ * opened from the same {@link DataSourceProperties}, and runs the woken batches on its own thread:
+ * notifications arriving during a batch are coalesced into the next one. A half-open connection would
+ * never deliver notifications, so the connection has a socket timeout and TCP keepalive and is checked
+ * with a query every {@link #TARKISTUSVALI_MILLIS}; a failed check reopens it. The poll is kept as the
+ * fallback for anything not notified (throttled recipients, returned leases) and for notifications
+ * lost while the connection is being reopened.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+@ConditionalOnProperty(name = "viestinvalitys.lahetys.enabled", havingValue = "true")
+public class LahetysHeratin {
+
+  private final LahetysSendService lahetysSendService;
+  private final DataSourceProperties dataSourceProperties;
+
+  @Value("${viestinvalitys.lahetys.heratys.enabled:true}")
+  private boolean enabled;
+
+  @Value("${viestinvalitys.lahetys.heratys.uudelleenyhdistys-seconds:5}")
+  private int uudelleenyhdistysSeconds;
+
+  @Value("${viestinvalitys.lahetys.heratys.socket-timeout-seconds:30}")
+  private int socketTimeoutSeconds;
+
+  /** How long one wait for notifications blocks, bounds how long stopping takes. */
+  private static final int ODOTUS_MILLIS = 1000;
+
+  /** How often the connection is checked with a query. */
+  private static final long TARKISTUSVALI_MILLIS = 10_000;
+
+  private volatile boolean kaynnissa;
+  private Thread kuuntelija;
+  /** Not pooled: only the listener's one connection at a time is opened from it. */
+  private PGSimpleDataSource kuuntelijanYhteydet;
+
+  @PostConstruct
+  void init() {
+    kuuntelijanYhteydet = dataSourceProperties.initializeDataSourceBuilder().type(PGSimpleDataSource.class).build();
+    kuuntelijanYhteydet.setTcpKeepAlive(true);
+    kuuntelijanYhteydet.setConnectTimeout(socketTimeoutSeconds);
+    kuuntelijanYhteydet.setSocketTimeout(socketTimeoutSeconds);
+    kuuntelijanYhteydet.setApplicationName("lahetys-heratin");
+    if (enabled) {
+      kaynnista();
+    }
+  }
+
+  public synchronized void kaynnista() {
+    if (kaynnissa) {
+      return;
+    }
+    kaynnissa = true;
+    kuuntelija = Thread.ofPlatform().name("lahetys-heratin").daemon().start(this::kuuntele);
+  }
+
+  @PreDestroy
+  public synchronized void pysayta() {
+    if (!kaynnissa) {
+      return;
+    }
+    kaynnissa = false;
+    kuuntelija.interrupt();
+    try {
+      kuuntelija.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void kuuntele() {
+    while (kaynnissa) {
+      try (Connection yhteys = kuuntelijanYhteydet.getConnection();
+           Statement lause = yhteys.createStatement()) {
+        lause.execute("LISTEN " + LahetysWriteService.LAHETYSJONO_KANAVA);
+        PGConnection pgYhteys = yhteys.unwrap(PGConnection.class);
+        log.info("Kuunnellaan lähetysjonon ilmoituksia");
+        // recipients queued while nobody was listening
+        laheta();
+        long tarkistettu = System.currentTimeMillis();
+        while (kaynnissa) {
+          PGNotification[] ilmoitukset = pgYhteys.getNotifications(ODOTUS_MILLIS);
+          if (ilmoitukset != null && ilmoitukset.length > 0) {
+            laheta();
+          }
+          if (System.currentTimeMillis() - tarkistettu >= TARKISTUSVALI_MILLIS) {
+            // fails on a dead connection after at most the socket timeout
+            lause.execute("SELECT 1");
+            tarkistettu = System.currentTimeMillis();
+          }
+        }
+      } catch (SQLException e) {
+        if (kaynnissa) {
+          log.warn("Lähetysjonon kuuntelu katkesi, yhdistetään uudelleen {} s kuluttua", uudelleenyhdistysSeconds, e);
+          odota();
+        }
+      }
+    }
+  }
+
+  private void laheta() {
+    try {
+      MDC.put(RequestIdFilter.REQUEST_ID_ATTRIBUTE, UUID.randomUUID().toString());
+      lahetysSendService.laheta();
+    } catch (RuntimeException e) {
+      // the recipients stay in the queue for the next wakeup or poll
+      log.error("Virhe herätetyssä lähetyksessä", e);
+    } finally {
+      MDC.remove(RequestIdFilter.REQUEST_ID_ATTRIBUTE);
+    }
+  }
+
+  private void odota() {
+    try {
+      Thread.sleep(uudelleenyhdistysSeconds * 1000L);
+    } catch (InterruptedException e) {
+      // stopping
+    }
+  }
+}
@@ -0,0 +1,49 @@
+package fi.vm.sade.viestinvalitys.lahetys.service;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+
+import fi.vm.sade.viestinvalitys.lahetys.repository.LahetysSendRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+/**
+ * Returns recipients stranded in LAHETYKSESSA back to the queue. A recipient is stranded when the
+ * sender that claimed it (lambda or ECS task) died before recording the result, i.e. its lease is
+ * older than {@code varauksen-kesto}. The lease must be well above the time one batch can take,
+ * otherwise a slow but live sender could have its recipients sent twice.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+@ConditionalOnProperty(name = "viestinvalitys.lahetys.enabled", havingValue = "true")
+public class LahetysRecoveryService {
+
+  private final LahetysSendRepository repository;
+  private final MetricService metricService;
+
+  @Value("${viestinvalitys.lahetys.varauksen-kesto-seconds:600}")
+  private long varauksenKestoSeconds;
+
+  @Value("${viestinvalitys.lahetys.varausten-palautus-maara:1000}")
+  private int palautusMaara;
+
+  public void palautaVanhentuneetVaraukset() {
+    Duration varauksenKesto = Duration.ofSeconds(varauksenKestoSeconds);
+    int vanhentuneet = repository.getVanhentuneidenVaraustenMaara(varauksenKesto);
+    metricService.recordVanhentuneetVaraukset(vanhentuneet);
+    if (vanhentuneet == 0) {
+      return;
+    }
+    List<UUID> palautetut = repository.palautaVanhentuneetVaraukset(varauksenKesto, palautusMaara);
+    log.warn(
+            "Palautettiin {}/{} vanhentuneen varauksen vastaanottajaa lähetysjonoon: {}",
+            palautetut.size(),
+            vanhentuneet,
+            palautetut);
+  }
+}
@@ -1,16 +1,30 @@
 package fi.vm.sade.viestinvalitys.lahetys.service;
 
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import fi.vm.sade.viestinvalitys.lahetys.audit.AuditLogService;
 import fi.vm.sade.viestinvalitys.lahetys.email.EmailSender;
+import fi.vm.sade.viestinvalitys.lahetys.email.MimeTemplate;
 import fi.vm.sade.viestinvalitys.lahetys.model.*;
 import fi.vm.sade.viestinvalitys.lahetys.repository.LahetysSendRepository;
-import fi.vm.sade.viestinvalitys.lahetys.attachments.AttachmentDownloader;
+import fi.vm.sade.viestinvalitys.lahetys.attachments.AttachmentCache;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.validator.routines.EmailValidator;
@@ -22,6 +36,19 @@ import software.amazon.awssdk.services.ses.model.SesException;
 
 /**
  * Based on Scala lahetys lambda's {@code laheta(maara)}.
+ *
+ * <p>Unlike the lambda, the claimed recipients are sent concurrently: at most {@code parallelism}
+ * recipients are in flight at once (each on its own virtual thread), and SES calls are paced by a
+ * {@link LahetysnopeudenSaadin}: its target is {@code nopeus.quota-osuus} of the account's SES send
+ * rate, read at startup and every {@code nopeus.quota-paivitys-seconds}, and a throttling response
+ * halves the rate and returns the rest of the batch to the queue. The next claim is sized from the
+ * current rate. Each send also takes a turn from the {@link JaettuLahetysbudjetti} shared by all
+ * instances, as more than one of them may be sending ({@link LahetysHeratin},
+ * {@link LahetysTyontekijat}). The resulting
+ * state transitions are collected into a {@link TilaPaivitysBuffer} and written in batches. Each
+ * message is serialized to MIME once per batch ({@link MimeTemplate}) and only its recipient
+ * headers vary between recipients. With {@code ses-client=async} the blocking send stage is replaced
+ * by pipelined requests on the non-blocking SES client.
  */
 @Slf4j
 @Service
@@ -30,12 +57,14 @@ import software.amazon.awssdk.services.ses.model.SesException;
 public class LahetysSendService {
 
   public static final String SAHKOPOSTIOSOITE_EI_VALIDI_ERROR = "Sähköpostiosoite ei validi";
+  public static final String KURISTUS_KESKEYTYS = "Lähetys keskeytettiin SES-kuristuksen takia";
 
   private final LahetysSendRepository repository;
-  private final AttachmentDownloader attachmentDownloader;
+  private final AttachmentCache attachmentCache;
   private final EmailSender emailSender;
   private final AuditLogService auditLog;
   private final MetricService metricService;
+  private final JaettuLahetysbudjetti budjetti;
 
   @Value("${viestinvalitys.lahetys.polling-interval-seconds:2}")
   private int pollingIntervalSeconds;
@@ -43,8 +72,98 @@ public class LahetysSendService {
   @Value("${viestinvalitys.lahetys.sending-quota-per-second:65}")
   private int sendingQuotaPerSecond;
 
+  @Value("${viestinvalitys.lahetys.nopeus.hae-ses-quota:true}")
+  private boolean haeSesQuota;
+
+  @Value("${viestinvalitys.lahetys.nopeus.quota-osuus:0.93}")
+  private double quotaOsuus;
+
+  @Value("${viestinvalitys.lahetys.nopeus.quota-paivitys-seconds:600}")
+  private int quotaPaivitysSeconds;
+
+  @Value("${viestinvalitys.lahetys.nopeus.lisays-sekunnissa:1}")
+  private double nopeudenLisaysSekunnissa;
+
+  @Value("${viestinvalitys.lahetys.parallelism:8}")
+  private int parallelism;
+
+  @Value("${viestinvalitys.lahetys.ses-client:sync}")
+  private String sesClient;
+
+  @Value("${viestinvalitys.lahetys.async.max-in-flight:64}")
+  private int asyncMaxInFlight;
+
+  @Value("${viestinvalitys.lahetys.tilapaivitys.flush-size:50}")
+  private int tilaPaivitysFlushSize;
+
+  @Value("${viestinvalitys.lahetys.tilapaivitys.flush-interval-millis:500}")
+  private long tilaPaivitysFlushIntervalMillis;
+
+  @Value("${viestinvalitys.lahetys.palveluiden-painot:}")
+  private String palveluidenPainotArvo;
+
+  /** Recorded as the lease holder of claimed recipients, "pid@host". */
+  private final String varaaja = ManagementFactory.getRuntimeMXBean().getName();
+
+  private LahetysnopeudenSaadin nopeudenSaadin;
+  private ScheduledExecutorService quotanPaivitys;
+
+  /** Weights of the lähetykset of each lahettavapalvelu in the claim order, 1 if not listed. */
+  private Map<String, Integer> palveluidenPainot;
+
+  @PostConstruct
+  void init() {
+    nopeudenSaadin = new LahetysnopeudenSaadin(sendingQuotaPerSecond, nopeudenLisaysSekunnissa);
+    palveluidenPainot = parsePainot(palveluidenPainotArvo);
+    // the shared rate follows sending-quota-per-second until the SES quota has been read
+    budjetti.asetaTavoite(nopeudenSaadin.tavoite());
+    if (haeSesQuota) {
+      quotanPaivitys =
+              Executors.newSingleThreadScheduledExecutor(
+                      r -> {
+                        Thread t = new Thread(r, "ses-quota");
+                        t.setDaemon(true);
+                        return t;
+                      });
+      quotanPaivitys.scheduleWithFixedDelay(this::paivitaQuota, 0, quotaPaivitysSeconds, TimeUnit.SECONDS);
+    }
+  }
+
+  @PreDestroy
+  void close() {
+    if (quotanPaivitys != null) {
+      quotanPaivitys.shutdownNow();
+    }
+  }
+
+  /**
+   * Reads the account's SES send rate and sets the target rate to {@code quota-osuus} of it. On
+   * failure the previous target, initially {@code sending-quota-per-second}, stays in effect. The
+   * target is also the rate of the shared budget.
+   */
+  void paivitaQuota() {
+    try {
+      double maxSendRate = emailSender.getMaxSendRate();
+      double tavoite = Math.floor(maxSendRate * quotaOsuus);
+      if (tavoite != nopeudenSaadin.tavoite()) {
+        log.info("SES-quota {}/s, lähetysnopeuden tavoite {}/s", maxSendRate, tavoite);
+      }
+      nopeudenSaadin.asetaTavoite(tavoite);
+    } catch (RuntimeException e) {
+      log.warn("SES-quotan haku epäonnistui, käytetään lähetysnopeuden tavoitetta {}/s", nopeudenSaadin.tavoite(), e);
+    }
+    // also after a failure, so that the shared budget uses the target named in the warning above
+    try {
+      budjetti.asetaTavoite(nopeudenSaadin.tavoite());
+    } catch (RuntimeException e) {
+      // an exception would cancel the periodic update
+      log.warn("Jaetun lähetysbudjetin tavoitteen asetus epäonnistui", e);
+    }
+  }
+
+  /** Recipients claimed at a time: what the current rate sends in one polling interval. */
   public int batchSize() {
-    return pollingIntervalSeconds * sendingQuotaPerSecond;
+    return Math.max(1, (int) (pollingIntervalSeconds * nopeudenSaadin.nopeus()));
   }
 
   public void laheta() {
@@ -52,83 +171,297 @@ public class LahetysSendService {
   }
 
   public void laheta(int maara) {
-    List<UUID> tunnisteet = repository.getLahetettavatVastaanottajat(maara);
-    if (tunnisteet.isEmpty()) {
+    metricService.recordLahetysnopeus(nopeudenSaadin.nopeus(), nopeudenSaadin.tavoite());
+    List<VarattuVastaanottaja> varatut = repository.getLahetettavatVastaanottajat(maara, varaaja, palveluidenPainot);
+    if (varatut.isEmpty()) {
       return;
     }
+    metricService.recordJonotusajat(varatut);
+    List<UUID> tunnisteet = varatut.stream().map(VarattuVastaanottaja::tunniste).toList();
     log.info("Haetaan vastaanottajien tiedot {} tunnisteelle", tunnisteet.size());
     List<Vastaanottaja> vastaanottajat = repository.getVastaanottajat(tunnisteet);
     List<UUID> viestiTunnisteet =
             vastaanottajat.stream().map(Vastaanottaja::viestiTunniste).distinct().toList();
-    Map<UUID, Viesti> viestit = repository.getViestit(viestiTunnisteet);
-    Map<UUID, List<Liite>> liitteet = repository.getViestinLiitteet(viestiTunnisteet);
-    Map<UUID, List<Attachment>> ladatutLiitteet = new HashMap<>();
+    Era era =
+            new Era(
+                    repository.getViestit(viestiTunnisteet),
+                    repository.getViestinLiitteet(viestiTunnisteet),
+                    new ConcurrentHashMap<>(),
+                    new TilaPaivitysBuffer(repository, tilaPaivitysFlushSize, tilaPaivitysFlushIntervalMillis),
+                    Collections.synchronizedList(new ArrayList<>()),
+                    new AtomicBoolean(),
+                    MDC.getCopyOfContextMap());
+    try {
+      if ("async".equals(sesClient)) {
+        lahetaAsync(vastaanottajat, era);
+      } else {
+        lahetaRinnakkain(vastaanottajat, era);
+      }
+    } finally {
+      era.tilaPaivitykset().flush();
+    }
+    metricService.recordLahetykset(era.lahetetyt());
+    metricService.recordLiiteValimuisti(attachmentCache.otaTilastot());
+  }
 
-    List<Prioriteetti> lahetetyt = new ArrayList<>();
-    for (Vastaanottaja vastaanottaja : vastaanottajat) {
-      MDC.put("vastaanottajaTunniste", vastaanottaja.tunniste().toString());
-      MDC.put("viestiTunniste", vastaanottaja.viestiTunniste().toString());
-      try {
-        lahetaYhdelle(vastaanottaja, viestit, liitteet, ladatutLiitteet, lahetetyt);
-      } finally {
-        MDC.remove("vastaanottajaTunniste");
-        MDC.remove("viestiTunniste");
+  /** Parses weights given as palvelu=paino,palvelu=paino. */
+  static Map<String, Integer> parsePainot(String painot) {
+    Map<String, Integer> tulos = new HashMap<>();
+    for (String paino : painot.split(",")) {
+      if (paino.isBlank()) {
+        continue;
+      }
+      int erotin = paino.lastIndexOf('=');
+      if (erotin <= 0) {
+        throw new IllegalArgumentException("Virheellinen palvelun paino: " + paino);
+      }
+      int arvo = Integer.parseInt(paino.substring(erotin + 1).trim());
+      if (arvo < 1) {
+        throw new IllegalArgumentException("Palvelun painon on oltava vähintään 1: " + paino);
       }
+      tulos.put(paino.substring(0, erotin).trim(), arvo);
     }
-    metricService.recordLahetykset(lahetetyt);
+    return Map.copyOf(tulos);
   }
 
-  private void lahetaYhdelle(
-          Vastaanottaja vastaanottaja,
+  /**
+   * State of one {@link #laheta(int)} call shared by the recipients of the batch.
+   */
+  private record Era(
           Map<UUID, Viesti> viestit,
           Map<UUID, List<Liite>> liitteet,
-          Map<UUID, List<Attachment>> ladatutLiitteet,
-          List<Prioriteetti> lahetetyt) {
-    UUID tunniste = vastaanottaja.tunniste();
+          Map<UUID, CompletableFuture<MimeTemplate>> valmiitViestit,
+          TilaPaivitysBuffer tilaPaivitykset,
+          List<Prioriteetti> lahetetyt,
+          AtomicBoolean kuristettu,
+          Map<String, String> mdc) {
+
+    void asetaMdc(Vastaanottaja vastaanottaja) {
+      if (mdc != null) {
+        MDC.setContextMap(mdc);
+      }
+      MDC.put("vastaanottajaTunniste", vastaanottaja.tunniste().toString());
+      MDC.put("viestiTunniste", vastaanottaja.viestiTunniste().toString());
+    }
+  }
+
+  /**
+   * Sends with the blocking SES client, each recipient on its own virtual thread, at most
+   * {@code parallelism} at a time.
+   */
+  private void lahetaRinnakkain(List<Vastaanottaja> vastaanottajat, Era era) {
+    Semaphore vapaat = new Semaphore(parallelism);
+    try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      for (Vastaanottaja vastaanottaja : vastaanottajat) {
+        vapaat.acquireUninterruptibly();
+        executor.submit(
+                () -> {
+                  era.asetaMdc(vastaanottaja);
+                  try {
+                    lahetaYhdelle(vastaanottaja, era);
+                  } finally {
+                    MDC.clear();
+                    vapaat.release();
+                  }
+                });
+      }
+    }
+  }
+
+  private void lahetaYhdelle(Vastaanottaja vastaanottaja, Era era) {
     try {
-      if (!EmailValidator.getInstance().isValid(vastaanottaja.kontakti().sahkoposti())) {
-        log.warn("Vastaanottajan {} sähköposti ei ole validi, siirretään virhetilaan", tunniste);
-        auditLog.logStateChange(
-                tunniste, vastaanottaja.tila(), VastaanottajanTila.VIRHE, SAHKOPOSTIOSOITE_EI_VALIDI_ERROR);
-        repository.paivitaVastaanottajaVirhetilaan(tunniste, SAHKOPOSTIOSOITE_EI_VALIDI_ERROR);
+      MimeTemplate viesti = valmistele(vastaanottaja, era);
+      if (viesti == null) {
+        return;
+      }
+      if (!odotaVuoroa(era)) {
+        palautaJonoon(vastaanottaja, era);
         return;
       }
+      kirjaaLahetetyksi(vastaanottaja, era, emailSender.send(viesti, vastaanottaja));
+    } catch (Exception e) {
+      kirjaaVirhe(vastaanottaja, era, e);
+    }
+  }
+
+  /**
+   * Sends with {@link software.amazon.awssdk.services.ses.SesAsyncClient}: this thread only renders
+   * and dispatches, at most {@code async.max-in-flight} requests are outstanding, and the results are
+   * recorded by completion callbacks (on virtual threads, as recording may write to the database).
+   */
+  private void lahetaAsync(List<Vastaanottaja> vastaanottajat, Era era) {
+    Semaphore vapaat = new Semaphore(asyncMaxInFlight);
+    List<CompletableFuture<Void>> kesken = new ArrayList<>();
+    try (ExecutorService kasittelijat = Executors.newVirtualThreadPerTaskExecutor()) {
+      for (Vastaanottaja vastaanottaja : vastaanottajat) {
+        era.asetaMdc(vastaanottaja);
+        try {
+          MimeTemplate viesti = valmistele(vastaanottaja, era);
+          if (viesti == null) {
+            continue;
+          }
+          vapaat.acquire();
+          boolean lahetetty = false;
+          try {
+            if (!odotaVuoroa(era)) {
+              palautaJonoon(vastaanottaja, era);
+              continue;
+            }
+            kesken.add(
+                    emailSender
+                            .sendAsync(viesti, vastaanottaja)
+                            .handleAsync(
+                                    (sesTunniste, virhe) -> {
+                                      era.asetaMdc(vastaanottaja);
+                                      try {
+                                        if (virhe == null) {
+                                          kirjaaLahetetyksi(vastaanottaja, era, sesTunniste);
+                                        } else {
+                                          kirjaaVirhe(
+                                                  vastaanottaja,
+                                                  era,
+                                                  virhe instanceof CompletionException && virhe.getCause() != null
+                                                          ? virhe.getCause()
+                                                          : virhe);
+                                        }
+                                      } finally {
+                                        MDC.clear();
+                                        vapaat.release();
+                                      }
+                                      return null;
+                                    },
+                                    kasittelijat));
+            lahetetty = true;
+          } finally {
+            if (!lahetetty) {
+              vapaat.release();
+            }
+          }
+        } catch (Exception e) {
+          kirjaaVirhe(vastaanottaja, era, e);
+        } finally {
+          if (era.mdc() != null) {
+            MDC.setContextMap(era.mdc());
+          } else {
+            MDC.clear();
+          }
+        }
+      }
+      CompletableFuture.allOf(kesken.toArray(CompletableFuture[]::new)).join();
+    }
+  }
+
+  /**
+   * Blocks until the current rate and the shared budget allow one more send. Returns false without
+   * taking a turn if the batch has been throttled, either before or while waiting, as its remaining
+   * recipients go back to the queue.
+   */
+  private boolean odotaVuoroa(Era era) throws InterruptedException {
+    if (era.kuristettu().get()) {
+      return false;
+    }
+    nopeudenSaadin.acquire();
+    if (era.kuristettu().get()) {
+      return false;
+    }
+    budjetti.acquire();
+    return !era.kuristettu().get();
+  }
 
-      Viesti viesti = viestit.get(vastaanottaja.viestiTunniste());
-      List<Attachment> attachments =
-              ladatutLiitteet.computeIfAbsent(
-                      viesti.tunniste(),
-                      k ->
-                              liitteet.getOrDefault(k, List.of()).stream()
-                                      .map(
-                                              l ->
-                                                      new Attachment(
-                                                              l.nimi(), l.contentType(), attachmentDownloader.download(l.tunniste())))
-                                      .toList());
-
-      String sesTunniste = emailSender.send(viesti, vastaanottaja, attachments);
+  /**
+   * Renders the recipient's message (once per message and batch), or moves the recipient to VIRHE
+   * and returns null if its address is invalid. The first recipient of a message renders it outside
+   * the map, and the others wait for its future, so downloading the attachments holds no map lock.
+   * A failed render is removed from the map: the recipients waiting for it fail with its error,
+   * later ones try again.
+   */
+  private MimeTemplate valmistele(Vastaanottaja vastaanottaja, Era era) {
+    UUID tunniste = vastaanottaja.tunniste();
+    if (!EmailValidator.getInstance().isValid(vastaanottaja.kontakti().sahkoposti())) {
+      log.warn("Vastaanottajan {} sähköposti ei ole validi, siirretään virhetilaan", tunniste);
+      auditLog.logStateChange(
+              tunniste, vastaanottaja.tila(), VastaanottajanTila.VIRHE, SAHKOPOSTIOSOITE_EI_VALIDI_ERROR);
+      era.tilaPaivitykset().add(
+              new TilaPaivitys(tunniste, VastaanottajanTila.VIRHE, null, SAHKOPOSTIOSOITE_EI_VALIDI_ERROR));
+      return null;
+    }
+    Viesti viesti = era.viestit().get(vastaanottaja.viestiTunniste());
+    CompletableFuture<MimeTemplate> uusi = new CompletableFuture<>();
+    CompletableFuture<MimeTemplate> valmis = era.valmiitViestit().putIfAbsent(viesti.tunniste(), uusi);
+    if (valmis == null) {
+      valmis = uusi;
+      try {
+        uusi.complete(render(viesti, era));
+      } catch (Throwable e) {
+        // also on an Error, so that the recipients waiting for the render do not wait forever
+        era.valmiitViestit().remove(viesti.tunniste(), uusi);
+        uusi.completeExceptionally(e);
+      }
+    }
+    try {
+      return valmis.join();
+    } catch (CompletionException e) {
+      throw e.getCause() instanceof RuntimeException re ? re : e;
+    }
+  }
+
+  private MimeTemplate render(Viesti viesti, Era era) {
+    return emailSender.render(
+            viesti,
+            era.liitteet().getOrDefault(viesti.tunniste(), List.of()).stream()
+                    .map(l -> new Attachment(l.nimi(), l.contentType(), attachmentCache.get(l.tunniste())))
+                    .toList());
+  }
+
+  private void kirjaaLahetetyksi(Vastaanottaja vastaanottaja, Era era, String sesTunniste) {
+    UUID tunniste = vastaanottaja.tunniste();
+    try {
       auditLog.logSendEmail(
               tunniste, sesTunniste, vastaanottaja.tila(), VastaanottajanTila.LAHETETTY);
-      repository.paivitaVastaanottajaLahetetyksi(tunniste, sesTunniste);
-      lahetetyt.add(viesti.prioriteetti());
+      era.tilaPaivitykset().add(new TilaPaivitys(tunniste, VastaanottajanTila.LAHETETTY, sesTunniste, null));
+      era.lahetetyt().add(era.viestit().get(vastaanottaja.viestiTunniste()).prioriteetti());
       log.info("Lähetetty viesti vastaanottajalle {}", tunniste);
-    } catch (SesException e) {
-      if (e.isThrottlingException()) {
-        log.error("Kuristus lähettäessä vastaanottajalle {}, kokeillaan myöhemmin uudestaan", tunniste, e);
-        auditLog.logStateChange(
-                tunniste, vastaanottaja.tila(), VastaanottajanTila.ODOTTAA, e.getMessage());
-        repository.paivitaVastaanottajaOdottaaTilaan(tunniste, e.getMessage());
-      } else {
-        log.error("Virhe lähetettäessä vastaanottajalle {}", tunniste, e);
-        auditLog.logStateChange(
-                tunniste, vastaanottaja.tila(), VastaanottajanTila.VIRHE, e.getMessage());
-        repository.paivitaVastaanottajaVirhetilaan(tunniste, e.getMessage());
-      }
     } catch (Exception e) {
+      kirjaaVirhe(vastaanottaja, era, e);
+    }
+  }
+
+  /** Returns a recipient not sent because the batch was throttled to the queue. */
+  private void palautaJonoon(Vastaanottaja vastaanottaja, Era era) {
+    auditLog.logStateChange(
+            vastaanottaja.tunniste(), vastaanottaja.tila(), VastaanottajanTila.ODOTTAA, KURISTUS_KESKEYTYS);
+    era.tilaPaivitykset().add(
+            new TilaPaivitys(vastaanottaja.tunniste(), VastaanottajanTila.ODOTTAA, null, KURISTUS_KESKEYTYS));
+  }
+
+  private void kirjaaVirhe(Vastaanottaja vastaanottaja, Era era, Throwable e) {
+    UUID tunniste = vastaanottaja.tunniste();
+    if (e instanceof SesException se && se.isThrottlingException()) {
+      log.error("Kuristus lähettäessä vastaanottajalle {}, kokeillaan myöhemmin uudestaan", tunniste, e);
+      era.kuristettu().set(true);
+      if (nopeudenSaadin.kuristettu()) {
+        log.warn("Lähetysnopeus laskettiin {}/s kuristuksen takia", nopeudenSaadin.nopeus());
+      }
+      // the other instances send to the same SES account
+      Double jaettuNopeus = budjetti.kuristettu();
+      if (jaettuNopeus != null) {
+        log.warn("Instanssien yhteinen lähetysnopeus laskettiin {}/s kuristuksen takia", jaettuNopeus);
+      }
+      auditLog.logStateChange(
+              tunniste, vastaanottaja.tila(), VastaanottajanTila.ODOTTAA, e.getMessage());
+      era.tilaPaivitykset().add(new TilaPaivitys(tunniste, VastaanottajanTila.ODOTTAA, null, e.getMessage()));
+    } else if (e instanceof InterruptedException) {
+      Thread.currentThread().interrupt();
+      log.warn("Lähetys vastaanottajalle {} keskeytettiin, kokeillaan myöhemmin uudestaan", tunniste);
+      auditLog.logStateChange(
+              tunniste, vastaanottaja.tila(), VastaanottajanTila.ODOTTAA, "Lähetys keskeytettiin");
+      era.tilaPaivitykset().add(
+              new TilaPaivitys(tunniste, VastaanottajanTila.ODOTTAA, null, "Lähetys keskeytettiin"));
+    } else {
       log.error("Virhe lähetettäessä vastaanottajalle {}", tunniste, e);
       auditLog.logStateChange(
               tunniste, vastaanottaja.tila(), VastaanottajanTila.VIRHE, e.getMessage());
-      repository.paivitaVastaanottajaVirhetilaan(tunniste, e.getMessage());
+      era.tilaPaivitykset().add(new TilaPaivitys(tunniste, VastaanottajanTila.VIRHE, null, e.getMessage()));
     }
   }
 }
@@ -0,0 +1,78 @@
+package fi.vm.sade.viestinvalitys.lahetys.service;
+
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fi.vm.sade.viestinvalitys.RequestIdFilter;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.MDC;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+/**
+ * Sending in multi-worker mode. The db-scheduler {@code laheta-task} runs on one instance at a
+ * time, so instead every instance polls on {@code moniajo.tyontekijat} threads of its own. The
+ * claim skips rows locked by other claims, so the workers take disjoint batches, and the
+ * {@link JaettuLahetysbudjetti} keeps their combined rate within the SES quota.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+@ConditionalOnProperty(name = "viestinvalitys.lahetys.enabled", havingValue = "true")
+@ConditionalOnProperty(name = "viestinvalitys.lahetys.moniajo.enabled", havingValue = "true")
+public class LahetysTyontekijat {
+
+  private final LahetysSendService lahetysSendService;
+
+  @Value("${viestinvalitys.lahetys.polling-interval-seconds:2}")
+  private int pollingIntervalSeconds;
+
+  @Value("${viestinvalitys.lahetys.moniajo.tyontekijat:2}")
+  private int tyontekijat;
+
+  private ScheduledExecutorService ajastin;
+
+  @PostConstruct
+  void init() {
+    AtomicInteger numero = new AtomicInteger();
+    ajastin =
+            Executors.newScheduledThreadPool(
+                    tyontekijat,
+                    r -> {
+                      Thread t = new Thread(r, "lahetys-tyontekija-" + numero.incrementAndGet());
+                      t.setDaemon(true);
+                      return t;
+                    });
+    long valiMillis = TimeUnit.SECONDS.toMillis(pollingIntervalSeconds);
+    for (int i = 0; i < tyontekijat; i++) {
+      // spread over the interval so that the workers do not all claim at once
+      ajastin.scheduleWithFixedDelay(this::laheta, i * valiMillis / tyontekijat, valiMillis, TimeUnit.MILLISECONDS);
+    }
+    log.info("Lähetetään {} työntekijällä", tyontekijat);
+  }
+
+  @PreDestroy
+  void close() throws InterruptedException {
+    ajastin.shutdownNow();
+    ajastin.awaitTermination(10, TimeUnit.SECONDS);
+  }
+
+  private void laheta() {
+    try {
+      MDC.put(RequestIdFilter.REQUEST_ID_ATTRIBUTE, UUID.randomUUID().toString());
+      lahetysSendService.laheta();
+    } catch (RuntimeException e) {
+      // an exception would cancel the worker's schedule, the recipients stay in the queue for the next poll
+      log.error("Virhe lähetyksessä", e);
+    } finally {
+      MDC.remove(RequestIdFilter.REQUEST_ID_ATTRIBUTE);
+    }
+  }
+}
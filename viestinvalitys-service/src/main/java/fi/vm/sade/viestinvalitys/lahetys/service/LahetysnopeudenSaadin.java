@@ -0,0 +1,86 @@
+package fi.vm.sade.viestinvalitys.lahetys.service;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adjusts the SES send rate by AIMD: a throttling response halves the rate, and without throttling
+ * the rate grows back by {@code lisaysSekunnissa} per second up to the target, which is the share of
+ * the account's SES send rate this service may use. Throttling responses to requests that were
+ * already in flight when the rate was lowered do not lower it again: the rate is lowered at most
+ * once per {@link #KURISTUKSEN_VALI_NANOS}.
+ */
+class LahetysnopeudenSaadin {
+
+  /** The rate never drops below one send per second. */
+  static final double MIN_NOPEUS = 1.0;
+
+  private static final long KURISTUKSEN_VALI_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private final TokenBucket tokenBucket;
+  private final double lisaysSekunnissa;
+  private double tavoite;
+  private double nopeus;
+  private long paivitettyNanos;
+  private long kuristettuNanos;
+
+  LahetysnopeudenSaadin(double tavoite, double lisaysSekunnissa) {
+    this.tavoite = Math.max(MIN_NOPEUS, tavoite);
+    this.nopeus = this.tavoite;
+    this.lisaysSekunnissa = lisaysSekunnissa;
+    this.paivitettyNanos = System.nanoTime();
+    this.kuristettuNanos = paivitettyNanos - KURISTUKSEN_VALI_NANOS;
+    this.tokenBucket = new TokenBucket(nopeus);
+  }
+
+  /** Blocks until a send is allowed at the current rate. */
+  void acquire() throws InterruptedException {
+    nopeus();
+    tokenBucket.acquire();
+  }
+
+  /** The current rate, sends per second. */
+  synchronized double nopeus() {
+    long nyt = System.nanoTime();
+    if (nopeus < tavoite) {
+      double lisays = lisaysSekunnissa * (nyt - paivitettyNanos) / TimeUnit.SECONDS.toNanos(1);
+      aseta(Math.min(tavoite, nopeus + lisays));
+    }
+    paivitettyNanos = nyt;
+    return nopeus;
+  }
+
+  synchronized double tavoite() {
+    return tavoite;
+  }
+
+  /** Sets a new target, e.g. after the account's SES quota changed. A lower target applies at once. */
+  synchronized void asetaTavoite(double uusiTavoite) {
+    nopeus();
+    tavoite = Math.max(MIN_NOPEUS, uusiTavoite);
+    if (nopeus > tavoite) {
+      aseta(tavoite);
+    }
+  }
+
+  /**
+   * Records a throttling response from SES and halves the rate, unless it was already lowered
+   * within the last second. Returns whether the rate was lowered.
+   */
+  synchronized boolean kuristettu() {
+    long nyt = System.nanoTime();
+    if (nyt - kuristettuNanos < KURISTUKSEN_VALI_NANOS) {
+      return false;
+    }
+    nopeus();
+    kuristettuNanos = nyt;
+    aseta(Math.max(MIN_NOPEUS, nopeus / 2));
+    return true;
+  }
+
+  private void aseta(double uusiNopeus) {
+    if (uusiNopeus != nopeus) {
+      nopeus = uusiNopeus;
+      tokenBucket.setPermitsPerSecond(nopeus);
+    }
+  }
+}
@@ -0,0 +1,135 @@
+package fi.vm.sade.viestinvalitys.lahetys.service;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import software.amazon.awssdk.services.cloudwatch.CloudWatchClient;
+import software.amazon.awssdk.services.cloudwatch.model.Dimension;
+import software.amazon.awssdk.services.cloudwatch.model.MetricDatum;
+import software.amazon.awssdk.services.cloudwatch.model.PutMetricDataRequest;
+import software.amazon.awssdk.services.cloudwatch.model.StandardUnit;
+import software.amazon.awssdk.services.cloudwatch.model.StatisticSet;
+
+/**
+ * Aggregates metric values in process and publishes them to CloudWatch on a background thread
+ * every {@code flush-interval-seconds}, so that recording a metric never makes a CloudWatch call.
+ * Values are aggregated per metric name, unit and dimensions into a statistic set (count, sum, min,
+ * max); a counter is simply a metric whose values are the increments. A failed publish is logged and
+ * its values dropped.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+@ConditionalOnProperty(name = "viestinvalitys.lahetys.enabled", havingValue = "true")
+public class MetricAggregator {
+
+  /** CloudWatch accepts at most 1000 datums per PutMetricData request. */
+  static final int MAX_DATUMS_PER_REQUEST = 1000;
+
+  private record Avain(String nimi, StandardUnit yksikko, Map<String, String> dimensiot) {}
+
+  private record Tilasto(long maara, double summa, double min, double max) {
+
+    static Tilasto of(double arvo) {
+      return new Tilasto(1, arvo, arvo, arvo);
+    }
+
+    Tilasto yhdista(Tilasto muu) {
+      return new Tilasto(maara + muu.maara, summa + muu.summa, Math.min(min, muu.min), Math.max(max, muu.max));
+    }
+  }
+
+  private final CloudWatchClient cloudWatchClient;
+
+  @Value("${viestinvalitys.metrics.namespace}")
+  private String namespace;
+
+  @Value("${viestinvalitys.metrics.flush-interval-seconds:10}")
+  private int flushIntervalSeconds;
+
+  private final Map<Avain, Tilasto> tilastot = new ConcurrentHashMap<>();
+  private ScheduledExecutorService ajastin;
+
+  @PostConstruct
+  void init() {
+    ajastin =
+            Executors.newSingleThreadScheduledExecutor(
+                    r -> {
+                      Thread t = new Thread(r, "metric-aggregator");
+                      t.setDaemon(true);
+                      return t;
+                    });
+    ajastin.scheduleWithFixedDelay(this::flush, flushIntervalSeconds, flushIntervalSeconds, TimeUnit.SECONDS);
+  }
+
+  @PreDestroy
+  void close() {
+    ajastin.shutdownNow();
+    flush();
+  }
+
+  public void count(String nimi, Map<String, String> dimensiot, long maara) {
+    record(nimi, StandardUnit.COUNT, dimensiot, maara);
+  }
+
+  public void record(String nimi, StandardUnit yksikko, Map<String, String> dimensiot, double arvo) {
+    tilastot.merge(new Avain(nimi, yksikko, new TreeMap<>(dimensiot)), Tilasto.of(arvo), Tilasto::yhdista);
+  }
+
+  /**
+   * Publishes everything aggregated so far.
+   */
+  public void flush() {
+    Instant nyt = Instant.now();
+    List<MetricDatum> datums = new ArrayList<>();
+    for (Avain avain : List.copyOf(tilastot.keySet())) {
+      Tilasto tilasto = tilastot.remove(avain);
+      if (tilasto != null) {
+        datums.add(datum(avain, tilasto, nyt));
+      }
+    }
+    for (int i = 0; i < datums.size(); i += MAX_DATUMS_PER_REQUEST) {
+      List<MetricDatum> osa = datums.subList(i, Math.min(i + MAX_DATUMS_PER_REQUEST, datums.size()));
+      try {
+        cloudWatchClient.putMetricData(
+                PutMetricDataRequest.builder().namespace(namespace).metricData(osa).build());
+      } catch (Exception e) {
+        log.error("Metriikoiden ({} kpl) tallennus epäonnistui", osa.size(), e);
+      }
+    }
+  }
+
+  private static MetricDatum datum(Avain avain, Tilasto tilasto, Instant aika) {
+    return MetricDatum.builder()
+            .metricName(avain.nimi())
+            .dimensions(
+                    avain.dimensiot().entrySet().stream()
+                            .map(d -> Dimension.builder().name(d.getKey()).value(d.getValue()).build())
+                            .toList())
+            .statisticValues(
+                    StatisticSet.builder()
+                            .sampleCount((double) tilasto.maara())
+                            .sum(tilasto.summa())
+                            .minimum(tilasto.min())
+                            .maximum(tilasto.max())
+                            .build())
+            .storageResolution(1)
+            .timestamp(aika)
+            .unit(avain.yksikko())
+            .build();
+  }
+}
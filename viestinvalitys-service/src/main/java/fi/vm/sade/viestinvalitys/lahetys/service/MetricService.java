@@ -1,47 +1,81 @@
 package fi.vm.sade.viestinvalitys.lahetys.service;
 
-import java.time.Instant;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
+import fi.vm.sade.viestinvalitys.lahetys.attachments.AttachmentCache;
 import fi.vm.sade.viestinvalitys.lahetys.model.Prioriteetti;
+import fi.vm.sade.viestinvalitys.lahetys.model.VarattuVastaanottaja;
 import lombok.RequiredArgsConstructor;
-import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Service;
-import software.amazon.awssdk.services.cloudwatch.CloudWatchClient;
-import software.amazon.awssdk.services.cloudwatch.model.Dimension;
-import software.amazon.awssdk.services.cloudwatch.model.MetricDatum;
-import software.amazon.awssdk.services.cloudwatch.model.PutMetricDataRequest;
 import software.amazon.awssdk.services.cloudwatch.model.StandardUnit;
 
+/**
+ * The application's metrics. Values are aggregated by {@link MetricAggregator} and published to
+ * CloudWatch in the background.
+ */
 @Service
 @RequiredArgsConstructor
 @ConditionalOnProperty(name = "viestinvalitys.lahetys.enabled", havingValue = "true")
 public class MetricService {
 
-  private final CloudWatchClient cloudWatchClient;
-
-  @Value("${viestinvalitys.metrics.namespace}")
-  private String namespace;
+  private final MetricAggregator aggregator;
 
   public void recordLahetykset(List<Prioriteetti> prioriteetit) {
-    if (prioriteetit.isEmpty()) {
+    prioriteetit.stream()
+            .collect(Collectors.groupingBy(Function.identity(), Collectors.counting()))
+            .forEach((p, maara) -> aggregator.count("LahetyksienMaara", Map.of("Prioriteetti", p.name()), maara));
+  }
+
+  /**
+   * Queue wait time of each lähetys in a claimed batch: one value per lähetys, the wait of its
+   * oldest claimed recipient, so that a lähetys held back by others shows as the maximum.
+   */
+  public void recordJonotusajat(List<VarattuVastaanottaja> varatut) {
+    varatut.stream()
+            .collect(Collectors.toMap(
+                    VarattuVastaanottaja::lahetysTunniste, Function.identity(),
+                    (a, b) -> a.jonotusMillis() >= b.jonotusMillis() ? a : b))
+            .values()
+            .forEach(v -> aggregator.record(
+                    "LahetyksenJonotusaika", StandardUnit.MILLISECONDS,
+                    Map.of("Prioriteetti", v.prioriteetti().name()), v.jonotusMillis()));
+  }
+
+  /**
+   * The current SES send rate of this instance and the target it grows back to after throttling.
+   */
+  public void recordLahetysnopeus(double nopeus, double tavoite) {
+    aggregator.record("Lahetysnopeus", StandardUnit.COUNT_SECOND, Map.of(), nopeus);
+    aggregator.record("LahetysnopeudenTavoite", StandardUnit.COUNT_SECOND, Map.of(), tavoite);
+  }
+
+  /**
+   * Recipients of a message accepted by the vastaanotto API.
+   */
+  public void recordVastaanotot(int vastaanottajienMaara, String prioriteetti) {
+    aggregator.record(
+            "VastaanottojenMaara", StandardUnit.COUNT, Map.of("Prioriteetti", prioriteetti), vastaanottajienMaara);
+  }
+
+  /**
+   * Number of recipients stranded in LAHETYKSESSA with an expired lease, recorded on every
+   * recovery sweep so that zero is reported too.
+   */
+  public void recordVanhentuneetVaraukset(int maara) {
+    aggregator.record("VanhentuneetVaraukset", StandardUnit.COUNT, Map.of(), maara);
+  }
+
+  public void recordLiiteValimuisti(AttachmentCache.Tilastot tilastot) {
+    if (tilastot.isEmpty()) {
       return;
     }
-    List<MetricDatum> datums =
-            prioriteetit.stream()
-                    .map(
-                            p ->
-                                    MetricDatum.builder()
-                                            .metricName("LahetyksienMaara")
-                                            .value(1.0)
-                                            .storageResolution(1)
-                                            .dimensions(Dimension.builder().name("Prioriteetti").value(p.name()).build())
-                                            .timestamp(Instant.now())
-                                            .unit(StandardUnit.COUNT)
-                                            .build())
-                    .toList();
-    cloudWatchClient.putMetricData(
-            PutMetricDataRequest.builder().namespace(namespace).metricData(datums).build());
+    aggregator.count("LiiteValimuistiOsumat", Map.of(), tilastot.osumat());
+    aggregator.count("LiiteValimuistiHudit", Map.of(), tilastot.hudit());
+    aggregator.record("LiitteitaLadattu", StandardUnit.BYTES, Map.of(), tilastot.ladatutTavut());
+    aggregator.record("LiiteValimuistinKoko", StandardUnit.BYTES, Map.of(), tilastot.valimuistinTavut());
   }
 }
@@ -0,0 +1,132 @@
+package fi.vm.sade.viestinvalitys.lahetys.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import fi.vm.sade.viestinvalitys.lahetys.model.TilaPaivitys;
+import fi.vm.sade.viestinvalitys.lahetys.model.VastaanottajanTila;
+import fi.vm.sade.viestinvalitys.lahetys.repository.LahetysSendRepository;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Write-behind buffer for the state updates of one send batch. Results are written with
+ * {@link LahetysSendRepository#paivitaVastaanottajienTilat} once {@code flushSize} results have
+ * accumulated or the oldest buffered result is older than {@code flushInterval}, and finally by
+ * {@link #flush()} at the end of the batch.
+ *
+ * <p>A successfully sent recipient must never be left in LAHETYKSESSA without its ses_tunniste, as
+ * that would get it requeued and sent again, also when the process dies before the next flush.
+ * LAHETETTY and the ses_tunniste are therefore written at once with
+ * {@link LahetysSendRepository#merkitseLahetetyksi} and only their transitions are buffered. The
+ * other results are safe to lose: their recipients are returned to the queue when the lease expires.
+ * If a batched write fails, the results are written one by one with the single-row repository
+ * methods, and any result that still cannot be written is logged together with its ses_tunniste so
+ * it can be recovered.
+ */
+@Slf4j
+class TilaPaivitysBuffer {
+
+  private final LahetysSendRepository repository;
+  private final int flushSize;
+  private final long flushIntervalNanos;
+
+  private List<TilaPaivitys> puskuri = new ArrayList<>();
+  /** Results whose state has already been written, only their transitions are buffered. */
+  private List<TilaPaivitys> siirtymat = new ArrayList<>();
+  private long vanhinNanos;
+
+  TilaPaivitysBuffer(LahetysSendRepository repository, int flushSize, long flushIntervalMillis) {
+    this.repository = repository;
+    this.flushSize = Math.max(1, flushSize);
+    this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+  }
+
+  void add(TilaPaivitys paivitys) {
+    boolean tilaKirjoitettu = paivitys.tila() == VastaanottajanTila.LAHETETTY && kirjoitaLahetetyksi(paivitys);
+    Puskurit kirjoitettavat = null;
+    synchronized (this) {
+      if (puskuri.isEmpty() && siirtymat.isEmpty()) {
+        vanhinNanos = System.nanoTime();
+      }
+      (tilaKirjoitettu ? siirtymat : puskuri).add(paivitys);
+      if (puskuri.size() + siirtymat.size() >= flushSize || System.nanoTime() - vanhinNanos >= flushIntervalNanos) {
+        kirjoitettavat = otaPuskurit();
+      }
+    }
+    if (kirjoitettavat != null) {
+      kirjoita(kirjoitettavat);
+    }
+  }
+
+  void flush() {
+    Puskurit kirjoitettavat;
+    synchronized (this) {
+      kirjoitettavat = otaPuskurit();
+    }
+    kirjoita(kirjoitettavat);
+  }
+
+  private record Puskurit(List<TilaPaivitys> paivitykset, List<TilaPaivitys> siirtymat) {}
+
+  private Puskurit otaPuskurit() {
+    Puskurit otetut = new Puskurit(puskuri, siirtymat);
+    puskuri = new ArrayList<>();
+    siirtymat = new ArrayList<>();
+    return otetut;
+  }
+
+  /** Returns false if the write failed, the result is then written with the batch. */
+  private boolean kirjoitaLahetetyksi(TilaPaivitys paivitys) {
+    try {
+      repository.merkitseLahetetyksi(paivitys.tunniste(), paivitys.sesTunniste());
+      return true;
+    } catch (Exception e) {
+      log.error(
+              "Vastaanottajan {} lähetyksen tallennus epäonnistui (sesTunniste {}), yritetään uudelleen erässä",
+              paivitys.tunniste(),
+              paivitys.sesTunniste(),
+              e);
+      return false;
+    }
+  }
+
+  private void kirjoita(Puskurit kirjoitettavat) {
+    if (!kirjoitettavat.paivitykset().isEmpty()) {
+      try {
+        repository.paivitaVastaanottajienTilat(kirjoitettavat.paivitykset());
+      } catch (Exception e) {
+        log.error(
+                "Tilapäivitysten eräkirjoitus epäonnistui, kirjoitetaan {} päivitystä yksitellen",
+                kirjoitettavat.paivitykset().size(),
+                e);
+        kirjoitettavat.paivitykset().forEach(this::kirjoitaYksi);
+      }
+    }
+    if (!kirjoitettavat.siirtymat().isEmpty()) {
+      try {
+        repository.lisaaSiirtymat(kirjoitettavat.siirtymat());
+      } catch (Exception e) {
+        // the recipients are already LAHETETTY, only their history is incomplete
+        log.error("{} lähetetyn vastaanottajan siirtymän tallennus epäonnistui", kirjoitettavat.siirtymat().size(), e);
+      }
+    }
+  }
+
+  private void kirjoitaYksi(TilaPaivitys paivitys) {
+    try {
+      switch (paivitys.tila()) {
+        case LAHETETTY -> repository.paivitaVastaanottajaLahetetyksi(paivitys.tunniste(), paivitys.sesTunniste());
+        case ODOTTAA -> repository.paivitaVastaanottajaOdottaaTilaan(paivitys.tunniste(), paivitys.lisatiedot());
+        default -> repository.paivitaVastaanottajaVirhetilaan(paivitys.tunniste(), paivitys.lisatiedot());
+      }
+    } catch (Exception e) {
+      log.error(
+              "Vastaanottajan {} tilan {} tallennus epäonnistui (sesTunniste {})",
+              paivitys.tunniste(),
+              paivitys.tila(),
+              paivitys.sesTunniste(),
+              e);
+    }
+  }
+}
@@ -0,0 +1,59 @@
+package fi.vm.sade.viestinvalitys.lahetys.service;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket limiting the SES call rate of the concurrent send stage to the rate set by
+ * {@link LahetysnopeudenSaadin}. The bucket holds at most one second's worth of tokens, so a burst
+ * never exceeds the per-second rate.
+ */
+class TokenBucket {
+
+  private double permitsPerSecond;
+  private double capacity;
+  private double tokens;
+  private long lastRefillNanos;
+
+  TokenBucket(double permitsPerSecond) {
+    this.lastRefillNanos = System.nanoTime();
+    setPermitsPerSecond(permitsPerSecond);
+    this.tokens = capacity;
+  }
+
+  /**
+   * Changes the rate. Tokens accumulated at the old rate are kept up to the new capacity.
+   */
+  synchronized void setPermitsPerSecond(double permitsPerSecond) {
+    if (permitsPerSecond <= 0) {
+      throw new IllegalArgumentException("permitsPerSecond must be positive");
+    }
+    refill();
+    this.permitsPerSecond = permitsPerSecond;
+    this.capacity = Math.max(1.0, permitsPerSecond);
+    this.tokens = Math.min(tokens, capacity);
+  }
+
+  /**
+   * Blocks until a token is available and takes it.
+   */
+  void acquire() throws InterruptedException {
+    while (true) {
+      long waitNanos;
+      synchronized (this) {
+        refill();
+        if (tokens >= 1.0) {
+          tokens -= 1.0;
+          return;
+        }
+        waitNanos = (long) ((1.0 - tokens) / permitsPerSecond * TimeUnit.SECONDS.toNanos(1));
+      }
+      TimeUnit.NANOSECONDS.sleep(Math.max(waitNanos, 1));
+    }
+  }
+
+  private void refill() {
+    long now = System.nanoTime();
+    tokens = Math.min(capacity, tokens + (now - lastRefillNanos) * permitsPerSecond / TimeUnit.SECONDS.toNanos(1));
+    lastRefillNanos = now;
+  }
+}
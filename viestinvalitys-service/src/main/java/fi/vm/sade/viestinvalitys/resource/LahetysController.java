@@ -5,16 +5,21 @@ import fi.vm.sade.viestinvalitys.dto.LuoLahetysRequest;
 import fi.vm.sade.viestinvalitys.dto.LuoViestiRequest;
 import fi.vm.sade.viestinvalitys.dto.Maski;
 import fi.vm.sade.viestinvalitys.lahetys.audit.AuditLogService;
+import fi.vm.sade.viestinvalitys.lahetys.service.MetricService;
 import fi.vm.sade.viestinvalitys.security.SecurityOperations;
+import fi.vm.sade.viestinvalitys.service.KorkeanPrioriteetinRajoitin;
 import fi.vm.sade.viestinvalitys.service.LahetysService;
 import fi.vm.sade.viestinvalitys.service.LahetysWriteService;
 import fi.vm.sade.viestinvalitys.validation.LahetysMetadata;
 import fi.vm.sade.viestinvalitys.validation.LahetysValidator;
 import fi.vm.sade.viestinvalitys.validation.LiiteMetadata;
 import fi.vm.sade.viestinvalitys.util.LanguageDetection;
+import fi.vm.sade.viestinvalitys.util.NdjsonReader;
 import fi.vm.sade.viestinvalitys.validation.ParametriUtil;
+import fi.vm.sade.viestinvalitys.validation.ViestiJsonReader;
 import fi.vm.sade.viestinvalitys.validation.ViestiValidator;
 import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.ObjectProvider;
@@ -22,7 +27,12 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import tools.jackson.databind.ObjectMapper;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
@@ -40,21 +50,37 @@ import java.util.stream.Collectors;
 @RequiredArgsConstructor
 public class LahetysController {
 
-    // High-priority (KORKEA) rate limit: PRIORITEETTI_KORKEA_RATELIMIT_VIESTIA_SEKUNNISSA (=1) *
-    // PRIORITEETTI_KORKEA_RATELIMIT_AIKAIKKUNA_SEKUNTIA (=5), mirroring the vastaanotto lambda.
-    private static final int RATELIMIT_AIKAIKKUNA_SEKUNTIA = 5;
-    private static final int RATELIMIT_VIESTEJA_AIKAIKKUNASSA = 5;
     private static final String VIESTI_RATELIMIT_VIRHE = "Liikaa korkean prioriteetin lähetyspyyntöjä";
+    private static final String VIESTIN_LUONTI_EPAONNISTUI = "Viestin luonti epäonnistui";
+    private static final String VIRHEELLINEN_VIESTI_JSON_VIRHE = "Viestin json-deserialisointi epäonnistui";
+    private static final String RIVI_LIIAN_PITKA_VIRHE = "Rivi on liian pitkä";
+    private static final String RIVIN_LAHETYSTUNNISTE_VIRHE =
+            "lahetysTunniste: Rivin lähetystunniste ei vastaa polun lähetystunnistetta";
 
     private final LahetysService lahetysService;
     private final LahetysWriteService lahetysWriteService;
+    private final KorkeanPrioriteetinRajoitin korkeanPrioriteetinRajoitin;
     // Audit is best-effort: a logging failure must not fail an already-succeeded create.
     private final ObjectProvider<AuditLogService> auditLogService;
+    // Metrics are only aggregated in memory here and published in the background.
+    private final ObjectProvider<MetricService> metricService;
+    private final ObjectMapper objectMapper;
 
     // In non-PRODUCTION mode the rate limiter can be bypassed with the disableRateLimiter param.
     @Value("${viestinvalitys.mode:PRODUCTION}")
     private String mode;
 
+    // A bulk chunk is saved when it has this many viestit or this many bytes of JSON, whichever comes
+    // first; together with the line limit this bounds the memory used by one bulk request.
+    @Value("${viestinvalitys.vastaanotto.bulk.era-koko:100}")
+    private int bulkEraKoko;
+
+    @Value("${viestinvalitys.vastaanotto.bulk.era-max-tavut:16777216}")
+    private int bulkEraMaxTavut;
+
+    @Value("${viestinvalitys.vastaanotto.bulk.max-rivin-koko:25165824}")
+    private int bulkMaxRivinKoko;
+
     @PostMapping(
             path = "/v1/lahetykset",
             consumes = MediaType.APPLICATION_JSON_VALUE,
@@ -90,25 +116,22 @@ public class LahetysController {
             consumes = MediaType.APPLICATION_JSON_VALUE,
             produces = MediaType.APPLICATION_JSON_VALUE)
     public ResponseEntity<Object> luoViesti(
-            @RequestBody LuoViestiRequest body,
             @RequestParam(name = "disableRateLimiter", defaultValue = "false") boolean disableRateLimiter,
-            HttpServletRequest request) {
+            HttpServletRequest request) throws IOException {
         var secOps = new SecurityOperations(request.getSession(false));
         if (!secOps.hasSendRights()) {
             return ResponseEntity.status(403).build();
         }
         String identiteetti = secOps.getUsername();
 
-        // rate limit high-priority (KORKEA) requests per sender (checked on the request's own
-        // prioriteetti field, like the lambda; bypassable outside PRODUCTION for tests)
-        boolean korkeaPrioriteetti =
-                body.prioriteetti() != null && "korkea".equalsIgnoreCase(body.prioriteetti());
-        if (("PRODUCTION".equals(mode) || !disableRateLimiter) && korkeaPrioriteetti) {
-            int maara = lahetysWriteService.korkeanPrioriteetinViestienMaara(
-                    identiteetti, RATELIMIT_AIKAIKKUNA_SEKUNTIA);
-            if (maara + 1 > RATELIMIT_VIESTEJA_AIKAIKKUNASSA) {
-                return ResponseEntity.status(429).body(Map.of("validointiVirheet", List.of(VIESTI_RATELIMIT_VIRHE)));
-            }
+        // the body is read as a stream and reading stops at the first exceeded size limit
+        LuoViestiRequest body;
+        try {
+            body = ViestiJsonReader.lue(objectMapper, request.getInputStream());
+        } catch (ViestiJsonReader.RajaYlitetty e) {
+            return ResponseEntity.badRequest().body(Map.of("validointiVirheet", List.of(e.getMessage())));
+        } catch (ViestiJsonReader.VirheellinenJson e) {
+            return ResponseEntity.badRequest().body(Map.of("validointiVirheet", List.of(VIRHEELLINEN_VIESTI_JSON_VIRHE)));
         }
 
         // resolve the target Lahetys (owner + priority) so the validator can check existence/ownership
@@ -121,28 +144,36 @@ public class LahetysController {
         if (!virheet.isEmpty()) {
             return ResponseEntity.badRequest().body(Map.of("validointiVirheet", virheet));
         }
+        // rate limit high-priority (KORKEA) requests per sender (checked on the request's own
+        // prioriteetti field, like the lambda; bypassable outside PRODUCTION for tests). The grant is
+        // taken only for a valid viesti that is not a replay, and returned if it is not saved.
+        boolean rajoitaKorkeaa = ("PRODUCTION".equals(mode) || !disableRateLimiter)
+                && body.prioriteetti() != null && "korkea".equalsIgnoreCase(body.prioriteetti());
+        int varattu = 0;
         try {
-            // idempotency: return the previously saved Viesti instead of creating (and sending) a duplicate
+            // idempotency: return the previously saved Viesti instead of creating (and sending) a duplicate;
+            // a recent key is found in memory, an older one by the insert
             String idempotencyKey = body.idempotencyKey();
             if (idempotencyKey != null && !idempotencyKey.isEmpty()) {
-                var olemassa = lahetysWriteService.haeOlemassaOlevaViesti(identiteetti, idempotencyKey);
+                var olemassa = lahetysWriteService.haeViimeaikainenViesti(identiteetti, idempotencyKey);
                 if (olemassa.isPresent()) {
                     return ResponseEntity.ok(Map.of(
                             "viestiTunniste", olemassa.get().viestiTunniste().toString(),
                             "lahetysTunniste", olemassa.get().lahetysTunniste().toString()));
                 }
             }
-
-            // detect language from content when kielet is omitted (like the lambda)
-            Set<String> kielet = (body.kielet() == null || body.kielet().isEmpty())
-                    ? LanguageDetection.tunnistaKieli(body.sisalto())
-                    : new LinkedHashSet<>(body.kielet());
+            if (rajoitaKorkeaa) {
+                varattu = korkeanPrioriteetinRajoitin.varaa(identiteetti, 1);
+                if (varattu == 0) {
+                    return ResponseEntity.status(429).body(Map.of("validointiVirheet", List.of(VIESTI_RATELIMIT_VIRHE)));
+                }
+            }
 
             var saved = lahetysWriteService.tallennaViesti(
                     body.otsikko(),
                     body.sisalto(),
                     body.sisallonTyyppi().toUpperCase(Locale.ROOT),
-                    kielet,
+                    kielet(body),
                     maskitToMap(body.maskit()),
                     body.lahettavanVirkailijanOid(),
                     toKontakti(body.lahettaja()),
@@ -156,15 +187,237 @@ public class LahetysController {
                     identiteetti,
                     body.sailytysaika() == null ? 0 : body.sailytysaika(),
                     idempotencyKey);
+            if (!saved.uusi()) {
+                vapautaKiintio(identiteetti, varattu);
+                return ResponseEntity.ok(Map.of(
+                        "viestiTunniste", saved.viestiTunniste().toString(),
+                        "lahetysTunniste", saved.lahetysTunniste().toString()));
+            }
             bestEffortAudit(a -> a.logCreateViesti(saved.viestiTunniste(), saved.lahetysTunniste()));
+            String prioriteetti = body.prioriteetti() != null
+                    ? body.prioriteetti().toUpperCase(Locale.ROOT)
+                    : lahetysMetadata.filter(LahetysMetadata::korkeaPrioriteetti).isPresent() ? "KORKEA" : "NORMAALI";
+            metricService.ifAvailable(m -> m.recordVastaanotot(saved.vastaanottajaTunnisteet().size(), prioriteetti));
             return ResponseEntity.ok(Map.of(
                     "viestiTunniste", saved.viestiTunniste().toString(),
                     "lahetysTunniste", saved.lahetysTunniste().toString()));
         } catch (Exception e) {
             log.error("Viestin luonti epäonnistui", e);
+            vapautaKiintio(identiteetti, varattu);
             return ResponseEntity.status(500)
-                    .body(Map.of("validointiVirheet", List.of("Viestin luonti epäonnistui")));
+                    .body(Map.of("validointiVirheet", List.of(VIESTIN_LUONTI_EPAONNISTUI)));
+        }
+    }
+
+    /** A line of a bulk request: the parsed viesti until it is saved or rejected, then its result. */
+    private static final class BulkRivi {
+        private final int numero;
+        private LuoViestiRequest viesti;
+        private Map<String, Object> tulos;
+
+        private BulkRivi(int numero) {
+            this.numero = numero;
+        }
+    }
+
+    /**
+     * Bulk variant of {@link #luoViesti} for one existing Lahetys. The body is newline-delimited JSON
+     * with one viesti per line, without the fields inherited from the Lahetys. Lines are validated as
+     * they are read and saved in chunks, and the response streams one result line per input line in
+     * the same order, so memory use does not depend on the body size. A failing line does not affect
+     * the other lines; the request itself only fails if the caller may not send to the Lahetys.
+     */
+    @PostMapping(
+            path = "/v1/lahetykset/{lahetysTunniste}/viestit",
+            consumes = MediaType.APPLICATION_NDJSON_VALUE,
+            produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public void luoViestit(
+            @PathVariable String lahetysTunniste,
+            @RequestParam(name = "disableRateLimiter", defaultValue = "false") boolean disableRateLimiter,
+            HttpServletRequest request,
+            HttpServletResponse response) throws IOException {
+        var secOps = new SecurityOperations(request.getSession(false));
+        if (!secOps.hasSendRights()) {
+            response.setStatus(403);
+            return;
+        }
+        String identiteetti = secOps.getUsername();
+        Optional<LahetysMetadata> lahetysMetadata = ParametriUtil.asUUID(lahetysTunniste)
+                .flatMap(lahetysWriteService::haeLahetysMetadata);
+        var lahetysVirheet = ViestiValidator.validateLahetysTunniste(lahetysTunniste, lahetysMetadata, identiteetti);
+        if (!lahetysVirheet.isEmpty()) {
+            response.setStatus(400);
+            response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+            response.getOutputStream().write(
+                    objectMapper.writeValueAsBytes(Map.of("validointiVirheet", new ArrayList<>(lahetysVirheet))));
+            return;
+        }
+        UUID tunniste = UUID.fromString(lahetysTunniste);
+        boolean korkeaPrioriteetti = lahetysMetadata.get().korkeaPrioriteetti();
+        boolean rajoitaKorkeaa = ("PRODUCTION".equals(mode) || !disableRateLimiter) && korkeaPrioriteetti;
+
+        response.setStatus(200);
+        response.setContentType(MediaType.APPLICATION_NDJSON_VALUE);
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        OutputStream out = response.getOutputStream();
+        var lukija = new NdjsonReader(request.getInputStream(), bulkMaxRivinKoko);
+        List<BulkRivi> era = new ArrayList<>();
+        long eranTavut = 0;
+        NdjsonReader.Rivi rivi;
+        while ((rivi = lukija.seuraava()) != null) {
+            era.add(jasennaBulkRivi(rivi, lahetysTunniste, lahetysMetadata, identiteetti));
+            eranTavut += rivi.liianPitka() ? 0 : rivi.sisalto().length;
+            if (era.size() >= bulkEraKoko || eranTavut >= bulkEraMaxTavut) {
+                tallennaBulkEra(era, tunniste, identiteetti, rajoitaKorkeaa, korkeaPrioriteetti, out);
+                era.clear();
+                eranTavut = 0;
+            }
+        }
+        tallennaBulkEra(era, tunniste, identiteetti, rajoitaKorkeaa, korkeaPrioriteetti, out);
+    }
+
+    private BulkRivi jasennaBulkRivi(NdjsonReader.Rivi rivi, String lahetysTunniste,
+                                     Optional<LahetysMetadata> lahetysMetadata, String identiteetti) {
+        var bulkRivi = new BulkRivi(rivi.numero());
+        if (rivi.liianPitka()) {
+            bulkRivi.tulos = bulkVirhe(bulkRivi, List.of(RIVI_LIIAN_PITKA_VIRHE));
+            return bulkRivi;
+        }
+        LuoViestiRequest viesti;
+        try {
+            viesti = ViestiJsonReader.lue(objectMapper, new ByteArrayInputStream(rivi.sisalto()));
+        } catch (ViestiJsonReader.RajaYlitetty e) {
+            bulkRivi.tulos = bulkVirhe(bulkRivi, List.of(e.getMessage()));
+            return bulkRivi;
+        } catch (ViestiJsonReader.VirheellinenJson e) {
+            bulkRivi.tulos = bulkVirhe(bulkRivi, List.of(VIRHEELLINEN_VIESTI_JSON_VIRHE));
+            return bulkRivi;
         }
+        if (viesti.lahetysTunniste() != null && !viesti.lahetysTunniste().equals(lahetysTunniste)) {
+            bulkRivi.tulos = bulkVirhe(bulkRivi, List.of(RIVIN_LAHETYSTUNNISTE_VIRHE));
+            return bulkRivi;
+        }
+        viesti = lahetykseen(viesti, lahetysTunniste);
+        var virheet = ViestiValidator.validateViesti(viesti, lahetysMetadata, Map.<UUID, LiiteMetadata>of(), identiteetti);
+        if (!virheet.isEmpty()) {
+            bulkRivi.tulos = bulkVirhe(bulkRivi, virheet);
+        } else {
+            bulkRivi.viesti = viesti;
+        }
+        return bulkRivi;
+    }
+
+    /**
+     * Saves the valid lines of a chunk with one {@link LahetysWriteService#tallennaViestit} call and
+     * writes the results of all its lines. Lines whose idempotency key is already in use get the
+     * existing viesti, as with {@link #luoViesti}.
+     */
+    private void tallennaBulkEra(List<BulkRivi> era, UUID lahetysTunniste, String identiteetti,
+                                 boolean rajoitaKorkeaa, boolean korkeaPrioriteetti, OutputStream out) throws IOException {
+        List<BulkRivi> tallennettavat = era.stream().filter(r -> r.tulos == null).toList();
+        List<BulkRivi> uudet = new ArrayList<>();
+        for (BulkRivi r : tallennettavat) {
+            String key = r.viesti.idempotencyKey();
+            var aiempi = key == null || key.isEmpty()
+                    ? Optional.<LahetysWriteService.OlemassaOlevaViesti>empty()
+                    : lahetysWriteService.haeViimeaikainenViesti(identiteetti, key);
+            if (aiempi.isPresent()) {
+                r.tulos = bulkTulos(r, aiempi.get().viestiTunniste(), aiempi.get().lahetysTunniste());
+            } else {
+                uudet.add(r);
+            }
+        }
+        // grants are taken only for the valid lines that are not replays
+        int varattu = 0;
+        if (rajoitaKorkeaa && !uudet.isEmpty()) {
+            varattu = korkeanPrioriteetinRajoitin.varaa(identiteetti, uudet.size());
+            uudet.stream().skip(varattu)
+                    .forEach(r -> r.tulos = bulkVirhe(r, List.of(VIESTI_RATELIMIT_VIRHE)));
+            uudet = new ArrayList<>(uudet.subList(0, varattu));
+        }
+
+        try {
+            var tallennetut = lahetysWriteService.tallennaViestit(
+                    lahetysTunniste, uudet.stream().map(r -> toUusiViesti(r.viesti)).toList(), identiteetti);
+            int vastaanottajia = 0;
+            int kaksoiskappaleet = 0;
+            for (int i = 0; i < uudet.size(); i++) {
+                var saved = tallennetut.get(i);
+                uudet.get(i).tulos = bulkTulos(uudet.get(i), saved.viestiTunniste(), saved.lahetysTunniste());
+                if (saved.uusi()) {
+                    vastaanottajia += saved.vastaanottajaTunnisteet().size();
+                    bestEffortAudit(a -> a.logCreateViesti(saved.viestiTunniste(), saved.lahetysTunniste()));
+                } else {
+                    kaksoiskappaleet++;
+                }
+            }
+            vapautaKiintio(identiteetti, kaksoiskappaleet);
+            int maara = vastaanottajia;
+            if (maara > 0) {
+                metricService.ifAvailable(m -> m.recordVastaanotot(maara, korkeaPrioriteetti ? "KORKEA" : "NORMAALI"));
+            }
+        } catch (Exception e) {
+            log.error("Viestierän ({} viestiä) luonti epäonnistui", uudet.size(), e);
+            vapautaKiintio(identiteetti, varattu);
+            uudet.forEach(r -> r.tulos = bulkVirhe(r, List.of(VIESTIN_LUONTI_EPAONNISTUI)));
+        }
+
+        for (BulkRivi r : era) {
+            out.write(objectMapper.writeValueAsBytes(r.tulos));
+            out.write('\n');
+        }
+        out.flush();
+    }
+
+    /** Returns the KORKEA grants of viestit that were not saved, without failing the request. */
+    private void vapautaKiintio(String identiteetti, int maara) {
+        try {
+            korkeanPrioriteetinRajoitin.vapauta(identiteetti, maara);
+        } catch (Exception e) {
+            log.warn("Korkean prioriteetin kiintiön palautus epäonnistui", e);
+        }
+    }
+
+    private static Map<String, Object> bulkTulos(BulkRivi rivi, UUID viestiTunniste, UUID lahetysTunniste) {
+        Map<String, Object> tulos = new LinkedHashMap<>();
+        tulos.put("rivi", rivi.numero);
+        tulos.put("viestiTunniste", viestiTunniste.toString());
+        tulos.put("lahetysTunniste", lahetysTunniste.toString());
+        return tulos;
+    }
+
+    private static Map<String, Object> bulkVirhe(BulkRivi rivi, List<String> virheet) {
+        Map<String, Object> tulos = new LinkedHashMap<>();
+        tulos.put("rivi", rivi.numero);
+        tulos.put("validointiVirheet", virheet);
+        return tulos;
+    }
+
+    private static LuoViestiRequest lahetykseen(LuoViestiRequest v, String lahetysTunniste) {
+        return new LuoViestiRequest(v.otsikko(), v.sisalto(), v.sisallonTyyppi(), v.kielet(), v.maskit(),
+                v.lahettavanVirkailijanOid(), v.lahettaja(), v.replyTo(), v.vastaanottajat(), v.liitteidenTunnisteet(),
+                v.lahettavaPalvelu(), lahetysTunniste, v.prioriteetti(), v.sailytysaika(), v.kayttooikeusRajoitukset(),
+                v.metadata(), v.idempotencyKey());
+    }
+
+    private static LahetysWriteService.UusiViesti toUusiViesti(LuoViestiRequest body) {
+        return new LahetysWriteService.UusiViesti(
+                body.otsikko(),
+                body.sisalto(),
+                body.sisallonTyyppi().toUpperCase(Locale.ROOT),
+                kielet(body),
+                maskitToMap(body.maskit()),
+                body.vastaanottajat().stream().map(LahetysController::toKontakti).toList(),
+                kayttooikeudet(body.kayttooikeusRajoitukset()),
+                body.metadata() == null ? Map.<String, List<String>>of() : body.metadata(),
+                body.idempotencyKey());
+    }
+
+    // detect language from content when kielet is omitted (like the lambda)
+    private static Set<String> kielet(LuoViestiRequest body) {
+        return (body.kielet() == null || body.kielet().isEmpty())
+                ? LanguageDetection.tunnistaKieli(body.sisalto())
+                : new LinkedHashSet<>(body.kielet());
     }
 
     private void bestEffortAudit(Consumer<AuditLogService> op) {
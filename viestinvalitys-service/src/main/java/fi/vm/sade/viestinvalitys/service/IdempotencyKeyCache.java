@@ -0,0 +1,83 @@
+package fi.vm.sade.viestinvalitys.service;
+
+import fi.vm.sade.viestinvalitys.service.LahetysWriteService.OlemassaOlevaViesti;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Recently used idempotency keys and the Viesti saved with each, so that a retry of a recent
+ * create request is answered without a database round-trip. A miss is not a lookup: the insert
+ * itself detects a key in use. Entries are added only after the saving transaction commits, and
+ * they expire well before the siivous job clears the keys of old viestit.
+ */
+@Component
+public class IdempotencyKeyCache {
+
+    private record Avain(String omistaja, String idempotencyKey) {}
+
+    private record Arvo(OlemassaOlevaViesti viesti, Instant lisatty) {}
+
+    private final int maxKoko;
+    private final Duration voimassaolo;
+    private final LinkedHashMap<Avain, Arvo> avaimet = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Avain, Arvo> eldest) {
+            return size() > maxKoko;
+        }
+    };
+
+    public IdempotencyKeyCache(
+            @Value("${viestinvalitys.vastaanotto.idempotency-cache.max-koko:10000}") int maxKoko,
+            @Value("${viestinvalitys.vastaanotto.idempotency-cache.voimassaolo-minuuttia:60}") int voimassaoloMinuuttia) {
+        this.maxKoko = maxKoko;
+        this.voimassaolo = Duration.ofMinutes(voimassaoloMinuuttia);
+    }
+
+    public synchronized Optional<OlemassaOlevaViesti> hae(String omistaja, String idempotencyKey) {
+        Avain avain = new Avain(omistaja, idempotencyKey);
+        Arvo arvo = avaimet.get(avain);
+        if (arvo == null) {
+            return Optional.empty();
+        }
+        if (arvo.lisatty().plus(voimassaolo).isBefore(Instant.now())) {
+            avaimet.remove(avain);
+            return Optional.empty();
+        }
+        return Optional.of(arvo.viesti());
+    }
+
+    /** Adds the keys once the current transaction commits, or right away outside a transaction. */
+    public void lisaa(String omistaja, Map<String, OlemassaOlevaViesti> viestit) {
+        if (viestit.isEmpty()) {
+            return;
+        }
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            lisaaNyt(omistaja, viestit);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                lisaaNyt(omistaja, viestit);
+            }
+        });
+    }
+
+    /** Empties the cache, for tests that truncate viestit. */
+    public synchronized void tyhjenna() {
+        avaimet.clear();
+    }
+
+    private synchronized void lisaaNyt(String omistaja, Map<String, OlemassaOlevaViesti> viestit) {
+        Instant nyt = Instant.now();
+        viestit.forEach((key, viesti) -> avaimet.put(new Avain(omistaja, key), new Arvo(viesti, nyt)));
+    }
+}
@@ -0,0 +1,162 @@
+package fi.vm.sade.viestinvalitys.service;
+
+import fi.vm.sade.viestinvalitys.service.LahetysWriteService.Kayttooikeus;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-process cache of the kayttooikeudet (organisaatio, oikeus) → tunniste mapping used on the
+ * write path. The mapping is loaded in full at startup, so that the first request after a deploy
+ * does not pay for the full-table read (on first use if the startup load failed), and reloaded
+ * when a lookup misses and the largest tunniste in the table has grown since the last load
+ * (another instance has added rows). Restrictions that are still missing after that are inserted and resolved in one
+ * statement of the calling transaction, and the resolved tunnisteet are cached only once it
+ * commits, so that the cache never holds a tunniste that a rollback would remove. Rows of
+ * kayttooikeudet are never deleted, so cached entries stay valid.
+ */
+@Slf4j
+@Component
+public class KayttooikeusCache {
+
+    private static final int MAX_YRITYKSET = 3;
+
+    private final JdbcTemplate jdbc;
+
+    private final Map<Kayttooikeus, Integer> tunnisteet = new ConcurrentHashMap<>();
+    private volatile int uusinTunniste = -1;
+
+    public KayttooikeusCache(JdbcTemplate jdbc) {
+        this.jdbc = jdbc;
+    }
+
+    @PostConstruct
+    void init() {
+        try {
+            lataa();
+        } catch (Exception e) {
+            log.warn("Käyttöoikeuksien lataus käynnistyksessä epäonnistui, ladataan ensimmäisellä käyttökerralla", e);
+        }
+    }
+
+    /**
+     * Resolves the tunniste of every given restriction, creating the missing kayttooikeudet rows.
+     */
+    public Map<Kayttooikeus, Integer> getTunnisteet(Collection<Kayttooikeus> kayttooikeudet) {
+        if (uusinTunniste < 0) {
+            lataa();
+        }
+        Map<Kayttooikeus, Integer> tulos = new HashMap<>();
+        List<Kayttooikeus> puuttuvat = hae(kayttooikeudet, tulos);
+        if (puuttuvat.isEmpty()) {
+            return tulos;
+        }
+
+        if (getUusinTunniste() > uusinTunniste) {
+            lataa();
+            puuttuvat = hae(puuttuvat, tulos);
+        }
+        // a concurrent insert of the same row can hide it from both the insert and the select of
+        // one statement, the next statement sees it
+        for (int yritys = 1; !puuttuvat.isEmpty(); yritys++) {
+            if (yritys > MAX_YRITYKSET) {
+                throw new IllegalStateException("Käyttöoikeuksien tunnisteita ei saatu selvitettyä: " + puuttuvat);
+            }
+            Map<Kayttooikeus, Integer> luodut = luoJaHae(puuttuvat);
+            tulos.putAll(luodut);
+            lisaa(luodut);
+            puuttuvat = puuttuvat.stream().filter(k -> !tulos.containsKey(k)).toList();
+        }
+        return tulos;
+    }
+
+    /** Caches the tunnisteet once the current transaction commits, or right away outside a transaction. */
+    private void lisaa(Map<Kayttooikeus, Integer> luodut) {
+        if (luodut.isEmpty()) {
+            return;
+        }
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            tunnisteet.putAll(luodut);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                tunnisteet.putAll(luodut);
+            }
+        });
+    }
+
+    /** Empties the cache, for tests that truncate kayttooikeudet. */
+    public synchronized void tyhjenna() {
+        tunnisteet.clear();
+        uusinTunniste = -1;
+    }
+
+    private List<Kayttooikeus> hae(Collection<Kayttooikeus> kayttooikeudet, Map<Kayttooikeus, Integer> tulos) {
+        return kayttooikeudet.stream()
+                .filter(k -> {
+                    Integer tunniste = tunnisteet.get(k);
+                    if (tunniste != null) {
+                        tulos.put(k, tunniste);
+                    }
+                    return tunniste == null;
+                })
+                .distinct()
+                .toList();
+    }
+
+    private synchronized void lataa() {
+        int uusin = getUusinTunniste();
+        // duplicates of a null organisaatio may exist from before, the smallest tunniste wins
+        jdbc.query("SELECT min(tunniste), organisaatio, oikeus FROM kayttooikeudet GROUP BY organisaatio, oikeus",
+                rs -> {
+                    tunnisteet.put(new Kayttooikeus(rs.getString(3), rs.getString(2)), rs.getInt(1));
+                });
+        uusinTunniste = uusin;
+        log.info("Ladattiin {} käyttöoikeutta, uusin tunniste {}", tunnisteet.size(), uusin);
+    }
+
+    private int getUusinTunniste() {
+        Integer uusin = jdbc.queryForObject("SELECT max(tunniste) FROM kayttooikeudet", Integer.class);
+        return uusin == null ? 0 : uusin;
+    }
+
+    /**
+     * Inserts the restrictions that do not exist yet and reads the tunniste of all of them. The
+     * NOT EXISTS condition is needed because the unique index does not prevent duplicates when
+     * organisaatio is null.
+     */
+    private Map<Kayttooikeus, Integer> luoJaHae(List<Kayttooikeus> kayttooikeudet) {
+        Map<Kayttooikeus, Integer> luodut = new HashMap<>();
+        jdbc.query(
+                "WITH pyydetyt AS ("
+                        + "  SELECT * FROM unnest(?::varchar[], ?::varchar[]) AS p(organisaatio, oikeus)"
+                        + "), lisatyt AS ("
+                        + "  INSERT INTO kayttooikeudet (organisaatio, oikeus) "
+                        + "  SELECT p.organisaatio, p.oikeus FROM pyydetyt p WHERE NOT EXISTS ("
+                        + "    SELECT 1 FROM kayttooikeudet k WHERE k.organisaatio IS NOT DISTINCT FROM p.organisaatio AND k.oikeus = p.oikeus"
+                        + "  ) ON CONFLICT DO NOTHING RETURNING tunniste, organisaatio, oikeus"
+                        + ") "
+                        + "SELECT min(tunniste), organisaatio, oikeus FROM ("
+                        + "  SELECT k.tunniste, k.organisaatio, k.oikeus FROM kayttooikeudet k JOIN pyydetyt p "
+                        + "    ON k.organisaatio IS NOT DISTINCT FROM p.organisaatio AND k.oikeus = p.oikeus "
+                        + "  UNION ALL SELECT tunniste, organisaatio, oikeus FROM lisatyt"
+                        + ") t GROUP BY organisaatio, oikeus",
+                rs -> {
+                    luodut.put(new Kayttooikeus(rs.getString(3), rs.getString(2)), rs.getInt(1));
+                },
+                kayttooikeudet.stream().map(Kayttooikeus::organisaatio).toArray(String[]::new),
+                kayttooikeudet.stream().map(Kayttooikeus::oikeus).toArray(String[]::new));
+        return luodut;
+    }
+}
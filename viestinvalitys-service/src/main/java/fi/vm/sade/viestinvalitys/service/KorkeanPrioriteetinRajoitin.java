@@ -0,0 +1,128 @@
+package fi.vm.sade.viestinvalitys.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sliding-window rate limit for KORKEA-priority viestit per omistaja. The timestamps of the viestit
+ * granted within the window are kept in one korkean_prioriteetin_kiintiot row per omistaja, which
+ * the grant updates in a single statement under the row lock, so that concurrent requests on all
+ * instances share the limit without counting the viestit table.
+ *
+ * <p>The grants are not cached in memory: unused grants are returned with {@link #vapauta}, so
+ * another instance's view of the row may be stale in the direction that would reject a request the
+ * database allows.
+ */
+@Slf4j
+@Component
+public class KorkeanPrioriteetinRajoitin {
+
+    private static final String VARAUS =
+            "WITH rivi AS ("
+                    + "  SELECT omistaja, ARRAY(SELECT a FROM unnest(aikaleimat) a WHERE a > :ikkunanAlku ORDER BY a) AS voimassa"
+                    + "  FROM korkean_prioriteetin_kiintiot WHERE omistaja = :omistaja FOR UPDATE"
+                    + ") "
+                    + "UPDATE korkean_prioriteetin_kiintiot k "
+                    + "SET aikaleimat = rivi.voimassa || array_fill(CAST(:nyt AS timestamptz), "
+                    + "  ARRAY[LEAST(:maara, GREATEST(0, :raja - cardinality(rivi.voimassa)))]) "
+                    + "FROM rivi WHERE k.omistaja = rivi.omistaja "
+                    + "RETURNING cardinality(k.aikaleimat) - cardinality(rivi.voimassa) AS myonnetty";
+
+    private final NamedParameterJdbcTemplate namedJdbc;
+    private final Duration aikaikkuna;
+    private final int oletusRaja;
+    private final Map<String, Integer> kutsujakohtaisetRajat;
+
+    public KorkeanPrioriteetinRajoitin(
+            NamedParameterJdbcTemplate namedJdbc,
+            @Value("${viestinvalitys.vastaanotto.korkea-prioriteetti.aikaikkuna-sekuntia:5}") int aikaikkunaSekuntia,
+            @Value("${viestinvalitys.vastaanotto.korkea-prioriteetti.viesteja-aikaikkunassa:5}") int oletusRaja,
+            @Value("${viestinvalitys.vastaanotto.korkea-prioriteetti.kutsujakohtaiset-rajat:}") String kutsujakohtaisetRajat) {
+        this.namedJdbc = namedJdbc;
+        this.aikaikkuna = Duration.ofSeconds(aikaikkunaSekuntia);
+        this.oletusRaja = oletusRaja;
+        this.kutsujakohtaisetRajat = parseRajat(kutsujakohtaisetRajat);
+    }
+
+    /** The number of KORKEA-priority viestit the omistaja may create within the window. */
+    public int getRaja(String omistaja) {
+        return kutsujakohtaisetRajat.getOrDefault(omistaja, oletusRaja);
+    }
+
+    /**
+     * Grants up to {@code maara} KORKEA-priority viestit to the omistaja and returns how many were
+     * granted. A granted viesti counts against the limit until it is returned with {@link #vapauta}.
+     */
+    public int varaa(String omistaja, int maara) {
+        if (maara <= 0) {
+            return 0;
+        }
+        int raja = getRaja(omistaja);
+        Instant nyt = Instant.now();
+        Instant ikkunanAlku = nyt.minus(aikaikkuna);
+
+        var parametrit = new MapSqlParameterSource()
+                .addValue("omistaja", omistaja)
+                .addValue("maara", maara)
+                .addValue("raja", raja)
+                .addValue("nyt", Timestamp.from(nyt))
+                .addValue("ikkunanAlku", Timestamp.from(ikkunanAlku));
+        Integer myonnetty = varaaKannasta(parametrit);
+        if (myonnetty == null) {
+            // first request of the omistaja
+            namedJdbc.update("INSERT INTO korkean_prioriteetin_kiintiot (omistaja) VALUES (:omistaja) ON CONFLICT DO NOTHING",
+                    parametrit);
+            myonnetty = varaaKannasta(parametrit);
+        }
+        return myonnetty;
+    }
+
+    /**
+     * Returns {@code maara} grants of the omistaja that were not used after all, because saving the
+     * viestit failed or they turned out to be duplicates. The newest grants are removed.
+     */
+    public void vapauta(String omistaja, int maara) {
+        if (maara <= 0) {
+            return;
+        }
+        namedJdbc.update(
+                "UPDATE korkean_prioriteetin_kiintiot "
+                        + "SET aikaleimat = aikaleimat[1:greatest(0, cardinality(aikaleimat) - :maara)] "
+                        + "WHERE omistaja = :omistaja",
+                new MapSqlParameterSource().addValue("omistaja", omistaja).addValue("maara", maara));
+    }
+
+    private Integer varaaKannasta(MapSqlParameterSource parametrit) {
+        List<Integer> myonnetyt = namedJdbc.query(VARAUS, parametrit, (rs, i) -> rs.getInt("myonnetty"));
+        return myonnetyt.isEmpty() ? null : myonnetyt.getFirst();
+    }
+
+    /** Parses per-caller limits given as {@code omistaja=maara,omistaja=maara}. */
+    private static Map<String, Integer> parseRajat(String rajat) {
+        Map<String, Integer> tulos = new HashMap<>();
+        for (String raja : rajat.split(",")) {
+            if (raja.isBlank()) {
+                continue;
+            }
+            int erotin = raja.lastIndexOf('=');
+            if (erotin <= 0) {
+                throw new IllegalArgumentException("Virheellinen kutsujakohtainen raja: " + raja);
+            }
+            tulos.put(raja.substring(0, erotin).trim(), Integer.parseInt(raja.substring(erotin + 1).trim()));
+        }
+        if (!tulos.isEmpty()) {
+            log.info("Korkean prioriteetin kutsujakohtaiset rajat: {}", tulos);
+        }
+        return tulos;
+    }
+}
@@ -7,6 +7,7 @@ import lombok.extern.slf4j.Slf4j;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.stereotype.Service;
 
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.stream.Collectors;
 
@@ -17,6 +18,7 @@ public class LahetysService {
 
     private static final int DEFAULT_ENINTAAN = 20;
     private static final int DEFAULT_VASTAANOTTAJAT_ENINTAAN = 10;
+    private static final String SIVU_EROTIN = "\n";
 
     private final JdbcTemplate jdbcTemplate;
 
@@ -68,7 +70,7 @@ public class LahetysService {
         });
 
         String where = conditions.isEmpty() ? "" : "WHERE " + String.join(" AND ", conditions);
-        String sql = "SELECT l.tunniste, l.otsikko, l.omistaja, l.lahettavapalvelu, l.lahettavanvirkailijanoid, l.lahettajannimi, l.lahettajansahkoposti, l.replyto, l.luotu " +
+        String sql = "SELECT l.tunniste, l.otsikko, l.omistaja, l.lahettavapalvelu, l.lahettavanvirkailijanoid, l.lahettajannimi, l.lahettajansahkoposti, l.replyto, l.luotu, " + LahetysTilastoService.VIESTI_LKM + " AS viesti_lkm " +
                 "FROM lahetykset l " + where + " ORDER BY l.luotu DESC LIMIT ?";
         params.add(limit);
 
@@ -76,6 +78,7 @@ public class LahetysService {
         boolean hasMore = rows.size() == limit;
         if (hasMore) rows.remove(rows.size() - 1);
 
+        var tilat = getLahetystenTilat(rows.stream().map(row -> row.get("tunniste").toString()).toList());
         var lahetykset = rows.stream().map(row -> {
             var m = new LinkedHashMap<String, Object>();
             m.put("lahetysTunniste", row.get("tunniste").toString());
@@ -87,8 +90,8 @@ public class LahetysService {
             m.put("lahettajanSahkoposti", row.get("lahettajansahkoposti"));
             m.put("replyTo", row.get("replyto"));
             m.put("luotu", row.get("luotu").toString());
-            m.put("tilat", getVastaanottotilat(row.get("tunniste").toString()));
-            m.put("viestiLkm", getViestiLkm(row.get("tunniste").toString()));
+            m.put("tilat", tilat.get(row.get("tunniste").toString()));
+            m.put("viestiLkm", row.get("viesti_lkm"));
             return (Map<String, Object>) m;
         }).collect(Collectors.toList());
 
@@ -104,7 +107,8 @@ public class LahetysService {
         if (!secOps.hasReadRights()) throw new SecurityException("Ei katseluoikeutta");
 
         var rows = jdbcTemplate.queryForList(
-            "SELECT tunniste, otsikko, omistaja, lahettavapalvelu, lahettavanvirkailijanoid, lahettajannimi, lahettajansahkoposti, replyto, luotu FROM lahetykset WHERE tunniste = ?::uuid",
+            "SELECT l.tunniste, l.otsikko, l.omistaja, l.lahettavapalvelu, l.lahettavanvirkailijanoid, l.lahettajannimi, l.lahettajansahkoposti, l.replyto, l.luotu, "
+                + LahetysTilastoService.VIESTI_LKM + " AS viesti_lkm FROM lahetykset l WHERE l.tunniste = ?::uuid",
             lahetysTunniste);
 
         if (rows.isEmpty()) return Optional.empty();
@@ -119,8 +123,9 @@ public class LahetysService {
         m.put("lahettajanSahkoposti", row.get("lahettajansahkoposti"));
         m.put("replyTo", row.get("replyto"));
         m.put("luotu", row.get("luotu").toString());
-        m.put("tilat", getVastaanottotilat(lahetysTunniste));
-        m.put("viestiLkm", getViestiLkm(lahetysTunniste));
+        String tunniste = row.get("tunniste").toString();
+        m.put("tilat", getLahetystenTilat(List.of(tunniste)).get(tunniste));
+        m.put("viestiLkm", row.get("viesti_lkm"));
         return Optional.of(m);
     }
 
@@ -137,7 +142,7 @@ public class LahetysService {
         var params = new ArrayList<Object>();
         params.add(lahetysTunniste);
         var conditions = new ArrayList<String>();
-        conditions.add("v.viesti_tunniste IN (SELECT tunniste FROM viestit WHERE lahetys_tunniste = ?::uuid)");
+        conditions.add("v.lahetys_tunniste = ?::uuid");
 
         tila.ifPresent(t -> {
             conditions.add("v.tila = ?");
@@ -147,13 +152,17 @@ public class LahetysService {
             conditions.add("v.sahkopostiosoite ILIKE ?");
             params.add("%" + v + "%");
         });
-        alkaen.ifPresent(a -> {
-            conditions.add("v.tunniste < ?::uuid");
-            params.add(a);
+        // keyset pagination in the sort order, so every page is read from vastaanottajat_lahetys_listaus_idx
+        alkaen.map(LahetysService::parseVastaanottajaSivu).ifPresent(sivu -> {
+            conditions.add("(v.tila, v.sahkopostiosoite, v.tunniste) > (?, ?, ?::uuid)");
+            params.add(sivu[0]);
+            params.add(sivu[1]);
+            params.add(sivu[2]);
         });
 
         String where = "WHERE " + String.join(" AND ", conditions);
-        String sql = "SELECT v.tunniste, v.nimi, v.sahkopostiosoite, v.viesti_tunniste, v.tila FROM vastaanottajat v " + where + " ORDER BY v.tila, v.sahkopostiosoite LIMIT ?";
+        String sql = "SELECT v.tunniste, v.nimi, v.sahkopostiosoite, v.viesti_tunniste, v.tila FROM vastaanottajat v " + where
+                + " ORDER BY v.tila, v.sahkopostiosoite, v.tunniste LIMIT ?";
         params.add(limit);
 
         var rows = jdbcTemplate.queryForList(sql, params.toArray());
@@ -172,10 +181,32 @@ public class LahetysService {
 
         var result = new LinkedHashMap<String, Object>();
         result.put("vastaanottajat", vastaanottajat);
-        result.put("seuraavatAlkaen", hasMore ? rows.get(rows.size() - 1).get("tunniste").toString() : null);
+        result.put("seuraavatAlkaen", hasMore ? vastaanottajaSivu(rows.get(rows.size() - 1)) : null);
         return result;
     }
 
+    /**
+     * The cursor of the next page of vastaanottajat: the sort key (tila, sahkopostiosoite, tunniste)
+     * of the last row, base64url encoded. The address comes last because it may contain any character.
+     */
+    private static String vastaanottajaSivu(Map<String, Object> row) {
+        String avain = row.get("tila") + SIVU_EROTIN + row.get("tunniste") + SIVU_EROTIN + row.get("sahkopostiosoite");
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(avain.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** Returns tila, sahkopostiosoite and tunniste of the cursor. */
+    private static String[] parseVastaanottajaSivu(String sivu) {
+        String[] osat;
+        try {
+            osat = new String(Base64.getUrlDecoder().decode(sivu), StandardCharsets.UTF_8).split(SIVU_EROTIN, 3);
+            if (osat.length != 3) throw new IllegalArgumentException();
+            UUID.fromString(osat[1]);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Sivutusavain ei ole validi");
+        }
+        return new String[] {osat[0], osat[2], osat[1]};
+    }
+
     public Optional<Map<String, Object>> getMassaviesti(HttpSession session, String lahetysTunniste) {
         validateUUID(lahetysTunniste);
         var secOps = new SecurityOperations(session);
@@ -210,21 +241,25 @@ public class LahetysService {
             String.class);
     }
 
-    private List<Map<String, Object>> getVastaanottotilat(String lahetysTunniste) {
-        return jdbcTemplate.queryForList(
-            "SELECT v.tila AS vastaanottotila, COUNT(*) AS vastaanottaja_lkm FROM vastaanottajat v JOIN viestit vi ON v.viesti_tunniste = vi.tunniste WHERE vi.lahetys_tunniste = ?::uuid GROUP BY v.tila",
-            lahetysTunniste).stream().map(row -> {
+    /**
+     * Vastaanottajien tilat of the given lähetykset from the counters maintained by triggers and
+     * their changes not yet folded (see {@link LahetysTilastoService}), in one query so a page costs
+     * the same regardless of its size.
+     */
+    private Map<String, List<Map<String, Object>>> getLahetystenTilat(List<String> lahetysTunnisteet) {
+        var tilat = new HashMap<String, List<Map<String, Object>>>();
+        lahetysTunnisteet.forEach(t -> tilat.put(t, new ArrayList<>()));
+        if (lahetysTunnisteet.isEmpty()) return tilat;
+        jdbcTemplate.query(
+            "SELECT lahetys_tunniste, tila, lkm FROM lahetys_tilastot_nyt WHERE lahetys_tunniste = ANY(?::uuid[]) AND lkm > 0 ORDER BY tila",
+            rs -> {
                 var m = new LinkedHashMap<String, Object>();
-                m.put("vastaanottotila", row.get("vastaanottotila"));
-                m.put("vastaanottajaLkm", ((Number) row.get("vastaanottaja_lkm")).intValue());
-                return (Map<String, Object>) m;
-            }).collect(Collectors.toList());
-    }
-
-    private int getViestiLkm(String lahetysTunniste) {
-        var count = jdbcTemplate.queryForObject(
-            "SELECT COUNT(*) FROM viestit WHERE lahetys_tunniste = ?::uuid", Integer.class, lahetysTunniste);
-        return count != null ? count : 0;
+                m.put("vastaanottotila", rs.getString("tila"));
+                m.put("vastaanottajaLkm", rs.getInt("lkm"));
+                tilat.get(rs.getString("lahetys_tunniste")).add(m);
+            },
+            (Object) lahetysTunnisteet.toArray(new String[0]));
+        return tilat;
     }
 
     private Map<String, Object> buildViestiMap(Map<String, Object> row) {
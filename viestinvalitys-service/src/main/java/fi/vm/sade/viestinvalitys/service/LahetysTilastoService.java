@@ -0,0 +1,160 @@
+package fi.vm.sade.viestinvalitys.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Maintains the per-lähetys counters used for reporting: vastaanottajat by tila in lahetys_tilastot
+ * and the number of viestit in lahetykset.viesti_lkm. Triggers only append changes to
+ * lahetys_tilastomuutokset, so that writers to the same lähetys never wait for each other on a
+ * shared counter row. {@link #kokoaMuutokset} folds the changes into the counters, and readers add
+ * the changes not yet folded (the lahetys_tilastot_nyt view and {@link #VIESTI_LKM}).
+ *
+ * <p>{@link #korjaaTilastot} repairs the counters of lähetykset created within {@code
+ * korjaus-paivia}. The triggers keep them exact, so a difference means a bug or a manual fix in the
+ * database. Folding and repair hold the same advisory lock, so a repair never computes from changes
+ * that are being folded.
+ */
+@Slf4j
+@Service
+public class LahetysTilastoService {
+
+    /** Current number of viestit of lähetys {@code l}: the folded count and the changes not yet folded. */
+    public static final String VIESTI_LKM =
+            "(l.viesti_lkm + (SELECT coalesce(sum(m.muutos), 0) FROM lahetys_tilastomuutokset m "
+                    + "WHERE m.lahetys_tunniste = l.tunniste AND m.tila IS NULL))::integer";
+
+    private static final int KOKOAMIS_ERA = 10000;
+    private static final String LUKITSE = "SELECT pg_advisory_xact_lock(hashtext('lahetys_tilastot'))";
+
+    private final JdbcTemplate jdbc;
+    private final TransactionTemplate transaktio;
+
+    @Value("${viestinvalitys.tilastot.korjaus-paivia:7}")
+    private int korjausPaivia;
+
+    public LahetysTilastoService(JdbcTemplate jdbc, PlatformTransactionManager transactionManager) {
+        this.jdbc = jdbc;
+        this.transaktio = new TransactionTemplate(transactionManager);
+    }
+
+    /**
+     * Folds the appended changes into the counters, {@code KOKOAMIS_ERA} changes per transaction.
+     * Changes of removed lähetykset are dropped. Returns the number of changes folded.
+     */
+    public int kokoaMuutokset() {
+        int koottu = 0;
+        while (true) {
+            Integer era = transaktio.execute(status -> {
+                jdbc.execute(LUKITSE);
+                return jdbc.queryForObject(
+                        "WITH poistetut AS ("
+                                + "  DELETE FROM lahetys_tilastomuutokset WHERE tunniste IN ("
+                                + "    SELECT tunniste FROM lahetys_tilastomuutokset ORDER BY tunniste LIMIT ?) "
+                                + "  RETURNING lahetys_tunniste, tila, muutos"
+                                + "), summat AS ("
+                                + "  SELECT lahetys_tunniste, tila, sum(muutos)::integer AS lkm FROM poistetut "
+                                + "  GROUP BY lahetys_tunniste, tila"
+                                + "), viestit AS ("
+                                + "  UPDATE lahetykset SET viesti_lkm = lahetykset.viesti_lkm + summat.lkm FROM summat "
+                                + "  WHERE summat.tila IS NULL AND lahetykset.tunniste = summat.lahetys_tunniste"
+                                + "), tilastot AS ("
+                                + "  INSERT INTO lahetys_tilastot (lahetys_tunniste, tila, lkm) "
+                                + "  SELECT summat.lahetys_tunniste, summat.tila, summat.lkm "
+                                + "  FROM summat JOIN lahetykset ON lahetykset.tunniste = summat.lahetys_tunniste "
+                                + "  WHERE summat.tila IS NOT NULL "
+                                + "  ON CONFLICT (lahetys_tunniste, tila) DO UPDATE SET lkm = lahetys_tilastot.lkm + excluded.lkm"
+                                + ") "
+                                + "SELECT count(*) FROM poistetut",
+                        Integer.class,
+                        KOKOAMIS_ERA);
+            });
+            koottu += era;
+            if (era < KOKOAMIS_ERA) {
+                return koottu;
+            }
+        }
+    }
+
+    /** Checks the recent lähetykset and returns the number of lähetykset whose counters were repaired. */
+    public int korjaaTilastot() {
+        List<UUID> lahetykset = jdbc.queryForList(
+                "SELECT tunniste FROM lahetykset WHERE luotu > now() - (? * interval '1 day') ORDER BY luotu",
+                UUID.class, korjausPaivia);
+        int korjatut = 0;
+        for (UUID lahetysTunniste : lahetykset) {
+            if (Boolean.TRUE.equals(transaktio.execute(status -> korjaaLahetys(lahetysTunniste)))) {
+                korjatut++;
+            }
+        }
+        if (korjatut > 0) {
+            log.warn("Korjattiin {}/{} lähetyksen tilastot", korjatut, lahetykset.size());
+        }
+        return korjatut;
+    }
+
+    /**
+     * Sets the folded counters to the counted values less the changes not yet folded. Each is one
+     * statement, so the counts and the changes are read from the same snapshot: a concurrent write
+     * has either committed both its rows and its change, or neither.
+     */
+    private boolean korjaaLahetys(UUID lahetysTunniste) {
+        String tunniste = lahetysTunniste.toString();
+        jdbc.execute(LUKITSE);
+        if (jdbc.queryForList("SELECT 1 FROM lahetykset WHERE tunniste = ?::uuid FOR KEY SHARE", tunniste).isEmpty()) {
+            // removed after it was listed
+            return false;
+        }
+        boolean[] korjattu = {false};
+        jdbc.query(
+                "WITH lasketut AS ("
+                        + "  SELECT tila, count(*)::integer AS lkm FROM vastaanottajat WHERE lahetys_tunniste = ?::uuid GROUP BY tila"
+                        + "), muutokset AS ("
+                        + "  SELECT tila, sum(muutos)::integer AS lkm FROM lahetys_tilastomuutokset "
+                        + "  WHERE lahetys_tunniste = ?::uuid AND tila IS NOT NULL GROUP BY tila"
+                        + "), tallennetut AS ("
+                        + "  SELECT tila, lkm FROM lahetys_tilastot WHERE lahetys_tunniste = ?::uuid"
+                        + "), korjattavat AS ("
+                        + "  SELECT tila, coalesce(t.lkm, 0) + coalesce(m.lkm, 0) AS tallennettu, coalesce(l.lkm, 0) AS laskettu, "
+                        + "    coalesce(l.lkm, 0) - coalesce(m.lkm, 0) AS koottu "
+                        + "  FROM lasketut l FULL JOIN tallennetut t USING (tila) FULL JOIN muutokset m USING (tila) "
+                        + "  WHERE coalesce(t.lkm, 0) + coalesce(m.lkm, 0) <> coalesce(l.lkm, 0)"
+                        + "), korjatut AS ("
+                        + "  INSERT INTO lahetys_tilastot (lahetys_tunniste, tila, lkm) "
+                        + "  SELECT ?::uuid, tila, koottu FROM korjattavat "
+                        + "  ON CONFLICT (lahetys_tunniste, tila) DO UPDATE SET lkm = excluded.lkm"
+                        + ") "
+                        + "SELECT tila, tallennettu, laskettu FROM korjattavat",
+                rs -> {
+                    log.warn("Lähetyksen {} vastaanottajia tilassa {} oli {}, todellinen {}",
+                            tunniste, rs.getString("tila"), rs.getInt("tallennettu"), rs.getInt("laskettu"));
+                    korjattu[0] = true;
+                },
+                tunniste, tunniste, tunniste, tunniste);
+        jdbc.query(
+                "WITH lasketut AS ("
+                        + "  SELECT (SELECT count(*) FROM viestit WHERE lahetys_tunniste = ?::uuid)::integer AS lkm, "
+                        + "    (SELECT coalesce(sum(muutos), 0) FROM lahetys_tilastomuutokset "
+                        + "     WHERE lahetys_tunniste = ?::uuid AND tila IS NULL)::integer AS muutos"
+                        + "), tallennettu AS ("
+                        + "  SELECT viesti_lkm FROM lahetykset WHERE tunniste = ?::uuid"
+                        + ") "
+                        + "UPDATE lahetykset SET viesti_lkm = lasketut.lkm - lasketut.muutos FROM lasketut, tallennettu "
+                        + "WHERE lahetykset.tunniste = ?::uuid AND tallennettu.viesti_lkm + lasketut.muutos <> lasketut.lkm "
+                        + "RETURNING tallennettu.viesti_lkm + lasketut.muutos AS tallennettu, lasketut.lkm AS laskettu",
+                rs -> {
+                    log.warn("Lähetyksen {} viestien määrä oli {}, todellinen {}",
+                            tunniste, rs.getInt("tallennettu"), rs.getInt("laskettu"));
+                    korjattu[0] = true;
+                },
+                tunniste, tunniste, tunniste, tunniste);
+        return korjattu[0];
+    }
+}
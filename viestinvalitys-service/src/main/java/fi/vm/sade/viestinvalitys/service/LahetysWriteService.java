@@ -8,7 +8,9 @@ import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -33,7 +35,15 @@ import java.util.UUID;
 @RequiredArgsConstructor
 public class LahetysWriteService {
 
+    /**
+     * Notified in the transaction that queues recipients for sending, so that the sender wakes up as
+     * soon as they are committed instead of at its next poll.
+     */
+    public static final String LAHETYSJONO_KANAVA = "lahetysjono";
+
     private final JdbcTemplate jdbc;
+    private final KayttooikeusCache kayttooikeusCache;
+    private final IdempotencyKeyCache idempotencyKeyCache;
 
     /** Contact info of a lähettäjä (sender) or vastaanottaja (recipient) for persistence. */
     public record Kontakti(String nimi, String sahkoposti) {}
@@ -41,8 +51,12 @@ public class LahetysWriteService {
     /** Kayttooikeus restriction (oikeus + organisaatio) for persistence. */
     public record Kayttooikeus(String oikeus, String organisaatio) {}
 
-    /** Identifiers of a persisted Viesti. */
-    public record TallennettuViesti(UUID viestiTunniste, UUID lahetysTunniste, List<UUID> vastaanottajaTunnisteet) {}
+    /**
+     * Identifiers of a persisted Viesti. {@code uusi} is false if the idempotency key was already in
+     * use; the identifiers are then those of the earlier Viesti and no recipients were saved.
+     */
+    public record TallennettuViesti(UUID viestiTunniste, UUID lahetysTunniste, List<UUID> vastaanottajaTunnisteet,
+                                    boolean uusi) {}
 
     @Transactional
     public UUID tallennaLahetys(String otsikko, String lahettavaPalvelu, String lahettavanVirkailijanOID,
@@ -57,11 +71,25 @@ public class LahetysWriteService {
         return tunniste;
     }
 
+    /**
+     * A Viesti saved into an existing Lahetys with {@link #tallennaViestit}. The Lahetys fields
+     * (prioriteetti, lähettävä palvelu, virkailijan oid) are inherited from the Lahetys.
+     */
+    public record UusiViesti(String otsikko, String sisalto, String sisallonTyyppi, Set<String> kielet,
+                             Map<String, String> maskit, List<Kontakti> vastaanottajat,
+                             Set<Kayttooikeus> kayttooikeusRajoitukset, Map<String, List<String>> metadata,
+                             String idempotencyKey) {}
+
+    /** The Lahetys fields that are copied to its Viesti and Vastaanottaja rows. */
+    private record PeriytyvatKentat(UUID lahetysTunniste, String prioriteetti, String lahettavaPalvelu,
+                                    String lahettavanVirkailijanOID) {}
+
     /**
      * Saves the Viesti, its Kayttooikeus restrictions, metadata, Maski entries and Vastaanottaja
      * recipients. If no lahetysTunniste is given, a dedicated Lahetys is created for the Viesti (like
      * {@code KantaOperaatiot.tallennaViesti}). If a lahetysTunniste is given, the Lahetys fields
-     * (prioriteetti, lähettävä palvelu, virkailijan oid) take precedence.
+     * (prioriteetti, lähettävä palvelu, virkailijan oid) take precedence. If the idempotency key is
+     * already in use, nothing is saved and the earlier Viesti is returned.
      */
     @Transactional
     public TallennettuViesti tallennaViesti(String otsikko, String sisalto, String sisallonTyyppi, Set<String> kielet,
@@ -71,143 +99,233 @@ public class LahetysWriteService {
                                             Map<String, List<String>> metadata, String omistaja, int sailytysaika,
                                             String idempotencyKey) {
         UUID viestiTunniste = UUID.randomUUID();
-        UUID finalLahetysTunniste = lahetysTunniste != null ? lahetysTunniste : viestiTunniste;
-
-        // fields on the lähetys are authoritative if the viesti is attached to an existing lähetys
-        String finalPrioriteetti = prioriteetti;
-        String finalLahettavaPalvelu = lahettavaPalvelu;
-        String finalLahettajaOid = lahettavanVirkailijanOID;
+        PeriytyvatKentat kentat;
         if (lahetysTunniste == null) {
             // create a lähetys if the viesti has no existing lähetys
             jdbc.update(
                     "INSERT INTO lahetykset (tunniste, otsikko, lahettavapalvelu, lahettavanvirkailijanoid, lahettajannimi, "
                             + "lahettajansahkoposti, replyto, prioriteetti, omistaja, luotu, poistettava) "
                             + "VALUES (?::uuid, ?, ?, ?, ?, ?, ?, ?::prioriteetti, ?, now(), now() + (? * interval '1 day'))",
-                    finalLahetysTunniste.toString(), otsikko, lahettavaPalvelu, lahettavanVirkailijanOID,
+                    viestiTunniste.toString(), otsikko, lahettavaPalvelu, lahettavanVirkailijanOID,
                     lahettaja != null ? lahettaja.nimi() : null, lahettaja != null ? lahettaja.sahkoposti() : null,
                     replyTo, prioriteetti, omistaja, sailytysaika);
+            kentat = new PeriytyvatKentat(viestiTunniste, prioriteetti, lahettavaPalvelu, lahettavanVirkailijanOID);
         } else {
-            var lahetys = jdbc.queryForMap(
-                    "SELECT lahettavapalvelu, lahettavanvirkailijanoid, prioriteetti::text AS prioriteetti "
-                            + "FROM lahetykset WHERE tunniste = ?::uuid",
-                    finalLahetysTunniste.toString());
-            finalPrioriteetti = (String) lahetys.get("prioriteetti");
-            finalLahettavaPalvelu = (String) lahetys.get("lahettavapalvelu");
-            finalLahettajaOid = (String) lahetys.get("lahettavanvirkailijanoid");
+            // fields on the lähetys are authoritative if the viesti is attached to an existing lähetys
+            kentat = haePeriytyvatKentat(lahetysTunniste);
+        }
+        UusiViesti viesti = new UusiViesti(otsikko, sisalto, sisallonTyyppi, kielet, maskit, vastaanottajat,
+                kayttooikeusRajoitukset, metadata, idempotencyKey);
+        TallennettuViesti tallennettu = tallennaViestiRivit(kentat, List.of(viestiTunniste), List.of(viesti), omistaja).get(0);
+        if (!tallennettu.uusi() && lahetysTunniste == null) {
+            jdbc.update("DELETE FROM lahetykset WHERE tunniste = ?::uuid", viestiTunniste.toString());
         }
+        return tallennettu;
+    }
 
-        // resolve the access-right identifiers (käyttöoikeustunnus) before saving the viesti, because they are also stored in the search field
-        List<Integer> oikeudet = kayttooikeusRajoitukset.stream().map(this::getOrCreateKayttooikeus).toList();
+    /**
+     * Saves a chunk of Viesti entities into an existing Lahetys in one transaction. Each table is
+     * written with one statement for the whole chunk, so the cost per Viesti is a fraction of a
+     * {@link #tallennaViesti} call. The results are in the order of {@code viestit}; a Viesti whose
+     * idempotency key is already in use, also by an earlier Viesti of the chunk, gets the earlier one.
+     */
+    @Transactional
+    public List<TallennettuViesti> tallennaViestit(UUID lahetysTunniste, List<UusiViesti> viestit, String omistaja) {
+        if (viestit.isEmpty()) {
+            return List.of();
+        }
+        List<UUID> viestiTunnisteet = viestit.stream().map(v -> UUID.randomUUID()).toList();
+        return tallennaViestiRivit(haePeriytyvatKentat(lahetysTunniste), viestiTunnisteet, viestit, omistaja);
+    }
 
-        // remove secrets from the subject and content that are stored for search
-        String otsikkoSanitized = sanitoi(otsikko, maskit.keySet());
-        String sisaltoSanitized = sanitoi(sisalto, maskit.keySet());
-        List<String> vastaanottajaOsoitteet = vastaanottajat.stream()
-                .map(v -> v.sahkoposti().toLowerCase(Locale.ROOT)).toList();
-        List<String> metadataArvot = metadata.entrySet().stream()
-                .flatMap(e -> e.getValue().stream().map(arvo -> e.getKey() + ":" + arvo)).toList();
-        List<String> organisaatiot = kayttooikeusRajoitukset.stream()
-                .map(Kayttooikeus::organisaatio).filter(Objects::nonNull).distinct().toList();
+    private PeriytyvatKentat haePeriytyvatKentat(UUID lahetysTunniste) {
+        var lahetys = jdbc.queryForMap(
+                "SELECT lahettavapalvelu, lahettavanvirkailijanoid, prioriteetti::text AS prioriteetti "
+                        + "FROM lahetykset WHERE tunniste = ?::uuid",
+                lahetysTunniste.toString());
+        return new PeriytyvatKentat(lahetysTunniste, (String) lahetys.get("prioriteetti"),
+                (String) lahetys.get("lahettavapalvelu"), (String) lahetys.get("lahettavanvirkailijanoid"));
+    }
 
-        // save the viesti with its search fields (haku_* columns are NOT NULL after the migrations)
-        List<Object> args = new ArrayList<>();
-        args.add(viestiTunniste.toString());
-        args.add(finalLahetysTunniste.toString());
-        args.add(otsikko);
-        args.add(sisalto);
-        args.add(sisallonTyyppi);
-        args.add(kielet.contains("fi"));
-        args.add(kielet.contains("sv"));
-        args.add(kielet.contains("en"));
-        args.add(finalPrioriteetti);
-        args.add(omistaja);
-        args.add(idempotencyKey);
-        args.add(otsikkoSanitized);
-        args.add(sisaltoSanitized);
-        oikeudet.forEach(args::add);
-        vastaanottajaOsoitteet.forEach(args::add);
-        args.add(finalLahettajaOid);
-        metadataArvot.forEach(args::add);
-        args.add(finalLahettavaPalvelu);
-        organisaatiot.forEach(args::add);
+    /**
+     * Writes the viestit rows and their child rows. The child rows are written with one set-based
+     * statement per table instead of one per row, so the number of round-trips does not grow with the
+     * number of viestit, recipients, metadata values or access rights.
+     */
+    private List<TallennettuViesti> tallennaViestiRivit(PeriytyvatKentat kentat, List<UUID> viestiTunnisteet,
+                                                        List<UusiViesti> viestit, String omistaja) {
+        // resolve the access-right identifiers (käyttöoikeustunnus) before saving the viestit, because they are also stored in the search field
+        Map<Kayttooikeus, Integer> oikeusTunnisteet = kayttooikeusCache.getTunnisteet(viestit.stream()
+                .flatMap(viesti -> viesti.kayttooikeusRajoitukset().stream()).toList());
 
-        String viestiSql = "INSERT INTO viestit (tunniste, lahetys_tunniste, otsikko, sisalto, sisallontyyppi, kielet_fi, "
-                + "kielet_sv, kielet_en, prioriteetti, omistaja, idempotency_key, luotu, haku_otsikko, haku_sisalto, haku_kayttooikeudet, "
-                + "haku_vastaanottajat, haku_lahettaja, haku_metadata, haku_lahettavapalvelu, haku_organisaatiot) VALUES ("
-                + "?::uuid, ?::uuid, ?, ?, ?, ?, ?, ?, ?::prioriteetti, ?, ?, now(), to_tsvector('simple', ?), "
-                + "to_tsvector('simple', ?), " + arrayPlaceholders(oikeudet.size(), "integer") + ", "
-                + arrayPlaceholders(vastaanottajaOsoitteet.size(), "varchar") + ", ?, "
-                + arrayPlaceholders(metadataArvot.size(), "varchar") + ", ?, "
-                + arrayPlaceholders(organisaatiot.size(), "varchar") + ")";
-        jdbc.update(viestiSql, args.toArray());
+        List<Object[]> viestiRivit = new ArrayList<>();
+        for (int i = 0; i < viestit.size(); i++) {
+            UusiViesti viesti = viestit.get(i);
+            // remove secrets from the subject and content that are stored for search
+            viestiRivit.add(new Object[] {
+                    viestiTunnisteet.get(i).toString(), kentat.lahetysTunniste().toString(), viesti.otsikko(), viesti.sisalto(),
+                    viesti.sisallonTyyppi(), viesti.kielet().contains("fi"), viesti.kielet().contains("sv"),
+                    viesti.kielet().contains("en"), kentat.prioriteetti(), omistaja, viesti.idempotencyKey(),
+                    sanitoi(viesti.otsikko(), viesti.maskit().keySet()), sanitoi(viesti.sisalto(), viesti.maskit().keySet()),
+                    viesti.kayttooikeusRajoitukset().stream().map(k -> String.valueOf(oikeusTunnisteet.get(k))).toArray(String[]::new),
+                    viesti.vastaanottajat().stream().map(v -> v.sahkoposti().toLowerCase(Locale.ROOT)).toArray(String[]::new),
+                    kentat.lahettavanVirkailijanOID(),
+                    viesti.metadata().entrySet().stream()
+                            .flatMap(e -> e.getValue().stream().map(arvo -> e.getKey() + ":" + arvo)).toArray(String[]::new),
+                    kentat.lahettavaPalvelu(),
+                    viesti.kayttooikeusRajoitukset().stream()
+                            .map(Kayttooikeus::organisaatio).filter(Objects::nonNull).distinct().toArray(String[]::new)});
+        }
 
-        // access rights (käyttöoikeus) for the message (viesti) and the lähetys
-        for (int oikeusTunniste : oikeudet) {
-            jdbc.update("INSERT INTO viestit_kayttooikeudet (viesti_tunniste, kayttooikeus_tunniste) VALUES (?::uuid, ?)",
-                    viestiTunniste.toString(), oikeusTunniste);
-            jdbc.update("INSERT INTO lahetykset_kayttooikeudet (lahetys_tunniste, kayttooikeus_tunniste) VALUES (?::uuid, ?) "
-                            + "ON CONFLICT DO NOTHING",
-                    finalLahetysTunniste.toString(), oikeusTunniste);
+        // save the viestit with their search fields (haku_* columns are NOT NULL after the migrations). A
+        // viesti whose idempotency key is in use is skipped by the unique index, so concurrent retries do
+        // not fail or create duplicates.
+        int[] lisatyt = jdbc.batchUpdate(
+                "INSERT INTO viestit (tunniste, lahetys_tunniste, otsikko, sisalto, sisallontyyppi, kielet_fi, "
+                        + "kielet_sv, kielet_en, prioriteetti, omistaja, idempotency_key, luotu, haku_otsikko, haku_sisalto, "
+                        + "haku_kayttooikeudet, haku_vastaanottajat, haku_lahettaja, haku_metadata, haku_lahettavapalvelu, "
+                        + "haku_organisaatiot) VALUES (?::uuid, ?::uuid, ?, ?, ?, ?, ?, ?, ?::prioriteetti, ?, ?, now(), "
+                        + "to_tsvector('simple', ?), to_tsvector('simple', ?), ?::integer[], ?::varchar[], ?, ?::varchar[], ?, "
+                        + "?::varchar[]) "
+                        + "ON CONFLICT (omistaja, idempotency_key) WHERE idempotency_key IS NOT NULL DO NOTHING",
+                viestiRivit);
+        Set<String> kaytetytAvaimet = new HashSet<>();
+        for (int i = 0; i < viestit.size(); i++) {
+            if (lisatyt[i] == 0) {
+                kaytetytAvaimet.add(viestit.get(i).idempotencyKey());
+            }
         }
+        Map<String, OlemassaOlevaViesti> aiemmat = haeOlemassaOlevatViestit(omistaja, kaytetytAvaimet);
 
-        // metadata
-        metadata.forEach((avain, arvot) -> {
-            jdbc.update("INSERT INTO metadata_avaimet VALUES (?) ON CONFLICT (avain) DO NOTHING", avain);
-            for (String arvo : arvot) {
-                jdbc.update("INSERT INTO metadata (avain, arvo, viesti_tunniste) VALUES (?, ?, ?::uuid)",
-                        avain, arvo, viestiTunniste.toString());
+        List<String> oikeusViestit = new ArrayList<>();
+        List<String> oikeudet = new ArrayList<>();
+        List<String> metadataViestit = new ArrayList<>();
+        List<String> metadataAvaimet = new ArrayList<>();
+        List<String> metadataArvot = new ArrayList<>();
+        List<String> maskiViestit = new ArrayList<>();
+        List<String> salaisuudet = new ArrayList<>();
+        List<String> maskit = new ArrayList<>();
+        List<String> vastaanottajaTunnisteet = new ArrayList<>();
+        List<String> vastaanottajaViestit = new ArrayList<>();
+        List<String> nimet = new ArrayList<>();
+        List<String> osoitteet = new ArrayList<>();
+        List<TallennettuViesti> tallennetut = new ArrayList<>();
+        Map<String, OlemassaOlevaViesti> uudetAvaimet = new HashMap<>();
+        for (int i = 0; i < viestit.size(); i++) {
+            UusiViesti viesti = viestit.get(i);
+            if (lisatyt[i] == 0) {
+                var aiempi = aiemmat.get(viesti.idempotencyKey());
+                tallennetut.add(new TallennettuViesti(aiempi.viestiTunniste(), aiempi.lahetysTunniste(), List.of(), false));
+                continue;
             }
-        });
+            String viestiTunniste = viestiTunnisteet.get(i).toString();
+            if (viesti.idempotencyKey() != null) {
+                uudetAvaimet.put(viesti.idempotencyKey(), new OlemassaOlevaViesti(viestiTunnisteet.get(i), kentat.lahetysTunniste()));
+            }
+
+            viesti.kayttooikeusRajoitukset().forEach(k -> {
+                oikeusViestit.add(viestiTunniste);
+                oikeudet.add(String.valueOf(oikeusTunnisteet.get(k)));
+            });
+            viesti.metadata().forEach((avain, arvot) -> arvot.forEach(arvo -> {
+                metadataViestit.add(viestiTunniste);
+                metadataAvaimet.add(avain);
+                metadataArvot.add(arvo);
+            }));
+            viesti.maskit().forEach((salaisuus, maski) -> {
+                maskiViestit.add(viestiTunniste);
+                salaisuudet.add(salaisuus);
+                maskit.add(maski);
+            });
+            // recipients (vastaanottaja) (no attachments yet -> status ODOTTAA)
+            List<UUID> viestinVastaanottajat = new ArrayList<>();
+            viesti.vastaanottajat().forEach(vastaanottaja -> {
+                UUID vastaanottajaTunniste = UUID.randomUUID();
+                viestinVastaanottajat.add(vastaanottajaTunniste);
+                vastaanottajaTunnisteet.add(vastaanottajaTunniste.toString());
+                vastaanottajaViestit.add(viestiTunniste);
+                nimet.add(vastaanottaja.nimi());
+                osoitteet.add(vastaanottaja.sahkoposti());
+            });
+            tallennetut.add(new TallennettuViesti(viestiTunnisteet.get(i), kentat.lahetysTunniste(), viestinVastaanottajat, true));
+        }
+        idempotencyKeyCache.lisaa(omistaja, uudetAvaimet);
+        idempotencyKeyCache.lisaa(omistaja, aiemmat);
+
+        // access rights (käyttöoikeus) for the messages (viesti) and the lähetys
+        if (!oikeudet.isEmpty()) {
+            jdbc.update("INSERT INTO viestit_kayttooikeudet (viesti_tunniste, kayttooikeus_tunniste) "
+                            + "SELECT * FROM unnest(?::uuid[], ?::integer[])",
+                    oikeusViestit.toArray(String[]::new), oikeudet.toArray(String[]::new));
+            jdbc.update("INSERT INTO lahetykset_kayttooikeudet (lahetys_tunniste, kayttooikeus_tunniste) "
+                            + "SELECT DISTINCT ?::uuid, unnest(?::integer[]) ON CONFLICT DO NOTHING",
+                    kentat.lahetysTunniste().toString(), oikeudet.toArray(String[]::new));
+        }
+
+        // metadata
+        if (!metadataAvaimet.isEmpty()) {
+            jdbc.update("INSERT INTO metadata_avaimet SELECT DISTINCT unnest(?::varchar[]) ON CONFLICT (avain) DO NOTHING",
+                    (Object) metadataAvaimet.toArray(String[]::new));
+            jdbc.update("INSERT INTO metadata (avain, arvo, viesti_tunniste) "
+                            + "SELECT * FROM unnest(?::varchar[], ?::varchar[], ?::uuid[])",
+                    metadataAvaimet.toArray(String[]::new), metadataArvot.toArray(String[]::new),
+                    metadataViestit.toArray(String[]::new));
+        }
 
         // masks
-        maskit.forEach((salaisuus, maski) ->
-                jdbc.update("INSERT INTO maskit (viesti_tunniste, salaisuus, maski) VALUES (?::uuid, ?, ?)",
-                        viestiTunniste.toString(), salaisuus, maski));
+        if (!salaisuudet.isEmpty()) {
+            jdbc.update("INSERT INTO maskit (viesti_tunniste, salaisuus, maski) "
+                            + "SELECT * FROM unnest(?::uuid[], ?::varchar[], ?::varchar[])",
+                    maskiViestit.toArray(String[]::new), salaisuudet.toArray(String[]::new), maskit.toArray(String[]::new));
+        }
 
-        // recipients (vastaanottaja) (no attachments yet -> status ODOTTAA) and their status transitions
-        String vastaanottajaPrioriteetti = finalPrioriteetti;
-        List<UUID> vastaanottajaTunnisteet = vastaanottajat.stream().map(vastaanottaja -> {
-            UUID vastaanottajaTunniste = UUID.randomUUID();
+        // recipients and their status transitions
+        if (!vastaanottajaTunnisteet.isEmpty()) {
+            String[] tunnisteet = vastaanottajaTunnisteet.toArray(String[]::new);
             jdbc.update(
-                    "INSERT INTO vastaanottajat (tunniste, viesti_tunniste, nimi, sahkopostiosoite, tila, luotu, prioriteetti) "
-                            + "VALUES (?::uuid, ?::uuid, ?, ?, ?, now(), ?::prioriteetti)",
-                    vastaanottajaTunniste.toString(), viestiTunniste.toString(), vastaanottaja.nimi(),
-                    vastaanottaja.sahkoposti(), "ODOTTAA", vastaanottajaPrioriteetti);
-            lisaaVastaanottajanSiirtyma(vastaanottajaTunniste, "ODOTTAA", null);
-            return vastaanottajaTunniste;
-        }).toList();
-
-        return new TallennettuViesti(viestiTunniste, finalLahetysTunniste, vastaanottajaTunnisteet);
+                    "INSERT INTO vastaanottajat (tunniste, viesti_tunniste, lahetys_tunniste, nimi, sahkopostiosoite, tila, "
+                            + "luotu, prioriteetti) "
+                            + "SELECT v.tunniste, v.viesti_tunniste, ?::uuid, v.nimi, v.sahkopostiosoite, 'ODOTTAA', now(), "
+                            + "?::prioriteetti "
+                            + "FROM unnest(?::uuid[], ?::uuid[], ?::varchar[], ?::varchar[]) "
+                            + "AS v(tunniste, viesti_tunniste, nimi, sahkopostiosoite)",
+                    kentat.lahetysTunniste().toString(), kentat.prioriteetti(), tunnisteet, vastaanottajaViestit.toArray(String[]::new),
+                    nimet.toArray(String[]::new), osoitteet.toArray(String[]::new));
+            jdbc.update("INSERT INTO vastaanottaja_siirtymat (vastaanottaja_tunniste, aika, tila, lisatiedot) "
+                            + "SELECT unnest(?::uuid[]), now(), 'ODOTTAA', null",
+                    (Object) tunnisteet);
+            // delivered on commit; notifications of one transaction are collapsed into one
+            jdbc.execute("NOTIFY " + LAHETYSJONO_KANAVA);
+        }
+        return tallennetut;
     }
 
     /** Identifiers of a Viesti found via its idempotency key. */
     public record OlemassaOlevaViesti(UUID viestiTunniste, UUID lahetysTunniste) {}
 
     /**
-     * Finds a previously saved Viesti for the given owner + idempotency key, so a repeated create
-     * request returns the original Viesti instead of saving (and sending) it again.
+     * The Viesti recently saved with the given owner + idempotency key, if it is still in the cache of
+     * recent keys. An older key is detected by the insert in {@link #tallennaViesti} instead.
      */
-    public Optional<OlemassaOlevaViesti> haeOlemassaOlevaViesti(String omistaja, String idempotencyKey) {
-        var rows = jdbc.queryForList(
-                "SELECT tunniste, lahetys_tunniste FROM viestit WHERE omistaja = ? AND idempotency_key = ?",
-                omistaja, idempotencyKey);
-        if (rows.isEmpty()) {
-            return Optional.empty();
-        }
-        var row = rows.get(0);
-        return Optional.of(new OlemassaOlevaViesti(
-                UUID.fromString(row.get("tunniste").toString()),
-                UUID.fromString(row.get("lahetys_tunniste").toString())));
+    public Optional<OlemassaOlevaViesti> haeViimeaikainenViesti(String omistaja, String idempotencyKey) {
+        return idempotencyKeyCache.hae(omistaja, idempotencyKey);
     }
 
-    /** Number of KORKEA-priority Viesti entities the owner has created within the last {@code sekuntia} seconds. */
-    public int korkeanPrioriteetinViestienMaara(String omistaja, int sekuntia) {
-        Integer maara = jdbc.queryForObject(
-                "SELECT count(1) FROM viestit "
-                        + "WHERE prioriteetti = 'KORKEA'::prioriteetti AND omistaja = ? "
-                        + "AND luotu > now() - (? * interval '1 second')",
-                Integer.class, omistaja, sekuntia);
-        return maara == null ? 0 : maara;
+    /** Previously saved Viesti entities of the owner by idempotency key. */
+    private Map<String, OlemassaOlevaViesti> haeOlemassaOlevatViestit(String omistaja, Collection<String> idempotencyKeys) {
+        Map<String, OlemassaOlevaViesti> tulos = new HashMap<>();
+        if (idempotencyKeys.isEmpty()) {
+            return tulos;
+        }
+        jdbc.query(
+                "SELECT idempotency_key, tunniste, lahetys_tunniste FROM viestit "
+                        + "WHERE omistaja = ? AND idempotency_key = ANY(?::varchar[])",
+                rs -> {
+                    tulos.put(rs.getString("idempotency_key"), new OlemassaOlevaViesti(
+                            UUID.fromString(rs.getString("tunniste")), UUID.fromString(rs.getString("lahetys_tunniste"))));
+                },
+                omistaja, idempotencyKeys.toArray(String[]::new));
+        return tulos;
     }
 
     /**
@@ -240,23 +358,4 @@ public class LahetysWriteService {
         }
         return tulos;
     }
-
-    private static String arrayPlaceholders(int koko, String tyyppi) {
-        if (koko == 0) {
-            return "ARRAY[]::" + tyyppi + "[]";
-        }
-        return "ARRAY[" + String.join(",", Collections.nCopies(koko, "?")) + "]::" + tyyppi + "[]";
-    }
-
-    private int getOrCreateKayttooikeus(Kayttooikeus kayttooikeus) {
-        return jdbc.queryForObject(
-                "WITH lisays AS ("
-                        + "  INSERT INTO kayttooikeudet (organisaatio, oikeus) VALUES (?, ?) ON CONFLICT DO NOTHING RETURNING tunniste"
-                        + ") "
-                        + "SELECT tunniste FROM kayttooikeudet WHERE organisaatio IS NOT DISTINCT FROM ? AND oikeus = ? "
-                        + "UNION SELECT tunniste FROM lisays",
-                Integer.class,
-                kayttooikeus.organisaatio(), kayttooikeus.oikeus(),
-                kayttooikeus.organisaatio(), kayttooikeus.oikeus());
-    }
 }
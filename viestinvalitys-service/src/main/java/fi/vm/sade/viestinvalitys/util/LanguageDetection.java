@@ -3,14 +3,34 @@ package fi.vm.sade.viestinvalitys.util;
 import com.github.pemistahl.lingua.api.Language;
 import com.github.pemistahl.lingua.api.LanguageDetector;
 import com.github.pemistahl.lingua.api.LanguageDetectorBuilder;
+import org.jsoup.Jsoup;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
 
 /**
  * Detects the language(s) of a Viesti content when the {@code kielet} field is omitted. Ported from
  * the {@code vastaanotto} lambda's {@code LanguageDetection}; returns lower-case wire codes
  * ("fi"/"sv"/"en") matching the request format.
+ *
+ * <p>The cost is bounded regardless of the content size: detection looks at a sample of evenly
+ * spread windows of the content with HTML markup removed. The sample is first split into blocks of
+ * words that are classified by function words and å/ä/ö frequencies, which separate Finnish,
+ * Swedish and English in most viestit. Lingua is run on the sample only when a block is ambiguous
+ * or the blocks disagree. Results are memoized by a hash of the sample, so the identical contents
+ * of a mass send are detected once.
  */
 public final class LanguageDetection {
 
@@ -21,7 +41,56 @@ public final class LanguageDetection {
 
     private static final double LUOTTAMUS_RAJA = 0.85;
 
+    // detection looks at no more than this many characters of the content
+    static final int NAYTTEEN_MAX_PITUUS = 20_000;
+    private static final int IKKUNOITA = 4;
+
+    private static final int LOHKON_SANAT = 150;
+    // a block with fewer function words than this is left to Lingua
+    private static final int LOHKON_MIN_OSUMAT = 5;
+
+    private static final int MUISTETTUJA_TULOKSIA = 1000;
+
+    private static final Set<String> FI_SANAT = Set.of(
+            "ja", "ei", "että", "tai", "kun", "jos", "sekä", "myös", "mutta", "kanssa", "joka", "jonka", "joiden",
+            "niin", "vain", "voit", "olet", "sinun", "sinulla", "tämä", "tämän", "ovat", "ole", "olla", "tulee",
+            "kaikki", "jälkeen", "aikana", "enintään", "vähintään");
+    private static final Set<String> SV_SANAT = Set.of(
+            "och", "att", "det", "som", "är", "för", "av", "på", "med", "till", "har", "kan", "inte", "den", "ett",
+            "eller", "vid", "från", "även", "du", "din", "ditt", "dina", "de", "om", "får", "ska", "efter", "under");
+    private static final Set<String> EN_SANAT = Set.of(
+            "the", "and", "of", "to", "is", "in", "for", "you", "your", "are", "with", "this", "that", "be", "on",
+            "by", "will", "have", "has", "or", "from", "not", "an", "as", "it", "at", "their", "which", "who");
+
+    private static final Map<String, Set<String>> TULOKSET =
+            new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Set<String>> eldest) {
+                    return size() > MUISTETTUJA_TULOKSIA;
+                }
+            };
+
     public static Set<String> tunnistaKieli(String teksti) {
+        List<String> ikkunat = nayte(teksti);
+        String avain = tiiviste(ikkunat);
+        Set<String> muistettu;
+        synchronized (TULOKSET) {
+            muistettu = TULOKSET.get(avain);
+        }
+        if (muistettu != null) {
+            return new LinkedHashSet<>(muistettu);
+        }
+
+        String nayte = String.join("\n", ikkunat.stream().map(LanguageDetection::poistaHtml).toList());
+        Set<String> kielet = esiluokittele(nayte).map(kieli -> (Set<String>) new LinkedHashSet<>(List.of(kieli)))
+                .orElseGet(() -> lingua(nayte));
+        synchronized (TULOKSET) {
+            TULOKSET.put(avain, Collections.unmodifiableSet(new LinkedHashSet<>(kielet)));
+        }
+        return kielet;
+    }
+
+    private static Set<String> lingua(String teksti) {
         Set<String> kielet = new LinkedHashSet<>();
         DETECTOR.computeLanguageConfidenceValues(teksti).forEach((kieli, luottamus) -> {
             if (luottamus > LUOTTAMUS_RAJA) {
@@ -35,4 +104,112 @@ public final class LanguageDetection {
         });
         return kielet;
     }
+
+    /**
+     * Classifies the text by blocks of words; returns a language only when every block is clearly
+     * in that same language.
+     */
+    static Optional<String> esiluokittele(String teksti) {
+        String[] sanat = Arrays.stream(teksti.toLowerCase(Locale.ROOT).split("[^\\p{L}]+"))
+                .filter(s -> !s.isEmpty())
+                .toArray(String[]::new);
+        if (sanat.length == 0) {
+            return Optional.empty();
+        }
+        // a short tail is classified together with the block before it
+        int lohkoja = Math.max(1, (sanat.length + LOHKON_SANAT / 2) / LOHKON_SANAT);
+        String kieli = null;
+        for (int i = 0; i < lohkoja; i++) {
+            int loppu = i == lohkoja - 1 ? sanat.length : (i + 1) * LOHKON_SANAT;
+            Optional<String> lohkonKieli = luokitteleLohko(sanat, i * LOHKON_SANAT, loppu);
+            if (lohkonKieli.isEmpty() || (kieli != null && !kieli.equals(lohkonKieli.get()))) {
+                return Optional.empty();
+            }
+            kieli = lohkonKieli.get();
+        }
+        return Optional.of(kieli);
+    }
+
+    private static Optional<String> luokitteleLohko(String[] sanat, int alku, int loppu) {
+        int fi = 0, sv = 0, en = 0;
+        int kirjaimet = 0, aRengas = 0, aJaOPisteet = 0;
+        for (int i = alku; i < loppu; i++) {
+            String sana = sanat[i];
+            if (FI_SANAT.contains(sana)) {
+                fi++;
+            }
+            if (SV_SANAT.contains(sana)) {
+                sv++;
+            }
+            if (EN_SANAT.contains(sana)) {
+                en++;
+            }
+            kirjaimet += sana.length();
+            for (int j = 0; j < sana.length(); j++) {
+                switch (sana.charAt(j)) {
+                    case 'å' -> aRengas++;
+                    case 'ä', 'ö' -> aJaOPisteet++;
+                    default -> { }
+                }
+            }
+        }
+
+        // one language must have clearly the most function words, and the letters must fit it: Finnish
+        // uses ä and ö often but not å, Swedish uses å, English none of them apart from names
+        double aRengasOsuus = (double) aRengas / kirjaimet;
+        double aJaOPisteOsuus = (double) aJaOPisteet / kirjaimet;
+        if (fi >= LOHKON_MIN_OSUMAT && fi >= 3 * Math.max(sv, en) && aJaOPisteOsuus > 0.01 && aRengasOsuus < 0.001) {
+            return Optional.of("fi");
+        }
+        if (sv >= LOHKON_MIN_OSUMAT && sv >= 3 * Math.max(fi, en) && aRengas > 0) {
+            return Optional.of("sv");
+        }
+        if (en >= LOHKON_MIN_OSUMAT && en >= 3 * Math.max(fi, sv) && aRengasOsuus + aJaOPisteOsuus < 0.015) {
+            return Optional.of("en");
+        }
+        return Optional.empty();
+    }
+
+    /** The whole content when it is short, otherwise evenly spread windows of it. */
+    static List<String> nayte(String teksti) {
+        if (teksti.length() <= NAYTTEEN_MAX_PITUUS) {
+            return List.of(teksti);
+        }
+        int pituus = NAYTTEEN_MAX_PITUUS / IKKUNOITA;
+        List<String> ikkunat = new ArrayList<>(IKKUNOITA);
+        for (int i = 0; i < IKKUNOITA; i++) {
+            int alku = (int) ((long) (teksti.length() - pituus) * i / (IKKUNOITA - 1));
+            if (alku > 0 && Character.isLowSurrogate(teksti.charAt(alku))) {
+                alku++;
+            }
+            ikkunat.add(teksti.substring(alku, Math.min(teksti.length(), alku + pituus)));
+        }
+        return ikkunat;
+    }
+
+    private static String poistaHtml(String ikkuna) {
+        if (ikkuna.indexOf('<') < 0) {
+            return ikkuna;
+        }
+        // a window may start in the middle of a tag
+        int tagiAlkaa = ikkuna.indexOf('<');
+        int tagiLoppuu = ikkuna.indexOf('>');
+        if (tagiLoppuu >= 0 && tagiLoppuu < tagiAlkaa) {
+            ikkuna = ikkuna.substring(tagiLoppuu + 1);
+        }
+        return Jsoup.parse(ikkuna).text();
+    }
+
+    private static String tiiviste(List<String> ikkunat) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (String ikkuna : ikkunat) {
+                digest.update(ikkuna.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
 }
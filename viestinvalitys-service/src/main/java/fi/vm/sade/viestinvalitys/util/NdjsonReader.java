@@ -0,0 +1,72 @@
+package fi.vm.sade.viestinvalitys.util;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads a newline-delimited JSON body one line at a time without holding more than one line in
+ * memory. A line longer than {@code maxRivinPituus} bytes is skipped up to the next newline and
+ * returned with {@link Rivi#liianPitka()} set, so that the caller can report it and carry on with
+ * the following lines. Blank lines are skipped but counted in the line numbers.
+ */
+public final class NdjsonReader {
+
+    /** A line of the body; {@code sisalto} is null if the line was too long. */
+    public record Rivi(int numero, byte[] sisalto) {
+
+        public boolean liianPitka() {
+            return sisalto == null;
+        }
+    }
+
+    private final InputStream in;
+    private final int maxRivinPituus;
+    private final ByteArrayOutputStream puskuri = new ByteArrayOutputStream();
+    private int rivinNumero = 0;
+
+    public NdjsonReader(InputStream in, int maxRivinPituus) {
+        this.in = new BufferedInputStream(in);
+        this.maxRivinPituus = maxRivinPituus;
+    }
+
+    /** The next non-blank line, or null at the end of the body. */
+    public Rivi seuraava() throws IOException {
+        while (true) {
+            puskuri.reset();
+            boolean liianPitka = false;
+            int tavu;
+            while ((tavu = in.read()) != -1 && tavu != '\n') {
+                if (liianPitka) {
+                    continue;
+                }
+                if (puskuri.size() >= maxRivinPituus) {
+                    liianPitka = true;
+                    puskuri.reset();
+                } else {
+                    puskuri.write(tavu);
+                }
+            }
+            if (tavu == -1 && puskuri.size() == 0 && !liianPitka) {
+                return null;
+            }
+            rivinNumero++;
+            if (liianPitka) {
+                return new Rivi(rivinNumero, null);
+            }
+            if (!onTyhja()) {
+                return new Rivi(rivinNumero, puskuri.toByteArray());
+            }
+        }
+    }
+
+    private boolean onTyhja() {
+        for (byte b : puskuri.toByteArray()) {
+            if (!Character.isWhitespace(b)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
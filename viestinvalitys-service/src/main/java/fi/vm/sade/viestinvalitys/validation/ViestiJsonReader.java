@@ -0,0 +1,173 @@
+package fi.vm.sade.viestinvalitys.validation;
+
+import fi.vm.sade.viestinvalitys.dto.Kayttooikeus;
+import fi.vm.sade.viestinvalitys.dto.Kontakti;
+import fi.vm.sade.viestinvalitys.dto.LuoViestiRequest;
+import fi.vm.sade.viestinvalitys.dto.Maski;
+import tools.jackson.core.JacksonException;
+import tools.jackson.core.JsonParser;
+import tools.jackson.core.JsonToken;
+import tools.jackson.databind.DeserializationFeature;
+import tools.jackson.databind.ObjectMapper;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Reads a {@link LuoViestiRequest} from JSON token by token, so that the request body is never held
+ * in memory besides the request itself. The limits of {@link ViestiValidator} that bound the size of
+ * the request (otsikko and sisalto lengths and the number of vastaanottajat, maskit, liitteet,
+ * käyttöoikeusrajoitukset and metadata) are checked while reading: the first one exceeded stops
+ * reading with a {@link RajaYlitetty} carrying the message {@link ViestiValidator} would give. A too
+ * long string is rejected before it is turned into a String. The remaining rules are left to
+ * {@link ViestiValidator#validateViesti}, which then only sees a request of bounded size.
+ */
+public final class ViestiJsonReader {
+
+    private ViestiJsonReader() {}
+
+    /** The body is not a JSON object of the LuoViestiRequest shape. */
+    public static final class VirheellinenJson extends RuntimeException {
+        VirheellinenJson() {
+        }
+
+        VirheellinenJson(Throwable syy) {
+            super(syy);
+        }
+    }
+
+    /** A limit that bounds the request size was exceeded; the message is the validation error. */
+    public static final class RajaYlitetty extends RuntimeException {
+        RajaYlitetty(String virhe) {
+            super(virhe);
+        }
+    }
+
+    public static LuoViestiRequest lue(ObjectMapper objectMapper, InputStream json) {
+        try (JsonParser parser = objectMapper.createParser(json)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new VirheellinenJson();
+            }
+            String otsikko = null, sisalto = null, sisallonTyyppi = null, lahettavanVirkailijanOid = null,
+                    replyTo = null, lahettavaPalvelu = null, lahetysTunniste = null, prioriteetti = null,
+                    idempotencyKey = null;
+            List<String> kielet = null, liitteidenTunnisteet = null;
+            List<Maski> maskit = null;
+            Kontakti lahettaja = null;
+            List<Kontakti> vastaanottajat = null;
+            Integer sailytysaika = null;
+            List<Kayttooikeus> kayttooikeusRajoitukset = null;
+            Map<String, List<String>> metadata = null;
+
+            while (parser.nextToken() == JsonToken.PROPERTY_NAME) {
+                String kentta = parser.currentName();
+                parser.nextToken();
+                switch (kentta) {
+                    case "otsikko" -> otsikko = merkkijono(parser,
+                            ViestiValidator.OTSIKKO_MAX_PITUUS, ViestiValidator.VALIDATION_OTSIKKO_LIIAN_PITKA);
+                    case "sisalto" -> sisalto = merkkijono(parser,
+                            ViestiValidator.SISALTO_MAX_PITUUS, ViestiValidator.VALIDATION_SISALTO_LIIAN_PITKA);
+                    case "sisallonTyyppi" -> sisallonTyyppi = merkkijono(parser);
+                    case "kielet" -> kielet = lista(parser, Integer.MAX_VALUE, null, ViestiJsonReader::merkkijono);
+                    case "maskit" -> maskit = lista(parser,
+                            ViestiValidator.VIESTI_MASKIT_MAX_MAARA, ViestiValidator.VALIDATION_MASKIT_LIIKAA,
+                            p -> objectMapper.readValue(p, Maski.class));
+                    case "lahettavanVirkailijanOid" -> lahettavanVirkailijanOid = merkkijono(parser);
+                    case "lahettaja" -> lahettaja = objectMapper.readValue(parser, Kontakti.class);
+                    case "replyTo" -> replyTo = merkkijono(parser);
+                    case "vastaanottajat" -> vastaanottajat = lista(parser,
+                            ViestiValidator.VIESTI_VASTAANOTTAJAT_MAX_MAARA, ViestiValidator.VALIDATION_VASTAANOTTAJAT_LIIKAA,
+                            p -> objectMapper.readValue(p, Kontakti.class));
+                    case "liitteidenTunnisteet" -> liitteidenTunnisteet = lista(parser,
+                            ViestiValidator.VIESTI_LIITTEET_MAX_MAARA, ViestiValidator.VALIDATION_LIITETUNNISTE_LIIKAA,
+                            ViestiJsonReader::merkkijono);
+                    case "lahettavaPalvelu" -> lahettavaPalvelu = merkkijono(parser);
+                    case "lahetysTunniste" -> lahetysTunniste = merkkijono(parser);
+                    case "prioriteetti" -> prioriteetti = merkkijono(parser);
+                    case "sailytysaika" -> sailytysaika = objectMapper.readValue(parser, Integer.class);
+                    case "kayttooikeusRajoitukset" -> kayttooikeusRajoitukset = lista(parser,
+                            ViestiValidator.VIESTI_KAYTTOOIKEUS_MAX_MAARA,
+                            ViestiValidator.VALIDATION_KAYTTOOIKEUSRAJOITUS_LIIKAA,
+                            p -> objectMapper.readValue(p, Kayttooikeus.class));
+                    case "metadata" -> metadata = metadata(parser);
+                    case "idempotencyKey" -> idempotencyKey = merkkijono(parser);
+                    default -> {
+                        if (objectMapper.isEnabled(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES)) {
+                            throw new VirheellinenJson();
+                        }
+                        parser.skipChildren();
+                    }
+                }
+            }
+            if (parser.currentToken() != JsonToken.END_OBJECT || parser.nextToken() != null) {
+                throw new VirheellinenJson();
+            }
+            return new LuoViestiRequest(otsikko, sisalto, sisallonTyyppi, kielet, maskit, lahettavanVirkailijanOid,
+                    lahettaja, replyTo, vastaanottajat, liitteidenTunnisteet, lahettavaPalvelu, lahetysTunniste,
+                    prioriteetti, sailytysaika, kayttooikeusRajoitukset, metadata, idempotencyKey);
+        } catch (JacksonException e) {
+            throw new VirheellinenJson(e);
+        }
+    }
+
+    private static String merkkijono(JsonParser parser) {
+        return merkkijono(parser, Integer.MAX_VALUE, null);
+    }
+
+    private static String merkkijono(JsonParser parser, int maxPituus, String virhe) {
+        JsonToken token = parser.currentToken();
+        if (token == JsonToken.VALUE_NULL) {
+            return null;
+        }
+        if (token == JsonToken.VALUE_STRING && parser.getStringLength() > maxPituus) {
+            throw new RajaYlitetty(virhe);
+        }
+        if (!token.isScalarValue()) {
+            throw new VirheellinenJson();
+        }
+        return parser.getValueAsString();
+    }
+
+    private static <T> List<T> lista(JsonParser parser, int maxMaara, String virhe, Function<JsonParser, T> alkio) {
+        if (parser.currentToken() == JsonToken.VALUE_NULL) {
+            return null;
+        }
+        if (parser.currentToken() != JsonToken.START_ARRAY) {
+            throw new VirheellinenJson();
+        }
+        List<T> lista = new ArrayList<>();
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            if (lista.size() == maxMaara) {
+                throw new RajaYlitetty(virhe);
+            }
+            lista.add(parser.currentToken() == JsonToken.VALUE_NULL ? null : alkio.apply(parser));
+        }
+        return lista;
+    }
+
+    private static Map<String, List<String>> metadata(JsonParser parser) {
+        if (parser.currentToken() == JsonToken.VALUE_NULL) {
+            return null;
+        }
+        if (parser.currentToken() != JsonToken.START_OBJECT) {
+            throw new VirheellinenJson();
+        }
+        Map<String, List<String>> metadata = new LinkedHashMap<>();
+        while (parser.nextToken() == JsonToken.PROPERTY_NAME) {
+            String avain = parser.currentName();
+            // like ViestiValidator, the number of keys has the same limit and message as the values of a key
+            if (metadata.size() == ViestiValidator.VIESTI_METADATA_ARVOT_MAX_MAARA && !metadata.containsKey(avain)) {
+                throw new RajaYlitetty(ViestiValidator.VALIDATION_METADATA_ARVOT_MAARA);
+            }
+            parser.nextToken();
+            metadata.put(avain, lista(parser, ViestiValidator.VIESTI_METADATA_ARVOT_MAX_MAARA,
+                    "Metadata \"" + avain + "\": " + ViestiValidator.VALIDATION_METADATA_ARVOT_MAARA,
+                    ViestiJsonReader::merkkijono));
+        }
+        return metadata;
+    }
+}
@@ -0,0 +1,7 @@
+-- korkean prioriteetin viestien rate limit: omistajan aikaikkunassa myönnettyjen viestien aikaleimat (liukuva
+-- ikkuna). Yksi rivi per omistaja, joten rinnakkaiset varaukset eri instansseista sarjallistuvat rivilukolla
+-- eikä rajoitus lue viestit-taulua.
+CREATE TABLE korkean_prioriteetin_kiintiot (
+  omistaja varchar PRIMARY KEY,
+  aikaleimat timestamptz[] NOT NULL DEFAULT '{}'
+);
@@ -0,0 +1,5 @@
+-- ajetaan ilman transaktiota (ks. .conf), jotta indeksi voidaan rakentaa estämättä kirjoituksia. Keskeytynyt
+-- rakennus jättää epävalidin indeksin, joka poistetaan ennen uutta yritystä.
+DROP INDEX CONCURRENTLY IF EXISTS vastaanottajat_lahetys_listaus_idx;
+CREATE INDEX CONCURRENTLY vastaanottajat_lahetys_listaus_idx ON vastaanottajat (lahetys_tunniste, tila, sahkopostiosoite, tunniste)
+  INCLUDE (nimi, viesti_tunniste);
@@ -0,0 +1,97 @@
+-- lähetysten vastaanottajien määrät tiloittain ja viestien määrä, jotta raportoinnin ei tarvitse laskea niitä
+-- vastaanottajista joka kerta. Triggerit kirjaavat muutokset kaikista koodipoluista lausekohtaisesti
+-- lahetys_tilastomuutokset-tauluun, josta kokoamisajo (LahetysTilastoService) siirtää ne lahetys_tilastot-tauluun ja
+-- lahetykset.viesti_lkm-sarakkeeseen. Muutokset vain lisätään, joten saman lähetyksen kirjoittajat eivät odota
+-- toisiaan yhteisen tilastorivin lukon takia. Korjausajo korjaa mahdollisen ajautuman.
+CREATE TABLE lahetys_tilastot (
+  lahetys_tunniste uuid NOT NULL,
+  tila varchar NOT NULL,
+  lkm integer NOT NULL,
+  PRIMARY KEY (lahetys_tunniste, tila),
+  CONSTRAINT fk_lahetys_tunniste FOREIGN KEY (lahetys_tunniste) REFERENCES lahetykset(tunniste) ON DELETE CASCADE
+);
+ALTER TABLE lahetykset ADD COLUMN viesti_lkm integer NOT NULL DEFAULT 0;
+
+-- tila on null viestien määrän muutoksille. Lähetykseen ei viitata, jotta lähetyksen poiston cascade voi kirjata
+-- vastaanottajien poistot, kokoamisajo poistaa poistettujen lähetysten muutokset.
+CREATE TABLE lahetys_tilastomuutokset (
+  tunniste bigserial PRIMARY KEY,
+  lahetys_tunniste uuid NOT NULL,
+  tila varchar,
+  muutos integer NOT NULL
+);
+CREATE INDEX lahetys_tilastomuutokset_lahetys_idx ON lahetys_tilastomuutokset (lahetys_tunniste);
+
+-- ajantasaiset määrät: kootut määrät ja vielä kokoamattomat muutokset
+CREATE VIEW lahetys_tilastot_nyt AS
+SELECT lahetys_tunniste, tila, sum(lkm)::integer AS lkm FROM (
+  SELECT lahetys_tunniste, tila, lkm FROM lahetys_tilastot
+  UNION ALL
+  SELECT lahetys_tunniste, tila, muutos FROM lahetys_tilastomuutokset WHERE tila IS NOT NULL
+) t
+GROUP BY lahetys_tunniste, tila;
+
+INSERT INTO lahetys_tilastot
+SELECT lahetys_tunniste, tila, count(*) FROM vastaanottajat GROUP BY lahetys_tunniste, tila;
+UPDATE lahetykset SET viesti_lkm = viestit.lkm
+FROM (SELECT lahetys_tunniste, count(*) AS lkm FROM viestit GROUP BY lahetys_tunniste) viestit
+WHERE lahetykset.tunniste = viestit.lahetys_tunniste;
+
+CREATE FUNCTION lahetys_tilastot_lisaa() RETURNS trigger AS $$
+BEGIN
+  INSERT INTO lahetys_tilastomuutokset (lahetys_tunniste, tila, muutos)
+  SELECT lahetys_tunniste, tila, count(*) FROM uudet GROUP BY lahetys_tunniste, tila;
+  RETURN NULL;
+END
+$$ LANGUAGE plpgsql;
+
+CREATE FUNCTION lahetys_tilastot_muuta() RETURNS trigger AS $$
+BEGIN
+  INSERT INTO lahetys_tilastomuutokset (lahetys_tunniste, tila, muutos)
+  SELECT lahetys_tunniste, tila, sum(muutos) FROM (
+    SELECT vanhat.lahetys_tunniste, vanhat.tila, -1 AS muutos
+    FROM vanhat JOIN uudet ON uudet.tunniste = vanhat.tunniste WHERE uudet.tila <> vanhat.tila
+    UNION ALL
+    SELECT uudet.lahetys_tunniste, uudet.tila, 1
+    FROM vanhat JOIN uudet ON uudet.tunniste = vanhat.tunniste WHERE uudet.tila <> vanhat.tila
+  ) muutokset
+  GROUP BY lahetys_tunniste, tila;
+  RETURN NULL;
+END
+$$ LANGUAGE plpgsql;
+
+CREATE FUNCTION lahetys_tilastot_poista() RETURNS trigger AS $$
+BEGIN
+  INSERT INTO lahetys_tilastomuutokset (lahetys_tunniste, tila, muutos)
+  SELECT lahetys_tunniste, tila, -count(*) FROM vanhat GROUP BY lahetys_tunniste, tila;
+  RETURN NULL;
+END
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER vastaanottajat_tilastot_lisays AFTER INSERT ON vastaanottajat
+  REFERENCING NEW TABLE AS uudet FOR EACH STATEMENT EXECUTE FUNCTION lahetys_tilastot_lisaa();
+CREATE TRIGGER vastaanottajat_tilastot_muutos AFTER UPDATE ON vastaanottajat
+  REFERENCING OLD TABLE AS vanhat NEW TABLE AS uudet FOR EACH STATEMENT EXECUTE FUNCTION lahetys_tilastot_muuta();
+CREATE TRIGGER vastaanottajat_tilastot_poisto AFTER DELETE ON vastaanottajat
+  REFERENCING OLD TABLE AS vanhat FOR EACH STATEMENT EXECUTE FUNCTION lahetys_tilastot_poista();
+
+CREATE FUNCTION lahetys_viesti_lkm_lisaa() RETURNS trigger AS $$
+BEGIN
+  INSERT INTO lahetys_tilastomuutokset (lahetys_tunniste, tila, muutos)
+  SELECT lahetys_tunniste, null, count(*) FROM uudet GROUP BY lahetys_tunniste;
+  RETURN NULL;
+END
+$$ LANGUAGE plpgsql;
+
+CREATE FUNCTION lahetys_viesti_lkm_poista() RETURNS trigger AS $$
+BEGIN
+  INSERT INTO lahetys_tilastomuutokset (lahetys_tunniste, tila, muutos)
+  SELECT lahetys_tunniste, null, -count(*) FROM vanhat GROUP BY lahetys_tunniste;
+  RETURN NULL;
+END
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER viestit_viesti_lkm_lisays AFTER INSERT ON viestit
+  REFERENCING NEW TABLE AS uudet FOR EACH STATEMENT EXECUTE FUNCTION lahetys_viesti_lkm_lisaa();
+CREATE TRIGGER viestit_viesti_lkm_poisto AFTER DELETE ON viestit
+  REFERENCING OLD TABLE AS vanhat FOR EACH STATEMENT EXECUTE FUNCTION lahetys_viesti_lkm_poista();
@@ -0,0 +1,8 @@
+-- SES-tapahtumat (2-4 per lähetetty viesti) päivittävät vastaanottajan tilan ses_tunnisteen perusteella. Tunniste on
+-- vain SES:lle lähetetyillä vastaanottajilla, joten indeksistä jätetään pois jonossa odottavat ja virheeseen päätyneet
+--
+-- ajetaan ilman transaktiota (ks. .conf), jotta indeksi voidaan rakentaa estämättä kirjoituksia. Keskeytynyt
+-- rakennus jättää epävalidin indeksin, joka poistetaan ennen uutta yritystä. Vanha indeksi poistetaan omassa
+-- migraatiossaan (V202610170410).
+DROP INDEX CONCURRENTLY IF EXISTS vastaanottajat_ses_tunniste_idx;
+CREATE INDEX CONCURRENTLY vastaanottajat_ses_tunniste_idx ON vastaanottajat (ses_tunniste) WHERE ses_tunniste IS NOT NULL;
@@ -0,0 +1,32 @@
+-- lähetyspalvelu jakaa saman prioriteetin lähetysvuorot lähetysten kesken (painotettu round-robin), jotta yksi
+-- massalähetys ei pidätä muita samaan aikaan jonossa olevia lähetyksiä. Paino määräytyy lähettävän palvelun mukaan.
+ALTER TABLE lahetysjono ADD COLUMN lahetys_tunniste uuid;
+ALTER TABLE lahetysjono ADD COLUMN lahettavapalvelu varchar;
+UPDATE lahetysjono SET lahetys_tunniste = vastaanottajat.lahetys_tunniste, lahettavapalvelu = lahetykset.lahettavapalvelu
+FROM vastaanottajat JOIN lahetykset ON lahetykset.tunniste = vastaanottajat.lahetys_tunniste
+WHERE vastaanottajat.tunniste = lahetysjono.vastaanottaja_tunniste;
+ALTER TABLE lahetysjono ALTER COLUMN lahetys_tunniste SET NOT NULL;
+
+-- jonossa olevat lähetykset löytyvät indeksistä hyppimällä lähetyksestä toiseen, ja lähetyksen vastaanottajat
+-- luontijärjestyksessä
+CREATE INDEX lahetysjono_lahetys_idx ON lahetysjono (prioriteetti, lahetys_tunniste, luotu);
+
+CREATE OR REPLACE FUNCTION lahetysjono_lisaa() RETURNS trigger AS $$
+BEGIN
+  INSERT INTO lahetysjono (vastaanottaja_tunniste, prioriteetti, luotu, lahetys_tunniste, lahettavapalvelu)
+  SELECT uudet.tunniste, uudet.prioriteetti, uudet.luotu, uudet.lahetys_tunniste, lahetykset.lahettavapalvelu
+  FROM uudet LEFT JOIN lahetykset ON lahetykset.tunniste = uudet.lahetys_tunniste
+  WHERE uudet.tila = 'ODOTTAA';
+  RETURN NULL;
+END
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION lahetysjono_palauta() RETURNS trigger AS $$
+BEGIN
+  INSERT INTO lahetysjono (vastaanottaja_tunniste, prioriteetti, luotu, lahetys_tunniste, lahettavapalvelu)
+  SELECT NEW.tunniste, NEW.prioriteetti, NEW.luotu, NEW.lahetys_tunniste,
+    (SELECT lahettavapalvelu FROM lahetykset WHERE tunniste = NEW.lahetys_tunniste)
+  ON CONFLICT (vastaanottaja_tunniste) DO NOTHING;
+  RETURN NULL;
+END
+$$ LANGUAGE plpgsql;
@@ -0,0 +1,14 @@
+-- kaikkien lähetyspalvelun instanssien yhteinen SES-lähetysnopeus (token bucket): instanssi ottaa lähetysvuoroja
+-- yhdellä päivityslauseella, joten instanssien määrästä riippumatta SES-quotaa ei ylitetä. Tavoitteen asettavat
+-- instanssit SES-quotan perusteella, kuristus puolittaa nopeuden ja se kasvaa takaisin tavoitteeseen.
+CREATE TABLE lahetysbudjetti (
+  nimi varchar PRIMARY KEY,
+  tavoite double precision NOT NULL, -- vuoroa sekunnissa
+  nopeus double precision NOT NULL, -- nykyinen nopeus, enintään tavoite; ämpäriin mahtuu kymmenesosasekunnin vuorot
+  tokenit double precision NOT NULL,
+  otetut integer NOT NULL, -- viimeisimmän päivityksen ottamat vuorot, palautetaan päivityksen yhteydessä
+  paivitetty timestamptz NOT NULL,
+  kuristettu timestamptz NOT NULL -- viimeisin kuristuksen aiheuttama nopeuden puolitus
+);
+INSERT INTO lahetysbudjetti (nimi, tavoite, nopeus, tokenit, otetut, paivitetty, kuristettu)
+VALUES ('ses', 65, 65, 0, 0, now(), '-infinity');
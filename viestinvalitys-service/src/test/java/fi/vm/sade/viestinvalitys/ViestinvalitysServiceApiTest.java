@@ -6,6 +6,8 @@ import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.
 import tools.jackson.databind.ObjectMapper;
 
 import com.fasterxml.jackson.databind.JsonNode;
+import fi.vm.sade.viestinvalitys.service.IdempotencyKeyCache;
+import fi.vm.sade.viestinvalitys.service.KayttooikeusCache;
 import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
@@ -28,6 +30,8 @@ public abstract class ViestinvalitysServiceApiTest {
   @Autowired protected MockMvc mvc;
   @Autowired protected ObjectMapper objectMapper;
   @Autowired protected JdbcTemplate jdbcTemplate;
+  @Autowired private KayttooikeusCache kayttooikeusCache;
+  @Autowired private IdempotencyKeyCache idempotencyKeyCache;
 
   protected void clearDatabase() {
     jdbcTemplate.execute(
@@ -37,16 +41,24 @@ public abstract class ViestinvalitysServiceApiTest {
                 "metadata",
                 "metadata_avaimet",
                 "vastaanottaja_siirtymat",
+                "lahetysjono",
                 "vastaanottajat",
                 "viestit_liitteet",
                 "viestit_kayttooikeudet",
                 "maskit",
                 "lahetykset_kayttooikeudet",
                 "viestit",
+                "lahetys_tilastot",
+                "lahetys_tilastomuutokset",
                 "lahetykset",
                 "kayttooikeudet",
-                "liitteet")
+                "liitteet",
+                "korkean_prioriteetin_kiintiot")
             + " RESTART IDENTITY CASCADE");
+    // a shared send rate lowered by throttling in an earlier test
+    jdbcTemplate.update("UPDATE lahetysbudjetti SET tavoite = 65, nopeus = 65, kuristettu = '-infinity'");
+    kayttooikeusCache.tyhjenna();
+    idempotencyKeyCache.tyhjenna();
   }
 
   protected <T> T getJson(Class<T> responseClass, String urlTemplate, Object... uriVars) throws Exception {
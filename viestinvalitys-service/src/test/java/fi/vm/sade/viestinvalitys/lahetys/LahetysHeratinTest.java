@@ -0,0 +1,198 @@
+package fi.vm.sade.viestinvalitys.lahetys;
+
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.when;
+
+import fi.vm.sade.viestinvalitys.ViestinvalitysServiceApiTest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import fi.vm.sade.viestinvalitys.lahetys.service.LahetysHeratin;
+import fi.vm.sade.viestinvalitys.lahetys.service.LahetysSendService;
+import fi.vm.sade.viestinvalitys.service.LahetysWriteService;
+import fi.vm.sade.viestinvalitys.service.LahetysWriteService.Kontakti;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.bean.override.mockito.MockitoBean;
+import software.amazon.awssdk.services.cloudwatch.CloudWatchClient;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.ses.SesClient;
+import software.amazon.awssdk.services.ses.model.SendRawEmailRequest;
+import software.amazon.awssdk.services.ses.model.SendRawEmailResponse;
+
+@TestPropertySource(
+        properties = {
+                "viestinvalitys.lahetys.enabled=true",
+                "viestinvalitys.lahetys.heratys.enabled=true",
+                "viestinvalitys.mode=PRODUCTION",
+                "db-scheduler.enabled=false",
+                "viestinvalitys.ses.configuration-set-name=test-config-set",
+                "viestinvalitys.ses.from-email-address=noreply@example.com",
+                "viestinvalitys.metrics.namespace=test-viestinvalitys",
+                "viestinvalitys.metrics.flush-interval-seconds=3600",
+                "attachments.bucket.name=test-bucket"
+        })
+class LahetysHeratinTest extends ViestinvalitysServiceApiTest {
+
+  private static final Logger LOG = LoggerFactory.getLogger(LahetysHeratinTest.class);
+
+  @Autowired
+  private LahetysHeratin lahetysHeratin;
+  @Autowired
+  private LahetysSendService lahetysSendService;
+  @Autowired
+  private LahetysWriteService lahetysWriteService;
+
+  @MockitoBean
+  private SesClient sesClient;
+  @MockitoBean
+  private CloudWatchClient cloudWatchClient;
+  @MockitoBean
+  private S3Client s3Client;
+
+  /** System.nanoTime() of each SendRawEmail call. */
+  private final BlockingQueue<Long> lahetysajat = new LinkedBlockingQueue<>();
+
+  @BeforeEach
+  void setup() {
+    clearDatabase();
+    lahetysajat.clear();
+    when(sesClient.sendRawEmail(any(SendRawEmailRequest.class)))
+            .thenAnswer(
+                    invocation -> {
+                      lahetysajat.add(System.nanoTime());
+                      return SendRawEmailResponse.builder().messageId("ses-msg-1").build();
+                    });
+  }
+
+  @Test
+  void queuedRecipientIsSentWithoutPolling() throws InterruptedException {
+    tallennaViesti(0);
+
+    assertNotNull(lahetysajat.poll(10, TimeUnit.SECONDS));
+  }
+
+  /** Every woken instance sends, so the woken sends must take turns from the shared budget too. */
+  @Test
+  void wokenSendsTakeTurnsFromTheSharedBudget() throws InterruptedException {
+    int nopeus = 5;
+    int maara = 4 * nopeus;
+    jdbcTemplate.update(
+            "UPDATE lahetysbudjetti SET tavoite = ?, nopeus = ?, tokenit = 0, paivitetty = clock_timestamp()",
+            nopeus,
+            nopeus);
+    try {
+      long tallennettu = System.nanoTime();
+      tallennaViesti(IntStream.range(0, maara).mapToObj(this::vastaanottaja).toList());
+
+      long viimeinen = 0;
+      for (int i = 0; i < maara; i++) {
+        Long lahetetty = lahetysajat.poll(10, TimeUnit.SECONDS);
+        assertNotNull(lahetetty);
+        viimeinen = lahetetty;
+      }
+      // the local rate alone would send them all within a second
+      assertTrue(viimeinen - tallennettu >= TimeUnit.SECONDS.toNanos(2));
+    } finally {
+      jdbcTemplate.update("UPDATE lahetysbudjetti SET tavoite = 65, nopeus = 65");
+    }
+  }
+
+  /**
+   * Enqueue-to-SES latency of single viestit saved one at a time, when only the poll wakes the
+   * sender and when the NOTIFY does. Run with -Dbenchmark=true.
+   */
+  @Test
+  @EnabledIfSystemProperty(named = "benchmark", matches = "true")
+  void benchmarkEnqueueToSesLatency() throws InterruptedException {
+    int maara = 50;
+
+    lahetysHeratin.pysayta();
+    ScheduledExecutorService pollaus = Executors.newSingleThreadScheduledExecutor();
+    pollaus.scheduleWithFixedDelay(lahetysSendService::laheta, 0, 2, TimeUnit.SECONDS);
+    List<Long> pollattu;
+    try {
+      pollattu = viiveet(maara);
+    } finally {
+      pollaus.shutdownNow();
+      pollaus.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    lahetysajat.clear();
+    lahetysHeratin.kaynnista();
+    List<Long> heratetty = viiveet(maara);
+
+    LOG.info(
+            "Enqueue-to-SES ms, poll only: p50={} p99={}, with NOTIFY: p50={} p99={}",
+            persentiili(pollattu, 50),
+            persentiili(pollattu, 99),
+            persentiili(heratetty, 50),
+            persentiili(heratetty, 99));
+    assertTrue(persentiili(heratetty, 50) < persentiili(pollattu, 50));
+  }
+
+  /** Saves viestit one at a time, each after the previous one was sent, and returns the latencies in ms. */
+  private List<Long> viiveet(int maara) throws InterruptedException {
+    List<Long> viiveet = new ArrayList<>();
+    for (int i = 0; i < maara; i++) {
+      long tallennettu = System.nanoTime();
+      tallennaViesti(i);
+      Long lahetetty = lahetysajat.poll(10, TimeUnit.SECONDS);
+      assertNotNull(lahetetty);
+      viiveet.add(TimeUnit.NANOSECONDS.toMillis(lahetetty - tallennettu));
+    }
+    return viiveet;
+  }
+
+  private static long persentiili(List<Long> arvot, int persentiili) {
+    List<Long> jarjestetty = new ArrayList<>(arvot);
+    Collections.sort(jarjestetty);
+    return jarjestetty.get(Math.min(jarjestetty.size() - 1, jarjestetty.size() * persentiili / 100));
+  }
+
+  private void tallennaViesti(int i) {
+    tallennaViesti(List.of(vastaanottaja(i)));
+  }
+
+  private Kontakti vastaanottaja(int i) {
+    return new Kontakti("Vastaanottaja", "vastaanottaja" + i + "@example.com");
+  }
+
+  private void tallennaViesti(List<Kontakti> vastaanottajat) {
+    lahetysWriteService.tallennaViesti(
+            "Otsikko",
+            "Sisältö",
+            "TEXT",
+            Set.of("fi"),
+            Map.of(),
+            null,
+            new Kontakti("Lähettäjä", "noreply@opintopolku.fi"),
+            null,
+            vastaanottajat,
+            "Palvelu",
+            null,
+            "KORKEA",
+            Set.of(),
+            Map.of(),
+            TEST_KAYTTAJA_OID,
+            10,
+            null);
+  }
+}
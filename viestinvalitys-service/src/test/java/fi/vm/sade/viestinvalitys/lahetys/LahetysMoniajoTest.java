@@ -0,0 +1,210 @@
+package fi.vm.sade.viestinvalitys.lahetys;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.when;
+
+import fi.vm.sade.viestinvalitys.ViestinvalitysServiceApiTest;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
+
+import fi.vm.sade.viestinvalitys.lahetys.service.JaettuLahetysbudjetti;
+import fi.vm.sade.viestinvalitys.service.LahetysWriteService;
+import fi.vm.sade.viestinvalitys.service.LahetysWriteService.Kontakti;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.bean.override.mockito.MockitoBean;
+import software.amazon.awssdk.services.cloudwatch.CloudWatchClient;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.ses.SesClient;
+import software.amazon.awssdk.services.ses.model.SendRawEmailRequest;
+import software.amazon.awssdk.services.ses.model.SendRawEmailResponse;
+
+@TestPropertySource(
+        properties = {
+                "viestinvalitys.lahetys.enabled=true",
+                "viestinvalitys.lahetys.moniajo.enabled=true",
+                "viestinvalitys.lahetys.moniajo.tyontekijat=4",
+                "viestinvalitys.lahetys.polling-interval-seconds=1",
+                "viestinvalitys.lahetys.sending-quota-per-second=" + LahetysMoniajoTest.NOPEUS,
+                "viestinvalitys.mode=PRODUCTION",
+                "db-scheduler.enabled=false",
+                "viestinvalitys.ses.configuration-set-name=test-config-set",
+                "viestinvalitys.ses.from-email-address=noreply@example.com",
+                "viestinvalitys.metrics.namespace=test-viestinvalitys",
+                "viestinvalitys.metrics.flush-interval-seconds=3600",
+                "attachments.bucket.name=test-bucket"
+        })
+class LahetysMoniajoTest extends ViestinvalitysServiceApiTest {
+
+  static final int NOPEUS = 40;
+  /** The bucket holds one take, a tenth of a second of sends, and the instance may hold one more. */
+  private static final int PURSKE = 2 * NOPEUS / 10;
+
+  private static final Pattern VASTAANOTTAJA = Pattern.compile("vastaanottaja\\d+@example\\.com");
+
+  @Autowired
+  private LahetysWriteService lahetysWriteService;
+
+  @MockitoBean
+  private SesClient sesClient;
+  @MockitoBean
+  private CloudWatchClient cloudWatchClient;
+  @MockitoBean
+  private S3Client s3Client;
+
+  /** Recipient address and System.nanoTime() of each SendRawEmail call. */
+  private final List<Lahetys> lahetykset = Collections.synchronizedList(new ArrayList<>());
+
+  private record Lahetys(String vastaanottaja, long nanos) {}
+
+  @BeforeEach
+  void setup() {
+    clearDatabase();
+    lahetykset.clear();
+    tyhjennaBudjetti();
+    when(sesClient.sendRawEmail(any(SendRawEmailRequest.class)))
+            .thenAnswer(
+                    invocation -> {
+                      SendRawEmailRequest pyynto = invocation.getArgument(0);
+                      Matcher osoite =
+                              VASTAANOTTAJA.matcher(pyynto.rawMessage().data().asString(StandardCharsets.UTF_8));
+                      lahetykset.add(new Lahetys(osoite.find() ? osoite.group() : null, System.nanoTime()));
+                      return SendRawEmailResponse.builder().messageId("ses-msg-1").build();
+                    });
+  }
+
+  @Test
+  void workersSendEveryRecipientOnceWithinTheSharedRate() throws InterruptedException {
+    int maara = 3 * NOPEUS;
+    tallennaViesti(maara);
+
+    long raja = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+    while (lahetettyja() < maara && System.nanoTime() < raja) {
+      TimeUnit.MILLISECONDS.sleep(100);
+    }
+    // a recipient sent twice would show up after the last one
+    TimeUnit.SECONDS.sleep(2);
+
+    assertEquals(maara, lahetykset.size());
+    assertEquals(maara, new HashSet<>(lahetykset.stream().map(Lahetys::vastaanottaja).toList()).size());
+    assertEquals(maara, lahetettyja());
+    assertTrue(enitenSekunnissa() <= NOPEUS + PURSKE, "enintään " + (NOPEUS + PURSKE) + "/s: " + enitenSekunnissa());
+  }
+
+  /** Separate budgets taking turns as fast as they can, like instances sharing the database. */
+  @Test
+  void instancesTogetherStayWithinTheSharedRate() throws InterruptedException {
+    int instansseja = 4;
+    long kestoNanos = TimeUnit.SECONDS.toNanos(3);
+    AtomicInteger vuoroja = new AtomicInteger();
+
+    tyhjennaBudjetti();
+    long alku = System.nanoTime();
+    try (ExecutorService instanssit = Executors.newFixedThreadPool(instansseja)) {
+      IntStream.range(0, instansseja)
+              .forEach(
+                      i -> {
+                        JaettuLahetysbudjetti budjetti = new JaettuLahetysbudjetti(jdbcTemplate, 1);
+                        instanssit.submit(
+                                () -> {
+                                  while (System.nanoTime() - alku < kestoNanos) {
+                                    budjetti.acquire();
+                                    vuoroja.incrementAndGet();
+                                  }
+                                  return null;
+                                });
+                      });
+    }
+    double sekunteja = (System.nanoTime() - alku) / 1e9;
+
+    // the bucket starts empty, so the turns are the refill and at most one take's worth more
+    assertTrue(vuoroja.get() <= NOPEUS * sekunteja + NOPEUS / 10, "liikaa vuoroja: " + vuoroja.get());
+    assertTrue(vuoroja.get() >= NOPEUS * (sekunteja - 1), "liian vähän vuoroja: " + vuoroja.get());
+  }
+
+  @Test
+  void throttlingOnOneInstanceLowersTheRateOfAll() {
+    JaettuLahetysbudjetti kuristettu = new JaettuLahetysbudjetti(jdbcTemplate, 1);
+    JaettuLahetysbudjetti toinen = new JaettuLahetysbudjetti(jdbcTemplate, 1);
+
+    assertEquals(NOPEUS / 2.0, kuristettu.kuristettu());
+    // responses to sends already in flight do not lower it again
+    assertNull(toinen.kuristettu());
+    assertEquals(NOPEUS / 2.0, nopeus());
+
+    toinen.asetaTavoite(NOPEUS / 4.0);
+    assertEquals(NOPEUS / 4.0, nopeus());
+  }
+
+  private double nopeus() {
+    return jdbcTemplate.queryForObject("SELECT nopeus FROM lahetysbudjetti", Double.class);
+  }
+
+  /** An empty bucket at the full rate, so that what is sent is what has been refilled since. */
+  private void tyhjennaBudjetti() {
+    jdbcTemplate.update(
+            "UPDATE lahetysbudjetti SET tavoite = ?, nopeus = ?, tokenit = 0, paivitetty = clock_timestamp()",
+            NOPEUS,
+            NOPEUS);
+  }
+
+  private int lahetettyja() {
+    return jdbcTemplate.queryForObject(
+            "SELECT count(*) FROM vastaanottajat WHERE tila = 'LAHETETTY'", Integer.class);
+  }
+
+  /** The most SES calls within any one second. */
+  private int enitenSekunnissa() {
+    List<Long> ajat = new ArrayList<>(lahetykset.stream().map(Lahetys::nanos).sorted().toList());
+    int enintaan = 0;
+    int alku = 0;
+    for (int loppu = 0; loppu < ajat.size(); loppu++) {
+      while (ajat.get(loppu) - ajat.get(alku) >= TimeUnit.SECONDS.toNanos(1)) {
+        alku++;
+      }
+      enintaan = Math.max(enintaan, loppu - alku + 1);
+    }
+    return enintaan;
+  }
+
+  private void tallennaViesti(int vastaanottajia) {
+    lahetysWriteService.tallennaViesti(
+            "Otsikko",
+            "Sisältö",
+            "TEXT",
+            Set.of("fi"),
+            Map.of(),
+            null,
+            new Kontakti("Lähettäjä", "noreply@opintopolku.fi"),
+            null,
+            IntStream.range(0, vastaanottajia)
+                    .mapToObj(i -> new Kontakti("Vastaanottaja " + i, "vastaanottaja" + i + "@example.com"))
+                    .toList(),
+            "Palvelu",
+            null,
+            "NORMAALI",
+            Set.of(),
+            Map.of(),
+            TEST_KAYTTAJA_OID,
+            10,
+            null);
+  }
+}
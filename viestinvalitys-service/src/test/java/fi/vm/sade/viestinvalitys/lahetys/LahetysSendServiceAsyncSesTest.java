@@ -0,0 +1,164 @@
+package fi.vm.sade.viestinvalitys.lahetys;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.containing;
+import static com.github.tomakehurst.wiremock.client.WireMock.post;
+import static com.github.tomakehurst.wiremock.client.WireMock.postRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlPathEqualTo;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.github.tomakehurst.wiremock.junit5.WireMockExtension;
+import fi.vm.sade.viestinvalitys.ViestinvalitysServiceApiTest;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.IntStream;
+
+import fi.vm.sade.viestinvalitys.lahetys.service.LahetysSendService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.bean.override.mockito.MockitoBean;
+import software.amazon.awssdk.services.cloudwatch.CloudWatchClient;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.ses.SesClient;
+
+/**
+ * The async send path against a stub SES endpoint. The stub answers SendRawEmail after a fixed
+ * delay, so the logged throughput shows how well requests are pipelined.
+ */
+@TestPropertySource(
+        properties = {
+                "viestinvalitys.lahetys.enabled=true",
+                "viestinvalitys.lahetys.ses-client=async",
+                "viestinvalitys.lahetys.async.max-in-flight=32",
+                "viestinvalitys.lahetys.sending-quota-per-second=1000",
+                "viestinvalitys.mode=PRODUCTION",
+                "db-scheduler.enabled=false",
+                "viestinvalitys.ses.configuration-set-name=test-config-set",
+                "viestinvalitys.ses.from-email-address=noreply@example.com",
+                "viestinvalitys.metrics.namespace=test-viestinvalitys",
+                "viestinvalitys.metrics.flush-interval-seconds=3600",
+                "attachments.bucket.name=test-bucket"
+        })
+class LahetysSendServiceAsyncSesTest extends ViestinvalitysServiceApiTest {
+
+  private static final Logger LOG = LoggerFactory.getLogger(LahetysSendServiceAsyncSesTest.class);
+
+  private static final int SES_VIIVE_MS = 50;
+
+  @RegisterExtension
+  static WireMockExtension ses =
+          WireMockExtension.newInstance().options(wireMockConfig().dynamicPort()).build();
+
+  @DynamicPropertySource
+  static void overrideSesEndpoint(DynamicPropertyRegistry registry) {
+    registry.add("aws.ses.endpoint", ses::baseUrl);
+  }
+
+  @Autowired
+  private LahetysSendService lahetysSendService;
+
+  @MockitoBean
+  private SesClient sesClient;
+  @MockitoBean
+  private CloudWatchClient cloudWatchClient;
+  @MockitoBean
+  private S3Client s3Client;
+
+  @BeforeEach
+  void setup() {
+    clearDatabase();
+    ses.stubFor(
+            post(urlPathEqualTo("/"))
+                    .withRequestBody(containing("Action=SendRawEmail"))
+                    .willReturn(
+                            aResponse()
+                                    .withStatus(200)
+                                    .withFixedDelay(SES_VIIVE_MS)
+                                    .withHeader("Content-Type", "text/xml")
+                                    .withBody(
+                                            "<SendRawEmailResponse xmlns=\"http://ses.amazonaws.com/doc/2010-12-01/\">"
+                                                    + "<SendRawEmailResult><MessageId>stub-ses-id</MessageId></SendRawEmailResult>"
+                                                    + "<ResponseMetadata><RequestId>stub</RequestId></ResponseMetadata>"
+                                                    + "</SendRawEmailResponse>")));
+  }
+
+  @Test
+  void pipelinesSendsAndRecordsResults() {
+    int maara = 200;
+    List<UUID> vastaanottajat =
+            IntStream.range(0, maara)
+                    .mapToObj(i -> insertValmisViesti("vastaanottaja" + i + "@example.com"))
+                    .toList();
+
+    long alku = System.nanoTime();
+    lahetysSendService.laheta(maara);
+    long kestoMs = (System.nanoTime() - alku) / 1_000_000;
+
+    vastaanottajat.forEach(
+            v -> {
+              assertEquals("LAHETETTY", tilaOf(v));
+              assertEquals("stub-ses-id", sesTunnisteOf(v));
+            });
+    ses.verify(maara, postRequestedFor(urlPathEqualTo("/")));
+    // sequential sends would take at least maara * SES_VIIVE_MS = 10 s
+    assertTrue(kestoMs < maara * SES_VIIVE_MS / 2, "kesto " + kestoMs + " ms");
+    LOG.info("Lähetettiin {} viestiä {} ms:ssa ({} viestiä/s)", maara, kestoMs, maara * 1000L / Math.max(kestoMs, 1));
+  }
+
+  private UUID insertValmisViesti(String email) {
+    UUID lahetys = UUID.randomUUID();
+    UUID viesti = UUID.randomUUID();
+    UUID vastaanottaja = UUID.randomUUID();
+    jdbcTemplate.update(
+            "INSERT INTO lahetykset "
+                    + "(tunniste, otsikko, lahettavapalvelu, lahettajannimi, lahettajansahkoposti, replyto, "
+                    + "prioriteetti, omistaja, luotu, poistettava) "
+                    + "VALUES (?::uuid, 'Otsikko', 'Palvelu', 'Testi Lähettäjä', 'noreply@opintopolku.fi', null, "
+                    + "'NORMAALI', ?, now(), '2040-01-01 00:00:00'::timestamp)",
+            lahetys.toString(),
+            TEST_KAYTTAJA_OID);
+    jdbcTemplate.update(
+            "INSERT INTO viestit "
+                    + "(tunniste, lahetys_tunniste, otsikko, sisalto, sisallontyyppi, kielet_fi, kielet_sv, "
+                    + "kielet_en, prioriteetti, omistaja, luotu, haku_sisalto, haku_otsikko, "
+                    + "haku_kayttooikeudet, haku_vastaanottajat, haku_metadata, haku_lahettavapalvelu, "
+                    + "haku_organisaatiot) "
+                    + "VALUES (?::uuid, ?::uuid, 'Otsikko', 'Viestin sisältö', 'TEXT', true, false, false, "
+                    + "'NORMAALI', ?, now(), ''::tsvector, ''::tsvector, '{}'::integer[], '{}'::varchar[], "
+                    + "'{}'::varchar[], '', '{}'::varchar[])",
+            viesti.toString(),
+            lahetys.toString(),
+            TEST_KAYTTAJA_OID);
+    jdbcTemplate.update(
+            "INSERT INTO vastaanottajat "
+                    + "(tunniste, viesti_tunniste, lahetys_tunniste, nimi, sahkopostiosoite, tila, luotu, prioriteetti) "
+                    + "VALUES (?::uuid, ?::uuid, ?::uuid, 'Vastaanottaja', ?, 'ODOTTAA', now(), 'NORMAALI')",
+            vastaanottaja.toString(),
+            viesti.toString(),
+            lahetys.toString(),
+            email);
+    return vastaanottaja;
+  }
+
+  private String tilaOf(UUID vastaanottaja) {
+    return jdbcTemplate.queryForObject(
+            "SELECT tila FROM vastaanottajat WHERE tunniste = ?::uuid", String.class, vastaanottaja.toString());
+  }
+
+  private String sesTunnisteOf(UUID vastaanottaja) {
+    return jdbcTemplate.queryForObject(
+            "SELECT ses_tunniste FROM vastaanottajat WHERE tunniste = ?::uuid",
+            String.class,
+            vastaanottaja.toString());
+  }
+}
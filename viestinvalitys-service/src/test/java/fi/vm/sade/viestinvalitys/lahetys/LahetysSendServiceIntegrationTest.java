@@ -1,8 +1,13 @@
 package fi.vm.sade.viestinvalitys.lahetys;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.atMost;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -10,17 +15,29 @@ import static org.mockito.Mockito.when;
 
 import fi.vm.sade.viestinvalitys.ViestinvalitysServiceApiTest;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.IntStream;
 
 import fi.vm.sade.viestinvalitys.lahetys.email.EmailSender;
 import fi.vm.sade.viestinvalitys.lahetys.repository.LahetysSendRepository;
+import fi.vm.sade.viestinvalitys.lahetys.model.VarattuVastaanottaja;
+import fi.vm.sade.viestinvalitys.lahetys.service.JaettuLahetysbudjetti;
+import fi.vm.sade.viestinvalitys.lahetys.service.LahetysRecoveryService;
+import fi.vm.sade.viestinvalitys.lahetys.service.MetricAggregator;
 import fi.vm.sade.viestinvalitys.lahetys.service.LahetysSendService;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.test.context.TestPropertySource;
 import org.springframework.test.context.bean.override.mockito.MockitoBean;
+import org.springframework.test.context.bean.override.mockito.MockitoSpyBean;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
 import software.amazon.awssdk.awscore.exception.AwsErrorDetails;
 import software.amazon.awssdk.core.ResponseBytes;
 import software.amazon.awssdk.services.cloudwatch.CloudWatchClient;
@@ -41,12 +58,20 @@ import software.amazon.awssdk.services.ses.model.SesException;
                 "viestinvalitys.ses.configuration-set-name=test-config-set",
                 "viestinvalitys.ses.from-email-address=noreply@example.com",
                 "viestinvalitys.metrics.namespace=test-viestinvalitys",
+                "viestinvalitys.metrics.flush-interval-seconds=3600",
+                "viestinvalitys.lahetys.palveluiden-painot=Painava=3",
                 "attachments.bucket.name=test-bucket"
         })
 class LahetysSendServiceIntegrationTest extends ViestinvalitysServiceApiTest {
 
   @Autowired
   private LahetysSendService lahetysSendService;
+  @Autowired
+  private LahetysRecoveryService lahetysRecoveryService;
+  @Autowired
+  private MetricAggregator metricAggregator;
+  @Autowired
+  private PlatformTransactionManager transactionManager;
 
   @MockitoBean
   private SesClient sesClient;
@@ -54,10 +79,17 @@ class LahetysSendServiceIntegrationTest extends ViestinvalitysServiceApiTest {
   private CloudWatchClient cloudWatchClient;
   @MockitoBean
   private S3Client s3Client;
+  @MockitoSpyBean
+  private LahetysSendRepository repositorySpy;
+  @MockitoSpyBean
+  private JaettuLahetysbudjetti budjettiSpy;
 
   @BeforeEach
   void setup() {
     clearDatabase();
+    // drop values left over from earlier tests
+    metricAggregator.flush();
+    clearInvocations(cloudWatchClient);
   }
 
   @Test
@@ -71,9 +103,24 @@ class LahetysSendServiceIntegrationTest extends ViestinvalitysServiceApiTest {
     assertEquals("ses-msg-1", sesTunnisteOf(vastaanottaja));
     // ODOTTAA (initial) → LAHETYKSESSA (claim) → LAHETETTY (sent)
     assertEquals(List.of("LAHETYKSESSA", "LAHETETTY"), siirtymaTilatOf(vastaanottaja));
+    assertFalse(jonossa(vastaanottaja));
     verify(sesClient, times(1)).sendRawEmail(any(SendRawEmailRequest.class));
   }
 
+  @Test
+  void sendsWholeBatchConcurrently() {
+    stubSesSuccess("ses-msg-1");
+    List<UUID> vastaanottajat =
+            IntStream.range(0, 20)
+                    .mapToObj(i -> insertValmisViesti("vastaanottaja" + i + "@example.com", "NORMAALI"))
+                    .toList();
+
+    lahetysSendService.laheta(20);
+
+    vastaanottajat.forEach(v -> assertEquals("LAHETETTY", tilaOf(v)));
+    verify(sesClient, times(20)).sendRawEmail(any(SendRawEmailRequest.class));
+  }
+
   @Test
   void invalidEmailMovesRecipientToVirheWithoutCallingSes() {
     UUID vastaanottaja = insertValmisViesti("not-an-email", "NORMAALI");
@@ -101,6 +148,88 @@ class LahetysSendServiceIntegrationTest extends ViestinvalitysServiceApiTest {
     verify(sesClient, times(1)).sendRawEmail(any(SendRawEmailRequest.class));
   }
 
+  @Test
+  void lahetyksetOfSamePriorityTakeTurns() {
+    stubSesSuccess("ses-msg-1");
+    List<UUID> suuri = insertLahetys("Palvelu", "suuri", 10);
+    List<UUID> pieni = insertLahetys("Palvelu", "pieni", 2);
+
+    lahetysSendService.laheta(4);
+
+    // FIFO would have sent four recipients of the lähetys queued first
+    pieni.forEach(v -> assertEquals("LAHETETTY", tilaOf(v)));
+    assertEquals(2, suuri.stream().filter(v -> "LAHETETTY".equals(tilaOf(v))).count());
+  }
+
+  @Test
+  void lahetysOfWeightedPalveluGetsMoreTurns() {
+    stubSesSuccess("ses-msg-1");
+    List<UUID> painava = insertLahetys("Painava", "painava", 10);
+    List<UUID> tavallinen = insertLahetys("Palvelu", "tavallinen", 10);
+
+    lahetysSendService.laheta(8);
+
+    assertEquals(6, painava.stream().filter(v -> "LAHETETTY".equals(tilaOf(v))).count());
+    assertEquals(2, tavallinen.stream().filter(v -> "LAHETETTY".equals(tilaOf(v))).count());
+  }
+
+  @Test
+  void concurrentClaimTakesTheRecipientsNextInTurn() throws InterruptedException {
+    List<UUID> a = insertLahetys("Palvelu", "a", 10);
+    List<UUID> b = insertLahetys("Palvelu", "b", 10);
+    List<UUID> c = insertLahetys("Palvelu", "c", 10);
+    List<UUID> ensimmaiset = new ArrayList<>();
+    CountDownLatch varattu = new CountDownLatch(1);
+    CountDownLatch valmis = new CountDownLatch(1);
+
+    // the first claim stays uncommitted while the second one runs
+    Thread ensimmainen =
+            Thread.ofVirtual()
+                    .start(
+                            () ->
+                                    new TransactionTemplate(transactionManager)
+                                            .executeWithoutResult(
+                                                    status -> {
+                                                      ensimmaiset.addAll(varaa(2, "ensimmainen"));
+                                                      varattu.countDown();
+                                                      try {
+                                                        valmis.await();
+                                                      } catch (InterruptedException e) {
+                                                        Thread.currentThread().interrupt();
+                                                      }
+                                                    }));
+    varattu.await();
+    List<UUID> toiset = varaa(4, "toinen");
+    valmis.countDown();
+    ensimmainen.join();
+
+    assertEquals(Set.of(a.get(0), b.get(0)), Set.copyOf(ensimmaiset));
+    // only the two recipients claimed first are locked, not the first two of every lähetys
+    assertEquals(Set.of(c.get(0), a.get(1), b.get(1), c.get(1)), Set.copyOf(toiset));
+  }
+
+  private List<UUID> varaa(int maara, String varaaja) {
+    return repositorySpy.getLahetettavatVastaanottajat(maara, varaaja, Map.of()).stream()
+            .map(VarattuVastaanottaja::tunniste)
+            .toList();
+  }
+
+  @Test
+  void queueRowOfRecipientNoLongerOdottaaIsDroppedWithoutClaiming() {
+    UUID joLahetetty = insertVastaanottajaWithTila("lahetetty@example.com", "LAHETETTY");
+    jdbcTemplate.update(
+            "INSERT INTO lahetysjono (vastaanottaja_tunniste, prioriteetti, luotu) "
+                    + "SELECT tunniste, prioriteetti, luotu FROM vastaanottajat WHERE tunniste = ?::uuid",
+            joLahetetty.toString());
+
+    lahetysSendService.laheta(10);
+
+    assertEquals("LAHETETTY", tilaOf(joLahetetty));
+    assertTrue(siirtymaTilatOf(joLahetetty).isEmpty());
+    assertFalse(jonossa(joLahetetty));
+    verify(sesClient, never()).sendRawEmail(any(SendRawEmailRequest.class));
+  }
+
   @Test
   void throttlingReturnsRecipientToOdottaa() {
     when(sesClient.sendRawEmail(any(SendRawEmailRequest.class)))
@@ -120,6 +249,47 @@ class LahetysSendServiceIntegrationTest extends ViestinvalitysServiceApiTest {
     assertEquals("ODOTTAA", tilaOf(vastaanottaja)); // requeued for retry
     // ODOTTAA (initial) → LAHETYKSESSA (claim) → ODOTTAA (throttled back)
     assertEquals(List.of("LAHETYKSESSA", "ODOTTAA"), siirtymaTilatOf(vastaanottaja));
+    assertTrue(jonossa(vastaanottaja));
+    assertTrue(viivastetty(vastaanottaja));
+
+    // not claimed again before the delay has passed
+    lahetysSendService.laheta(10);
+    verify(sesClient, times(1)).sendRawEmail(any(SendRawEmailRequest.class));
+  }
+
+  @Test
+  void throttlingStopsTheRestOfTheBatchAndLowersTheRate() throws InterruptedException {
+    when(sesClient.sendRawEmail(any(SendRawEmailRequest.class)))
+            .thenThrow(
+                    SesException.builder()
+                            .statusCode(429)
+                            .awsErrorDetails(AwsErrorDetails.builder().errorCode("Throttling").build())
+                            .build())
+            .thenReturn(SendRawEmailResponse.builder().messageId("ses-msg-1").build());
+    List<UUID> vastaanottajat =
+            IntStream.range(0, 40)
+                    .mapToObj(i -> insertValmisViesti("vastaanottaja" + i + "@example.com", "NORMAALI"))
+                    .toList();
+
+    lahetysSendService.laheta(40);
+
+    // sends already in flight when SES throttled complete, the rest go back to the queue unsent
+    List<UUID> keskeytetyt =
+            vastaanottajat.stream()
+                    .filter(v -> LahetysSendService.KURISTUS_KESKEYTYS.equals(viimeisinLisatietoOf(v)))
+                    .toList();
+    assertFalse(keskeytetyt.isEmpty());
+    keskeytetyt.forEach(v -> {
+      assertEquals("ODOTTAA", tilaOf(v));
+      assertTrue(jonossa(v));
+    });
+    verify(sesClient, times(vastaanottajat.size() - keskeytetyt.size()))
+            .sendRawEmail(any(SendRawEmailRequest.class));
+    // the recipients returned to the queue do not take turns from the shared budget, apart from those
+    // of the parallelism = 8 threads that were already waiting for one
+    verify(budjettiSpy, atMost(vastaanottajat.size() - keskeytetyt.size() + 8)).acquire();
+    // the next claim is sized from the lowered rate, below polling-interval-seconds * sending-quota-per-second
+    assertTrue(lahetysSendService.batchSize() < 2 * 65);
   }
 
   @Test
@@ -152,6 +322,57 @@ class LahetysSendServiceIntegrationTest extends ViestinvalitysServiceApiTest {
     verify(sesClient, times(1)).sendRawEmail(any(SendRawEmailRequest.class));
   }
 
+  @Test
+  void recipientsOfOneViestiWaitForOneRender() {
+    stubSesSuccess("ses-msg-1");
+    when(s3Client.getObjectAsBytes(any(GetObjectRequest.class)))
+            .thenAnswer(
+                    invocation -> {
+                      // the other recipients of the viesti reach the render while this one downloads
+                      Thread.sleep(200);
+                      return ResponseBytes.fromByteArray(
+                              GetObjectResponse.builder().build(), "attachment-bytes".getBytes());
+                    });
+    UUID viesti = UUID.randomUUID();
+    List<UUID> vastaanottajat =
+            List.of(
+                    insertValmisViesti(viesti, "a@example.com", "NORMAALI"),
+                    insertVastaanottaja(viesti, "b@example.com", "ODOTTAA", "NORMAALI"),
+                    insertVastaanottaja(viesti, "c@example.com", "ODOTTAA", "NORMAALI"));
+    linkLiite(viesti, insertLiite("liite.pdf", "application/pdf"), 0);
+
+    lahetysSendService.laheta(10);
+
+    vastaanottajat.forEach(v -> assertEquals("LAHETETTY", tilaOf(v)));
+    verify(s3Client, times(1)).getObjectAsBytes(any(GetObjectRequest.class));
+    verify(sesClient, times(3)).sendRawEmail(any(SendRawEmailRequest.class));
+  }
+
+  @Test
+  void attachmentIsDownloadedOnceAcrossBatches() {
+    stubSesSuccess("ses-msg-1");
+    when(s3Client.getObjectAsBytes(any(GetObjectRequest.class)))
+            .thenReturn(
+                    ResponseBytes.fromByteArray(
+                            GetObjectResponse.builder().build(), "attachment-bytes".getBytes()));
+    UUID liite = insertLiite("liite.pdf", "application/pdf");
+    UUID viesti1 = UUID.randomUUID();
+    UUID vastaanottaja1 = insertValmisViesti(viesti1, "a@example.com", "NORMAALI");
+    linkLiite(viesti1, liite, 0);
+
+    lahetysSendService.laheta(10);
+
+    UUID viesti2 = UUID.randomUUID();
+    UUID vastaanottaja2 = insertValmisViesti(viesti2, "b@example.com", "NORMAALI");
+    linkLiite(viesti2, liite, 0);
+
+    lahetysSendService.laheta(10);
+
+    assertEquals("LAHETETTY", tilaOf(vastaanottaja1));
+    assertEquals("LAHETETTY", tilaOf(vastaanottaja2));
+    verify(s3Client, times(1)).getObjectAsBytes(any(GetObjectRequest.class));
+  }
+
   @Test
   void recordsOneMetricBatchWhenSomethingWasSent() {
     stubSesSuccess("ses-msg-1");
@@ -159,6 +380,8 @@ class LahetysSendServiceIntegrationTest extends ViestinvalitysServiceApiTest {
     insertValmisViesti("b@example.com", "KORKEA");
 
     lahetysSendService.laheta(10);
+    verify(cloudWatchClient, never()).putMetricData(any(PutMetricDataRequest.class));
+    metricAggregator.flush();
 
     verify(cloudWatchClient, times(1)).putMetricData(any(PutMetricDataRequest.class));
   }
@@ -168,6 +391,7 @@ class LahetysSendServiceIntegrationTest extends ViestinvalitysServiceApiTest {
     insertValmisViesti("not-an-email", "NORMAALI"); // only an invalid recipient
 
     lahetysSendService.laheta(10);
+    metricAggregator.flush();
 
     verify(cloudWatchClient, never()).putMetricData(any(PutMetricDataRequest.class));
   }
@@ -180,6 +404,80 @@ class LahetysSendServiceIntegrationTest extends ViestinvalitysServiceApiTest {
     verify(cloudWatchClient, never()).putMetricData(any(PutMetricDataRequest.class));
   }
 
+  @Test
+  void claimRecordsLease() {
+    stubSesSuccess("ses-msg-1");
+    UUID vastaanottaja = insertValmisViesti("vastaanottaja@example.com", "NORMAALI");
+
+    lahetysSendService.laheta(10);
+
+    assertTrue(
+            jdbcTemplate.queryForObject(
+                    "SELECT varattu IS NOT NULL AND varaaja IS NOT NULL FROM vastaanottajat WHERE tunniste = ?::uuid",
+                    Boolean.class,
+                    vastaanottaja.toString()));
+  }
+
+  @Test
+  void expiredLeaseIsReturnedToOdottaa() {
+    UUID jumissa = insertVastaanottajaWithTila("jumissa@example.com", "LAHETYKSESSA");
+    UUID kesken = insertVastaanottajaWithTila("kesken@example.com", "LAHETYKSESSA");
+    setVarattu(jumissa, "now() - interval '1 hour'");
+    setVarattu(kesken, "now()");
+
+    lahetysRecoveryService.palautaVanhentuneetVaraukset();
+    metricAggregator.flush();
+
+    assertEquals("ODOTTAA", tilaOf(jumissa));
+    assertEquals(List.of("ODOTTAA"), siirtymaTilatOf(jumissa));
+    assertEquals("Lähetyksen varaus vanhentui (varaaja kuollut-instanssi)", viimeisinLisatietoOf(jumissa));
+    assertTrue(jonossa(jumissa));
+    assertTrue(viivastetty(jumissa));
+    assertEquals("LAHETYKSESSA", tilaOf(kesken));
+    assertTrue(siirtymaTilatOf(kesken).isEmpty());
+    verify(cloudWatchClient, times(1)).putMetricData(any(PutMetricDataRequest.class));
+  }
+
+  @Test
+  void expiredLeaseWithSesTunnisteIsNotRequeued() {
+    UUID lahetetty = insertVastaanottajaWithTila("lahetetty@example.com", "LAHETYKSESSA");
+    setVarattu(lahetetty, "now() - interval '1 hour'");
+    jdbcTemplate.update(
+            "UPDATE vastaanottajat SET ses_tunniste = 'ses-msg-1' WHERE tunniste = ?::uuid",
+            lahetetty.toString());
+
+    lahetysRecoveryService.palautaVanhentuneetVaraukset();
+
+    assertEquals("LAHETYKSESSA", tilaOf(lahetetty));
+  }
+
+  @Test
+  void sentRecipientIsNotSentAgainWhenTheProcessDiesBeforeTheFlush() {
+    stubSesSuccess("ses-msg-1");
+    UUID vastaanottaja = insertValmisViesti("vastaanottaja@example.com", "NORMAALI");
+    // the process dies after the SES call, before the buffered results are written
+    Error kaatuminen = new Error("prosessi kuoli");
+    doThrow(kaatuminen).when(repositorySpy).paivitaVastaanottajienTilat(any());
+    doThrow(kaatuminen).when(repositorySpy).lisaaSiirtymat(any());
+
+    assertThrows(Error.class, () -> lahetysSendService.laheta(10));
+    setVarattu(vastaanottaja, "now() - interval '1 hour'");
+    lahetysRecoveryService.palautaVanhentuneetVaraukset();
+    lahetysSendService.laheta(10);
+
+    assertEquals("LAHETETTY", tilaOf(vastaanottaja));
+    assertEquals("ses-msg-1", sesTunnisteOf(vastaanottaja));
+    assertFalse(jonossa(vastaanottaja));
+    verify(sesClient, times(1)).sendRawEmail(any(SendRawEmailRequest.class));
+  }
+
+  private void setVarattu(UUID vastaanottaja, String varattu) {
+    jdbcTemplate.update(
+            "UPDATE vastaanottajat SET varattu = " + varattu + ", varaaja = 'kuollut-instanssi' "
+                    + "WHERE tunniste = ?::uuid",
+            vastaanottaja.toString());
+  }
+
   private void stubSesSuccess(String messageId) {
     when(sesClient.sendRawEmail(any(SendRawEmailRequest.class)))
             .thenReturn(SendRawEmailResponse.builder().messageId(messageId).build());
@@ -194,7 +492,20 @@ class LahetysSendServiceIntegrationTest extends ViestinvalitysServiceApiTest {
     return insertVastaanottaja(viesti, email, "ODOTTAA", prioriteetti);
   }
 
+  /** A NORMAALI lähetys of one viesti with {@code maara} waiting recipients, queued in order. */
+  private List<UUID> insertLahetys(String lahettavaPalvelu, String nimi, int maara) {
+    UUID viesti = UUID.randomUUID();
+    insertLahetysAndViesti(viesti, "NORMAALI", lahettavaPalvelu);
+    return IntStream.range(0, maara)
+            .mapToObj(i -> insertVastaanottaja(viesti, nimi + i + "@example.com", "ODOTTAA", "NORMAALI"))
+            .toList();
+  }
+
   private void insertLahetysAndViesti(UUID viesti, String prioriteetti) {
+    insertLahetysAndViesti(viesti, prioriteetti, "Palvelu");
+  }
+
+  private void insertLahetysAndViesti(UUID viesti, String prioriteetti, String lahettavaPalvelu) {
     UUID lahetys = UUID.randomUUID();
     jdbcTemplate.update(
             "INSERT INTO lahetykset "
@@ -204,7 +515,7 @@ class LahetysSendServiceIntegrationTest extends ViestinvalitysServiceApiTest {
                     + "'2040-01-01 00:00:00'::timestamp)",
             lahetys.toString(),
             "Otsikko",
-            "Palvelu",
+            lahettavaPalvelu,
             "Testi Lähettäjä",
             "noreply@opintopolku.fi",
             prioriteetti,
@@ -237,14 +548,14 @@ class LahetysSendServiceIntegrationTest extends ViestinvalitysServiceApiTest {
     UUID vastaanottaja = UUID.randomUUID();
     jdbcTemplate.update(
             "INSERT INTO vastaanottajat "
-                    + "(tunniste, viesti_tunniste, nimi, sahkopostiosoite, tila, luotu, prioriteetti) "
-                    + "VALUES (?::uuid, ?::uuid, ?, ?, ?, now(), ?::prioriteetti)",
+                    + "(tunniste, viesti_tunniste, lahetys_tunniste, nimi, sahkopostiosoite, tila, luotu, prioriteetti) "
+                    + "SELECT ?::uuid, tunniste, lahetys_tunniste, ?, ?, ?, now(), ?::prioriteetti FROM viestit WHERE tunniste = ?::uuid",
             vastaanottaja.toString(),
-            viesti.toString(),
             "Vastaanottaja",
             email,
             tila,
-            prioriteetti);
+            prioriteetti,
+            viesti.toString());
     return vastaanottaja;
   }
 
@@ -292,6 +603,20 @@ class LahetysSendServiceIntegrationTest extends ViestinvalitysServiceApiTest {
             vastaanottaja.toString());
   }
 
+  private boolean jonossa(UUID vastaanottaja) {
+    return jdbcTemplate.queryForObject(
+            "SELECT EXISTS (SELECT 1 FROM lahetysjono WHERE vastaanottaja_tunniste = ?::uuid)",
+            Boolean.class,
+            vastaanottaja.toString());
+  }
+
+  private boolean viivastetty(UUID vastaanottaja) {
+    return jdbcTemplate.queryForObject(
+            "SELECT not_before > now() FROM lahetysjono WHERE vastaanottaja_tunniste = ?::uuid",
+            Boolean.class,
+            vastaanottaja.toString());
+  }
+
   private String viimeisinLisatietoOf(UUID vastaanottaja) {
     return jdbcTemplate.queryForObject(
             "SELECT lisatiedot FROM vastaanottaja_siirtymat WHERE vastaanottaja_tunniste = ?::uuid "
@@ -0,0 +1,79 @@
+package fi.vm.sade.viestinvalitys.lahetys;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.when;
+
+import fi.vm.sade.viestinvalitys.ViestinvalitysServiceApiTest;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.bean.override.mockito.MockitoBean;
+import software.amazon.awssdk.services.cloudwatch.CloudWatchClient;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.ses.SesClient;
+import software.amazon.awssdk.services.ses.model.GetSendQuotaResponse;
+import software.amazon.awssdk.services.ses.model.SesException;
+
+@TestPropertySource(
+        properties = {
+                "viestinvalitys.lahetys.enabled=true",
+                "viestinvalitys.lahetys.sending-quota-per-second=" + LahetysSendServiceQuotaTest.NOPEUS,
+                "viestinvalitys.lahetys.nopeus.hae-ses-quota=true",
+                "viestinvalitys.lahetys.nopeus.quota-osuus=0.5",
+                "viestinvalitys.lahetys.nopeus.quota-paivitys-seconds=1",
+                "viestinvalitys.mode=PRODUCTION",
+                "db-scheduler.enabled=false",
+                "viestinvalitys.ses.configuration-set-name=test-config-set",
+                "viestinvalitys.ses.from-email-address=noreply@example.com",
+                "viestinvalitys.metrics.namespace=test-viestinvalitys",
+                "viestinvalitys.metrics.flush-interval-seconds=3600",
+                "attachments.bucket.name=test-bucket"
+        })
+class LahetysSendServiceQuotaTest extends ViestinvalitysServiceApiTest {
+
+  static final int NOPEUS = 20;
+
+  @MockitoBean
+  private SesClient sesClient;
+  @MockitoBean
+  private CloudWatchClient cloudWatchClient;
+  @MockitoBean
+  private S3Client s3Client;
+
+  @BeforeEach
+  void setup() {
+    clearDatabase();
+  }
+
+  @Test
+  void sharedTargetFollowsTheConfiguredRateWhenTheQuotaCannotBeRead() throws InterruptedException {
+    when(sesClient.getSendQuota()).thenThrow(SesException.builder().statusCode(403).message("AccessDenied").build());
+
+    assertEquals(NOPEUS, odotaTavoitetta(NOPEUS));
+  }
+
+  @Test
+  void sharedTargetFollowsTheQuota() throws InterruptedException {
+    when(sesClient.getSendQuota()).thenReturn(GetSendQuotaResponse.builder().maxSendRate(100.0).build());
+
+    assertEquals(50, odotaTavoitetta(50));
+  }
+
+  /** The target of the shared budget once it is {@code odotettu}, or after the next few updates. */
+  private double odotaTavoitetta(double odotettu) throws InterruptedException {
+    long raja = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    double tavoite = tavoite();
+    while (tavoite != odotettu && System.nanoTime() < raja) {
+      TimeUnit.MILLISECONDS.sleep(100);
+      tavoite = tavoite();
+    }
+    return tavoite;
+  }
+
+  private double tavoite() {
+    return jdbcTemplate.queryForObject("SELECT tavoite FROM lahetysbudjetti", Double.class);
+  }
+}
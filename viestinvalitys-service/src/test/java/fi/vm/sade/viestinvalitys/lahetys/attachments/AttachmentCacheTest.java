@@ -0,0 +1,54 @@
+package fi.vm.sade.viestinvalitys.lahetys.attachments;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+
+class AttachmentCacheTest {
+
+  private final AttachmentDownloader downloader = mock(AttachmentDownloader.class);
+
+  @Test
+  void evictsLeastRecentlyUsedWhenOverByteCap() {
+    UUID a = UUID.randomUUID();
+    UUID b = UUID.randomUUID();
+    UUID c = UUID.randomUUID();
+    when(downloader.download(a)).thenReturn(new byte[40]);
+    when(downloader.download(b)).thenReturn(new byte[40]);
+    when(downloader.download(c)).thenReturn(new byte[40]);
+    AttachmentCache cache = new AttachmentCache(downloader, 100);
+
+    cache.get(a);
+    cache.get(b);
+    cache.get(a); // b is now the least recently used
+    cache.get(c); // 120 bytes > 100, evicts b
+    cache.get(a);
+    cache.get(b);
+
+    verify(downloader, times(1)).download(a);
+    verify(downloader, times(2)).download(b);
+    AttachmentCache.Tilastot tilastot = cache.otaTilastot();
+    assertEquals(2, tilastot.osumat());
+    assertEquals(4, tilastot.hudit());
+    assertEquals(160, tilastot.ladatutTavut());
+  }
+
+  @Test
+  void doesNotCacheAttachmentLargerThanCap() {
+    UUID a = UUID.randomUUID();
+    when(downloader.download(a)).thenReturn(new byte[200]);
+    AttachmentCache cache = new AttachmentCache(downloader, 100);
+
+    cache.get(a);
+    cache.get(a);
+
+    verify(downloader, times(2)).download(a);
+    assertEquals(0, cache.otaTilastot().valimuistinTavut());
+  }
+}
@@ -0,0 +1,55 @@
+package fi.vm.sade.viestinvalitys.lahetys.email;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.util.Properties;
+
+import jakarta.mail.Message;
+import jakarta.mail.Session;
+import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.internet.MimeMultipart;
+import org.junit.jupiter.api.Test;
+import org.simplejavamail.api.email.ContentTransferEncoding;
+import org.simplejavamail.email.EmailBuilder;
+
+class MimeTemplateTest {
+
+  private final MimeTemplate template =
+          MimeTemplate.of(
+                  EmailBuilder.startingBlank()
+                          .withContentTransferEncoding(ContentTransferEncoding.BASE_64)
+                          .withSubject("Otsikko")
+                          .withPlainText("Viestin sisältö")
+                          .withAttachment("liite.pdf", "attachment-bytes".getBytes(), "application/pdf")
+                          .from("Lähettäjä", "noreply@opintopolku.fi")
+                          .buildEmail(),
+                  "noreply@opintopolku.fi");
+
+  @Test
+  void rendersRecipientHeadersOverSharedBody() throws Exception {
+    MimeMessage ensimmainen = parse(template.render("Matti Meikäläinen", "matti@example.com"));
+    MimeMessage toinen = parse(template.render(null, "maija@example.com"));
+
+    assertEquals(
+            new InternetAddress("matti@example.com", "Matti Meikäläinen", "UTF-8"),
+            ensimmainen.getRecipients(Message.RecipientType.TO)[0]);
+    assertEquals(new InternetAddress("maija@example.com"), toinen.getRecipients(Message.RecipientType.TO)[0]);
+    assertEquals(1, ensimmainen.getHeader("To").length);
+    assertEquals(1, ensimmainen.getHeader("Message-ID").length);
+    assertNotEquals(ensimmainen.getMessageID(), toinen.getMessageID());
+    assertEquals("Otsikko", toinen.getSubject());
+    assertEquals(new InternetAddress("noreply@opintopolku.fi", "Lähettäjä", "UTF-8"), toinen.getFrom()[0]);
+    assertTrue(toinen.getContent() instanceof MimeMultipart);
+    assertNull(toinen.getRecipients(Message.RecipientType.CC));
+  }
+
+  private static MimeMessage parse(software.amazon.awssdk.core.SdkBytes raw) throws Exception {
+    return new MimeMessage(
+            Session.getInstance(new Properties()), new ByteArrayInputStream(raw.asByteArray()));
+  }
+}
@@ -0,0 +1,46 @@
+package fi.vm.sade.viestinvalitys.lahetys.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class LahetysnopeudenSaadinTest {
+
+  @Test
+  void throttlingHalvesTheRateOncePerSecond() {
+    LahetysnopeudenSaadin saadin = new LahetysnopeudenSaadin(64, 0);
+
+    assertTrue(saadin.kuristettu());
+    // responses to requests already in flight do not lower it again
+    assertFalse(saadin.kuristettu());
+
+    assertEquals(32, saadin.nopeus(), 0.001);
+    assertEquals(64, saadin.tavoite(), 0.001);
+  }
+
+  @Test
+  void rateGrowsBackToTargetAdditively() throws InterruptedException {
+    LahetysnopeudenSaadin saadin = new LahetysnopeudenSaadin(64, 100);
+    saadin.kuristettu();
+
+    Thread.sleep(100);
+    double nopeus = saadin.nopeus();
+    assertTrue(nopeus > 32 && nopeus < 64, "nopeus " + nopeus);
+
+    Thread.sleep(500);
+    assertEquals(64, saadin.nopeus(), 0.001);
+  }
+
+  @Test
+  void lowerTargetAppliesImmediatelyAndRateNeverDropsBelowMinimum() {
+    LahetysnopeudenSaadin saadin = new LahetysnopeudenSaadin(64, 0);
+
+    saadin.asetaTavoite(10);
+    assertEquals(10, saadin.nopeus(), 0.001);
+
+    saadin.asetaTavoite(0);
+    assertEquals(LahetysnopeudenSaadin.MIN_NOPEUS, saadin.nopeus(), 0.001);
+  }
+}
@@ -0,0 +1,53 @@
+package fi.vm.sade.viestinvalitys.lahetys.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import software.amazon.awssdk.services.cloudwatch.CloudWatchClient;
+import software.amazon.awssdk.services.cloudwatch.model.MetricDatum;
+import software.amazon.awssdk.services.cloudwatch.model.PutMetricDataRequest;
+import software.amazon.awssdk.services.cloudwatch.model.StandardUnit;
+import software.amazon.awssdk.services.cloudwatch.model.StatisticSet;
+
+class MetricAggregatorTest {
+
+  private final CloudWatchClient cloudWatchClient = mock(CloudWatchClient.class);
+  private final MetricAggregator aggregator = new MetricAggregator(cloudWatchClient);
+
+  @Test
+  void aggregatesValuesIntoStatisticSet() {
+    aggregator.record("Kesto", StandardUnit.MILLISECONDS, Map.of("Prioriteetti", "KORKEA"), 5);
+    aggregator.record("Kesto", StandardUnit.MILLISECONDS, Map.of("Prioriteetti", "KORKEA"), 1);
+    aggregator.record("Kesto", StandardUnit.MILLISECONDS, Map.of("Prioriteetti", "KORKEA"), 9);
+
+    aggregator.flush();
+
+    ArgumentCaptor<PutMetricDataRequest> pyynto = ArgumentCaptor.forClass(PutMetricDataRequest.class);
+    verify(cloudWatchClient).putMetricData(pyynto.capture());
+    List<MetricDatum> datums = pyynto.getValue().metricData();
+    assertEquals(1, datums.size());
+    assertEquals(
+            StatisticSet.builder().sampleCount(3.0).sum(15.0).minimum(1.0).maximum(9.0).build(),
+            datums.getFirst().statisticValues());
+  }
+
+  @Test
+  void splitsPublishIntoRequestsOfAtMostThousandDatums() {
+    for (int i = 0; i < 2500; i++) {
+      aggregator.count("Maara", Map.of("Avain", "a" + i), 1);
+    }
+
+    aggregator.flush();
+    aggregator.flush(); // nothing left to publish
+
+    verify(cloudWatchClient, times(3)).putMetricData(any(PutMetricDataRequest.class));
+  }
+}
@@ -0,0 +1,23 @@
+package fi.vm.sade.viestinvalitys.lahetys.service;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class TokenBucketTest {
+
+  @Test
+  void burstIsLimitedToOneSecondOfTokens() throws InterruptedException {
+    TokenBucket bucket = new TokenBucket(20);
+
+    long alku = System.nanoTime();
+    // the first 20 tokens are available immediately, the next 10 take ~0.5 s
+    for (int i = 0; i < 30; i++) {
+      bucket.acquire();
+    }
+    long kesto = (System.nanoTime() - alku) / 1_000_000;
+
+    assertTrue(kesto >= 400, "kesto " + kesto + " ms");
+    assertTrue(kesto < 2000, "kesto " + kesto + " ms");
+  }
+}
@@ -1,12 +1,17 @@
 package fi.vm.sade.viestinvalitys.resource;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 import fi.vm.sade.viestinvalitys.ViestinvalitysServiceApiTest;
+import fi.vm.sade.viestinvalitys.validation.ViestiValidator;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -79,6 +84,57 @@ class LahetysControllerTest extends ViestinvalitysServiceApiTest {
         .andExpect(status().isBadRequest());
   }
 
+  @Test
+  @UserLahettaja
+  void vastaanottajatArePagedInSortOrder() throws Exception {
+    String lahetysTunniste = insertLahetys("Sivutus", "e2e-test");
+    String viestiJson =
+        """
+        {
+          "otsikko": "Sivutettava viesti",
+          "sisalto": "Sisältö",
+          "sisallonTyyppi": "text",
+          "vastaanottajat": [
+            { "sahkopostiOsoite": "e@example.com" }, { "sahkopostiOsoite": "d@example.com" },
+            { "sahkopostiOsoite": "c@example.com" }, { "sahkopostiOsoite": "b@example.com" },
+            { "sahkopostiOsoite": "a@example.com" }
+          ],
+          "lahetysTunniste": "%s",
+          "kayttooikeusRajoitukset": [ { "oikeus": "APP_OIKEUS", "organisaatio": "%s" } ]
+        }
+        """
+            .formatted(lahetysTunniste, OPH_ORGANISAATIO_OID);
+    mvc.perform(post("/v1/viestit").contentType(MediaType.APPLICATION_JSON).content(viestiJson))
+        .andExpect(status().isOk());
+    jdbcTemplate.update("UPDATE vastaanottajat SET tila = 'BOUNCE' WHERE sahkopostiosoite IN ('c@example.com', 'e@example.com')");
+
+    List<String> osoitteet = new ArrayList<>();
+    String alkaen = null;
+    do {
+      var request = get("/v1/lahetykset/{tunniste}/vastaanottajat", lahetysTunniste).param("enintaan", "2");
+      if (alkaen != null) {
+        request = request.param("alkaen", alkaen);
+      }
+      Map<?, ?> sivu =
+          objectMapper.readValue(
+              mvc.perform(request).andExpect(status().isOk()).andReturn().getResponse().getContentAsString(), Map.class);
+      ((List<?>) sivu.get("vastaanottajat")).forEach(v -> osoitteet.add((String) ((Map<?, ?>) v).get("sahkoposti")));
+      alkaen = (String) sivu.get("seuraavatAlkaen");
+    } while (alkaen != null);
+
+    assertEquals(
+        List.of("c@example.com", "e@example.com", "a@example.com", "b@example.com", "d@example.com"), osoitteet);
+  }
+
+  @Test
+  @UserKatselijaRaportoija
+  void malformedVastaanottajatCursorYieldsBadRequest() throws Exception {
+    mvc.perform(
+            get("/v1/lahetykset/{tunniste}/vastaanottajat", UUID.randomUUID().toString())
+                .param("alkaen", UUID.randomUUID().toString()))
+        .andExpect(status().isBadRequest());
+  }
+
   private static final String VALID_LAHETYS_JSON =
       """
       {
@@ -229,6 +285,27 @@ class LahetysControllerTest extends ViestinvalitysServiceApiTest {
         .andExpect(jsonPath("$.validointiVirheet").isArray());
   }
 
+  @Test
+  @UserLahettaja
+  void malformedViestiJsonYieldsBadRequest() throws Exception {
+    mvc.perform(post("/v1/viestit").contentType(MediaType.APPLICATION_JSON).content("{ ei jsonia"))
+        .andExpect(status().isBadRequest())
+        .andExpect(jsonPath("$.validointiVirheet[0]").value("Viestin json-deserialisointi epäonnistui"));
+  }
+
+  @Test
+  @UserLahettaja
+  void tooLongSisaltoIsRejectedWhileReading() throws Exception {
+    String viestiJson =
+        "{\"otsikko\": \"Otsikko\", \"sisalto\": \"%s\"}"
+            .formatted("x".repeat(ViestiValidator.SISALTO_MAX_PITUUS + 1));
+
+    mvc.perform(post("/v1/viestit").contentType(MediaType.APPLICATION_JSON).content(viestiJson))
+        .andExpect(status().isBadRequest())
+        .andExpect(jsonPath("$.validointiVirheet.length()").value(1))
+        .andExpect(jsonPath("$.validointiVirheet[0]").value(ViestiValidator.VALIDATION_SISALTO_LIIAN_PITKA));
+  }
+
   @Test
   @UserLahettaja
   void repeatedIdempotencyKeyReturnsExistingViestiWithoutDuplicating() throws Exception {
@@ -272,6 +349,10 @@ class LahetysControllerTest extends ViestinvalitysServiceApiTest {
   }
 
   private static String korkeaPrioriteettiViestiJson(String osoite) {
+    return korkeaPrioriteettiViestiJson(osoite, null);
+  }
+
+  private static String korkeaPrioriteettiViestiJson(String osoite, String idempotencyKey) {
     return """
         {
           "otsikko": "Korkean prioriteetin viesti",
@@ -282,16 +363,19 @@ class LahetysControllerTest extends ViestinvalitysServiceApiTest {
           "lahettaja": { "nimi": "Tester", "sahkopostiOsoite": "noreply@opintopolku.fi" },
           "prioriteetti": "korkea",
           "sailytysaika": 10,
-          "kayttooikeusRajoitukset": [ { "oikeus": "APP_OIKEUS", "organisaatio": "%s" } ]
+          "kayttooikeusRajoitukset": [ { "oikeus": "APP_OIKEUS", "organisaatio": "%s" } ]%s
         }
         """
-        .formatted(osoite, OPH_ORGANISAATIO_OID);
+        .formatted(
+            osoite,
+            OPH_ORGANISAATIO_OID,
+            idempotencyKey == null ? "" : ", \"idempotencyKey\": \"" + idempotencyKey + "\"");
   }
 
   @Test
   @UserLahettaja
   void tooManyHighPriorityViestitYieldsTooManyRequests() throws Exception {
-    // limit is PRIORITEETTI_KORKEA_RATELIMIT_VIESTEJA_AIKAIKKUNASSA (=5) within the 5s window
+    // limit is viestinvalitys.vastaanotto.korkea-prioriteetti.viesteja-aikaikkunassa (=5) within the 5s window
     for (int i = 0; i < 5; i++) {
       mvc.perform(
               post("/v1/viestit")
@@ -305,4 +389,118 @@ class LahetysControllerTest extends ViestinvalitysServiceApiTest {
                 .content(korkeaPrioriteettiViestiJson("korkea-yli@example.com")))
         .andExpect(status().isTooManyRequests());
   }
+
+  @Test
+  @UserLahettaja
+  void invalidAndReplayedHighPriorityViestitDoNotUseTheLimit() throws Exception {
+    for (int i = 0; i < 5; i++) {
+      mvc.perform(
+              post("/v1/viestit")
+                  .contentType(MediaType.APPLICATION_JSON)
+                  .content("{ \"lahettavaPalvelu\": \"e2e-test\", \"prioriteetti\": \"korkea\" }"))
+          .andExpect(status().isBadRequest());
+    }
+    String key = "korkea-idem-" + UUID.randomUUID();
+    for (int i = 0; i < 5; i++) {
+      mvc.perform(
+              post("/v1/viestit")
+                  .contentType(MediaType.APPLICATION_JSON)
+                  .content(korkeaPrioriteettiViestiJson("korkea-idem@example.com", key)))
+          .andExpect(status().isOk());
+    }
+
+    // only the first request with the key used the limit (=5)
+    for (int i = 0; i < 4; i++) {
+      mvc.perform(
+              post("/v1/viestit")
+                  .contentType(MediaType.APPLICATION_JSON)
+                  .content(korkeaPrioriteettiViestiJson("korkea" + i + "@example.com")))
+          .andExpect(status().isOk());
+    }
+    mvc.perform(
+            post("/v1/viestit")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(korkeaPrioriteettiViestiJson("korkea-yli@example.com")))
+        .andExpect(status().isTooManyRequests());
+  }
+
+  private static String bulkViestiJson(String osoite, String idempotencyKey) {
+    return ("{\"otsikko\": \"Bulk viesti\", \"sisalto\": \"Sisältö\", \"sisallonTyyppi\": \"text\", "
+            + "\"kielet\": [\"fi\"], "
+            + "\"vastaanottajat\": [ { \"nimi\": \"Vastaan Ottaja\", \"sahkopostiOsoite\": \"%s\" } ], "
+            + "\"kayttooikeusRajoitukset\": [ { \"oikeus\": \"APP_OIKEUS\", \"organisaatio\": \"%s\" } ]%s}")
+        .formatted(
+            osoite,
+            OPH_ORGANISAATIO_OID,
+            idempotencyKey == null ? "" : ", \"idempotencyKey\": \"" + idempotencyKey + "\"");
+  }
+
+  @Test
+  @UserLahettaja
+  void bulkViestitAreSavedAndResultsStreamedPerLine() throws Exception {
+    String lahetysTunniste = insertLahetys("Bulk lahetys", "e2e-test");
+    String body =
+        String.join(
+            "\n",
+            bulkViestiJson("bulk1@example.com", null),
+            "{ ei jsonia",
+            "",
+            "{\"otsikko\": \"Ilman vastaanottajia\", \"sisalto\": \"x\", \"sisallonTyyppi\": \"text\"}",
+            bulkViestiJson("bulk2@example.com", "bulk-avain"),
+            bulkViestiJson("bulk3@example.com", "bulk-avain"));
+
+    String vastaus =
+        mvc.perform(
+                post("/v1/lahetykset/{tunniste}/viestit", lahetysTunniste)
+                    .contentType(MediaType.APPLICATION_NDJSON)
+                    .content(body))
+            .andExpect(status().isOk())
+            .andReturn()
+            .getResponse()
+            .getContentAsString();
+
+    List<Map<?, ?>> rivit = vastaus.lines().map(rivi -> (Map<?, ?>) objectMapper.readValue(rivi, Map.class)).toList();
+    assertEquals(5, rivit.size());
+    assertEquals(1, rivit.get(0).get("rivi"));
+    assertEquals(lahetysTunniste, rivit.get(0).get("lahetysTunniste"));
+    assertEquals(2, rivit.get(1).get("rivi"));
+    assertEquals(List.of("Viestin json-deserialisointi epäonnistui"), rivit.get(1).get("validointiVirheet"));
+    // the blank line 3 is skipped
+    assertEquals(4, rivit.get(2).get("rivi"));
+    assertTrue(rivit.get(2).containsKey("validointiVirheet"));
+    // a repeated idempotency key within the body yields the same viesti
+    assertEquals(rivit.get(3).get("viestiTunniste"), rivit.get(4).get("viestiTunniste"));
+    assertEquals(6, rivit.get(4).get("rivi"));
+
+    Integer viestit =
+        jdbcTemplate.queryForObject(
+            "SELECT count(*) FROM viestit WHERE lahetys_tunniste = ?::uuid", Integer.class, lahetysTunniste);
+    assertEquals(2, viestit);
+    Integer vastaanottajat =
+        jdbcTemplate.queryForObject(
+            "SELECT count(*) FROM vastaanottajat WHERE sahkopostiosoite LIKE 'bulk%' AND tila = 'ODOTTAA'",
+            Integer.class);
+    assertEquals(2, vastaanottajat);
+  }
+
+  @Test
+  @UserLahettaja
+  void bulkViestitForUnknownLahetysYieldsBadRequest() throws Exception {
+    mvc.perform(
+            post("/v1/lahetykset/{tunniste}/viestit", UUID.randomUUID().toString())
+                .contentType(MediaType.APPLICATION_NDJSON)
+                .content(bulkViestiJson("bulk@example.com", null)))
+        .andExpect(status().isBadRequest())
+        .andExpect(jsonPath("$.validointiVirheet").isArray());
+  }
+
+  @Test
+  @UserKatselijaRaportoija
+  void bulkViestitWithoutSendRightsIsForbidden() throws Exception {
+    mvc.perform(
+            post("/v1/lahetykset/{tunniste}/viestit", UUID.randomUUID().toString())
+                .contentType(MediaType.APPLICATION_NDJSON)
+                .content(bulkViestiJson("bulk@example.com", null)))
+        .andExpect(status().isForbidden());
+  }
 }
@@ -0,0 +1,82 @@
+package fi.vm.sade.viestinvalitys.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import fi.vm.sade.viestinvalitys.ViestinvalitysServiceApiTest;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+
+class KorkeanPrioriteetinRajoitinTest extends ViestinvalitysServiceApiTest {
+
+  @BeforeEach
+  void setup() {
+    clearDatabase();
+  }
+
+  private KorkeanPrioriteetinRajoitin rajoitin(int aikaikkunaSekuntia, String kutsujakohtaisetRajat) {
+    return new KorkeanPrioriteetinRajoitin(
+        new NamedParameterJdbcTemplate(jdbcTemplate), aikaikkunaSekuntia, 5, kutsujakohtaisetRajat);
+  }
+
+  @Test
+  void grantsUpToLimitWithinWindow() {
+    var rajoitin = rajoitin(5, "");
+
+    assertEquals(3, rajoitin.varaa("omistaja", 3));
+    assertEquals(2, rajoitin.varaa("omistaja", 3));
+    assertEquals(0, rajoitin.varaa("omistaja", 1));
+    assertEquals(1, rajoitin.varaa("toinen", 1));
+  }
+
+  @Test
+  void perCallerLimitOverridesDefault() {
+    var rajoitin = rajoitin(5, "palvelu1=2, 1.2.246.562.24.1=20");
+
+    assertEquals(2, rajoitin.varaa("palvelu1", 5));
+    assertEquals(20, rajoitin.varaa("1.2.246.562.24.1", 50));
+    assertEquals(5, rajoitin.varaa("muu", 50));
+  }
+
+  @Test
+  void instancesShareLimit() {
+    var eka = rajoitin(5, "");
+    var toka = rajoitin(5, "");
+
+    assertEquals(4, eka.varaa("omistaja", 4));
+    assertEquals(1, toka.varaa("omistaja", 4));
+    assertEquals(0, eka.varaa("omistaja", 1));
+  }
+
+  @Test
+  void returnedGrantsCanBeGrantedAgain() {
+    var eka = rajoitin(5, "");
+    var toka = rajoitin(5, "");
+
+    assertEquals(5, eka.varaa("omistaja", 5));
+    eka.vapauta("omistaja", 2);
+    assertEquals(2, toka.varaa("omistaja", 3));
+    assertEquals(0, eka.varaa("omistaja", 1));
+  }
+
+  @Test
+  void grantsReturnedOnAnotherInstanceAreSeen() {
+    var eka = rajoitin(5, "");
+    var toka = rajoitin(5, "");
+
+    assertEquals(5, eka.varaa("omistaja", 5));
+    assertEquals(0, eka.varaa("omistaja", 1));
+    toka.vapauta("omistaja", 2);
+    assertEquals(2, eka.varaa("omistaja", 3));
+  }
+
+  @Test
+  void grantsLeaveWindow() throws InterruptedException {
+    var rajoitin = rajoitin(1, "");
+
+    assertEquals(5, rajoitin.varaa("omistaja", 5));
+    assertEquals(0, rajoitin.varaa("omistaja", 1));
+    Thread.sleep(1100);
+    assertEquals(1, rajoitin.varaa("omistaja", 1));
+  }
+}
@@ -0,0 +1,104 @@
+package fi.vm.sade.viestinvalitys.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.mockingDetails;
+
+import fi.vm.sade.viestinvalitys.ViestinvalitysServiceApiTest;
+import fi.vm.sade.viestinvalitys.service.LahetysWriteService.Kontakti;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.IntStream;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.bean.override.mockito.MockitoSpyBean;
+
+class LahetysServiceTest extends ViestinvalitysServiceApiTest {
+
+  @Autowired private LahetysService lahetysService;
+  @Autowired private LahetysWriteService lahetysWriteService;
+  @MockitoSpyBean private JdbcTemplate jdbcSpy;
+
+  @BeforeEach
+  void setup() {
+    clearDatabase();
+  }
+
+  @Test
+  @UserPaakayttaja
+  void lahetysListingQueriesDoNotGrowWithPageSize() {
+    IntStream.rangeClosed(1, 5).forEach(this::tallennaLahetys);
+
+    int yhdenKyselyt = kyselyt("1");
+    int viidenKyselyt = kyselyt("5");
+
+    assertEquals(yhdenKyselyt, viidenKyselyt);
+  }
+
+  @Test
+  @UserPaakayttaja
+  void lahetysListingContainsTilatAndViestiLkm() {
+    IntStream.rangeClosed(1, 3).forEach(this::tallennaLahetys);
+
+    List<Map<String, Object>> lahetykset = lahetykset("10");
+
+    assertEquals(3, lahetykset.size());
+    lahetykset.forEach(lahetys -> {
+      int vastaanottajia = Integer.parseInt(((String) lahetys.get("otsikko")).substring("Lähetys ".length()));
+      assertEquals(1, lahetys.get("viestiLkm"));
+      assertEquals(
+          List.of(Map.of("vastaanottotila", "ODOTTAA", "vastaanottajaLkm", vastaanottajia)), lahetys.get("tilat"));
+    });
+  }
+
+  /** The number of calls made to JdbcTemplate when listing one page of lähetykset. */
+  private int kyselyt(String enintaan) {
+    clearInvocations(jdbcSpy);
+    lahetykset(enintaan);
+    return mockingDetails(jdbcSpy).getInvocations().size();
+  }
+
+  @SuppressWarnings("unchecked")
+  private List<Map<String, Object>> lahetykset(String enintaan) {
+    var tulos =
+        lahetysService.searchLahetykset(
+            null,
+            Optional.empty(),
+            Optional.of(enintaan),
+            Optional.empty(),
+            Optional.empty(),
+            Optional.empty(),
+            Optional.empty(),
+            Optional.empty(),
+            Optional.empty(),
+            Optional.empty());
+    return (List<Map<String, Object>>) tulos.get("lahetykset");
+  }
+
+  private void tallennaLahetys(int vastaanottajia) {
+    lahetysWriteService.tallennaViesti(
+        "Lähetys " + vastaanottajia,
+        "Sisältö",
+        "TEXT",
+        Set.of("fi"),
+        Map.of(),
+        null,
+        new Kontakti("Lähettäjä", "noreply@opintopolku.fi"),
+        null,
+        IntStream.range(0, vastaanottajia)
+            .mapToObj(i -> new Kontakti("Vastaanottaja " + i, "vastaanottaja" + i + "@example.com"))
+            .toList(),
+        "Palvelu",
+        null,
+        "NORMAALI",
+        Set.of(),
+        Map.of(),
+        TEST_KAYTTAJA_OID,
+        10,
+        null);
+  }
+}
@@ -0,0 +1,161 @@
+package fi.vm.sade.viestinvalitys.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import fi.vm.sade.viestinvalitys.ViestinvalitysServiceApiTest;
+import fi.vm.sade.viestinvalitys.service.LahetysWriteService.Kontakti;
+import fi.vm.sade.viestinvalitys.service.LahetysWriteService.TallennettuViesti;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.IntStream;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+
+class LahetysTilastoServiceTest extends ViestinvalitysServiceApiTest {
+
+  @Autowired private LahetysTilastoService lahetysTilastoService;
+  @Autowired private LahetysWriteService lahetysWriteService;
+
+  @BeforeEach
+  void setup() {
+    clearDatabase();
+  }
+
+  @Test
+  void triggersMaintainCounters() {
+    TallennettuViesti viesti = tallenna(null, 4);
+    UUID lahetys = viesti.lahetysTunniste();
+    tallenna(lahetys, 2);
+    assertEquals(Map.of("ODOTTAA", 6), tilastot(lahetys));
+    assertEquals(2, viestiLkm(lahetys));
+
+    jdbcTemplate.update(
+        "UPDATE vastaanottajat SET tila = 'LAHETYKSESSA' WHERE viesti_tunniste = ?::uuid",
+        viesti.viestiTunniste().toString());
+    // an update that does not change tila leaves the counters as they are
+    jdbcTemplate.update(
+        "UPDATE vastaanottajat SET ses_tunniste = 'ses' WHERE viesti_tunniste = ?::uuid",
+        viesti.viestiTunniste().toString());
+    assertEquals(Map.of("ODOTTAA", 2, "LAHETYKSESSA", 4), tilastot(lahetys));
+
+    jdbcTemplate.update("DELETE FROM viestit WHERE tunniste = ?::uuid", viesti.viestiTunniste().toString());
+    assertEquals(Map.of("ODOTTAA", 2, "LAHETYKSESSA", 0), tilastot(lahetys));
+    assertEquals(1, viestiLkm(lahetys));
+  }
+
+  @Test
+  void foldingKeepsTheCounts() {
+    UUID lahetys = tallenna(null, 4).lahetysTunniste();
+    tallenna(lahetys, 2);
+    UUID poistettava = tallenna(null, 1).lahetysTunniste();
+    jdbcTemplate.update("DELETE FROM lahetykset WHERE tunniste = ?::uuid", poistettava.toString());
+    jdbcTemplate.update(
+        "UPDATE vastaanottajat SET tila = 'LAHETETTY' WHERE lahetys_tunniste = ?::uuid AND sahkopostiosoite LIKE 'vastaanottaja0@%'",
+        lahetys.toString());
+
+    // a viesti and its vastaanottajat for each of three saves, both removed for one, and one tila change
+    assertEquals(10, lahetysTilastoService.kokoaMuutokset());
+
+    assertEquals(0, muutoksia());
+    assertEquals(Map.of("ODOTTAA", 4, "LAHETETTY", 2), tilastot(lahetys));
+    assertEquals(Map.of("ODOTTAA", 4, "LAHETETTY", 2), kootut(lahetys));
+    assertEquals(2, viestiLkm(lahetys));
+    assertEquals(Map.of(), kootut(poistettava));
+
+    tallenna(lahetys, 1);
+    assertEquals(Map.of("ODOTTAA", 5, "LAHETETTY", 2), tilastot(lahetys));
+    assertEquals(3, viestiLkm(lahetys));
+  }
+
+  @Test
+  void driftIsRepaired() {
+    UUID lahetys = tallenna(null, 3).lahetysTunniste();
+    UUID toinen = tallenna(null, 1).lahetysTunniste();
+    lahetysTilastoService.kokoaMuutokset();
+    jdbcTemplate.update(
+        "UPDATE lahetys_tilastot SET lkm = 7 WHERE lahetys_tunniste = ?::uuid", lahetys.toString());
+    jdbcTemplate.update(
+        "INSERT INTO lahetys_tilastot VALUES (?::uuid, 'VIRHE', 1)", lahetys.toString());
+    jdbcTemplate.update("UPDATE lahetykset SET viesti_lkm = 0 WHERE tunniste = ?::uuid", lahetys.toString());
+
+    assertEquals(1, lahetysTilastoService.korjaaTilastot());
+    assertEquals(Map.of("ODOTTAA", 3, "VIRHE", 0), tilastot(lahetys));
+    assertEquals(1, viestiLkm(lahetys));
+    assertEquals(Map.of("ODOTTAA", 1), tilastot(toinen));
+
+    assertEquals(0, lahetysTilastoService.korjaaTilastot());
+  }
+
+  @Test
+  void repairAccountsForChangesNotYetFolded() {
+    UUID lahetys = tallenna(null, 3).lahetysTunniste();
+    lahetysTilastoService.kokoaMuutokset();
+    jdbcTemplate.update("UPDATE lahetys_tilastot SET lkm = 7 WHERE lahetys_tunniste = ?::uuid", lahetys.toString());
+    tallenna(lahetys, 2);
+
+    assertEquals(1, lahetysTilastoService.korjaaTilastot());
+    assertEquals(Map.of("ODOTTAA", 5), tilastot(lahetys));
+
+    lahetysTilastoService.kokoaMuutokset();
+    assertEquals(Map.of("ODOTTAA", 5), kootut(lahetys));
+    assertEquals(2, viestiLkm(lahetys));
+    assertEquals(0, lahetysTilastoService.korjaaTilastot());
+  }
+
+  /** The counts as reporting reads them, folded and not yet folded changes together. */
+  private Map<String, Integer> tilastot(UUID lahetys) {
+    return tilastot("lahetys_tilastot_nyt", lahetys);
+  }
+
+  private Map<String, Integer> kootut(UUID lahetys) {
+    return tilastot("lahetys_tilastot", lahetys);
+  }
+
+  private Map<String, Integer> tilastot(String taulu, UUID lahetys) {
+    Map<String, Integer> tilastot = new HashMap<>();
+    jdbcTemplate.query(
+        "SELECT tila, lkm FROM " + taulu + " WHERE lahetys_tunniste = ?::uuid",
+        rs -> {
+          tilastot.put(rs.getString("tila"), rs.getInt("lkm"));
+        },
+        lahetys.toString());
+    return tilastot;
+  }
+
+  private int viestiLkm(UUID lahetys) {
+    return jdbcTemplate.queryForObject(
+        "SELECT " + LahetysTilastoService.VIESTI_LKM + " FROM lahetykset l WHERE l.tunniste = ?::uuid",
+        Integer.class,
+        lahetys.toString());
+  }
+
+  private int muutoksia() {
+    return jdbcTemplate.queryForObject("SELECT count(*) FROM lahetys_tilastomuutokset", Integer.class);
+  }
+
+  private TallennettuViesti tallenna(UUID lahetysTunniste, int vastaanottajia) {
+    return lahetysWriteService.tallennaViesti(
+        "Otsikko",
+        "Sisältö",
+        "TEXT",
+        Set.of("fi"),
+        Map.of(),
+        null,
+        new Kontakti("Lähettäjä", "noreply@opintopolku.fi"),
+        null,
+        IntStream.range(0, vastaanottajia)
+            .mapToObj(i -> new Kontakti("Vastaanottaja " + i, "vastaanottaja" + i + "@example.com"))
+            .toList(),
+        "Palvelu",
+        lahetysTunniste,
+        "NORMAALI",
+        Set.of(),
+        Map.of(),
+        TEST_KAYTTAJA_OID,
+        10,
+        null);
+  }
+}
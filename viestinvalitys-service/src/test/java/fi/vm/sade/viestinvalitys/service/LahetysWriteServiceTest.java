@@ -0,0 +1,262 @@
+package fi.vm.sade.viestinvalitys.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import fi.vm.sade.viestinvalitys.ViestinvalitysServiceApiTest;
+import fi.vm.sade.viestinvalitys.service.LahetysWriteService.Kayttooikeus;
+import fi.vm.sade.viestinvalitys.service.LahetysWriteService.Kontakti;
+import fi.vm.sade.viestinvalitys.service.LahetysWriteService.TallennettuViesti;
+import fi.vm.sade.viestinvalitys.service.LahetysWriteService.UusiViesti;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.IntStream;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+class LahetysWriteServiceTest extends ViestinvalitysServiceApiTest {
+
+  private static final Logger LOG = LoggerFactory.getLogger(LahetysWriteServiceTest.class);
+
+  @Autowired private LahetysWriteService lahetysWriteService;
+  @Autowired private KayttooikeusCache kayttooikeusCache;
+  @Autowired private PlatformTransactionManager transactionManager;
+
+  @BeforeEach
+  void setup() {
+    clearDatabase();
+  }
+
+  @Test
+  void savesAllChildRowsOfViesti() {
+    TallennettuViesti viesti =
+        tallenna(
+            vastaanottajat(3),
+            Map.of("salaisuus1", "***", "salaisuus2", "###"),
+            Set.of(
+                new Kayttooikeus("APP_OIKEUS", OPH_ORGANISAATIO_OID),
+                new Kayttooikeus("APP_TOINEN", OPH_ORGANISAATIO_OID)),
+            Map.of("hakemus", List.of("1", "2"), "haku", List.of("3")));
+
+    String tunniste = viesti.viestiTunniste().toString();
+    assertEquals(3, viesti.vastaanottajaTunnisteet().size());
+    assertEquals(3, count("SELECT count(*) FROM vastaanottajat WHERE viesti_tunniste = ?::uuid AND tila = 'ODOTTAA'", tunniste));
+    assertEquals(
+        3,
+        count(
+            "SELECT count(*) FROM vastaanottaja_siirtymat s JOIN vastaanottajat v ON v.tunniste = s.vastaanottaja_tunniste "
+                + "WHERE v.viesti_tunniste = ?::uuid AND s.tila = 'ODOTTAA'",
+            tunniste));
+    assertEquals(2, count("SELECT count(*) FROM maskit WHERE viesti_tunniste = ?::uuid", tunniste));
+    assertEquals(3, count("SELECT count(*) FROM metadata WHERE viesti_tunniste = ?::uuid", tunniste));
+    assertEquals(2, count("SELECT count(*) FROM metadata_avaimet WHERE avain IN ('hakemus', 'haku')"));
+    assertEquals(2, count("SELECT count(*) FROM viestit_kayttooikeudet WHERE viesti_tunniste = ?::uuid", tunniste));
+    assertEquals(
+        2,
+        count(
+            "SELECT count(*) FROM lahetykset_kayttooikeudet WHERE lahetys_tunniste = ?::uuid",
+            viesti.lahetysTunniste().toString()));
+    assertEquals(
+        3,
+        count(
+            "SELECT cardinality(haku_vastaanottajat) FROM viestit WHERE tunniste = ?::uuid",
+            tunniste));
+  }
+
+  @Test
+  void savesViestiWithoutOptionalChildRows() {
+    TallennettuViesti viesti = tallenna(vastaanottajat(1), Map.of(), Set.of(), Map.of());
+
+    assertEquals(1, count("SELECT count(*) FROM vastaanottajat WHERE viesti_tunniste = ?::uuid", viesti.viestiTunniste().toString()));
+  }
+
+  @Test
+  void kayttooikeusRowsAreCreatedOnceAndReused() {
+    Set<Kayttooikeus> oikeudet =
+        Set.of(new Kayttooikeus("APP_OIKEUS", OPH_ORGANISAATIO_OID), new Kayttooikeus("APP_ILMAN_ORGANISAATIOTA", null));
+
+    TallennettuViesti eka = tallenna(vastaanottajat(1), Map.of(), oikeudet, Map.of());
+    TallennettuViesti toka = tallenna(vastaanottajat(1), Map.of(), oikeudet, Map.of());
+
+    assertEquals(2, count("SELECT count(*) FROM kayttooikeudet"));
+    assertEquals(
+        count("SELECT sum(kayttooikeus_tunniste) FROM viestit_kayttooikeudet WHERE viesti_tunniste = ?::uuid", eka.viestiTunniste().toString()),
+        count("SELECT sum(kayttooikeus_tunniste) FROM viestit_kayttooikeudet WHERE viesti_tunniste = ?::uuid", toka.viestiTunniste().toString()));
+  }
+
+  @Test
+  void kayttooikeusAddedByAnotherInstanceIsUsed() {
+    tallenna(vastaanottajat(1), Map.of(), Set.of(new Kayttooikeus("APP_OIKEUS", OPH_ORGANISAATIO_OID)), Map.of());
+    int tunniste =
+        jdbcTemplate.queryForObject(
+            "INSERT INTO kayttooikeudet (organisaatio, oikeus) VALUES (?, 'APP_TOINEN') RETURNING tunniste",
+            Integer.class,
+            OPH_ORGANISAATIO_OID);
+
+    TallennettuViesti viesti =
+        tallenna(vastaanottajat(1), Map.of(), Set.of(new Kayttooikeus("APP_TOINEN", OPH_ORGANISAATIO_OID)), Map.of());
+
+    assertEquals(2, count("SELECT count(*) FROM kayttooikeudet"));
+    assertEquals(
+        tunniste,
+        count("SELECT kayttooikeus_tunniste FROM viestit_kayttooikeudet WHERE viesti_tunniste = ?::uuid", viesti.viestiTunniste().toString()));
+  }
+
+  @Test
+  void kayttooikeusCreatedInRolledBackTransactionIsNotCached() {
+    Kayttooikeus oikeus = new Kayttooikeus("APP_OIKEUS", OPH_ORGANISAATIO_OID);
+    new TransactionTemplate(transactionManager)
+        .executeWithoutResult(
+            status -> {
+              kayttooikeusCache.getTunnisteet(Set.of(oikeus));
+              status.setRollbackOnly();
+            });
+    assertEquals(0, count("SELECT count(*) FROM kayttooikeudet"));
+
+    TallennettuViesti viesti = tallenna(vastaanottajat(1), Map.of(), Set.of(oikeus), Map.of());
+
+    assertEquals(
+        count("SELECT tunniste FROM kayttooikeudet"),
+        count("SELECT kayttooikeus_tunniste FROM viestit_kayttooikeudet WHERE viesti_tunniste = ?::uuid", viesti.viestiTunniste().toString()));
+  }
+
+  @Test
+  void repeatedIdempotencyKeyReturnsEarlierViesti() {
+    TallennettuViesti eka = tallenna(vastaanottajat(2), "avain");
+    TallennettuViesti toka = tallenna(vastaanottajat(2), "avain");
+
+    assertTrue(eka.uusi());
+    assertFalse(toka.uusi());
+    assertEquals(eka.viestiTunniste(), toka.viestiTunniste());
+    assertEquals(eka.lahetysTunniste(), toka.lahetysTunniste());
+    assertEquals(1, count("SELECT count(*) FROM viestit"));
+    // the lähetys created for the repeated viesti is removed
+    assertEquals(1, count("SELECT count(*) FROM lahetykset"));
+    assertEquals(2, count("SELECT count(*) FROM vastaanottajat"));
+  }
+
+  @Test
+  void concurrentRetriesWithSameIdempotencyKeyCreateOneViesti() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Callable<TallennettuViesti>> yritykset = new ArrayList<>();
+      for (int i = 0; i < 8; i++) {
+        yritykset.add(() -> tallenna(vastaanottajat(1), "rinnakkainen"));
+      }
+      List<TallennettuViesti> tulokset = new ArrayList<>();
+      for (Future<TallennettuViesti> tulos : executor.invokeAll(yritykset)) {
+        tulokset.add(tulos.get());
+      }
+
+      assertEquals(1, tulokset.stream().filter(TallennettuViesti::uusi).count());
+      assertEquals(1, tulokset.stream().map(TallennettuViesti::viestiTunniste).distinct().count());
+      assertEquals(1, count("SELECT count(*) FROM viestit"));
+      assertEquals(1, count("SELECT count(*) FROM vastaanottajat"));
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  void repeatedIdempotencyKeyWithinChunkGetsFirstViesti() {
+    UUID lahetysTunniste = tallenna(vastaanottajat(1), null).lahetysTunniste();
+    UusiViesti viesti =
+        new UusiViesti(
+            "Otsikko", "Sisältö", "TEXT", Set.of("fi"), Map.of(), vastaanottajat(1), Set.of(), Map.of(), "erassa");
+
+    List<TallennettuViesti> tulokset =
+        lahetysWriteService.tallennaViestit(lahetysTunniste, List.of(viesti, viesti), TEST_KAYTTAJA_OID);
+
+    assertTrue(tulokset.get(0).uusi());
+    assertFalse(tulokset.get(1).uusi());
+    assertEquals(tulokset.get(0).viestiTunniste(), tulokset.get(1).viestiTunniste());
+    assertEquals(1, count("SELECT count(*) FROM viestit WHERE idempotency_key = 'erassa'"));
+  }
+
+  /**
+   * Save latency against the number of recipients. Run with {@code -Dbenchmark=true}.
+   */
+  @Test
+  @EnabledIfSystemProperty(named = "benchmark", matches = "true")
+  void benchmarkTallennaViesti() {
+    // warm up the connection pool and the statement cache
+    IntStream.range(0, 20).forEach(i -> tallenna(vastaanottajat(16), Map.of(), Set.of(), Map.of()));
+
+    int toistot = 10;
+    for (int maara : new int[] {1, 16, 128, 512, 2048}) {
+      List<Kontakti> vastaanottajat = vastaanottajat(maara);
+      long alku = System.nanoTime();
+      for (int i = 0; i < toistot; i++) {
+        tallenna(
+            vastaanottajat,
+            Map.of("salaisuus", "***"),
+            Set.of(new Kayttooikeus("APP_OIKEUS", OPH_ORGANISAATIO_OID)),
+            Map.of("hakemus", List.of("1", "2")));
+      }
+      double kestoMs = (System.nanoTime() - alku) / 1_000_000.0 / toistot;
+      LOG.info("tallennaViesti, {} vastaanottajaa: {} ms", maara, String.format("%.1f", kestoMs));
+    }
+  }
+
+  private TallennettuViesti tallenna(List<Kontakti> vastaanottajat, String idempotencyKey) {
+    return tallenna(vastaanottajat, Map.of(), Set.of(), Map.of(), idempotencyKey);
+  }
+
+  private TallennettuViesti tallenna(
+      List<Kontakti> vastaanottajat,
+      Map<String, String> maskit,
+      Set<Kayttooikeus> kayttooikeudet,
+      Map<String, List<String>> metadata) {
+    return tallenna(vastaanottajat, maskit, kayttooikeudet, metadata, null);
+  }
+
+  private TallennettuViesti tallenna(
+      List<Kontakti> vastaanottajat,
+      Map<String, String> maskit,
+      Set<Kayttooikeus> kayttooikeudet,
+      Map<String, List<String>> metadata,
+      String idempotencyKey) {
+    return lahetysWriteService.tallennaViesti(
+        "Otsikko salaisuus1",
+        "Sisältö",
+        "TEXT",
+        Set.of("fi"),
+        maskit,
+        null,
+        new Kontakti("Lähettäjä", "noreply@opintopolku.fi"),
+        null,
+        vastaanottajat,
+        "Palvelu",
+        null,
+        "NORMAALI",
+        kayttooikeudet,
+        metadata,
+        TEST_KAYTTAJA_OID,
+        10,
+        idempotencyKey);
+  }
+
+  private static List<Kontakti> vastaanottajat(int maara) {
+    return IntStream.range(0, maara)
+        .mapToObj(i -> new Kontakti("Vastaanottaja " + i, "vastaanottaja" + i + "@example.com"))
+        .toList();
+  }
+
+  private int count(String sql, Object... args) {
+    return jdbcTemplate.queryForObject(sql, Integer.class, args);
+  }
+}
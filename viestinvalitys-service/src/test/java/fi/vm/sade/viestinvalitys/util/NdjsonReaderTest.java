@@ -0,0 +1,45 @@
+package fi.vm.sade.viestinvalitys.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+class NdjsonReaderTest {
+
+  private static NdjsonReader reader(String body, int maxRivinPituus) {
+    return new NdjsonReader(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)), maxRivinPituus);
+  }
+
+  private static String sisalto(NdjsonReader.Rivi rivi) {
+    return new String(rivi.sisalto(), StandardCharsets.UTF_8);
+  }
+
+  @Test
+  void readsLinesAndSkipsBlankOnes() throws IOException {
+    var reader = reader("{\"a\":1}\n\n  \n{\"b\":2}", 100);
+
+    var eka = reader.seuraava();
+    assertEquals(1, eka.numero());
+    assertEquals("{\"a\":1}", sisalto(eka));
+    var toka = reader.seuraava();
+    assertEquals(4, toka.numero());
+    assertEquals("{\"b\":2}", sisalto(toka));
+    assertNull(reader.seuraava());
+  }
+
+  @Test
+  void tooLongLineIsSkippedAndReadingContinues() throws IOException {
+    var reader = reader("{\"a\":\"" + "x".repeat(50) + "\"}\n{\"b\":2}\n", 20);
+
+    var pitka = reader.seuraava();
+    assertEquals(1, pitka.numero());
+    assertTrue(pitka.liianPitka());
+    assertEquals("{\"b\":2}", sisalto(reader.seuraava()));
+    assertNull(reader.seuraava());
+  }
+}
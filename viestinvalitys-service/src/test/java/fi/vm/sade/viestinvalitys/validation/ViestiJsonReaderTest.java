@@ -0,0 +1,115 @@
+package fi.vm.sade.viestinvalitys.validation;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import fi.vm.sade.viestinvalitys.dto.Kayttooikeus;
+import fi.vm.sade.viestinvalitys.dto.Kontakti;
+import fi.vm.sade.viestinvalitys.dto.LuoViestiRequest;
+import fi.vm.sade.viestinvalitys.dto.Maski;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.junit.jupiter.api.Test;
+import tools.jackson.databind.ObjectMapper;
+
+class ViestiJsonReaderTest {
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private static LuoViestiRequest lue(String json) {
+        return ViestiJsonReader.lue(OBJECT_MAPPER, new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static String vastaanottajat(int maara) {
+        return IntStream.range(0, maara)
+                .mapToObj(i -> "{\"nimi\": \"Vastaanottaja\", \"sahkopostiOsoite\": \"v" + i + "@example.com\"}")
+                .collect(Collectors.joining(",", "[", "]"));
+    }
+
+    @Test
+    void readsAllFields() {
+        var viesti = lue("""
+                {
+                  "otsikko": "Otsikko",
+                  "sisalto": "Sisältö",
+                  "sisallonTyyppi": "text",
+                  "kielet": ["fi", "sv"],
+                  "maskit": [{"salaisuus": "salaisuus1", "maski": "********"}],
+                  "lahettavanVirkailijanOid": "1.2.246.562.24.1",
+                  "lahettaja": {"nimi": "Lähettäjä", "sahkopostiOsoite": "noreply@opintopolku.fi"},
+                  "replyTo": "vastaus@example.com",
+                  "vastaanottajat": [{"nimi": "Vastaanottaja", "sahkopostiOsoite": "v@example.com"}, null],
+                  "liitteidenTunnisteet": ["3fa85f64-5717-4562-b3fc-2c963f66afa6"],
+                  "lahettavaPalvelu": "palvelu",
+                  "lahetysTunniste": null,
+                  "prioriteetti": "normaali",
+                  "sailytysaika": 10,
+                  "kayttooikeusRajoitukset": [{"oikeus": "APP_OIKEUS", "organisaatio": "1.2.246.562.10.1"}],
+                  "metadata": {"hakemus": ["1", "2"]},
+                  "idempotencyKey": "avain"
+                }
+                """);
+
+        assertEquals(new LuoViestiRequest("Otsikko", "Sisältö", "text", List.of("fi", "sv"),
+                List.of(new Maski("salaisuus1", "********")), "1.2.246.562.24.1",
+                new Kontakti("Lähettäjä", "noreply@opintopolku.fi"), "vastaus@example.com",
+                Arrays.asList(new Kontakti("Vastaanottaja", "v@example.com"), null),
+                List.of("3fa85f64-5717-4562-b3fc-2c963f66afa6"), "palvelu", null, "normaali", 10,
+                List.of(new Kayttooikeus("APP_OIKEUS", "1.2.246.562.10.1")), Map.of("hakemus", List.of("1", "2")),
+                "avain"), viesti);
+    }
+
+    @Test
+    void missingFieldsAreNull() {
+        var viesti = lue("{\"otsikko\": \"Otsikko\"}");
+
+        assertEquals("Otsikko", viesti.otsikko());
+        assertNull(viesti.sisalto());
+        assertNull(viesti.vastaanottajat());
+        assertNull(viesti.metadata());
+    }
+
+    @Test
+    void tooLongStringIsRejected() {
+        var e = assertThrows(ViestiJsonReader.RajaYlitetty.class,
+                () -> lue("{\"otsikko\": \"" + "x".repeat(ViestiValidator.OTSIKKO_MAX_PITUUS + 1) + "\"}"));
+        assertEquals(ViestiValidator.VALIDATION_OTSIKKO_LIIAN_PITKA, e.getMessage());
+    }
+
+    @Test
+    void readingStopsAtTooManyVastaanottajat() {
+        // the rest of the body is never read, so it does not matter that it is not valid JSON
+        String vastaanottajat = vastaanottajat(ViestiValidator.VIESTI_VASTAANOTTAJAT_MAX_MAARA + 1);
+        var e = assertThrows(ViestiJsonReader.RajaYlitetty.class,
+                () -> lue("{\"vastaanottajat\": " + vastaanottajat.substring(0, vastaanottajat.length() - 1) + ", ei jsonia"));
+        assertEquals(ViestiValidator.VALIDATION_VASTAANOTTAJAT_LIIKAA, e.getMessage());
+
+        assertEquals(ViestiValidator.VIESTI_VASTAANOTTAJAT_MAX_MAARA,
+                lue("{\"vastaanottajat\": " + vastaanottajat(ViestiValidator.VIESTI_VASTAANOTTAJAT_MAX_MAARA) + "}")
+                        .vastaanottajat().size());
+    }
+
+    @Test
+    void tooManyMetadataValuesAreRejected() {
+        String arvot = IntStream.range(0, ViestiValidator.VIESTI_METADATA_ARVOT_MAX_MAARA + 1)
+                .mapToObj(i -> "\"" + i + "\"")
+                .collect(Collectors.joining(",", "[", "]"));
+        var e = assertThrows(ViestiJsonReader.RajaYlitetty.class, () -> lue("{\"metadata\": {\"avain\": " + arvot + "}}"));
+        assertEquals("Metadata \"avain\": " + ViestiValidator.VALIDATION_METADATA_ARVOT_MAARA, e.getMessage());
+    }
+
+    @Test
+    void invalidJsonIsRejected() {
+        assertThrows(ViestiJsonReader.VirheellinenJson.class, () -> lue("{ ei jsonia"));
+        assertThrows(ViestiJsonReader.VirheellinenJson.class, () -> lue("null"));
+        assertThrows(ViestiJsonReader.VirheellinenJson.class, () -> lue("{\"otsikko\": \"Otsikko\"} {}"));
+        assertThrows(ViestiJsonReader.VirheellinenJson.class, () -> lue("{\"vastaanottajat\": \"v@example.com\"}"));
+        assertThrows(ViestiJsonReader.VirheellinenJson.class, () -> lue("{\"otsikko\": {\"a\": 1}}"));
+    }
+}